@@ -0,0 +1,186 @@
+package cnn.utils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD implementation of {@link MatrixKernels} built on the JDK Vector API, using the widest
+ * vector shape supported by the CPU. This class is compiled only by the {@code vector-api} build profile
+ * and is loaded reflectively by {@link MatrixUtils} when the {@code jdk.incubator.vector} module is present.
+ */
+class VectorKernels implements MatrixKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        DoubleVector scale = DoubleVector.broadcast(SPECIES, alpha);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset + i);
+            vx.fma(scale, vy).intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void multiply(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            va.mul(vb).intoArray(out, outOffset + i);
+        }
+        for (; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void max(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            va.max(vb).intoArray(out, outOffset + i);
+        }
+        for (; i < length; i++) {
+            double x = a[aOffset + i];
+            double y = b[bOffset + i];
+            out[outOffset + i] = x >= y ? x : y;
+        }
+    }
+
+    @Override
+    public void add(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            va.add(vb).intoArray(out, outOffset + i);
+        }
+        for (; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    @Override
+    public double sum(double[] a, int offset, int length) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            acc = acc.add(DoubleVector.fromArray(SPECIES, a, offset + i));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[offset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        FloatVector scale = FloatVector.broadcast(FLOAT_SPECIES, alpha);
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(FLOAT_SPECIES, x, xOffset + i);
+            FloatVector vy = FloatVector.fromArray(FLOAT_SPECIES, y, yOffset + i);
+            vx.fma(scale, vy).intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void multiply(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset, int length) {
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i);
+            va.mul(vb).intoArray(out, outOffset + i);
+        }
+        for (; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void max(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset, int length) {
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i);
+            va.max(vb).intoArray(out, outOffset + i);
+        }
+        for (; i < length; i++) {
+            float x = a[aOffset + i];
+            float y = b[bOffset + i];
+            out[outOffset + i] = x >= y ? x : y;
+        }
+    }
+
+    @Override
+    public void add(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset, int length) {
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i);
+            va.add(vb).intoArray(out, outOffset + i);
+        }
+        for (; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    @Override
+    public float sum(float[] a, int offset, int length) {
+        FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+        int i = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); i < bound; i += FLOAT_SPECIES.length()) {
+            acc = acc.add(FloatVector.fromArray(FLOAT_SPECIES, a, offset + i));
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[offset + i];
+        }
+        return sum;
+    }
+}
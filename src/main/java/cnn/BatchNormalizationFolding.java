@@ -0,0 +1,128 @@
+package cnn;
+
+import cnn.interfaces.Layer;
+import cnn.layers.BatchNormalizationLayer;
+import cnn.layers.ConvolutionalLayer;
+import cnn.layers.DropoutLayer;
+import cnn.layers.FlattenLayer;
+import cnn.layers.FullyConnectedLayer;
+import cnn.layers.PoolingLayer;
+import cnn.utils.Tensor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes batch normalization layers from a network meant for inference by folding them into the weights and
+ * biases of the next convolutional or fully connected layer. Convolutional and fully connected layers apply their
+ * activation function themselves, so a batch normalization layer that follows one sees activated values and cannot
+ * be folded backwards into it. In inference mode it is an affine map y = scale * x + shift per channel, which
+ * the next linear layer absorbs exactly: its weights of every input channel are multiplied by the scale of that
+ * channel, and the weighted shifts are added to its biases. Folding passes through layers that commute with the
+ * map: flatten layers (channels become contiguous runs of inputs), dropout layers (the identity in inference),
+ * average pooling, and max pooling when every scale is positive. Convolutions are unpadded, so shifted inputs
+ * never meet padding zeros. Layers that normalize every sample with its own statistics are not affine and stay.
+ */
+final class BatchNormalizationFolding {
+
+    private BatchNormalizationFolding() {
+    }
+
+    /**
+     * Returns a copy of a network with every batch normalization layer that can be folded removed.
+     * The network itself is not modified; the copy owns its parameters, so a network mapped with
+     * {@link CNN#mapNetwork(String)} can be folded, and has all layers in inference mode.
+     *
+     * @param network the network to fold
+     * @return the folded copy
+     */
+    static CNN fold(CNN network) {
+        CNN copy;
+        try {
+            copy = ModelFormat.read(ByteBuffer.wrap(ModelFormat.toBytes(network)), "copy of the network");
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot copy the network for folding", e);
+        }
+        List<Layer> layers = new ArrayList<>(copy.getLayers());
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i) instanceof BatchNormalizationLayer && ((BatchNormalizationLayer) layers.get(i)).getStatistics() == BatchNormalizationLayer.Statistics.BATCH
+                    && foldForward((BatchNormalizationLayer) layers.get(i), layers, i)) {
+                layers.remove(i--);
+            }
+        }
+
+        CNN folded = new CNN(copy.getInputShape());
+        folded.setPrecision(copy.getPrecision());
+        for (Layer layer : layers) {
+            layer.setTraining(false);
+            folded.addLayer(layer);
+        }
+        return folded;
+    }
+
+    /**
+     * Folds the batch normalization layer at a position into the next linear layer, if the layers in between
+     * commute with it.
+     *
+     * @return true if the layer was folded and can be removed
+     */
+    private static boolean foldForward(BatchNormalizationLayer normalization, List<Layer> layers, int position) {
+        Tensor scale = normalization.getInferenceScale();
+        Tensor shift = normalization.getInferenceShift();
+        boolean positive = true;
+        for (int d = 0; d < scale.size(); d++) {
+            positive &= scale.getFlat(d) > 0;
+        }
+        for (int j = position + 1; j < layers.size(); j++) {
+            Layer next = layers.get(j);
+            if (next instanceof PoolingLayer) {
+                if (((PoolingLayer) next).getPoolingType() == PoolingLayer.PoolingType.MAX && !positive) {
+                    return false;
+                }
+            } else if (next instanceof FlattenLayer || next instanceof DropoutLayer) {
+                continue;
+            } else if (next instanceof ConvolutionalLayer) {
+                ConvolutionalLayer convolution = (ConvolutionalLayer) next;
+                return fold(scale, shift, convolution.getParameters(), convolution.getFilterSize() * convolution.getFilterSize(), true);
+            } else if (next instanceof FullyConnectedLayer) {
+                return fold(scale, shift, ((FullyConnectedLayer) next).getParameters(), 1, false);
+            } else {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Folds per-channel scales and shifts into weights and biases. Convolution filters have shape
+     * [numFilters, inputDepth * patch] and fully connected weights [inputSize, outputSize]; the inputs of a channel
+     * are a contiguous run, one per channel for a layer of depth one.
+     *
+     * @return false if the inputs of the layer cannot be divided into the channels
+     */
+    private static boolean fold(Tensor scale, Tensor shift, List<Tensor> parameters, int patch, boolean convolution) {
+        Tensor weights = parameters.get(0);
+        Tensor biases = parameters.get(1);
+        int depth = scale.size();
+        int inputs = convolution ? weights.shape(1) : weights.shape(0);
+        int outputs = convolution ? weights.shape(0) : weights.shape(1);
+        if (inputs % depth != 0 || convolution && depth != 1 && inputs / patch != depth) {
+            return false;
+        }
+        int run = inputs / depth;
+        for (int o = 0; o < outputs; o++) {
+            double bias = biases.getFlat(o);
+            for (int i = 0; i < inputs; i++) {
+                int index = convolution ? o * inputs + i : i * outputs + o;
+                int channel = i / run;
+                double weight = weights.getFlat(index);
+                bias += weight * shift.getFlat(channel);
+                weights.setFlat(index, weight * scale.getFlat(channel));
+            }
+            biases.setFlat(o, bias);
+        }
+        return true;
+    }
+}
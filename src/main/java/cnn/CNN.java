@@ -2,23 +2,43 @@ package cnn;
 
 import cnn.interfaces.AdaptiveLayer;
 import cnn.interfaces.Layer;
+import cnn.interfaces.Optimizer;
 import cnn.interfaces.ParameterizedLayer;
+import cnn.layers.BatchNormalizationLayer;
+import cnn.layers.DropoutLayer;
+import cnn.utils.AllReduce;
 import cnn.utils.ImageData;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
+import cnn.utils.optimizers.Regularization;
+import cnn.utils.optimizers.SGD;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A Convolutional Neural Network (CNN) class that supports forward and backward propagation, parameter updates,
  * and training using Stochastic Gradient Descent (SGD).
+ * Parameters and activations are held in the precision selected with {@link #setPrecision(Tensor.Precision)},
+ * double by default.
  */
 public class CNN implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final int EVALUATION_BATCH_SIZE = 256;
     private List<Layer> layers;
     private int[] inputShape;
     private List<int[]> layerShapes;
+    private int numWorkers = Runtime.getRuntime().availableProcessors();
+    private int numLoaderThreads = 2;
+    private int numCheckpoints = 3;
+    private transient Optimizer optimizer;
+    private Tensor.Precision precision = Tensor.Precision.DOUBLE;
+    private transient Workspace workspace;
 
     /**
      * Constructs a CNN with a specified input shape.
@@ -38,6 +58,9 @@ public class CNN implements Serializable {
      */
     public void addLayer(Layer layer) {
         int[] currentShape = inputShape.clone();
+        if (layer instanceof ParameterizedLayer) {
+            ((ParameterizedLayer) layer).setPrecision(precision);
+        }
         if (layer instanceof AdaptiveLayer) {
             ((AdaptiveLayer) layer).initialize(inputShape);
             inputShape = layer.getOutputShape(inputShape);
@@ -47,48 +70,129 @@ public class CNN implements Serializable {
         layers.add(layer);
         layerShapes.add(currentShape);
         layerShapes.add(inputShape.clone());
+        workspace = null;
     }
 
     /**
-     * Performs the forward pass through all layers of the CNN.
+     * Returns the workspace holding the activations and gradients of this CNN, planning a new one from the
+     * recorded layer shapes and attaching it to every layer when none exists or the batch does not fit.
      *
-     * @param input the input tensor
-     * @return the output tensor after passing through all layers
+     * @param batchSize the number of samples that must fit into the workspace
+     * @return a workspace with a capacity of at least batchSize samples
      */
-    public double[][][] forward(double[][][] input) {
-        double[][][] output = input;
+    private Workspace workspace(int batchSize) {
+        if (workspace == null || workspace.getCapacity() < batchSize) {
+            List<int[]> shapes = new ArrayList<>(layers.size() + 1);
+            shapes.add(layerShapes.isEmpty() ? inputShape : layerShapes.get(0));
+            for (int i = 0; i < layers.size(); i++) {
+                shapes.add(layerShapes.get(2 * i + 1));
+            }
+            workspace = new Workspace(shapes, batchSize, precision);
+            for (int i = 0; i < layers.size(); i++) {
+                layers.get(i).setWorkspace(workspace, i);
+            }
+        }
+        return workspace;
+    }
+
+    /**
+     * Performs the forward pass of a whole mini-batch through all layers of the CNN.
+     * Activations are written into the workspace of this CNN, so the returned tensor is overwritten by the next forward pass.
+     *
+     * @param input the input tensor of shape [batchSize, ...inputShape]
+     * @return the output tensor of shape [batchSize, ...outputShape]
+     */
+    public Tensor forwardBatch(Tensor input) {
+        workspace(input.shape(0));
+        Tensor output = input;
         for (Layer layer : layers) {
-            output = layer.forward(output);
+            output = layer.forwardBatch(output);
         }
         return output;
     }
 
     /**
-     * Performs the backward pass through all layers of the CNN.
+     * Performs the backward pass of the last mini-batch through all layers of the CNN.
+     * Gradients are written into the workspace of this CNN, so the returned tensor is overwritten by the next backward pass.
      *
-     * @param gradient the gradient of the loss with respect to the output
-     * @return the gradient of the loss with respect to the input
+     * @param gradient the gradient of the loss with respect to the output, of shape [batchSize, ...outputShape]
+     * @return the gradient of the loss with respect to the input, of shape [batchSize, ...inputShape]
      */
-    public double[][][] backward(double[][][] gradient) {
-        double[][][] grad = gradient;
+    public Tensor backwardBatch(Tensor gradient) {
+        Tensor grad = gradient;
         for (int i = layers.size() - 1; i >= 0; i--) {
-            grad = layers.get(i).backward(grad);
+            grad = layers.get(i).backwardBatch(grad);
         }
         return grad;
     }
 
     /**
-     * Updates the parameters of all parameterized layers in the CNN using accumulated gradients.
+     * Performs the forward pass of a single sample through all layers of the CNN.
+     *
+     * @param input the input tensor
+     * @return the output tensor after passing through all layers, overwritten by the next forward pass
+     */
+    public Tensor forward(Tensor input) {
+        return forwardBatch(input.asBatch()).slice(0);
+    }
+
+    /**
+     * Performs the backward pass of a single sample through all layers of the CNN.
+     *
+     * @param gradient the gradient of the loss with respect to the output
+     * @return the gradient of the loss with respect to the input
+     */
+    public Tensor backward(Tensor gradient) {
+        return backwardBatch(gradient.asBatch()).slice(0);
+    }
+
+    /**
+     * Performs the forward pass through all layers of the CNN using nested arrays.
+     * This adapter copies the input into a {@link Tensor}, so it is kept for compatibility only.
+     *
+     * @param input the input tensor
+     * @return the output tensor after passing through all layers
+     */
+    public double[][][] forward(double[][][] input) {
+        return forward(Tensor.fromArray(input)).toArray3D();
+    }
+
+    /**
+     * Performs the backward pass through all layers of the CNN using nested arrays.
+     * This adapter copies the gradient into a {@link Tensor}, so it is kept for compatibility only.
+     *
+     * @param gradient the gradient of the loss with respect to the output
+     * @return the gradient of the loss with respect to the input
+     */
+    public double[][][] backward(double[][][] gradient) {
+        return backward(Tensor.fromArray(gradient)).toArray3D();
+    }
+
+    /**
+     * Updates the parameters of all parameterized layers in the CNN using accumulated gradients, in one step
+     * of the {@link #getOptimizer() optimizer}, and resets the gradients.
      *
      * @param learningRate the learning rate for parameter updates
      * @param miniBatchSize the size of the mini-batch used for averaging the gradients
      */
     public void updateParameters(double learningRate, int miniBatchSize) {
+        List<Tensor> parameters = new ArrayList<>();
+        List<Tensor> gradients = new ArrayList<>();
+        List<Regularization> regularization = new ArrayList<>();
         for (Layer layer : layers) {
             if (layer instanceof ParameterizedLayer) {
-                ((ParameterizedLayer) layer).updateParameters(learningRate, miniBatchSize);
+                List<Tensor> layerParameters = ((ParameterizedLayer) layer).getParameters();
+                List<Tensor> layerGradients = ((ParameterizedLayer) layer).getGradients();
+                List<Regularization> layerRegularization = ((ParameterizedLayer) layer).getRegularization();
+                for (int i = 0; i < layerParameters.size(); i++) {
+                    parameters.add(layerParameters.get(i));
+                    gradients.add(layerGradients.isEmpty() ? null : layerGradients.get(i));
+                    regularization.add(i < layerRegularization.size() ? layerRegularization.get(i) : null);
+                }
             }
         }
+        getOptimizer().update(parameters, gradients, regularization, learningRate, 1.0 / miniBatchSize);
+        resetGradients();
     }
 
     /**
@@ -104,6 +208,9 @@ public class CNN implements Serializable {
 
     /**
      * Trains the CNN using Stochastic Gradient Descent (SGD) with mini-batches.
+     * Whenever the test accuracy improves, the model is checkpointed to saveFilePath by a {@link Checkpointer}:
+     * the parameters are snapshotted in memory and written in the background, atomically replacing the file,
+     * while the previous {@link #getNumCheckpoints()} - 1 best models are kept as saveFilePath.1, .2 and so on.
      *
      * @param trainingData the training data set
      * @param epochs the number of epochs to train for
@@ -113,27 +220,7 @@ public class CNN implements Serializable {
      * @param saveFilePath the file path to save the best model
      */
     public void SGD(List<ImageData> trainingData, int epochs, int miniBatchSize, List<ImageData> testData, double learningRate, String saveFilePath) {
-        int nTest = testData.size();
-        double bestAccuracy = 0.0;
-
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            Collections.shuffle(trainingData);
-            List<List<ImageData>> miniBatches = createMiniBatches(trainingData, miniBatchSize);
-
-            miniBatches.parallelStream().forEach(miniBatch -> updateMiniBatch(miniBatch, miniBatchSize, learningRate));
-
-            if (nTest > 0) {
-                int correct = evaluate(testData);
-                double accuracy = (double) correct / nTest;
-                System.out.println("Epoch " + (epoch + 1) + ": " + correct + " / " + nTest + " (" + accuracy * 100 + "%)");
-
-                if (accuracy > bestAccuracy) {
-                    bestAccuracy = accuracy;
-                    saveNetwork(saveFilePath);
-                    System.out.println("New best model saved with accuracy: " + bestAccuracy * 100 + "%");
-                }
-            }
-        }
+        SGD(trainingData, epochs, miniBatchSize, testData, learningRate, saveFilePath, new TrainingSession(this, null, ThreadLocalRandom.current().nextLong()));
     }
 
     /**
@@ -146,98 +233,456 @@ public class CNN implements Serializable {
      * @param learningRate the learning rate for training
      */
     public void SGD(List<ImageData> trainingData, int epochs, int miniBatchSize, List<ImageData> testData, double learningRate) {
-        int nTest = testData.size();
+        SGD(trainingData, epochs, miniBatchSize, testData, learningRate, null, new TrainingSession(this, null, ThreadLocalRandom.current().nextLong()));
+    }
 
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            Collections.shuffle(trainingData);
-            List<List<ImageData>> miniBatches = createMiniBatches(trainingData, miniBatchSize);
+    /**
+     * Trains the CNN using Stochastic Gradient Descent (SGD) with mini-batches, continuing a training session.
+     *
+     * @param trainingData the training data set, in the same order whenever the session is continued
+     * @param epochs the total number of epochs of the session
+     * @param miniBatchSize the size of each mini-batch
+     * @param testData the test data set for evaluation
+     * @param learningRate the learning rate for training
+     * @param saveFilePath the file path to save the best model, or null to not save it
+     * @param session the session to continue, whose network must be this CNN
+     * @throws IllegalArgumentException if the session belongs to another network or was started with a
+     *         different mini-batch size or number of training samples
+     * @see #train(List, List, TrainingConfig, TrainingSession)
+     */
+    public void SGD(List<ImageData> trainingData, int epochs, int miniBatchSize, List<ImageData> testData, double learningRate, String saveFilePath, TrainingSession session) {
+        TrainingConfig config = new TrainingConfig(epochs, miniBatchSize, learningRate);
+        config.setSaveFilePath(saveFilePath);
+        train(trainingData, testData, config, session);
+    }
+
+    /**
+     * Trains the CNN with mini-batches as configured, in a new training session.
+     *
+     * @param trainingData the training data set
+     * @param validationData the data set the accuracy is measured on after every epoch
+     * @param config the settings of the run
+     */
+    public void train(List<ImageData> trainingData, List<ImageData> validationData, TrainingConfig config) {
+        train(trainingData, validationData, config, new TrainingSession(this, null, ThreadLocalRandom.current().nextLong()));
+    }
 
-            miniBatches.parallelStream().forEach(miniBatch -> updateMiniBatch(miniBatch, miniBatchSize, learningRate));
+    /**
+     * Trains the CNN with mini-batches as configured, continuing a training session.
+     * Training starts at the epoch and batch where the session stopped and runs until the configured total number of
+     * epochs is complete; the samples of every epoch are visited in an order determined by the seed of the session,
+     * and the augmentation of every sample and the dropout masks of every step are drawn from generators seeded
+     * from it, so a continued run follows the uninterrupted one as long as the number of workers is the same.
+     * The learning rate of every step is taken from the schedule of the configuration, with steps counted over the
+     * whole session, so a continued run follows the same schedule.
+     * After every epoch the accuracy on the validation data is measured. Whenever it improves and the configuration
+     * has a save file, the model is checkpointed there by a {@link Checkpointer}: the parameters are snapshotted in
+     * memory and written in the background, atomically replacing the file, while the previous
+     * {@link #getNumCheckpoints()} - 1 best models are kept as saveFilePath.1, .2 and so on.
+     * Training stops early once the accuracy has not improved for {@link TrainingConfig#getPatience()} epochs, or
+     * when the {@link TrainingConfig#getTimeLimit()} is reached.
+     * If the session has a file, it is checkpointed there in the background every
+     * {@link TrainingSession#getCheckpointInterval()} steps, at the end of every epoch and when the time limit stops
+     * training, keeping {@link #getNumCheckpoints()} checkpoints as with the best model.
+     *
+     * @param trainingData the training data set, in the same order whenever the session is continued
+     * @param validationData the data set the accuracy is measured on after every epoch, or an empty list to
+     *                       not measure it, which disables early stopping on patience
+     * @param config the settings of the run
+     * @param session the session to continue, whose network must be this CNN
+     * @throws IllegalArgumentException if the session belongs to another network or was started with a
+     *         different mini-batch size or number of training samples
+     */
+    public void train(List<ImageData> trainingData, List<ImageData> validationData, TrainingConfig config, TrainingSession session) {
+        if (session.getNetwork() != this) {
+            throw new IllegalArgumentException("Training session belongs to another network");
+        }
+        int epochs = config.getEpochs();
+        int miniBatchSize = config.getMiniBatchSize();
+        session.begin(miniBatchSize, trainingData.size());
+        int nTest = validationData.size();
+        int patience = nTest > 0 ? config.getPatience() : 0;
+        long deadline = config.getTimeLimit() == null ? Long.MAX_VALUE : System.nanoTime() + config.getTimeLimit().toNanos();
+        int checkpoints = Math.max(1, numCheckpoints);
+
+        try (Checkpointer checkpointer = config.getSaveFilePath() == null ? null : new Checkpointer(config.getSaveFilePath(), checkpoints);
+             Checkpointer sessionCheckpointer = session.getPath() == null ? null : new Checkpointer(session.getPath(), checkpoints);
+             DataParallelTrainer trainer = new DataParallelTrainer(this, numWorkers);
+             DataLoader loader = createLoader(trainingData, miniBatchSize, true)) {
+            loader.setSeed(session.getSeed());
+            long totalSteps = (long) epochs * loader.getNumBatches();
+            int interval = session.getCheckpointInterval();
+            for (int epoch = session.getEpoch(); epoch < epochs; epoch++) {
+                // Checked before the epoch so that a session continued after stopping early stops again
+                if (patience > 0 && epoch - session.getBestEpoch() >= patience) {
+                    System.out.println("Stopping early: no improvement for " + patience + " epochs, best accuracy " + session.getBestAccuracy() * 100 + "% after epoch " + session.getBestEpoch());
+                    return;
+                }
+                long start = System.nanoTime();
+                Iterator<DataLoader.Batch> batches = loader.iterator(epoch, session.getStep());
+                while (batches.hasNext()) {
+                    double learningRate = config.getSchedule().learningRate(session.getIteration(), totalSteps);
+                    trainer.setSeed(session.getSeed() + session.getIteration());
+                    trainer.trainMiniBatch(batches.next(), miniBatchSize, learningRate);
+                    session.advance();
+                    boolean outOfTime = System.nanoTime() - deadline >= 0;
+                    if (sessionCheckpointer != null && (outOfTime || interval > 0 && session.getStep() % interval == 0)) {
+                        sessionCheckpointer.save(session);
+                    }
+                    if (outOfTime) {
+                        System.out.println("Stopping: time limit reached in epoch " + (epoch + 1) + " after " + session.getStep() + " batches");
+                        return;
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
 
-            if (nTest > 0) {
-                int correct = evaluate(testData);
-                double accuracy = (double) correct / nTest;
-                System.out.println("Epoch " + (epoch + 1) + ": " + correct + " / " + nTest + " (" + accuracy * 100 + "%)");
+                if (nTest > 0) {
+                    int correct = evaluate(validationData);
+                    double accuracy = (double) correct / nTest;
+                    System.out.println("Epoch " + (epoch + 1) + ": " + correct + " / " + nTest + " (" + accuracy * 100 + "%), trained in " + seconds + " s");
+
+                    if (session.getBestEpoch() == 0 || accuracy > session.getBestAccuracy() + config.getMinImprovement()) {
+                        session.setBestAccuracy(accuracy);
+                        if (checkpointer != null) {
+                            checkpointer.save(this);
+                            System.out.println("New best model checkpointed with accuracy: " + accuracy * 100 + "%");
+                        }
+                    }
+                }
+                session.completeEpoch();
+                if (sessionCheckpointer != null) {
+                    sessionCheckpointer.save(session);
+                }
             }
         }
     }
 
     /**
-     * Creates mini-batches from the training data.
+     * Creates a loader that assembles batches of a data set in the precision of this CNN on
+     * {@link #getNumLoaderThreads()} background threads.
      *
-     * @param trainingData the training data set
-     * @param miniBatchSize the size of each mini-batch
-     * @return a list of mini-batches
+     * @param data the data set
+     * @param batchSize the size of each batch
+     * @param shuffle whether every epoch visits the samples in a new random order
+     * @return a new loader, to be closed by the caller
+     */
+    private DataLoader createLoader(List<ImageData> data, int batchSize, boolean shuffle) {
+        // Networks saved before loader threads were configurable deserialize with zero
+        int threads = Math.max(1, numLoaderThreads);
+        return new DataLoader(data, batchSize, shuffle, precision, threads, 2 * threads,
+                DataLoader.platformThreadFactory());
+    }
+
+    /**
+     * Resets the accumulated gradients and accumulates the gradients of the loss over a set of samples,
+     * without updating the parameters.
+     *
+     * @param samples the samples to forward and backpropagate as one batch
      */
-    private List<List<ImageData>> createMiniBatches(List<ImageData> trainingData, int miniBatchSize) {
-        List<List<ImageData>> miniBatches = new ArrayList<>();
-        for (int i = 0; i < trainingData.size(); i += miniBatchSize) {
-            miniBatches.add(trainingData.subList(i, Math.min(i + miniBatchSize, trainingData.size())));
+    void accumulateGradients(List<ImageData> samples) {
+        Tensor labels = new Tensor(samples.size(), samples.get(0).getLabel().length);
+        for (int n = 0; n < samples.size(); n++) {
+            double[] label = samples.get(n).getLabel();
+            System.arraycopy(label, 0, labels.getData(), n * label.length, label.length);
         }
-        return miniBatches;
+        accumulateGradients(toBatch(samples), labels);
     }
 
     /**
-     * Updates the CNN parameters using a single mini-batch of training data.
+     * Resets the accumulated gradients and accumulates the gradients of the loss over a batch that has
+     * already been assembled, without updating the parameters.
      *
-     * @param miniBatch the mini-batch of training data
-     * @param miniBatchSize the size of the mini-batch
-     * @param learningRate the learning rate for parameter updates
+     * @param inputs the stacked images, of shape [batchSize, ...inputShape]
+     * @param labels the stacked one-hot labels, of shape [batchSize, numClasses]
      */
-    private void updateMiniBatch(List<ImageData> miniBatch, int miniBatchSize, double learningRate) {
+    void accumulateGradients(Tensor inputs, Tensor labels) {
         resetGradients();
-        for (ImageData data : miniBatch) {
-            double[][][] output = forward(data.getImageData());
-            double[][][] lossGradient = computeLossGradient(output[0][0], data.getLabel());
-            backward(lossGradient);
+        setTraining(true);
+        try {
+            Tensor output = forwardBatch(inputs);
+            Tensor lossGradient = computeLossGradient(output, labels);
+            backwardBatch(lossGradient);
+        } finally {
+            setTraining(false);
+        }
+    }
+
+    /**
+     * Switches every layer between training and inference behavior.
+     *
+     * @param training true for training mode, false for inference mode
+     */
+    private void setTraining(boolean training) {
+        for (Layer layer : layers) {
+            layer.setTraining(training);
         }
-        updateParameters(learningRate, miniBatchSize);
     }
 
     /**
-     * Computes the gradient of the loss function with respect to the output of the CNN.
+     * Shares the statistics of the batch normalization layers with the replicas of this CNN that train on the
+     * other shards of the same mini-batch.
      *
-     * @param output the output of the CNN
-     * @param target the target label
-     * @return the gradient of the loss function
+     * @param group the reduction shared by the replicas, or null to normalize every batch with its own statistics
+     * @param rank the index of this CNN in the group
      */
-    private double[][][] computeLossGradient(double[] output, double[] target) {
-        double[][][] gradient = new double[1][1][output.length];
-        for (int i = 0; i < output.length; i++) {
-            gradient[0][0][i] = output[i] - target[i];
+    void setBatchStatisticsGroup(AllReduce group, int rank) {
+        for (Layer layer : layers) {
+            if (layer instanceof BatchNormalizationLayer) {
+                ((BatchNormalizationLayer) layer).setBatchStatisticsGroup(group, rank);
+            }
+        }
+    }
+
+    /**
+     * Seeds the dropout layers of this CNN, each with the next value of a seed generator.
+     *
+     * @param seeds the generator of the seeds
+     */
+    void seedDropout(SplittableRandom seeds) {
+        for (Layer layer : layers) {
+            if (layer instanceof DropoutLayer) {
+                ((DropoutLayer) layer).setSeed(seeds.nextLong());
+            }
+        }
+    }
+
+    /**
+     * Adds the gradients accumulated by a replica of this CNN to the gradients of this CNN.
+     *
+     * @param replica a CNN created by {@link #replicate()} on this CNN
+     */
+    void addGradients(CNN replica) {
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (layer instanceof ParameterizedLayer) {
+                ((ParameterizedLayer) layer).addGradients((ParameterizedLayer) replica.layers.get(i));
+            }
+        }
+    }
+
+    /**
+     * Creates a replica of this CNN whose layers share the parameters of this CNN but own their
+     * activation caches and gradient buffers.
+     *
+     * @return a new CNN with replicated layers
+     */
+    CNN replicate() {
+        CNN replica = new CNN(inputShape);
+        replica.layerShapes = layerShapes;
+        replica.numWorkers = numWorkers;
+        replica.numLoaderThreads = numLoaderThreads;
+        replica.numCheckpoints = numCheckpoints;
+        replica.precision = precision;
+        for (Layer layer : layers) {
+            replica.layers.add(layer.replicate());
+        }
+        return replica;
+    }
+
+    /**
+     * Sets the number of workers that process shards of every mini-batch concurrently during training.
+     *
+     * @param numWorkers the number of workers, at least one
+     * @throws IllegalArgumentException if numWorkers is smaller than one
+     */
+    public void setNumWorkers(int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("Number of workers must be at least 1");
+        }
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Returns the number of workers used during training.
+     *
+     * @return the number of workers
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Sets the number of background threads that assemble mini-batches ahead of training and evaluation.
+     *
+     * @param numLoaderThreads the number of loader threads, at least one
+     * @throws IllegalArgumentException if numLoaderThreads is smaller than one
+     */
+    public void setNumLoaderThreads(int numLoaderThreads) {
+        if (numLoaderThreads < 1) {
+            throw new IllegalArgumentException("Number of loader threads must be at least 1");
+        }
+        this.numLoaderThreads = numLoaderThreads;
+    }
+
+    /**
+     * Returns the number of background threads that assemble mini-batches.
+     *
+     * @return the number of loader threads
+     */
+    public int getNumLoaderThreads() {
+        return numLoaderThreads;
+    }
+
+    /**
+     * Sets the number of best models kept while training with a save path, including the newest one.
+     *
+     * @param numCheckpoints the number of checkpoints, at least one
+     * @throws IllegalArgumentException if numCheckpoints is smaller than one
+     */
+    public void setNumCheckpoints(int numCheckpoints) {
+        if (numCheckpoints < 1) {
+            throw new IllegalArgumentException("Number of checkpoints must be at least 1");
+        }
+        this.numCheckpoints = numCheckpoints;
+    }
+
+    /**
+     * Returns the number of best models kept while training with a save path.
+     *
+     * @return the number of checkpoints
+     */
+    public int getNumCheckpoints() {
+        return numCheckpoints;
+    }
+
+    /**
+     * Sets the rule that updates the parameters from the accumulated gradients. The optimizer keeps its state,
+     * such as momentum buffers, for the parameters of this network, so it must not be shared with another one.
+     *
+     * @param optimizer the optimizer, such as {@link SGD}, {@link cnn.utils.optimizers.Momentum} or
+     *                  {@link cnn.utils.optimizers.Adam}
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        if (optimizer == null) {
+            throw new IllegalArgumentException("Optimizer must not be null");
+        }
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * Returns the rule that updates the parameters, plain gradient descent unless another one was set.
+     *
+     * @return the optimizer
+     */
+    public Optimizer getOptimizer() {
+        if (optimizer == null) {
+            optimizer = new SGD();
+        }
+        return optimizer;
+    }
+
+    /**
+     * Converts the parameters of every layer to the given precision and plans the activation buffers in it.
+     * Single precision halves the memory traffic of training and inference; double precision is the reference.
+     * Inputs of another precision are converted when they are copied into the network.
+     *
+     * @param precision the element type of the parameters and activations
+     */
+    public void setPrecision(Tensor.Precision precision) {
+        this.precision = precision;
+        for (Layer layer : layers) {
+            if (layer instanceof ParameterizedLayer) {
+                ((ParameterizedLayer) layer).setPrecision(precision);
+            }
+        }
+        workspace = null;
+    }
+
+    /**
+     * Returns the element type of the parameters and activations.
+     *
+     * @return the precision of the network
+     */
+    public Tensor.Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Copies the images of a list of samples into the input buffer of the workspace.
+     *
+     * @param samples the samples to stack
+     * @return a tensor of shape [samples.size(), depth, height, width] backed by the workspace
+     */
+    private Tensor toBatch(List<ImageData> samples) {
+        Tensor batch = workspace(samples.size()).activation(0, samples.size());
+        int sampleSize = batch.size() / samples.size();
+        for (int n = 0; n < samples.size(); n++) {
+            ImageData sample = samples.get(n);
+            if (sample.getImageSize() != sampleSize) {
+                throw new IllegalArgumentException("Image of shape " + java.util.Arrays.toString(sample.getImageShape()) + " does not match the input shape of the network");
+            }
+            sample.copyImageTo(batch, n * sampleSize);
+        }
+        return batch;
+    }
+
+    /**
+     * Computes the gradient of the loss function with respect to the output of the CNN for every sample of a mini-batch.
+     *
+     * @param output the output of the CNN, of shape [batchSize, numClasses]
+     * @param labels the target labels of the mini-batch, of shape [batchSize, numClasses]
+     * @return the gradient of the loss function, of shape [batchSize, numClasses], backed by the workspace
+     */
+    private Tensor computeLossGradient(Tensor output, Tensor labels) {
+        int batchSize = labels.shape(0);
+        Tensor gradient = workspace(batchSize).gradient(layers.size(), batchSize);
+        for (int k = 0; k < output.size(); k++) {
+            gradient.setFlat(k, output.getFlat(k) - labels.getFlat(k));
         }
         return gradient;
     }
 
     /**
-     * Evaluates the CNN on a test data set.
+     * Evaluates the CNN on a test data set, pushing it through the network in mini-batches.
      *
      * @param testData the test data set
      * @return the number of correctly classified samples
      */
     public int evaluate(List<ImageData> testData) {
+        return evaluate(testData, EVALUATION_BATCH_SIZE);
+    }
+
+    /**
+     * Evaluates the CNN on a test data set, pushing it through the network in mini-batches of the given size.
+     *
+     * @param testData the test data set
+     * @param batchSize the number of samples to forward at once
+     * @return the number of correctly classified samples
+     */
+    public int evaluate(List<ImageData> testData, int batchSize) {
+        if (testData.isEmpty()) {
+            return 0;
+        }
         int correct = 0;
-        for (ImageData data : testData) {
-            double[][][] output = forward(data.getImageData());
-            int predictedLabel = argMax(output[0][0]);
-            int actualLabel = argMax(data.getLabel());
-            if (predictedLabel == actualLabel) {
-                correct++;
+        try (DataLoader loader = createLoader(testData, batchSize, false)) {
+            for (DataLoader.Batch batch : loader) {
+                Tensor output = forwardBatch(batch.getInputs());
+                Tensor labels = batch.getLabels();
+                int numClasses = output.size() / batch.size();
+                for (int n = 0; n < batch.size(); n++) {
+                    int predictedLabel = argMax(output, n * numClasses, numClasses);
+                    int actualLabel = argMax(labels, n * numClasses, numClasses);
+                    if (predictedLabel == actualLabel) {
+                        correct++;
+                    }
+                }
             }
         }
         return correct;
     }
 
     /**
-     * Returns the index of the maximum value in an array.
+     * Returns the index of the maximum value in a range of a contiguous tensor.
      *
-     * @param array the array to search
-     * @return the index of the maximum value
+     * @param data the tensor to search
+     * @param offset the row-major position of the first value
+     * @param length the number of values
+     * @return the index of the maximum value relative to the offset
      */
-    private int argMax(double[] array) {
+    private int argMax(Tensor data, int offset, int length) {
         int maxIndex = 0;
-        for (int i = 1; i < array.length; i++) {
-            if (array[i] > array[maxIndex]) {
+        for (int i = 1; i < length; i++) {
+            if (data.getFlat(offset + i) > data.getFlat(offset + maxIndex)) {
                 maxIndex = i;
             }
         }
@@ -245,33 +690,115 @@ public class CNN implements Serializable {
     }
 
     /**
-     * Saves the CNN to a file.
+     * Returns a smaller copy of this CNN for inference, in which every batch normalization layer that can be is
+     * folded into the weights and biases of the next convolutional or fully connected layer, as described in
+     * {@link BatchNormalizationFolding}. The copy is checked against this CNN on a batch of eight random inputs in
+     * [0, 1), with a tolerance of 1e-9 in double precision and 1e-4 in single precision.
+     *
+     * @return the folded network, with all layers in inference mode
+     * @throws IllegalStateException if the folded network does not reproduce the outputs of this CNN
+     */
+    public CNN foldBatchNormalization() {
+        int[] sampleShape = getInputShape();
+        int[] shape = new int[sampleShape.length + 1];
+        shape[0] = 8;
+        System.arraycopy(sampleShape, 0, shape, 1, sampleShape.length);
+        Tensor check = Tensor.zeros(precision, shape);
+        Random random = new Random(0);
+        for (int k = 0; k < check.size(); k++) {
+            check.setFlat(k, random.nextDouble());
+        }
+        return foldBatchNormalization(check, precision == Tensor.Precision.FLOAT ? 1e-4 : 1e-9);
+    }
+
+    /**
+     * Returns a smaller copy of this CNN for inference, in which every batch normalization layer that can be is
+     * folded into the next linear layer, and checks that it reproduces the outputs of this CNN on the given batch.
+     * The layers of this CNN are put in inference mode for the comparison.
+     *
+     * @param check a batch of inputs of shape [batchSize, ...inputShape]
+     * @param tolerance the largest allowed difference of an output, relative to the output of this CNN where that exceeds one
+     * @return the folded network, with all layers in inference mode
+     * @throws IllegalStateException if an output of the folded network differs by more than the tolerance
+     */
+    public CNN foldBatchNormalization(Tensor check, double tolerance) {
+        setTraining(false);
+        CNN folded = BatchNormalizationFolding.fold(this);
+        Tensor expected = forwardBatch(check).copy();
+        Tensor actual = folded.forwardBatch(check);
+        for (int k = 0; k < expected.size(); k++) {
+            double difference = Math.abs(expected.getFlat(k) - actual.getFlat(k));
+            if (!(difference <= tolerance * Math.max(1.0, Math.abs(expected.getFlat(k))))) {
+                throw new IllegalStateException("Folded network gives " + actual.getFlat(k) + " instead of " + expected.getFlat(k) + " at output " + k);
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * Saves the CNN to a file in the binary model format described by {@link ModelFormat}, which holds the
+     * architecture and parameters but none of the training state.
      *
      * @param filePath the path to the file where the CNN should be saved
      */
     public void saveNetwork(String filePath) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filePath))) {
-            oos.writeObject(this);
+        try {
+            ModelFormat.write(this, filePath);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Loads a CNN from a file.
+     * Loads a CNN from a file in the binary model format, or migrates one saved with Java serialization.
      *
      * @param filePath the path to the file from which the CNN should be loaded
-     * @return the loaded CNN
+     * @return the loaded CNN, or null if the file cannot be read
      */
     public static CNN loadNetwork(String filePath) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filePath))) {
-            return (CNN) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
+        try {
+            return ModelFormat.read(filePath);
+        } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Maps a CNN saved in the binary model format for inference. The filters and weights are read in place
+     * from the mapped file instead of being loaded onto the heap, so startup does not depend on the size of
+     * the model; the returned network cannot be trained.
+     *
+     * @param filePath the path to the file saved by {@link #saveNetwork(String)}
+     * @return the mapped CNN, or null if the file cannot be mapped
+     */
+    public static CNN mapNetwork(String filePath) {
+        try {
+            return ModelFormat.map(filePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the layers of this CNN in order.
+     *
+     * @return the live list of layers
+     */
+    List<Layer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Returns the shape of the input of this CNN.
+     *
+     * @return the dimensions of one input sample
+     */
+    int[] getInputShape() {
+        return (layerShapes.isEmpty() ? inputShape : layerShapes.get(0)).clone();
+    }
+
     /**
      * Prints a summary of the CNN architecture.
      */
@@ -0,0 +1,149 @@
+package cnn;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Saves checkpoints of a CNN during training without blocking the training thread on disk I/O.
+ * {@link #save(CNN)} only encodes the network into an in-memory image in the binary model format, which is a
+ * bulk copy of its parameters; a background thread then writes the image to a temporary file, forces it to
+ * disk and atomically renames it over the checkpoint, so the file always holds a complete model.
+ * The checkpoints it replaces are kept as path.1 (the previous one), path.2 and so on, up to a fixed number.
+ * If the writer falls behind, only the newest pending image is written. Training sessions are checkpointed
+ * the same way, in the session file format of {@link TrainingSession}.
+ */
+public class Checkpointer implements AutoCloseable {
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final Path path;
+    private final int numCheckpoints;
+    private final ExecutorService writer;
+    private final AtomicReference<byte[]> pending = new AtomicReference<>();
+
+    /**
+     * Constructs a checkpointer writing to a file and keeping older checkpoints next to it.
+     *
+     * @param path the path of the newest checkpoint
+     * @param numCheckpoints the number of checkpoints to keep, including the newest one
+     * @throws IllegalArgumentException if numCheckpoints is smaller than one
+     */
+    public Checkpointer(String path, int numCheckpoints) {
+        if (numCheckpoints < 1) {
+            throw new IllegalArgumentException("Number of checkpoints must be at least 1");
+        }
+        this.path = Paths.get(path).toAbsolutePath();
+        this.numCheckpoints = numCheckpoints;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Snapshots the parameters of a network and schedules the snapshot to be written in the background.
+     * The network may be modified as soon as this method returns.
+     *
+     * @param network the network to checkpoint
+     * @throws IllegalStateException if the checkpointer has been closed
+     */
+    public void save(CNN network) {
+        submit(ModelFormat.toBytes(network));
+    }
+
+    /**
+     * Snapshots a training session, including the parameters of its network, and schedules the snapshot to
+     * be written in the background. The session and its network may be modified as soon as this method returns.
+     *
+     * @param session the session to checkpoint
+     * @throws IllegalStateException if the checkpointer has been closed
+     */
+    public void save(TrainingSession session) {
+        submit(session.toBytes());
+    }
+
+    private void submit(byte[] image) {
+        if (writer.isShutdown()) {
+            throw new IllegalStateException("Checkpointer is closed");
+        }
+        if (pending.getAndSet(image) == null) {
+            writer.execute(this::writePending);
+        }
+    }
+
+    /**
+     * Returns the path of the checkpoint that is the given number of saves older than the newest one.
+     *
+     * @param age 0 for the newest checkpoint, 1 for the one before it, and so on
+     * @return the path of the checkpoint
+     */
+    public Path getPath(int age) {
+        return age == 0 ? path : path.resolveSibling(path.getFileName() + "." + age);
+    }
+
+    /**
+     * Waits until every scheduled checkpoint has been written and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Waiting for the checkpoint " + path + " to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the newest pending image, if any. Failures leave the previous checkpoints untouched.
+     */
+    private void writePending() {
+        byte[] image = pending.getAndSet(null);
+        if (image == null) {
+            return;
+        }
+        Path temporary = null;
+        try {
+            temporary = ModelFormat.writeTemporary(image, path);
+            rotate();
+            ModelFormat.replace(temporary, path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Shifts the older checkpoints by one, dropping the oldest, and copies the newest one to path.1
+     * before it is replaced.
+     */
+    private void rotate() throws IOException {
+        if (numCheckpoints == 1 || !Files.exists(path)) {
+            return;
+        }
+        Files.deleteIfExists(getPath(numCheckpoints - 1));
+        for (int age = numCheckpoints - 2; age >= 1; age--) {
+            if (Files.exists(getPath(age))) {
+                Files.move(getPath(age), getPath(age + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.copy(path, getPath(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
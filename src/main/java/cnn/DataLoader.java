@@ -0,0 +1,426 @@
+package cnn;
+
+import cnn.utils.ImageAugmentation;
+import cnn.utils.ImageData;
+import cnn.utils.ImageStore;
+import cnn.utils.Tensor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assembles mini-batches of a data set into ready-to-use input and label tensors on background threads,
+ * so that decoding, normalizing and augmenting the next batches overlaps with training on the current one.
+ * Every iteration over the loader is one epoch: the sample order is drawn as a permutation of indices
+ * (the list itself is never modified), producer threads fill batches from a fixed pool and hand them over
+ * through a queue, and the consumer returns each batch to the pool when it asks for the next one.
+ * The pool bounds both the memory held by the loader and how far the producers run ahead.
+ * Batches are delivered in the order they were drawn, whatever the number of producers. With a seed, the
+ * order of every epoch depends only on the seed and the epoch number, so an epoch can be replayed or
+ * resumed at any batch with {@link #iterator(int, int)}.
+ */
+public class DataLoader implements Iterable<DataLoader.Batch>, AutoCloseable {
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final List<ImageData> samples;
+    private final int batchSize;
+    private final boolean shuffle;
+    private final int numProducers;
+    private final ThreadFactory threadFactory;
+    private final int[] order;
+    private final int numBatches;
+    private final List<Batch> pool;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Object> ready = new LinkedBlockingQueue<>();
+    private final List<Thread> producers = new ArrayList<>();
+    private boolean seeded;
+    private long seed;
+    private int nextEpoch;
+
+    /**
+     * A mini-batch assembled by the loader. Its tensors are reused for later batches once the consumer
+     * has moved on, so they are only valid until the next call to {@link Iterator#next()}.
+     */
+    public static final class Batch {
+        private final Tensor inputBuffer;
+        private final Tensor labelBuffer;
+        private int index;
+        private Throwable failure;
+        private Tensor inputs;
+        private Tensor labels;
+
+        private Batch(Tensor inputBuffer, Tensor labelBuffer) {
+            this.inputBuffer = inputBuffer;
+            this.labelBuffer = labelBuffer;
+        }
+
+        /**
+         * Returns the stacked images of the batch.
+         *
+         * @return a tensor of shape [size, ...imageShape] in the precision of the loader
+         */
+        public Tensor getInputs() {
+            return inputs;
+        }
+
+        /**
+         * Returns the stacked one-hot labels of the batch.
+         *
+         * @return a double-precision tensor of shape [size, numClasses]
+         */
+        public Tensor getLabels() {
+            return labels;
+        }
+
+        /**
+         * Returns the position of the batch within its epoch.
+         *
+         * @return the index of the batch
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the number of samples in the batch, which is smaller than the batch size of the loader
+         * only for the last batch of an epoch.
+         *
+         * @return the number of samples
+         */
+        public int size() {
+            return inputs.shape(0);
+        }
+
+        /**
+         * Copies the images and labels of a range of the sample order into the buffers. When seeded, the
+         * augmentation generator of the thread is seeded for every sample from its position in the epoch.
+         */
+        private void fill(List<ImageData> samples, int[] order, int start, int end, boolean seeded, long augmentationSeed) {
+            int count = end - start;
+            int imageSize = inputBuffer.size() / inputBuffer.shape(0);
+            int numClasses = labelBuffer.shape(1);
+            // A columnar store is read directly, without creating a view per sample
+            ImageStore store = samples instanceof ImageStore ? (ImageStore) samples : null;
+            for (int n = 0; n < count; n++) {
+                int index = order[start + n];
+                double[] label;
+                if (seeded) {
+                    ImageAugmentation.seed(augmentationSeed + start + n);
+                }
+                if (store != null) {
+                    store.copyImageTo(index, inputBuffer, n * imageSize);
+                    label = store.getLabel(index);
+                } else {
+                    ImageData sample = samples.get(index);
+                    if (sample.getImageSize() != imageSize) {
+                        throw new IllegalArgumentException("Image of shape " + Arrays.toString(sample.getImageShape()) + " does not match the batch shape " + Arrays.toString(inputBuffer.getShape()));
+                    }
+                    sample.copyImageTo(inputBuffer, n * imageSize);
+                    label = sample.getLabel();
+                }
+                System.arraycopy(label, 0, labelBuffer.getData(), labelBuffer.getOffset() + n * numClasses, numClasses);
+            }
+            inputs = count == inputBuffer.shape(0) ? inputBuffer : inputBuffer.range(0, count);
+            labels = count == labelBuffer.shape(0) ? labelBuffer : labelBuffer.range(0, count);
+        }
+    }
+
+    /**
+     * Constructs a double-precision loader with one producer thread and two batches prefetched.
+     *
+     * @param samples the data set, which must not change while the loader is in use
+     * @param batchSize the number of samples per batch
+     * @param shuffle whether every epoch visits the samples in a new random order
+     * @throws IllegalArgumentException if the data set is empty or the batch size is smaller than one
+     */
+    public DataLoader(List<ImageData> samples, int batchSize, boolean shuffle) {
+        this(samples, batchSize, shuffle, Tensor.Precision.DOUBLE, 1, 2, platformThreadFactory());
+    }
+
+    /**
+     * Constructs a loader. The shape of the batches is taken from the first sample.
+     *
+     * @param samples the data set, which must not change while the loader is in use
+     * @param batchSize the number of samples per batch
+     * @param shuffle whether every epoch visits the samples in a new random order
+     * @param precision the element type of the input tensors
+     * @param numProducers the number of threads assembling batches concurrently
+     * @param prefetch the number of batches that may be assembled ahead of the one being consumed
+     * @param threadFactory the factory creating the producer threads, for example {@link #virtualThreadFactory()}
+     * @throws IllegalArgumentException if the data set is empty or any count is smaller than one
+     */
+    public DataLoader(List<ImageData> samples, int batchSize, boolean shuffle, Tensor.Precision precision,
+                      int numProducers, int prefetch, ThreadFactory threadFactory) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("Cannot load batches from an empty data set");
+        }
+        if (batchSize < 1 || numProducers < 1 || prefetch < 1) {
+            throw new IllegalArgumentException("Batch size, number of producers and prefetch depth must be at least 1");
+        }
+        this.samples = samples;
+        this.batchSize = Math.min(batchSize, samples.size());
+        this.shuffle = shuffle;
+        this.numProducers = numProducers;
+        this.threadFactory = threadFactory;
+        this.order = new int[samples.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        this.numBatches = (samples.size() + this.batchSize - 1) / this.batchSize;
+
+        ImageData first = samples.get(0);
+        int[] imageShape = first.getImageShape();
+        int[] inputShape = new int[imageShape.length + 1];
+        inputShape[0] = this.batchSize;
+        System.arraycopy(imageShape, 0, inputShape, 1, imageShape.length);
+        int numClasses = first.getLabel().length;
+
+        // One batch is held by the consumer while the others are being filled or wait in the queue
+        int poolSize = prefetch + 1;
+        this.pool = new ArrayList<>(poolSize);
+        this.free = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            pool.add(new Batch(Tensor.zeros(precision, inputShape), new Tensor(this.batchSize, numClasses)));
+        }
+    }
+
+    /**
+     * Returns a factory for virtual threads when the runtime supports them (Java 21 and later),
+     * and a factory for daemon platform threads otherwise. Virtual threads are cheap to create per epoch
+     * and suit producers that spend their time waiting on the pool or on memory-mapped pages.
+     *
+     * @return a thread factory for producer threads
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return platformThreadFactory();
+        }
+    }
+
+    /**
+     * Returns a factory for daemon platform threads named after the loader.
+     *
+     * @return a thread factory for producer threads
+     */
+    public static ThreadFactory platformThreadFactory() {
+        return runnable -> {
+            Thread thread = new Thread(runnable, "data-loader-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns the number of batches in every epoch.
+     *
+     * @return the number of batches
+     */
+    public int getNumBatches() {
+        return numBatches;
+    }
+
+    /**
+     * Returns the number of samples in every full batch.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Draws the sample order of every later epoch, and the augmentation of every sample, from a seed instead
+     * of a fresh random source.
+     *
+     * @param seed the seed of the shuffles
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.seeded = true;
+    }
+
+    /**
+     * Starts the next epoch and returns an iterator over its batches. Any epoch still in progress is abandoned.
+     * The iterator throws {@link IllegalStateException} if a producer fails or the consuming thread is interrupted.
+     *
+     * @return an iterator over the batches of the epoch
+     */
+    @Override
+    public Iterator<Batch> iterator() {
+        return iterator(nextEpoch, 0);
+    }
+
+    /**
+     * Starts an epoch at a given batch and returns an iterator over the remaining batches. Any epoch still in
+     * progress is abandoned. With a seed, the batches are those the epoch would have produced from its start.
+     *
+     * @param epoch the number of the epoch, counted from zero
+     * @param firstBatch the index of the first batch to deliver
+     * @return an iterator over the batches of the epoch from firstBatch on
+     * @throws IndexOutOfBoundsException if firstBatch is negative or larger than the number of batches
+     */
+    public Iterator<Batch> iterator(int epoch, int firstBatch) {
+        if (firstBatch < 0 || firstBatch > numBatches) {
+            throw new IndexOutOfBoundsException("Batch " + firstBatch + " out of bounds for " + numBatches + " batches");
+        }
+        stopProducers();
+        ready.clear();
+        free.clear();
+        free.addAll(pool);
+        nextEpoch = epoch + 1;
+        SplittableRandom seededRandom = seeded ? new SplittableRandom(seed + epoch * 0x9E3779B97F4A7C15L) : null;
+        if (shuffle) {
+            shuffle(seededRandom);
+        }
+        // Drawn after the order, so every sample is augmented as in an uninterrupted epoch whichever producer copies it
+        long augmentationSeed = seeded ? seededRandom.nextLong() : 0L;
+
+        AtomicInteger nextBatch = new AtomicInteger(firstBatch);
+        for (int p = 0; p < Math.min(numProducers, numBatches - firstBatch); p++) {
+            Thread producer = threadFactory.newThread(() -> produce(nextBatch, augmentationSeed));
+            producers.add(producer);
+            producer.start();
+        }
+
+        return new Iterator<Batch>() {
+            private final Map<Integer, Batch> early = new HashMap<>();
+            private int delivered = firstBatch;
+            private Batch current;
+
+            @Override
+            public boolean hasNext() {
+                return delivered < numBatches;
+            }
+
+            @Override
+            public Batch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (current != null) {
+                    free.add(current);
+                    current = null;
+                }
+                // Batches finished ahead of their turn wait until the ones before them are delivered
+                while ((current = early.remove(delivered)) == null) {
+                    Object item;
+                    try {
+                        item = ready.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for the data loader", e);
+                    }
+                    if (item instanceof Throwable) {
+                        throw new IllegalStateException("Data loader failed", (Throwable) item);
+                    }
+                    early.put(((Batch) item).index, (Batch) item);
+                }
+                if (current.failure != null) {
+                    throw new IllegalStateException("Data loader failed", current.failure);
+                }
+                delivered++;
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Permutes the sample order for an epoch, with the generator of the epoch when the loader is seeded.
+     */
+    private void shuffle(SplittableRandom seededRandom) {
+        if (seededRandom != null) {
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = seededRandom != null ? seededRandom.nextInt(i + 1) : random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    /**
+     * Fills batches from the pool until every batch of the epoch has been claimed by some producer.
+     * A batch is taken from the pool before the next index is claimed, so every claimed batch can be
+     * completed and in-order delivery cannot run out of batches.
+     */
+    private void produce(AtomicInteger nextBatch, long augmentationSeed) {
+        try {
+            while (true) {
+                Batch batch = free.take();
+                int index = nextBatch.getAndIncrement();
+                if (index >= numBatches) {
+                    free.add(batch);
+                    return;
+                }
+                int start = index * batchSize;
+                batch.index = index;
+                batch.failure = null;
+                try {
+                    batch.fill(samples, order, start, Math.min(start + batchSize, order.length), seeded, augmentationSeed);
+                } catch (RuntimeException | Error e) {
+                    // Reported when the batch is due, after the batches before it have been delivered
+                    batch.failure = e;
+                }
+                ready.add(batch);
+                if (batch.failure != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The epoch was abandoned or the loader closed
+        } catch (RuntimeException | Error e) {
+            ready.add(e);
+        }
+    }
+
+    /**
+     * Interrupts the producers of the current epoch and waits for them to finish.
+     */
+    private void stopProducers() {
+        for (Thread producer : producers) {
+            producer.interrupt();
+        }
+        boolean interrupted = false;
+        for (Thread producer : producers) {
+            while (true) {
+                try {
+                    producer.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        producers.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the producer threads of the current epoch.
+     */
+    @Override
+    public void close() {
+        stopProducers();
+    }
+}
@@ -0,0 +1,189 @@
+package cnn;
+
+import cnn.utils.AllReduce;
+import cnn.utils.ImageData;
+import cnn.utils.Tensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains a CNN with synchronous data parallelism. Every mini-batch is split into one shard per worker,
+ * each worker runs the forward and backward pass of its shard on its own replica of the network,
+ * and the gradients of all replicas are summed into the network before the parameters are updated once.
+ * Replicas share the parameter arrays of the network, so no parameters are copied between mini-batches.
+ * Batch normalization layers share their statistics across the workers, so they normalize with the statistics
+ * of the whole mini-batch, as a single worker would.
+ */
+public class DataParallelTrainer implements AutoCloseable {
+    private final CNN network;
+    private final CNN[] workers;
+    private final ExecutorService executor;
+
+    /**
+     * Constructs a trainer for the given network. The calling thread acts as the first worker,
+     * so numWorkers - 1 additional threads are started.
+     *
+     * @param network the network to train
+     * @param numWorkers the number of workers processing shards of each mini-batch concurrently
+     * @throws IllegalArgumentException if numWorkers is smaller than one
+     */
+    public DataParallelTrainer(CNN network, int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("Number of workers must be at least 1");
+        }
+        this.network = network;
+        this.workers = new CNN[numWorkers];
+        this.workers[0] = network;
+        for (int w = 1; w < numWorkers; w++) {
+            workers[w] = network.replicate();
+        }
+        this.executor = numWorkers > 1 ? Executors.newFixedThreadPool(numWorkers - 1) : null;
+    }
+
+    /**
+     * Updates the network parameters using a single mini-batch of training data.
+     *
+     * @param miniBatch the mini-batch of training data
+     * @param miniBatchSize the size of the mini-batch used for averaging the gradients
+     * @param learningRate the learning rate for parameter updates
+     * @throws IllegalStateException if a worker fails or the calling thread is interrupted
+     */
+    public void trainMiniBatch(List<ImageData> miniBatch, int miniBatchSize, double learningRate) {
+        int shards = Math.min(workers.length, miniBatch.size());
+        int shardSize = (miniBatch.size() + shards - 1) / shards;
+        // Drop trailing workers that would receive no samples, so no stale gradients are summed
+        shards = (miniBatch.size() + shardSize - 1) / shardSize;
+        List<Future<?>> pending = new ArrayList<>(shards - 1);
+        AllReduce group = synchronize(shards);
+
+        for (int w = 1; w < shards; w++) {
+            CNN worker = workers[w];
+            List<ImageData> shard = miniBatch.subList(Math.min(w * shardSize, miniBatch.size()), Math.min((w + 1) * shardSize, miniBatch.size()));
+            if (!shard.isEmpty()) {
+                pending.add(executor.submit(() -> guard(group, () -> worker.accumulateGradients(shard))));
+            }
+        }
+        guard(group, () -> network.accumulateGradients(miniBatch.subList(0, Math.min(shardSize, miniBatch.size()))));
+        finish(pending, shards, miniBatchSize, learningRate);
+    }
+
+    /**
+     * Updates the network parameters using a mini-batch assembled by a {@link DataLoader}.
+     * Every worker reads its shard directly from the tensors of the batch.
+     *
+     * @param miniBatch the assembled mini-batch of training data
+     * @param miniBatchSize the size of the mini-batch used for averaging the gradients
+     * @param learningRate the learning rate for parameter updates
+     * @throws IllegalStateException if a worker fails or the calling thread is interrupted
+     */
+    public void trainMiniBatch(DataLoader.Batch miniBatch, int miniBatchSize, double learningRate) {
+        Tensor inputs = miniBatch.getInputs();
+        Tensor labels = miniBatch.getLabels();
+        int size = miniBatch.size();
+        int shards = Math.min(workers.length, size);
+        int shardSize = (size + shards - 1) / shards;
+        shards = (size + shardSize - 1) / shardSize;
+        List<Future<?>> pending = new ArrayList<>(shards - 1);
+        AllReduce group = synchronize(shards);
+
+        for (int w = 1; w < shards; w++) {
+            CNN worker = workers[w];
+            int start = Math.min(w * shardSize, size);
+            int end = Math.min((w + 1) * shardSize, size);
+            if (start < end) {
+                pending.add(executor.submit(() -> guard(group, () -> worker.accumulateGradients(inputs.range(start, end), labels.range(start, end)))));
+            }
+        }
+        int end = Math.min(shardSize, size);
+        guard(group, () -> network.accumulateGradients(inputs.range(0, end), labels.range(0, end)));
+        finish(pending, shards, miniBatchSize, learningRate);
+    }
+
+    /**
+     * Creates the group through which the workers of the next mini-batch share their batch statistics,
+     * and attaches it to the workers that receive a shard.
+     *
+     * @return the group, or null if a single worker processes the mini-batch
+     */
+    private AllReduce synchronize(int shards) {
+        AllReduce group = shards > 1 ? new AllReduce(shards) : null;
+        for (int w = 0; w < workers.length; w++) {
+            workers[w].setBatchStatisticsGroup(w < shards ? group : null, w);
+        }
+        return group;
+    }
+
+    /**
+     * Runs the passes of one worker, aborting the group if they fail so the other workers stop waiting for it.
+     */
+    private static void guard(AllReduce group, Runnable passes) {
+        try {
+            passes.run();
+        } catch (RuntimeException | Error e) {
+            if (group != null) {
+                group.abort();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the other workers, sums their gradients into the network and updates its parameters.
+     */
+    private void finish(List<Future<?>> pending, int shards, int miniBatchSize, double learningRate) {
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for training workers", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Training worker failed", e.getCause());
+            }
+        }
+
+        for (int w = 1; w < shards; w++) {
+            network.addGradients(workers[w]);
+        }
+        network.updateParameters(learningRate, miniBatchSize);
+    }
+
+    /**
+     * Seeds the dropout layers of every worker for the next mini-batch. The masks then depend on the seed
+     * and on the number of workers only.
+     *
+     * @param seed the seed of the step
+     */
+    public void setSeed(long seed) {
+        // Training passes consecutive seeds for consecutive steps, whose generators the split decorrelates
+        SplittableRandom seeds = new SplittableRandom(seed).split();
+        for (CNN worker : workers) {
+            worker.seedDropout(seeds);
+        }
+    }
+
+    /**
+     * Returns the number of workers used for each mini-batch.
+     *
+     * @return the number of workers, including the calling thread
+     */
+    public int getNumWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
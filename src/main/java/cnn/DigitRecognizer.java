@@ -58,7 +58,7 @@ public class DigitRecognizer {
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-        CNN cnn = CNN.loadNetwork("savedNetwork/my_cnn.dat");
+        CNN cnn = CNN.mapNetwork("savedNetwork/my_cnn.dat");
         if (cnn == null) {
             System.out.println("Failed to load CNN.");
             return;
@@ -6,14 +6,21 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import cnn.utils.Augmentation;
+import cnn.utils.IdxFile;
 import cnn.utils.ImageData;
-import cnn.utils.ImageAugmentation; // Assuming you have a utility class for augmentations
+import cnn.utils.ImageStore;
+import cnn.utils.IdxInputStream;
+import cnn.utils.MappedImageData;
+import cnn.utils.Tensor;
 
 /**
  * A utility class for reading MNIST data from IDX file format.
  * The MNIST dataset consists of images of handwritten digits and their corresponding labels.
  */
 public class MNISTReader {
+    private static final int NUM_CLASSES = 10;
+    private static final int STREAM_CHUNK = 1024;
 
     /**
      * Main method for reading and processing the MNIST data.
@@ -32,52 +39,139 @@ public class MNISTReader {
     }
 
     /**
-     * Reads MNIST image and label data from IDX files and returns a list of ImageData objects.
+     * Reads MNIST image and label data from IDX files into memory, storing the images in the given precision.
      *
-     * @param imagesFile the path to the images IDX file
-     * @param labelsFile the path to the labels IDX file
+     * @param imagesFile the path to the images IDX file, optionally gzip-compressed
+     * @param labelsFile the path to the labels IDX file, optionally gzip-compressed
+     * @param precision the element type of the image tensors
      * @return a list of ImageData objects containing the image data and corresponding labels
      * @throws IOException if there is an error reading the files
      */
-    @SuppressWarnings("unused")
-    public static List<ImageData> readMNISTData(String imagesFile, String labelsFile) throws IOException {
-        try (DataInputStream images = new DataInputStream(new BufferedInputStream(new FileInputStream(imagesFile)));
-             DataInputStream labels = new DataInputStream(new BufferedInputStream(new FileInputStream(labelsFile)))) {
+    public static List<ImageData> readMNISTData(String imagesFile, String labelsFile, Tensor.Precision precision) throws IOException {
+        List<ImageData> dataset = openMNISTData(imagesFile, labelsFile);
+        for (int i = 0; i < dataset.size(); i++) {
+            ImageData sample = dataset.get(i);
+            dataset.set(i, new ImageData(sample.getImageTensor().toPrecision(precision), sample.getLabel()));
+        }
+        return dataset;
+    }
 
-            int magicNumberImages = images.readInt();
-            int numberOfImages = images.readInt();
-            int rows = images.readInt();
-            int cols = images.readInt();
+    /**
+     * Maps MNIST image and label files into memory and returns one lightweight view per image.
+     * No pixel is read until an image is copied into a batch, where it is scaled to [0, 1] in the precision of the batch.
+     * The returned list is mutable, so it can be shuffled; the views share the mapped files and one label array per class.
+     *
+     * @param imagesFile the path to the images IDX file
+     * @param labelsFile the path to the labels IDX file
+     * @return a list of views over the images with their one-hot labels
+     * @throws IOException if there is an error reading the files or they do not hold the same number of items
+     */
+    public static List<ImageData> mapMNISTData(String imagesFile, String labelsFile) throws IOException {
+        IdxFile images = IdxFile.map(imagesFile);
+        IdxFile labels = IdxFile.map(labelsFile);
+        int[] shape = checkMNISTFiles(images.getDimensions(), labels.getDimensions(), imagesFile, labelsFile);
 
-            int magicNumberLabels = labels.readInt();
-            int numberOfLabels = labels.readInt();
+        double[][] oneHot = new double[NUM_CLASSES][NUM_CLASSES];
+        for (int c = 0; c < NUM_CLASSES; c++) {
+            oneHot[c][c] = 1.0;
+        }
+        List<ImageData> dataset = new ArrayList<>(images.getCount());
+        for (int i = 0; i < images.getCount(); i++) {
+            int label = labels.get(i, 0);
+            if (label >= NUM_CLASSES) {
+                throw new IOException("Label " + label + " of image " + i + " in " + labelsFile + " is not a digit");
+            }
+            dataset.add(new MappedImageData(images, i, shape, oneHot[label]));
+        }
+        return dataset;
+    }
 
-            List<ImageData> dataset = new ArrayList<>();
-            for (int i = 0; i < numberOfImages; i++) {
-                // Read and normalize image data
-                double[][] imageData = new double[rows][cols];
-                for (int r = 0; r < rows; r++) {
-                    for (int c = 0; c < cols; c++) {
-                        imageData[r][c] = (images.readUnsignedByte() & 0xff) / 255.0;
-                    }
+    /**
+     * Loads MNIST image and label data from IDX files into a compact columnar store that keeps the raw
+     * pixels as bytes on the heap, 785 bytes per sample. The store is read-only; {@link CNN#SGD} shuffles
+     * it through a permutation of indices, and {@link Augmentation#apply(List)} can wrap it for training.
+     * Either file may be gzip-compressed, as MNIST is distributed; compressed files are decompressed while
+     * streaming straight into the store.
+     *
+     * @param imagesFile the path to the images IDX file, optionally gzip-compressed
+     * @param labelsFile the path to the labels IDX file, optionally gzip-compressed
+     * @return the images with their labels
+     * @throws IOException if there is an error reading the files, they do not hold the same number of items or a label is not a digit
+     */
+    public static ImageStore loadMNISTData(String imagesFile, String labelsFile) throws IOException {
+        try (IdxInputStream images = IdxInputStream.open(imagesFile);
+             IdxInputStream labels = IdxInputStream.open(labelsFile)) {
+            ImageStore store = new ImageStore(images.getCount(),
+                    checkMNISTFiles(images.getDimensions(), labels.getDimensions(), imagesFile, labelsFile), NUM_CLASSES);
+            byte[] pixels = store.getPixels();
+            for (int i = 0; i < images.getCount(); i += STREAM_CHUNK) {
+                int count = Math.min(STREAM_CHUNK, images.getCount() - i);
+                images.read(count, pixels, i * images.getItemSize());
+            }
+            byte[] classes = new byte[images.getCount()];
+            labels.read(classes.length, classes, 0);
+            for (int i = 0; i < classes.length; i++) {
+                int label = classes[i] & 0xff;
+                if (label >= NUM_CLASSES) {
+                    throw new IOException("Label " + label + " of image " + i + " in " + labelsFile + " is not a digit");
                 }
+                store.setLabel(i, label);
+            }
+            return store;
+        }
+    }
 
-                // Read label
-                int label = labels.readUnsignedByte();
-                double[] arrayLabel = new double[10];
-                arrayLabel[label] = 1.0;
+    /**
+     * Checks that an images file holds 2D images and a labels file holds one label for each of them.
+     *
+     * @return the shape [1, height, width] of one image
+     */
+    private static int[] checkMNISTFiles(int[] imageDimensions, int[] labelDimensions, String imagesFile, String labelsFile) throws IOException {
+        if (imageDimensions.length != 3) {
+            throw new IOException("Expected images of rank 2 in " + imagesFile + " but found dimensions " + Arrays.toString(imageDimensions));
+        }
+        if (labelDimensions.length != 1 || labelDimensions[0] != imageDimensions[0]) {
+            throw new IOException("Labels in " + labelsFile + " do not match the " + imageDimensions[0] + " images in " + imagesFile);
+        }
+        return new int[]{1, imageDimensions[1], imageDimensions[2]};
+    }
 
-                // Original image
-                dataset.add(new ImageData(new double[][][]{imageData}, arrayLabel));
+    /**
+     * Returns mapped views over uncompressed files, or the contents of a store for compressed files, which cannot be mapped.
+     */
+    private static List<ImageData> openMNISTData(String imagesFile, String labelsFile) throws IOException {
+        if (IdxInputStream.isCompressed(imagesFile) || IdxInputStream.isCompressed(labelsFile)) {
+            return new ArrayList<>(loadMNISTData(imagesFile, labelsFile));
+        }
+        return mapMNISTData(imagesFile, labelsFile);
+    }
 
-                // Augmented images
-                for (int j = 0; j < 4; j++) {
-                    double[][] augmentedImage = ImageAugmentation.augment(imageData, 2, 5);
-                    dataset.add(new ImageData(new double[][][]{augmentedImage}, arrayLabel));
-                }
-            }
+    /**
+     * Reads MNIST image and label data from IDX files without augmentation, as used for test splits.
+     * The images are views over the mapped files, see {@link #mapMNISTData(String, String)}, unless a file is
+     * gzip-compressed, in which case it is streamed into a store, see {@link #loadMNISTData(String, String)}.
+     *
+     * @param imagesFile the path to the images IDX file, optionally gzip-compressed
+     * @param labelsFile the path to the labels IDX file, optionally gzip-compressed
+     * @return a list of ImageData objects containing the image data and corresponding labels
+     * @throws IOException if there is an error reading the files
+     */
+    public static List<ImageData> readMNISTData(String imagesFile, String labelsFile) throws IOException {
+        return openMNISTData(imagesFile, labelsFile);
+    }
 
-            return dataset;
-        }
+    /**
+     * Reads MNIST image and label data from IDX files and augments the images lazily. Every time a sample is drawn
+     * into a batch a fresh random variant of its image is produced, so the dataset holds one entry per image and
+     * every epoch sees different variants.
+     *
+     * @param imagesFile the path to the images IDX file, optionally gzip-compressed
+     * @param labelsFile the path to the labels IDX file, optionally gzip-compressed
+     * @param augmentation the augmentation of this split, or {@link Augmentation#NONE}
+     * @return a list of ImageData objects containing the image data and corresponding labels
+     * @throws IOException if there is an error reading the files
+     */
+    public static List<ImageData> readMNISTData(String imagesFile, String labelsFile, Augmentation augmentation) throws IOException {
+        return augmentation.apply(openMNISTData(imagesFile, labelsFile));
     }
-}
\ No newline at end of file
+}
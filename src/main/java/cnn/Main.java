@@ -4,6 +4,8 @@ import cnn.layers.*;
 import cnn.layers.PoolingLayer.PoolingType;
 import cnn.utils.*;
 import cnn.utils.activationFunctions.ELU;
+import cnn.utils.schedules.CosineSchedule;
+import cnn.utils.schedules.WarmupSchedule;
 
 import java.io.IOException;
 import java.util.List;
@@ -30,16 +32,28 @@ public class Main {
 
         String trainImagesFile = "data/train-images.idx3-ubyte";
         String trainLabelsFile = "data/train-labels.idx1-ubyte";
-        List<ImageData> trainDataset = MNISTReader.readMNISTData(trainImagesFile, trainLabelsFile);
+        // The datasets are cached after the first run and rebuilt whenever the IDX files change
+        List<ImageData> trainImages = DatasetCache.load("data/cache/train.cnnd", "mnist", DatasetCache.Encoding.UINT8,
+                () -> MNISTReader.loadMNISTData(trainImagesFile, trainLabelsFile), trainImagesFile, trainLabelsFile);
+        // Four of every five draws of a training image are shifted and rotated, the test images are left unchanged
+        List<ImageData> trainDataset = new Augmentation(2, 5, 0.8).apply(trainImages);
 
         String testImagesFile = "data/t10k-images.idx3-ubyte";
         String testLabelsFile = "data/t10k-labels.idx1-ubyte";
-        List<ImageData> testDataset = MNISTReader.readMNISTData(testImagesFile, testLabelsFile);
-
-        cnn.SGD(trainDataset, 50, 32, testDataset,learningRate);
-
+        List<ImageData> testDataset = DatasetCache.load("data/cache/t10k.cnnd", "mnist", DatasetCache.Encoding.UINT8,
+                () -> MNISTReader.loadMNISTData(testImagesFile, testLabelsFile), testImagesFile, testLabelsFile);
+
+        // One epoch of warmup into cosine decay; training stops once the test accuracy stalls for 5 epochs
+        int miniBatchSize = 32;
+        long stepsPerEpoch = (trainDataset.size() + miniBatchSize - 1) / miniBatchSize;
+        TrainingConfig config = new TrainingConfig(50, miniBatchSize, new WarmupSchedule(new CosineSchedule(learningRate), stepsPerEpoch));
+        config.setPatience(5);
+        cnn.train(trainDataset, testDataset, config);
+
+        // Serve predictions from a copy with the batch normalization layers folded into the next layers
+        CNN inference = cnn.foldBatchNormalization();
         double[][][] input = testDataset.get(2).getImageData();
-        double[][][] output = cnn.forward(input);
+        double[][][] output = inference.forward(input);
 
         System.out.println("CNN output: " + Arrays.toString(output[0][0]));
         System.out.println("Actual output: " + Arrays.toString(testDataset.get(2).getLabel()));
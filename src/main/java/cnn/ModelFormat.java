@@ -0,0 +1,564 @@
+package cnn;
+
+import cnn.interfaces.ActivationFunction;
+import cnn.interfaces.Layer;
+import cnn.interfaces.ParameterizedLayer;
+import cnn.layers.BatchNormalizationLayer;
+import cnn.layers.ConvolutionalLayer;
+import cnn.layers.DropoutLayer;
+import cnn.layers.FlattenLayer;
+import cnn.layers.FullyConnectedLayer;
+import cnn.layers.PoolingLayer;
+import cnn.layers.SoftmaxLayer;
+import cnn.legacy.LegacyModelReader;
+import cnn.utils.Tensor;
+import cnn.utils.activationFunctions.ELU;
+import cnn.utils.activationFunctions.LeakyReLU;
+import cnn.utils.activationFunctions.ReLU;
+import cnn.utils.activationFunctions.SELU;
+import cnn.utils.activationFunctions.Sigmoid;
+import cnn.utils.activationFunctions.Tanh;
+import cnn.utils.optimizers.Regularization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The binary file format of a trained CNN. Everything is little-endian: the magic bytes "CNNM", the format
+ * version, the precision of the network, its input shape and the number of layers, followed by one record
+ * per layer. A record starts with a type tag and the configuration of the layer (sizes, activation function,
+ * regularization coefficients and mode, and for batch normalization the statistics it normalizes with, the
+ * momentum and the running mean and variance of every channel) and ends with its parameter blocks, each holding its shape, its precision and the
+ * raw values, aligned to eight bytes from the start of the file so they can be read in bulk or mapped and used
+ * in place. Version 2 added the regularization mode, version 3 the running statistics of batch normalization
+ * and version 4 the statistics it normalizes with. Batch normalization layers of earlier files were trained on
+ * the statistics of every sample and are read as {@link BatchNormalizationLayer.Statistics#SAMPLE} layers.
+ * Activations, caches and accumulated gradients are not part of the format.
+ * Files written with Java serialization, including those of earlier versions of the layers, are migrated when read.
+ */
+public final class ModelFormat {
+    private static final byte[] MAGIC = {'C', 'N', 'N', 'M'};
+    private static final int VERSION = 4;
+    private static final int ALIGNMENT = 8;
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+
+    private static final int CONVOLUTIONAL = 1;
+    private static final int BATCH_NORMALIZATION = 2;
+    private static final int POOLING = 3;
+    private static final int FLATTEN = 4;
+    private static final int FULLY_CONNECTED = 5;
+    private static final int SOFTMAX = 6;
+    private static final int DROPOUT = 7;
+
+    private static final int RELU = 1;
+    private static final int LEAKY_RELU = 2;
+    private static final int ELU_TAG = 3;
+    private static final int SELU_TAG = 4;
+    private static final int SIGMOID = 5;
+    private static final int TANH = 6;
+
+    private ModelFormat() {
+    }
+
+    /**
+     * Converts a model saved with Java serialization into the binary model format.
+     *
+     * @param args the path of the serialized model and the path of the converted model
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ModelFormat <serialized model> <converted model>");
+            return;
+        }
+        write(read(args[0]), args[1]);
+    }
+
+    /**
+     * Writes a CNN to a file in the binary model format. The file is written under a temporary name and then
+     * renamed over the target, so an interrupted write leaves the previous file intact.
+     *
+     * @param network the network to write
+     * @param path the path of the file
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the network contains a layer or activation function the format does not know
+     */
+    public static void write(CNN network, String path) throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temporary = writeTemporary(toBytes(network), target);
+        try {
+            replace(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Writes the contents of a model file to a new temporary file next to its target and forces them to disk.
+     *
+     * @param contents the encoded model
+     * @param target the path the file is going to replace
+     * @return the path of the temporary file
+     * @throws IOException if the file cannot be written
+     */
+    static Path writeTemporary(byte[] contents, Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, target.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        return temporary;
+    }
+
+    /**
+     * Renames a temporary file over its target in one step where the file system allows it, so readers
+     * see either the old or the new model and never a partial one.
+     *
+     * @param temporary the complete new file
+     * @param target the path to replace
+     * @throws IOException if the file cannot be moved
+     */
+    static void replace(Path temporary, Path target) throws IOException {
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Encodes a CNN in the binary model format.
+     *
+     * @param network the network to encode
+     * @return the contents of a model file
+     * @throws IllegalArgumentException if the network contains a layer or activation function the format does not know
+     */
+    public static byte[] toBytes(CNN network) {
+        Encoder out = new Encoder();
+        out.bytes(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(network.getPrecision().ordinal());
+        out.putShape(network.getInputShape());
+        List<Layer> layers = network.getLayers();
+        out.putInt(layers.size());
+        for (Layer layer : layers) {
+            writeLayer(out, layer);
+            List<Tensor> parameters = layer instanceof ParameterizedLayer ? ((ParameterizedLayer) layer).getParameters() : null;
+            out.putInt(parameters == null ? 0 : parameters.size());
+            if (parameters != null) {
+                for (Tensor parameter : parameters) {
+                    out.putTensor(parameter);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a CNN from a file in the binary model format, or migrates one written with Java serialization.
+     *
+     * @param path the path of the file
+     * @return the network with the saved parameters
+     * @throws IOException if the file cannot be read or is not a valid model
+     */
+    public static CNN read(String path) throws IOException {
+        byte[] contents = Files.readAllBytes(Paths.get(path));
+        if (contents.length >= 2 && ((contents[0] & 0xff) << 8 | (contents[1] & 0xff)) == SERIALIZATION_MAGIC) {
+            return readSerialized(contents, path);
+        }
+        return read(ByteBuffer.wrap(contents), path);
+    }
+
+    /**
+     * Maps a file in the binary model format read-only and returns a CNN whose filters and weights are
+     * views of the mapped parameter blocks, used in place by the forward pass. Nothing is copied or
+     * initialized in proportion to the size of the model, and processes mapping the same file share its
+     * pages through the page cache. The network can run inference but not be trained; batch normalization
+     * parameters, which are small, are copied.
+     *
+     * @param path the path of the file
+     * @return the network backed by the mapped file
+     * @throws IOException if the file cannot be mapped or is not in the binary model format
+     */
+    public static CNN map(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Model file " + path + " is too large to be mapped");
+            }
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path, true);
+        }
+    }
+
+    /**
+     * Decodes a CNN in the binary model format from a buffer, starting at its current position, which should
+     * be the start of the model file so that parameter blocks are aligned. Parameter blocks are copied out of
+     * the buffer in bulk.
+     *
+     * @param buffer the buffer holding the model
+     * @param source a description of the buffer used in error messages
+     * @return the network with the saved parameters
+     * @throws IOException if the buffer does not hold a valid model
+     */
+    public static CNN read(ByteBuffer buffer, String source) throws IOException {
+        return decode(buffer, source, false);
+    }
+
+    /**
+     * Decodes a model, either copying the parameter blocks into arrays or keeping the views of the buffer.
+     */
+    private static CNN decode(ByteBuffer buffer, String source, boolean inPlace) throws IOException {
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a CNN model file: " + source);
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported model format version " + version + " in " + source);
+            }
+            Tensor.Precision precision = constant(Tensor.Precision.values(), in.getInt(), "precision", source);
+            CNN network = new CNN(readShape(in));
+            network.setPrecision(precision);
+            int numLayers = in.getInt();
+            for (int l = 0; l < numLayers; l++) {
+                Layer layer = readLayer(in, version, source);
+                List<Tensor> parameters = new ArrayList<>();
+                int blocks = in.getInt();
+                for (int b = 0; b < blocks; b++) {
+                    Tensor block = readTensor(in, source);
+                    parameters.add(inPlace ? block : block.copy());
+                }
+                // Parameters are assigned before the layer is added, so its initialization keeps them
+                if (layer instanceof ParameterizedLayer) {
+                    ((ParameterizedLayer) layer).setPrecision(precision);
+                    ((ParameterizedLayer) layer).setParameters(parameters);
+                } else if (blocks != 0) {
+                    throw new IOException("Layer " + l + " in " + source + " holds " + blocks + " parameter blocks but " + layer.getClass().getSimpleName() + " has no parameters");
+                }
+                network.addLayer(layer);
+            }
+            return network;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated model file: " + source, e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid model file " + source + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a model written with Java serialization, falling back to the classes of the original layers
+     * when the current classes cannot read it.
+     */
+    private static CNN readSerialized(byte[] contents, String source) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(contents))) {
+            return (CNN) in.readObject();
+        } catch (InvalidClassException | ClassCastException e) {
+            return LegacyModelReader.read(new ByteArrayInputStream(contents));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Model " + source + " refers to an unknown class", e);
+        }
+    }
+
+    /**
+     * Writes the type tag and configuration of a layer.
+     */
+    private static void writeLayer(Encoder out, Layer layer) {
+        if (layer instanceof ConvolutionalLayer) {
+            ConvolutionalLayer convolution = (ConvolutionalLayer) layer;
+            out.putInt(CONVOLUTIONAL);
+            out.putInt(convolution.getFilterSize());
+            out.putInt(convolution.getNumFilters());
+            out.putInt(convolution.getStride());
+            out.putDouble(convolution.getLambdaL1());
+            out.putDouble(convolution.getLambdaL2());
+            out.putInt(convolution.getRegularizationMode().ordinal());
+            out.putInt(convolution.getConvolutionMode().ordinal());
+            writeActivation(out, convolution.getActivationFunction());
+        } else if (layer instanceof BatchNormalizationLayer) {
+            BatchNormalizationLayer normalization = (BatchNormalizationLayer) layer;
+            out.putInt(BATCH_NORMALIZATION);
+            out.putInt(normalization.getDepth());
+            out.putInt(normalization.getStatistics().ordinal());
+            out.putDouble(normalization.getMomentum());
+            Tensor runningMean = normalization.getRunningMean();
+            Tensor runningVariance = normalization.getRunningVariance();
+            for (int d = 0; d < runningMean.size(); d++) {
+                out.putDouble(runningMean.getFlat(d));
+                out.putDouble(runningVariance.getFlat(d));
+            }
+        } else if (layer instanceof PoolingLayer) {
+            PoolingLayer pooling = (PoolingLayer) layer;
+            out.putInt(POOLING);
+            out.putInt(pooling.getPoolSize());
+            out.putInt(pooling.getPoolingType().ordinal());
+        } else if (layer instanceof FlattenLayer) {
+            out.putInt(FLATTEN);
+        } else if (layer instanceof FullyConnectedLayer) {
+            FullyConnectedLayer fullyConnected = (FullyConnectedLayer) layer;
+            out.putInt(FULLY_CONNECTED);
+            out.putInt(fullyConnected.getOutputSize());
+            out.putDouble(fullyConnected.getLambdaL1());
+            out.putDouble(fullyConnected.getLambdaL2());
+            out.putInt(fullyConnected.getRegularizationMode().ordinal());
+            writeActivation(out, fullyConnected.getActivationFunction());
+        } else if (layer instanceof SoftmaxLayer) {
+            out.putInt(SOFTMAX);
+        } else if (layer instanceof DropoutLayer) {
+            DropoutLayer dropout = (DropoutLayer) layer;
+            out.putInt(DROPOUT);
+            out.putDouble(dropout.getRate());
+            out.putInt(dropout.isTraining() ? 1 : 0);
+        } else {
+            throw new IllegalArgumentException("Layer " + layer.getClass().getName() + " cannot be saved in the model format");
+        }
+    }
+
+    /**
+     * Reads the type tag and configuration of a layer and constructs it.
+     */
+    private static Layer readLayer(ByteBuffer in, int version, String source) throws IOException {
+        int tag = in.getInt();
+        switch (tag) {
+            case CONVOLUTIONAL: {
+                int filterSize = in.getInt();
+                int numFilters = in.getInt();
+                int stride = in.getInt();
+                double lambdaL1 = in.getDouble();
+                double lambdaL2 = in.getDouble();
+                Regularization.Mode regularizationMode = readRegularizationMode(in, version, source);
+                ConvolutionalLayer.ConvolutionMode mode = constant(ConvolutionalLayer.ConvolutionMode.values(), in.getInt(), "convolution mode", source);
+                ConvolutionalLayer convolution = new ConvolutionalLayer(filterSize, numFilters, stride, readActivation(in, source), lambdaL1, lambdaL2);
+                convolution.setRegularizationMode(regularizationMode);
+                convolution.setConvolutionMode(mode);
+                return convolution;
+            }
+            case BATCH_NORMALIZATION:
+                return readBatchNormalization(in, version, source);
+            case POOLING: {
+                int poolSize = in.getInt();
+                return new PoolingLayer(poolSize, constant(PoolingLayer.PoolingType.values(), in.getInt(), "pooling type", source));
+            }
+            case FLATTEN:
+                return new FlattenLayer();
+            case FULLY_CONNECTED: {
+                int outputSize = in.getInt();
+                double lambdaL1 = in.getDouble();
+                double lambdaL2 = in.getDouble();
+                Regularization.Mode regularizationMode = readRegularizationMode(in, version, source);
+                FullyConnectedLayer fullyConnected = new FullyConnectedLayer(outputSize, readActivation(in, source), lambdaL1, lambdaL2);
+                fullyConnected.setRegularizationMode(regularizationMode);
+                return fullyConnected;
+            }
+            case SOFTMAX:
+                return new SoftmaxLayer();
+            case DROPOUT: {
+                DropoutLayer dropout = new DropoutLayer(in.getDouble());
+                // Training steps switch the mode themselves, so a loaded layer starts in inference mode whatever was saved
+                in.getInt();
+                return dropout;
+            }
+            default:
+                throw new IOException("Unknown layer type " + tag + " in " + source);
+        }
+    }
+
+    /**
+     * Reads a batch normalization layer. Files before version 3 hold no running statistics; their layers were
+     * trained on the statistics of every sample and keep normalizing with them.
+     */
+    private static BatchNormalizationLayer readBatchNormalization(ByteBuffer in, int version, String source) throws IOException {
+        BatchNormalizationLayer normalization = new BatchNormalizationLayer(in.getInt());
+        if (version >= 4) {
+            normalization.setStatistics(constant(BatchNormalizationLayer.Statistics.values(), in.getInt(), "batch normalization statistics", source));
+        } else if (version < 3) {
+            normalization.setStatistics(BatchNormalizationLayer.Statistics.SAMPLE);
+        }
+        if (version >= 3) {
+            normalization.setMomentum(in.getDouble());
+            Tensor runningMean = normalization.getRunningMean();
+            Tensor runningVariance = normalization.getRunningVariance();
+            for (int d = 0; d < runningMean.size(); d++) {
+                runningMean.setFlat(d, in.getDouble());
+                runningVariance.setFlat(d, in.getDouble());
+            }
+        }
+        return normalization;
+    }
+
+    /**
+     * Reads the regularization mode of a layer, which files of version 1 do not record.
+     */
+    private static Regularization.Mode readRegularizationMode(ByteBuffer in, int version, String source) throws IOException {
+        return version < 2 ? Regularization.Mode.COUPLED : constant(Regularization.Mode.values(), in.getInt(), "regularization mode", source);
+    }
+
+    /**
+     * Returns the constant of an enum with the given ordinal.
+     */
+    private static <E extends Enum<E>> E constant(E[] values, int ordinal, String name, String source) throws IOException {
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Unknown " + name + " " + ordinal + " in " + source);
+        }
+        return values[ordinal];
+    }
+
+    /**
+     * Writes the type tag and parameters of an activation function.
+     */
+    private static void writeActivation(Encoder out, ActivationFunction activation) {
+        if (activation instanceof ReLU) {
+            out.putInt(RELU);
+        } else if (activation instanceof LeakyReLU) {
+            out.putInt(LEAKY_RELU);
+            out.putDouble(((LeakyReLU) activation).getAlpha());
+        } else if (activation instanceof ELU) {
+            out.putInt(ELU_TAG);
+            out.putDouble(((ELU) activation).getAlpha());
+        } else if (activation instanceof SELU) {
+            out.putInt(SELU_TAG);
+        } else if (activation instanceof Sigmoid) {
+            out.putInt(SIGMOID);
+        } else if (activation instanceof Tanh) {
+            out.putInt(TANH);
+        } else {
+            throw new IllegalArgumentException("Activation function " + activation.getClass().getName() + " cannot be saved in the model format");
+        }
+    }
+
+    /**
+     * Reads the type tag and parameters of an activation function and constructs it.
+     */
+    private static ActivationFunction readActivation(ByteBuffer in, String source) throws IOException {
+        int tag = in.getInt();
+        switch (tag) {
+            case RELU:
+                return new ReLU();
+            case LEAKY_RELU:
+                return new LeakyReLU(in.getDouble());
+            case ELU_TAG:
+                return new ELU(in.getDouble());
+            case SELU_TAG:
+                return new SELU();
+            case SIGMOID:
+                return new Sigmoid();
+            case TANH:
+                return new Tanh();
+            default:
+                throw new IOException("Unknown activation function type " + tag + " in " + source);
+        }
+    }
+
+    private static int[] readShape(ByteBuffer in) {
+        int[] shape = new int[in.getInt()];
+        for (int d = 0; d < shape.length; d++) {
+            shape[d] = in.getInt();
+            if (shape[d] < 0) {
+                throw new IllegalArgumentException("Negative dimension " + shape[d]);
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Returns a read-only view of a parameter block and moves the buffer past it.
+     */
+    private static Tensor readTensor(ByteBuffer in, String source) throws IOException {
+        int[] shape = readShape(in);
+        Tensor.Precision precision = constant(Tensor.Precision.values(), in.getInt(), "precision", source);
+        in.position(align(in.position()));
+        int size = Tensor.sizeOf(shape);
+        long bytes = (precision == Tensor.Precision.FLOAT ? 4L : 8L) * size;
+        if (size < 0 || bytes > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer block = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        block.limit((int) bytes);
+        in.position(in.position() + (int) bytes);
+        return precision == Tensor.Precision.FLOAT ? Tensor.wrap(block.asFloatBuffer(), 0, shape) : Tensor.wrap(block.asDoubleBuffer(), 0, shape);
+    }
+
+    private static int align(int position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Accumulates little-endian values in a growing buffer.
+     */
+    private static final class Encoder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        void bytes(byte[] values) {
+            bytes.write(values, 0, values.length);
+        }
+
+        void putInt(int value) {
+            scratch.clear();
+            bytes.write(scratch.putInt(value).array(), 0, 4);
+        }
+
+        void putDouble(double value) {
+            scratch.clear();
+            bytes.write(scratch.putDouble(value).array(), 0, 8);
+        }
+
+        void putShape(int[] shape) {
+            putInt(shape.length);
+            for (int dimension : shape) {
+                putInt(dimension);
+            }
+        }
+
+        /**
+         * Writes the shape and precision of a tensor, pads to the alignment and writes its values in bulk,
+         * from the backing array or, for a tensor of a mapped model, from its read-only buffer.
+         */
+        void putTensor(Tensor tensor) {
+            putShape(tensor.getShape());
+            putInt(tensor.getPrecision().ordinal());
+            while (bytes.size() % ALIGNMENT != 0) {
+                bytes.write(0);
+            }
+            int size = tensor.size();
+            ByteBuffer block;
+            if (tensor.getPrecision() == Tensor.Precision.FLOAT) {
+                block = ByteBuffer.allocate(4 * size).order(ByteOrder.LITTLE_ENDIAN);
+                tensor.copyInto(block.asFloatBuffer());
+            } else {
+                block = ByteBuffer.allocate(8 * size).order(ByteOrder.LITTLE_ENDIAN);
+                tensor.copyInto(block.asDoubleBuffer());
+            }
+            bytes.write(block.array(), 0, block.capacity());
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package cnn;
+
+import cnn.interfaces.LearningRateSchedule;
+import cnn.utils.schedules.ConstantSchedule;
+
+import java.io.Serializable;
+import java.time.Duration;
+
+/**
+ * The settings of a training run passed to {@link CNN#train(java.util.List, java.util.List, TrainingConfig, TrainingSession)}:
+ * the number of epochs and the mini-batch size, the {@link LearningRateSchedule} the learning rate of every step
+ * is taken from, where the best model is checkpointed, and when training stops early.
+ * Training stops before the last epoch if the validation accuracy has not improved by more than
+ * {@link #getMinImprovement()} for {@link #getPatience()} epochs, or once {@link #getTimeLimit()} has passed.
+ */
+public class TrainingConfig implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int epochs;
+    private final int miniBatchSize;
+    private final LearningRateSchedule schedule;
+    private String saveFilePath;
+    private int patience;
+    private double minImprovement;
+    private Duration timeLimit;
+
+    /**
+     * Constructs a configuration with a constant learning rate.
+     *
+     * @param epochs the number of epochs to train for
+     * @param miniBatchSize the size of each mini-batch
+     * @param learningRate the learning rate of every step
+     * @throws IllegalArgumentException if epochs or miniBatchSize is not positive
+     */
+    public TrainingConfig(int epochs, int miniBatchSize, double learningRate) {
+        this(epochs, miniBatchSize, new ConstantSchedule(learningRate));
+    }
+
+    /**
+     * Constructs a configuration with a learning rate schedule.
+     *
+     * @param epochs the number of epochs to train for
+     * @param miniBatchSize the size of each mini-batch
+     * @param schedule the schedule of the learning rate over all steps of the run
+     * @throws IllegalArgumentException if epochs or miniBatchSize is not positive or the schedule is null
+     */
+    public TrainingConfig(int epochs, int miniBatchSize, LearningRateSchedule schedule) {
+        if (epochs < 1 || miniBatchSize < 1) {
+            throw new IllegalArgumentException("Epochs and mini-batch size must be at least 1");
+        }
+        if (schedule == null) {
+            throw new IllegalArgumentException("Learning rate schedule must not be null");
+        }
+        this.epochs = epochs;
+        this.miniBatchSize = miniBatchSize;
+        this.schedule = schedule;
+    }
+
+    /**
+     * Returns the number of epochs to train for.
+     *
+     * @return the total number of epochs of the run
+     */
+    public int getEpochs() {
+        return epochs;
+    }
+
+    /**
+     * Returns the size of each mini-batch.
+     *
+     * @return the mini-batch size
+     */
+    public int getMiniBatchSize() {
+        return miniBatchSize;
+    }
+
+    /**
+     * Returns the schedule of the learning rate.
+     *
+     * @return the schedule
+     */
+    public LearningRateSchedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * Sets the file the best model is checkpointed to whenever the validation accuracy improves.
+     *
+     * @param saveFilePath the file path, or null to not save the best model
+     */
+    public void setSaveFilePath(String saveFilePath) {
+        this.saveFilePath = saveFilePath;
+    }
+
+    /**
+     * Returns the file the best model is checkpointed to.
+     *
+     * @return the file path, or null if the best model is not saved
+     */
+    public String getSaveFilePath() {
+        return saveFilePath;
+    }
+
+    /**
+     * Sets the number of epochs without improvement of the validation accuracy after which training stops.
+     *
+     * @param patience the number of epochs, or 0 to never stop early
+     * @throws IllegalArgumentException if patience is negative
+     */
+    public void setPatience(int patience) {
+        if (patience < 0) {
+            throw new IllegalArgumentException("Patience must not be negative");
+        }
+        this.patience = patience;
+    }
+
+    /**
+     * Returns the number of epochs without improvement after which training stops.
+     *
+     * @return the patience, or 0 if training never stops early
+     */
+    public int getPatience() {
+        return patience;
+    }
+
+    /**
+     * Sets how much the validation accuracy must exceed the best so far to count as an improvement.
+     *
+     * @param minImprovement the margin, as a fraction between 0 and 1
+     * @throws IllegalArgumentException if minImprovement is negative
+     */
+    public void setMinImprovement(double minImprovement) {
+        if (!(minImprovement >= 0)) {
+            throw new IllegalArgumentException("Minimum improvement must not be negative");
+        }
+        this.minImprovement = minImprovement;
+    }
+
+    /**
+     * Returns how much the validation accuracy must exceed the best so far to count as an improvement.
+     *
+     * @return the margin, as a fraction between 0 and 1
+     */
+    public double getMinImprovement() {
+        return minImprovement;
+    }
+
+    /**
+     * Sets the wall-clock time after which training stops, measured from the start of each call to
+     * {@link CNN#train(java.util.List, java.util.List, TrainingConfig, TrainingSession)}. The limit is checked
+     * after every step, and the session is checkpointed when it is reached so the run can be continued.
+     *
+     * @param timeLimit the time limit, or null for none
+     * @throws IllegalArgumentException if timeLimit is negative
+     */
+    public void setTimeLimit(Duration timeLimit) {
+        if (timeLimit != null && timeLimit.isNegative()) {
+            throw new IllegalArgumentException("Time limit must not be negative");
+        }
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * Returns the wall-clock time after which training stops.
+     *
+     * @return the time limit, or null for none
+     */
+    public Duration getTimeLimit() {
+        return timeLimit;
+    }
+}
@@ -0,0 +1,400 @@
+package cnn;
+
+import cnn.interfaces.Layer;
+import cnn.interfaces.Optimizer;
+import cnn.interfaces.ParameterizedLayer;
+import cnn.layers.BatchNormalizationLayer;
+import cnn.utils.Tensor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The state of a training run that can be interrupted and continued: the network being trained, the state of
+ * its {@link Optimizer}, the seed that determines the sample order of every epoch and the generators of
+ * augmentation and dropout, the position in the run
+ * (epoch, batch within the epoch and total number of steps) and the best validation accuracy so far with the
+ * epoch it was reached in, which early stopping counts from. Passed to
+ * {@link CNN#train(List, List, TrainingConfig, TrainingSession)}, the session is checkpointed to its
+ * file every {@link #getCheckpointInterval()} steps and at the end of every epoch, and a session opened from
+ * that file continues with the batch after the last one checkpointed, visiting the samples in the same order
+ * and drawing the same augmentations and dropout masks as the uninterrupted run would have with the same
+ * number of workers.
+ *
+ * <p>The file is little-endian: the magic bytes "CNNS", the format version, the seed, the epoch, the step
+ * within the epoch, the total number of steps, the best accuracy, the mini-batch size and the number of
+ * training samples, the length of the network and the number of epochs completed when the best accuracy was
+ * reached, followed by the network itself in the binary model format
+ * of {@link ModelFormat}, aligned to eight bytes. The optimizer follows: the length and UTF-8 bytes of its class
+ * name and the number of state tensors, each stored as its precision, its size and its values.
+ */
+public class TrainingSession {
+    private static final byte[] MAGIC = {'C', 'N', 'N', 'S'};
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 56;
+
+    private final CNN network;
+    private final String path;
+    private final long seed;
+    private int epoch;
+    private int step;
+    private long iteration;
+    private double bestAccuracy;
+    private int bestEpoch;
+    private int miniBatchSize;
+    private int numSamples;
+    private int checkpointInterval;
+
+    /**
+     * Starts a new session for a network.
+     *
+     * @param network the network to train
+     * @param path the file the session is checkpointed to, or null to not checkpoint it
+     * @param seed the seed of the sample order, augmentation and dropout
+     */
+    public TrainingSession(CNN network, String path, long seed) {
+        this.network = network;
+        this.path = path;
+        this.seed = seed;
+    }
+
+    /**
+     * Continues the session checkpointed to a file, or starts a new one if the file does not exist.
+     * The saved parameters are copied into the given network, which must have the same layers and
+     * parameter shapes as the network of the saved session, and the saved optimizer state into the optimizer
+     * of the network, which must be of the same type as the saved one.
+     *
+     * @param network the network to train
+     * @param path the file the session is checkpointed to
+     * @param seed the seed of the sample order, augmentation and dropout if a new session is started
+     * @return the continued or new session
+     * @throws IOException if the file cannot be read, is not a session file or does not match the network
+     */
+    public static TrainingSession open(CNN network, String path, long seed) throws IOException {
+        if (!Files.exists(Paths.get(path))) {
+            return new TrainingSession(network, path, seed);
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(path))).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a training session file: " + path);
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported training session version " + version + " in " + path);
+            }
+            TrainingSession session = new TrainingSession(network, path, in.getLong());
+            session.epoch = in.getInt();
+            session.step = in.getInt();
+            session.iteration = in.getLong();
+            session.bestAccuracy = in.getDouble();
+            session.miniBatchSize = in.getInt();
+            session.numSamples = in.getInt();
+            int modelLength = in.getInt();
+            // Sessions written before early stopping count from the epoch they were saved in
+            session.bestEpoch = version >= 3 ? in.getInt() : session.epoch;
+            in.position(HEADER_SIZE);
+            if (session.epoch < 0 || session.step < 0 || modelLength < 0 || modelLength > in.remaining()) {
+                throw new IOException("Corrupt training session file: " + path);
+            }
+            ByteBuffer model = in.slice();
+            model.limit(modelLength);
+            restore(ModelFormat.read(model, path), network, path);
+            in.position(HEADER_SIZE + modelLength);
+            if (version > 1) {
+                readOptimizer(in, network.getOptimizer(), path);
+            }
+            return session;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated training session file: " + path, e);
+        }
+    }
+
+    /**
+     * Copies the parameters and batch normalization statistics of a saved network into a network with the same architecture.
+     */
+    private static void restore(CNN saved, CNN network, String source) throws IOException {
+        List<Layer> savedLayers = saved.getLayers();
+        List<Layer> layers = network.getLayers();
+        if (savedLayers.size() != layers.size()) {
+            throw new IOException("Session " + source + " holds " + savedLayers.size() + " layers but the network has " + layers.size());
+        }
+        for (int l = 0; l < layers.size(); l++) {
+            Layer layer = layers.get(l);
+            if (layer.getClass() != savedLayers.get(l).getClass()) {
+                throw new IOException("Layer " + l + " in session " + source + " is a " + savedLayers.get(l).getClass().getSimpleName() + " but the network has a " + layer.getClass().getSimpleName());
+            }
+            if (!(layer instanceof ParameterizedLayer)) {
+                continue;
+            }
+            List<Tensor> savedParameters = ((ParameterizedLayer) savedLayers.get(l)).getParameters();
+            List<Tensor> parameters = ((ParameterizedLayer) layer).getParameters();
+            for (int p = 0; p < parameters.size(); p++) {
+                if (!Arrays.equals(savedParameters.get(p).getShape(), parameters.get(p).getShape())) {
+                    throw new IOException("Parameter " + p + " of layer " + l + " in session " + source + " has shape " + Arrays.toString(savedParameters.get(p).getShape()) + " but the network expects " + Arrays.toString(parameters.get(p).getShape()));
+                }
+                parameters.get(p).copyFrom(savedParameters.get(p));
+            }
+            if (layer instanceof BatchNormalizationLayer) {
+                BatchNormalizationLayer normalization = (BatchNormalizationLayer) layer;
+                BatchNormalizationLayer savedNormalization = (BatchNormalizationLayer) savedLayers.get(l);
+                normalization.setStatistics(savedNormalization.getStatistics());
+                normalization.getRunningMean().copyFrom(savedNormalization.getRunningMean());
+                normalization.getRunningVariance().copyFrom(savedNormalization.getRunningVariance());
+            }
+        }
+    }
+
+    /**
+     * Restores the state of an optimizer of the type that was saved.
+     */
+    private static void readOptimizer(ByteBuffer in, Optimizer optimizer, String source) throws IOException {
+        int nameLength = in.getInt();
+        if (nameLength < 0 || nameLength > in.remaining()) {
+            throw new IOException("Corrupt optimizer state in training session file: " + source);
+        }
+        byte[] name = new byte[nameLength];
+        in.get(name);
+        String type = new String(name, StandardCharsets.UTF_8);
+        if (!type.equals(optimizer.getClass().getName())) {
+            throw new IOException("Session " + source + " was trained with " + type + " but the network uses " + optimizer.getClass().getName());
+        }
+        int count = in.getInt();
+        List<Tensor> state = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int precision = in.getInt();
+            int size = in.getInt();
+            if (size < 0 || precision < 0 || precision >= Tensor.Precision.values().length || (long) size * 4 > in.remaining()) {
+                throw new IOException("Corrupt optimizer state in training session file: " + source);
+            }
+            Tensor tensor;
+            if (Tensor.Precision.values()[precision] == Tensor.Precision.FLOAT) {
+                tensor = new Tensor(new float[size], size);
+                in.asFloatBuffer().get(tensor.getFloatData());
+                in.position(in.position() + 4 * size);
+            } else {
+                tensor = new Tensor(new double[size], size);
+                in.asDoubleBuffer().get(tensor.getData());
+                in.position(in.position() + 8 * size);
+            }
+            state.add(tensor);
+        }
+        try {
+            optimizer.setState(state);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid optimizer state in " + source + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Encodes the session, including a snapshot of the parameters of its network and of the state of its optimizer.
+     *
+     * @return the contents of a session file
+     */
+    byte[] toBytes() {
+        byte[] model = ModelFormat.toBytes(network);
+        Optimizer optimizer = network.getOptimizer();
+        byte[] name = optimizer.getClass().getName().getBytes(StandardCharsets.UTF_8);
+        List<Tensor> state = optimizer.getState();
+        int stateBytes = 8 + name.length;
+        for (Tensor tensor : state) {
+            stateBytes += 8 + (tensor.getPrecision() == Tensor.Precision.FLOAT ? 4 : 8) * tensor.size();
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + model.length + stateBytes).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(seed);
+        out.putInt(epoch);
+        out.putInt(step);
+        out.putLong(iteration);
+        out.putDouble(bestAccuracy);
+        out.putInt(miniBatchSize);
+        out.putInt(numSamples);
+        out.putInt(model.length);
+        out.putInt(bestEpoch);
+        out.position(HEADER_SIZE);
+        out.put(model);
+        out.putInt(name.length);
+        out.put(name);
+        out.putInt(state.size());
+        for (Tensor tensor : state) {
+            Tensor values = tensor.isContiguous() ? tensor : tensor.copy();
+            out.putInt(values.getPrecision().ordinal());
+            out.putInt(values.size());
+            if (values.getPrecision() == Tensor.Precision.FLOAT) {
+                out.asFloatBuffer().put(values.getFloatData(), values.getOffset(), values.size());
+                out.position(out.position() + 4 * values.size());
+            } else {
+                out.asDoubleBuffer().put(values.getData(), values.getOffset(), values.size());
+                out.position(out.position() + 8 * values.size());
+            }
+        }
+        return out.array();
+    }
+
+    /**
+     * Writes the session to its file, atomically replacing the previous checkpoint.
+     *
+     * @throws IOException if the file cannot be written
+     * @throws IllegalStateException if the session has no file
+     */
+    public void save() throws IOException {
+        if (path == null) {
+            throw new IllegalStateException("Training session has no file");
+        }
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temporary = ModelFormat.writeTemporary(toBytes(), target);
+        try {
+            ModelFormat.replace(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Records the mini-batch size and training set of the run, which must not change when it is continued,
+     * since the position in the epoch would then refer to different samples.
+     *
+     * @param miniBatchSize the size of each mini-batch
+     * @param numSamples the number of training samples
+     * @throws IllegalArgumentException if the session was started with a different mini-batch size or training set size
+     */
+    void begin(int miniBatchSize, int numSamples) {
+        if (this.miniBatchSize != 0 && (this.miniBatchSize != miniBatchSize || this.numSamples != numSamples)) {
+            throw new IllegalArgumentException("Training session was started with mini-batches of " + this.miniBatchSize + " from " + this.numSamples + " samples, not " + miniBatchSize + " from " + numSamples);
+        }
+        this.miniBatchSize = miniBatchSize;
+        this.numSamples = numSamples;
+    }
+
+    /**
+     * Records that the next batch of the epoch has been trained on.
+     */
+    void advance() {
+        step++;
+        iteration++;
+    }
+
+    /**
+     * Records that the current epoch is complete.
+     */
+    void completeEpoch() {
+        epoch++;
+        step = 0;
+    }
+
+    /**
+     * Records a new best accuracy, reached in the epoch in progress.
+     *
+     * @param bestAccuracy the accuracy, between 0 and 1
+     */
+    void setBestAccuracy(double bestAccuracy) {
+        this.bestAccuracy = bestAccuracy;
+        this.bestEpoch = epoch + 1;
+    }
+
+    /**
+     * Returns the network trained in this session.
+     *
+     * @return the network
+     */
+    public CNN getNetwork() {
+        return network;
+    }
+
+    /**
+     * Returns the file the session is checkpointed to.
+     *
+     * @return the path of the file, or null if the session is not checkpointed
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the seed of the sample order, augmentation and dropout.
+     *
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns the epoch in progress, counted from zero.
+     *
+     * @return the number of completed epochs
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the position within the epoch in progress.
+     *
+     * @return the number of batches of the epoch already trained on
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Returns the number of parameter updates since the session started.
+     *
+     * @return the total number of steps
+     */
+    public long getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Returns the best validation accuracy reached in the session.
+     *
+     * @return the best accuracy, between 0 and 1
+     */
+    public double getBestAccuracy() {
+        return bestAccuracy;
+    }
+
+    /**
+     * Returns the number of epochs that had been completed when the best accuracy was reached.
+     *
+     * @return the epoch of the best accuracy, counted from one, or 0 if no accuracy has been recorded
+     */
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    /**
+     * Sets how often the session is checkpointed within an epoch.
+     *
+     * @param checkpointInterval the number of steps between checkpoints, or 0 to checkpoint only at the end of epochs
+     * @throws IllegalArgumentException if checkpointInterval is negative
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 0) {
+            throw new IllegalArgumentException("Checkpoint interval must not be negative");
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Returns how often the session is checkpointed within an epoch.
+     *
+     * @return the number of steps between checkpoints, or 0 if it is checkpointed only at the end of epochs
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+}
@@ -1,5 +1,8 @@
 package cnn.interfaces;
 
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
+
 /**
  * An interface representing a layer in a neural network.
  * A layer can perform forward and backward propagation, and determine the output shape given an input shape.
@@ -7,20 +10,96 @@ package cnn.interfaces;
 public interface Layer {
 
     /**
-     * Performs the forward pass through the layer.
+     * Performs the forward pass through the layer for a whole mini-batch.
+     * The first dimension of the input indexes the samples, the remaining dimensions hold one sample each.
+     *
+     * @param input a tensor of shape [batchSize, ...inputShape]
+     * @return a tensor of shape [batchSize, ...outputShape] representing the output after processing by the layer
+     */
+    Tensor forwardBatch(Tensor input);
+
+    /**
+     * Performs the backward pass through the layer for the mini-batch seen by the last call to
+     * {@link #forwardBatch(Tensor)}, calculating the gradient of the loss with respect to the input.
+     *
+     * @param gradient a tensor of shape [batchSize, ...outputShape] representing the gradient of the loss with respect to the output
+     * @return a tensor of shape [batchSize, ...inputShape] representing the gradient of the loss with respect to the input
+     */
+    Tensor backwardBatch(Tensor gradient);
+
+    /**
+     * Performs the forward pass through the layer for a single sample.
+     *
+     * @param input a tensor representing the input of the layer
+     * @return a tensor representing the output after processing by the layer
+     */
+    default Tensor forward(Tensor input) {
+        return forwardBatch(input.asBatch()).slice(0);
+    }
+
+    /**
+     * Performs the backward pass through the layer for a single sample, calculating the gradient of the loss with respect to the input.
+     *
+     * @param gradient a tensor representing the gradient of the loss with respect to the output
+     * @return a tensor representing the gradient of the loss with respect to the input
+     */
+    default Tensor backward(Tensor gradient) {
+        return backwardBatch(gradient.asBatch()).slice(0);
+    }
+
+    /**
+     * Performs the forward pass through the layer using nested arrays.
+     * This adapter copies the input into a {@link Tensor}, so it is kept for compatibility only.
      *
      * @param input a 3D array representing the input tensor
      * @return a 3D array representing the output tensor after processing by the layer
      */
-    double[][][] forward(double[][][] input);
+    default double[][][] forward(double[][][] input) {
+        return forward(Tensor.fromArray(input)).toArray3D();
+    }
 
     /**
-     * Performs the backward pass through the layer, calculating the gradient of the loss with respect to the input.
+     * Performs the backward pass through the layer using nested arrays.
+     * This adapter copies the gradient into a {@link Tensor}, so it is kept for compatibility only.
      *
      * @param gradient a 3D array representing the gradient of the loss with respect to the output
      * @return a 3D array representing the gradient of the loss with respect to the input
      */
-    double[][][] backward(double[][][] gradient);
+    default double[][][] backward(double[][][] gradient) {
+        return backward(Tensor.fromArray(gradient)).toArray3D();
+    }
+
+    /**
+     * Attaches the workspace of the network this layer belongs to. Layers that produce new tensors write their output
+     * into {@code workspace.activation(position + 1, batchSize)} and their input gradient into
+     * {@code workspace.gradient(position, batchSize)} instead of allocating them; the returned tensors are then
+     * overwritten by the next pass. Layers that only return views of their argument ignore the workspace,
+     * which is what the default implementation does.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    default void setWorkspace(Workspace workspace, int position) {
+    }
+
+    /**
+     * Switches the layer between training and inference behavior, for layers that behave differently in the two,
+     * such as dropout and batch normalization. A CNN puts its layers in training mode for the forward and backward
+     * passes of a training step and back in inference mode afterwards. The default implementation does nothing.
+     *
+     * @param training true for training mode, false for inference mode
+     */
+    default void setTraining(boolean training) {
+    }
+
+    /**
+     * Creates a replica of this layer for another training worker. The replica shares the learnable
+     * parameters of this layer but owns its activation caches and gradient buffers, so replicas can
+     * process different samples concurrently.
+     *
+     * @return a new layer with the same configuration and shared parameters
+     */
+    Layer replicate();
 
     /**
      * Computes the output shape of the layer given the input shape.
@@ -29,4 +108,4 @@ public interface Layer {
      * @return an array of integers representing the dimensions of the output tensor
      */
     int[] getOutputShape(int... inputShape);
-}
\ No newline at end of file
+}
@@ -0,0 +1,18 @@
+package cnn.interfaces;
+
+/**
+ * Interface representing how the learning rate changes over a training run.
+ * The trainer asks for the learning rate of every step, counted over the whole run, so a run that is
+ * interrupted and continued follows the same schedule.
+ */
+public interface LearningRateSchedule {
+
+    /**
+     * Returns the learning rate of a step.
+     *
+     * @param step the number of the step, counted from zero over the whole run
+     * @param totalSteps the number of steps of the whole run
+     * @return the learning rate of the step
+     */
+    double learningRate(long step, long totalSteps);
+}
@@ -0,0 +1,46 @@
+package cnn.interfaces;
+
+import cnn.utils.Tensor;
+import cnn.utils.optimizers.Regularization;
+
+import java.util.List;
+
+/**
+ * An interface representing the rule that turns accumulated gradients into parameter updates.
+ * An optimizer is given every parameter of a network with its gradient once per step and updates the
+ * parameters in place. Any state it keeps, such as moving averages of the gradients, is held per parameter
+ * in flat tensors, so a parameter must be at the same position in every step.
+ */
+public interface Optimizer {
+
+    /**
+     * Performs one update step on all parameters of a network.
+     *
+     * @param parameters the parameter tensors, in the same order in every step
+     * @param gradients the accumulated gradients of the parameters, with null for parameters that received none;
+     *                  they are consumed by the step and may be modified
+     * @param regularization the penalties of the parameters, applied once per step, with null for parameters
+     *                       that have none
+     * @param learningRate the learning rate of the step
+     * @param gradientScale the factor applied to the gradients first, such as one over the mini-batch size
+     * @throws IllegalArgumentException if the parameters do not match the state of the optimizer
+     */
+    void update(List<Tensor> parameters, List<Tensor> gradients, List<Regularization> regularization, double learningRate, double gradientScale);
+
+    /**
+     * Returns the tensors holding the state of the optimizer, in a fixed order. The tensors share storage
+     * with the optimizer.
+     *
+     * @return the state tensors, or an empty list before the first step
+     */
+    List<Tensor> getState();
+
+    /**
+     * Replaces the state of the optimizer with copies of the given tensors, as returned by {@link #getState()}
+     * on an optimizer of the same type.
+     *
+     * @param state the state tensors
+     * @throws IllegalArgumentException if the tensors cannot be the state of this optimizer
+     */
+    void setState(List<Tensor> state);
+}
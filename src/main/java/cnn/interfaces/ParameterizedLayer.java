@@ -1,5 +1,11 @@
 package cnn.interfaces;
 
+import cnn.utils.Tensor;
+import cnn.utils.optimizers.Regularization;
+
+import java.util.Collections;
+import java.util.List;
+
 /**
  * An interface representing a parameterized layer in a neural network.
  * A parameterized layer has learnable parameters that can be updated during training.
@@ -7,15 +13,69 @@ package cnn.interfaces;
 public interface ParameterizedLayer extends Layer {
 
     /**
-     * Updates the parameters of the layer using the accumulated gradients.
+     * Resets the accumulated gradients to zero.
+     */
+    void resetGradients();
+
+    /**
+     * Adds the gradients accumulated by a replica of this layer to the gradients of this layer.
      *
-     * @param learningRate the learning rate to use for updating the parameters
-     * @param miniBatchSize the size of the mini-batch used for averaging the gradients
+     * @param replica a layer created by {@link #replicate()} on this layer
+     * @throws IllegalArgumentException if the layer is not a replica of the same type
      */
-    void updateParameters(double learningRate, int miniBatchSize);
+    void addGradients(ParameterizedLayer replica);
 
     /**
-     * Resets the accumulated gradients to zero.
+     * Converts the parameters and accumulated gradients of the layer to the given precision.
+     * The tensors produced by the layer afterwards have the same precision.
+     *
+     * @param precision the element type of the parameters
      */
-    void resetGradients();
+    void setPrecision(Tensor.Precision precision);
+
+    /**
+     * Returns the element type of the parameters of the layer.
+     *
+     * @return the precision of the layer
+     */
+    Tensor.Precision getPrecision();
+
+    /**
+     * Returns the tensors holding the learned parameters of the layer, in a fixed order that is the same for
+     * every layer of the same type. The tensors share storage with the layer, so writing into them changes it.
+     *
+     * @return the parameter tensors, or an empty list if the layer has not been initialized yet
+     */
+    List<Tensor> getParameters();
+
+    /**
+     * Replaces the learned parameters of the layer with the given tensors, in the order of {@link #getParameters()}.
+     * Tensors of the precision of the layer may be used without copying, including read-only tensors backed by a
+     * mapped model file; such a layer can run forward passes but not update its parameters. Parameters assigned
+     * before the layer is initialized are kept by the initialization if they fit the input shape.
+     *
+     * @param parameters the parameter tensors
+     * @throws IllegalArgumentException if the number or shapes of the tensors do not match the layer
+     */
+    void setParameters(List<Tensor> parameters);
+
+    /**
+     * Returns the tensors holding the gradients accumulated for the parameters of the layer, in the order of
+     * {@link #getParameters()} and with the same shapes. The tensors share storage with the layer; an
+     * {@link Optimizer} reads them to update the parameters in place.
+     *
+     * @return the gradient tensors, or an empty list if no gradients have been accumulated since the
+     *         parameters were assigned
+     */
+    List<Tensor> getGradients();
+
+    /**
+     * Returns the penalties the optimizer applies to the parameters of the layer, in the order of
+     * {@link #getParameters()}. Layers without regularization return an empty list.
+     *
+     * @return the regularization of each parameter, with null for parameters that are not regularized
+     */
+    default List<Regularization> getRegularization() {
+        return Collections.emptyList();
+    }
 }
\ No newline at end of file
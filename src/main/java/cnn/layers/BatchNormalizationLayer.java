@@ -1,23 +1,68 @@
 package cnn.layers;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
 
 import cnn.interfaces.ParameterizedLayer;
+import cnn.utils.AllReduce;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
 
 /**
  * A batch normalization layer in a neural network.
- * This layer normalizes the input to have zero mean and unit variance,
- * and then applies a scale (gamma) and shift (beta) transformation.
+ * In training mode every channel is normalized with the mean and variance of that channel over the whole
+ * mini-batch (all samples and spatial positions), then scaled by gamma and shifted by beta, and exponential
+ * moving averages of the batch statistics are kept. In inference mode, the default, the running statistics
+ * and gamma and beta collapse into one scale and shift per channel, so every value costs a single multiply-add.
+ * The {@link cnn.CNN} switches its layers to training mode for the passes of a training step only. When replicas
+ * train on shards of one mini-batch they share their statistics through {@link #setBatchStatisticsGroup}.
+ * Batches of shape [batchSize, depth, ...] are normalized per channel; a layer of depth one normalizes whole samples.
+ * Layers of models saved before running statistics were kept normalize every sample with its own statistics
+ * instead, see {@link Statistics#SAMPLE}.
+ * Statistics and the per-channel scale and shift are kept in double precision; the output has the precision of the layer.
  */
 public class BatchNormalizationLayer implements ParameterizedLayer, Serializable{
+
+    /**
+     * Enumeration for the statistics that a layer normalizes with.
+     */
+    public enum Statistics {
+        /** The statistics of the mini-batch in training mode and the running statistics in inference mode. */
+        BATCH,
+        /**
+         * The statistics of every sample on its own, in training and inference mode alike, as layers were trained
+         * before model format version 3. The channels of [batchSize, depth, height, width] batches are normalized
+         * separately; any other sample is normalized as a whole with the first gamma and beta.
+         */
+        SAMPLE
+    }
+
+    private static final long serialVersionUID = 3087930527150463685L;
     private double[] gamma;
     private double[] beta;
     private double[] mean;
     private double[] variance;
+    private double[] runningMean;
+    private double[] runningVariance;
     private double[] x_hat;
     private double[] gammaGradient;
     private double[] betaGradient;
     private double epsilon = 1e-5;
+    private double momentum = 0.1;
+    private boolean training;
+    private Statistics statistics = Statistics.BATCH;
+    private Tensor.Precision precision = Tensor.Precision.DOUBLE;
+    private transient double[] sampleInverseStd = new double[0];
+    private transient boolean replica;
+    private transient Workspace workspace;
+    private transient int position;
+    private transient AllReduce group;
+    private transient int rank;
+    private transient double count;
+    private transient volatile double[] coefficients;
 
     /**
      * Constructs a BatchNormalizationLayer with the specified depth.
@@ -29,124 +74,613 @@ public class BatchNormalizationLayer implements ParameterizedLayer, Serializable
         beta = new double[depth];
         mean = new double[depth];
         variance = new double[depth];
-        x_hat = new double[depth];
+        runningMean = new double[depth];
+        runningVariance = new double[depth];
+        x_hat = new double[0];
         gammaGradient = new double[depth];
         betaGradient = new double[depth];
         for (int i = 0; i < depth; i++) {
             gamma[i] = 1.0;
             beta[i] = 0.0;
+            runningVariance[i] = 1.0;
         }
     }
 
     /**
-     * Performs the forward pass through the batch normalization layer.
-     * Normalizes the input tensor and applies the scale and shift transformation.
+     * Performs the forward pass through the batch normalization layer for a mini-batch.
+     * In training mode the batch is normalized with its own statistics, which are folded into the running
+     * statistics; in inference mode with the running statistics. With {@link Statistics#SAMPLE} every sample is
+     * normalized with its own statistics in both modes.
      *
-     * @param input a 3D array representing the input tensor
-     * @return a 3D array representing the output tensor after batch normalization
+     * @param input a tensor of shape [batchSize, ...] representing the input
+     * @return a tensor of the same shape representing the output after batch normalization
+     * @throws IllegalArgumentException if the second dimension of the input is not the depth of the layer
      */
     @Override
-    public double[][][] forward(double[][][] input) {
-        int depth = input.length;
-        int height = input[0].length;
-        int width = input[0][0].length;
-        double[][][] output = new double[depth][height][width];
+    public Tensor forwardBatch(Tensor input) {
+        Tensor source = input.toPrecision(precision);
+        if (!source.isContiguous()) {
+            source = source.copy();
+        }
+        int batchSize = source.shape(0);
+        Tensor output = workspace != null ? workspace.activation(position + 1, batchSize) : Tensor.zeros(precision, source.getShape());
+        if (statistics == Statistics.SAMPLE) {
+            normalizeSamples(source, output);
+            return output;
+        }
+        int depth = gamma.length;
+        int area = areaOf(source);
+        if (training) {
+            normalizeBatch(source, output, batchSize, depth, area);
+            return output;
+        }
 
-        for (int d = 0; d < depth; d++) {
-            double sum = 0.0;
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    sum += input[d][i][j];
+        // Only the per-channel coefficients need a square root; every value then costs one multiply-add
+        double[] coefficients = inferenceCoefficients();
+        int in = source.getOffset();
+        int out = output.getOffset();
+        if (precision == Tensor.Precision.FLOAT) {
+            float[] x = source.getFloatData();
+            float[] y = output.getFloatData();
+            for (int s = 0; s < batchSize * depth; s++) {
+                float a = (float) coefficients[s % depth];
+                float b = (float) coefficients[depth + s % depth];
+                int base = s * area;
+                for (int k = 0; k < area; k++) {
+                    y[out + base + k] = a * x[in + base + k] + b;
                 }
             }
-            mean[d] = sum / (height * width);
+        } else {
+            double[] x = source.getData();
+            double[] y = output.getData();
+            for (int s = 0; s < batchSize * depth; s++) {
+                double a = coefficients[s % depth];
+                double b = coefficients[depth + s % depth];
+                int base = s * area;
+                for (int k = 0; k < area; k++) {
+                    y[out + base + k] = a * x[in + base + k] + b;
+                }
+            }
+        }
+        return output;
+    }
 
-            double varSum = 0.0;
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    varSum += Math.pow(input[d][i][j] - mean[d], 2);
+    /**
+     * Normalizes every channel of every sample with its own statistics, keeping the normalized values and the
+     * inverse standard deviations for the backward pass.
+     */
+    private void normalizeSamples(Tensor source, Tensor output) {
+        int batchSize = source.shape(0);
+        int channels = channelsOf(source);
+        int area = source.size() / (batchSize * channels);
+        if (x_hat.length < source.size()) {
+            x_hat = new double[source.size()];
+        }
+        if (sampleInverseStd == null || sampleInverseStd.length < batchSize * channels) {
+            sampleInverseStd = new double[batchSize * channels];
+        }
+        for (int s = 0; s < batchSize * channels; s++) {
+            int d = s % channels;
+            int base = s * area;
+            double sum = 0.0;
+            for (int k = 0; k < area; k++) {
+                sum += source.getFlat(base + k);
+            }
+            double sampleMean = sum / area;
+            double squares = 0.0;
+            for (int k = 0; k < area; k++) {
+                double centered = source.getFlat(base + k) - sampleMean;
+                squares += centered * centered;
+            }
+            double inverseStd = 1.0 / Math.sqrt(squares / area + epsilon);
+            sampleInverseStd[s] = inverseStd;
+            for (int k = 0; k < area; k++) {
+                x_hat[base + k] = (source.getFlat(base + k) - sampleMean) * inverseStd;
+                output.setFlat(base + k, gamma[d] * x_hat[base + k] + beta[d]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of channels that {@link Statistics#SAMPLE} normalizes separately: the second dimension
+     * of a rank-4 batch, which must be the depth of the layer, and otherwise one.
+     */
+    private int channelsOf(Tensor batch) {
+        if (batch.rank() != 4) {
+            return 1;
+        }
+        if (batch.shape(1) != gamma.length) {
+            throw new IllegalArgumentException("Expected " + gamma.length + " channels in the second dimension but got shape " + Arrays.toString(batch.getShape()));
+        }
+        return gamma.length;
+    }
+
+    /**
+     * Normalizes a batch with its own per-channel statistics, keeping the normalized values for the backward pass,
+     * and updates the running statistics unless this layer is a replica. With a batch statistics group the
+     * statistics are those of the whole mini-batch that the replicas of the group share.
+     */
+    private void normalizeBatch(Tensor source, Tensor output, int batchSize, int depth, int area) {
+        if (x_hat.length < source.size()) {
+            x_hat = new double[source.size()];
+        }
+        // The sum of every channel followed by the number of values per channel
+        double[] sums = new double[depth + 1];
+        for (int d = 0; d < depth; d++) {
+            for (int n = 0; n < batchSize; n++) {
+                int base = (n * depth + d) * area;
+                for (int k = 0; k < area; k++) {
+                    sums[d] += source.getFlat(base + k);
                 }
             }
-            variance[d] = varSum / (height * width);
+        }
+        sums[depth] = batchSize * area;
+        reduce(sums);
+        count = sums[depth];
+        for (int d = 0; d < depth; d++) {
+            mean[d] = sums[d] / count;
+        }
 
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    x_hat[d] = (input[d][i][j] - mean[d]) / Math.sqrt(variance[d] + epsilon);
-                    output[d][i][j] = gamma[d] * x_hat[d] + beta[d];
+        // The variance is summed around the mean of the whole batch, which avoids the cancellation of sum - square
+        double[] squares = new double[depth];
+        for (int d = 0; d < depth; d++) {
+            for (int n = 0; n < batchSize; n++) {
+                int base = (n * depth + d) * area;
+                for (int k = 0; k < area; k++) {
+                    double centered = source.getFlat(base + k) - mean[d];
+                    squares[d] += centered * centered;
                 }
             }
         }
+        reduce(squares);
 
-        return output;
+        for (int d = 0; d < depth; d++) {
+            variance[d] = squares[d] / count;
+            double inverseStd = 1.0 / Math.sqrt(variance[d] + epsilon);
+            for (int n = 0; n < batchSize; n++) {
+                int base = (n * depth + d) * area;
+                for (int k = 0; k < area; k++) {
+                    x_hat[base + k] = (source.getFlat(base + k) - mean[d]) * inverseStd;
+                    output.setFlat(base + k, gamma[d] * x_hat[base + k] + beta[d]);
+                }
+            }
+
+            // Replicas share the running statistics, which only the layer of the first worker updates
+            if (!replica) {
+                invalidate();
+                double unbiased = count > 1 ? variance[d] * count / (count - 1) : variance[d];
+                runningMean[d] += momentum * (mean[d] - runningMean[d]);
+                runningVariance[d] += momentum * (unbiased - runningVariance[d]);
+            }
+        }
     }
 
     /**
-     * Performs the backward pass through the batch normalization layer.
-     * Computes the gradients of the loss with respect to the input tensor, gamma, and beta.
+     * Performs the backward pass through the batch normalization layer for the last mini-batch, which must have
+     * been forwarded in training mode. Computes the gradients of the loss with respect to the input tensor,
+     * gamma, and beta, taking into account that every value of the batch contributed to the statistics.
      *
-     * @param gradient a 3D array representing the gradient of the loss with respect to the output
-     * @return a 3D array representing the gradient of the loss with respect to the input
-     * @throws IllegalStateException if the dimensions of the gradient do not match the expected dimensions
+     * @param gradient a tensor of shape [batchSize, ...] representing the gradient of the loss with respect to the output
+     * @return a tensor of the same shape representing the gradient of the loss with respect to the input
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
-        int depth = gradient.length;
-        int height = gradient[0].length;
-        int width = gradient[0][0].length;
-        double[][][] inputGradient = new double[depth][height][width];
+    public Tensor backwardBatch(Tensor gradient) {
+        Tensor source = gradient.isContiguous() ? gradient : gradient.copy();
+        int batchSize = source.shape(0);
+        Tensor inputGradient = workspace != null ? workspace.gradient(position, batchSize) : Tensor.zeros(precision, source.getShape());
+        if (statistics == Statistics.SAMPLE) {
+            backwardSamples(source, inputGradient);
+            return inputGradient;
+        }
+        int depth = gamma.length;
+        int area = areaOf(source);
+
+        // The gamma gradient of every channel followed by the beta gradient of every channel
+        double[] sums = new double[2 * depth];
+        for (int d = 0; d < depth; d++) {
+            for (int n = 0; n < batchSize; n++) {
+                int base = (n * depth + d) * area;
+                for (int k = 0; k < area; k++) {
+                    double g = source.getFlat(base + k);
+                    sums[d] += g * x_hat[base + k];
+                    sums[depth + d] += g;
+                }
+            }
+            gammaGradient[d] += sums[d];
+            betaGradient[d] += sums[depth + d];
+        }
+        // Every value of the whole batch contributed to the statistics, so the input gradient needs the sums of all shards
+        reduce(sums);
 
         for (int d = 0; d < depth; d++) {
+            double dL_dgamma = sums[d];
+            double dL_dbeta = sums[depth + d];
+            double factor = gamma[d] / (count * Math.sqrt(variance[d] + epsilon));
+            for (int n = 0; n < batchSize; n++) {
+                int base = (n * depth + d) * area;
+                for (int k = 0; k < area; k++) {
+                    inputGradient.setFlat(base + k, factor * (count * source.getFlat(base + k) - dL_dbeta - x_hat[base + k] * dL_dgamma));
+                }
+            }
+        }
+
+        return inputGradient;
+    }
+
+    /**
+     * Computes the gradients of every sample normalized with its own statistics, through which only the values
+     * of the same sample and channel are connected.
+     */
+    private void backwardSamples(Tensor source, Tensor inputGradient) {
+        int batchSize = source.shape(0);
+        int channels = channelsOf(source);
+        int area = source.size() / (batchSize * channels);
+        for (int s = 0; s < batchSize * channels; s++) {
+            int d = s % channels;
+            int base = s * area;
             double dL_dgamma = 0.0;
             double dL_dbeta = 0.0;
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    dL_dgamma += gradient[d][i][j] * x_hat[d];
-                    dL_dbeta += gradient[d][i][j];
-                }
+            for (int k = 0; k < area; k++) {
+                double g = source.getFlat(base + k);
+                dL_dgamma += g * x_hat[base + k];
+                dL_dbeta += g;
             }
             gammaGradient[d] += dL_dgamma;
             betaGradient[d] += dL_dbeta;
 
-            double dL_dx_hat;
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    dL_dx_hat = gradient[d][i][j] * gamma[d];
-                    inputGradient[d][i][j] = (1.0 / (height * width)) * (1.0 / Math.sqrt(variance[d] + epsilon)) * 
-                                             (height * width * dL_dx_hat - dL_dgamma * x_hat[d] - dL_dbeta);
-                }
+            double factor = gamma[d] * sampleInverseStd[s] / area;
+            for (int k = 0; k < area; k++) {
+                inputGradient.setFlat(base + k, factor * (area * source.getFlat(base + k) - dL_dbeta - x_hat[base + k] * dL_dgamma));
             }
         }
+    }
 
-        return inputGradient;
+    /**
+     * Sums the values across the replicas of the batch statistics group, if there is one.
+     */
+    private void reduce(double[] values) {
+        if (group != null) {
+            group.sum(rank, values);
+        }
     }
 
     /**
-     * Updates the parameters (gamma and beta) of the layer using the accumulated gradients.
+     * Returns the number of values per sample and channel: the size of the dimensions after the channel
+     * dimension, or the size of a whole sample for a layer of depth one.
+     */
+    private int areaOf(Tensor batch) {
+        int depth = gamma.length;
+        int sampleSize = batch.size() / batch.shape(0);
+        if (depth == 1) {
+            return sampleSize;
+        }
+        if (batch.rank() < 2 || batch.shape(1) != depth) {
+            throw new IllegalArgumentException("Expected " + depth + " channels in the second dimension but got shape " + Arrays.toString(batch.getShape()));
+        }
+        return sampleSize / depth;
+    }
+
+    /**
+     * Switches between normalizing with the statistics of each batch and updating the running statistics,
+     * and normalizing with the running statistics.
      *
-     * @param learningRate the learning rate to use for updating the parameters
-     * @param miniBatchSize the size of the mini-batch used for averaging the gradients
+     * @param training true for training mode, false for inference mode
      */
     @Override
-    public void updateParameters(double learningRate, int miniBatchSize) {
-        for (int i = 0; i < gamma.length; i++) {
-            gamma[i] -= learningRate * gammaGradient[i] / miniBatchSize;
-            beta[i] -= learningRate * betaGradient[i] / miniBatchSize;
-            gammaGradient[i] = 0.0;
-            betaGradient[i] = 0.0;
+    public void setTraining(boolean training) {
+        this.training = training;
+        // Replicas share gamma, beta and the running statistics, which may have changed during training
+        invalidate();
+    }
+
+    /**
+     * Shares the batch statistics with the replicas that train on the other shards of the same mini-batch, so
+     * that every replica normalizes with the mean and variance of the whole mini-batch and computes its input
+     * gradient from the gamma and beta gradients of the whole mini-batch. All replicas of the group must forward
+     * and backward their shards concurrently.
+     *
+     * @param group the reduction shared by the replicas, or null to normalize with the statistics of this layer's batch only
+     * @param rank the index of this replica in the group
+     * @throws IllegalArgumentException if the rank is out of range for the group
+     */
+    public void setBatchStatisticsGroup(AllReduce group, int rank) {
+        if (group != null && (rank < 0 || rank >= group.getParties())) {
+            throw new IllegalArgumentException("Rank " + rank + " out of range for " + group.getParties() + " parties");
+        }
+        this.group = group;
+        this.rank = rank;
+    }
+
+    /**
+     * Selects the statistics that the layer normalizes with.
+     *
+     * @param statistics the statistics of the mini-batch, or those of every sample as in models saved before
+     *                   model format version 3
+     */
+    public void setStatistics(Statistics statistics) {
+        this.statistics = statistics;
+        invalidate();
+    }
+
+    /**
+     * Returns the statistics that the layer normalizes with.
+     *
+     * @return the statistics of the layer
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns whether the layer normalizes with batch statistics.
+     *
+     * @return true if the layer is in training mode
+     */
+    public boolean isTraining() {
+        return training;
+    }
+
+    /**
+     * Sets the weight of each batch in the running statistics.
+     *
+     * @param momentum the weight of the newest batch, in (0, 1]
+     * @throws IllegalArgumentException if momentum is out of range
+     */
+    public void setMomentum(double momentum) {
+        if (!(momentum > 0 && momentum <= 1)) {
+            throw new IllegalArgumentException("Momentum must be in (0, 1]");
+        }
+        this.momentum = momentum;
+    }
+
+    /**
+     * Returns the weight of each batch in the running statistics.
+     *
+     * @return the momentum
+     */
+    public double getMomentum() {
+        return momentum;
+    }
+
+    /**
+     * Returns a view over the running mean of every channel, used in inference mode.
+     * The inference scale and shift are recomputed after this call, so write through the view before the next inference pass.
+     *
+     * @return a [depth] tensor sharing storage with the layer
+     */
+    public Tensor getRunningMean() {
+        invalidate();
+        return new Tensor(runningMean, runningMean.length);
+    }
+
+    /**
+     * Returns a view over the running variance of every channel, used in inference mode.
+     * The inference scale and shift are recomputed after this call, so write through the view before the next inference pass.
+     *
+     * @return a [depth] tensor sharing storage with the layer
+     */
+    public Tensor getRunningVariance() {
+        invalidate();
+        return new Tensor(runningVariance, runningVariance.length);
+    }
+
+    /**
+     * Returns the factor that inference mode multiplies every channel by: gamma / sqrt(runningVariance + epsilon).
+     *
+     * @return a new [depth] tensor
+     * @throws IllegalStateException if the layer normalizes every sample with its own statistics
+     */
+    public Tensor getInferenceScale() {
+        requireBatchStatistics();
+        return new Tensor(Arrays.copyOfRange(inferenceCoefficients(), 0, gamma.length), gamma.length);
+    }
+
+    /**
+     * Returns the offset that inference mode adds to every channel after scaling it:
+     * beta - runningMean * gamma / sqrt(runningVariance + epsilon).
+     *
+     * @return a new [depth] tensor
+     * @throws IllegalStateException if the layer normalizes every sample with its own statistics
+     */
+    public Tensor getInferenceShift() {
+        requireBatchStatistics();
+        return new Tensor(Arrays.copyOfRange(inferenceCoefficients(), gamma.length, 2 * gamma.length), gamma.length);
+    }
+
+    /**
+     * Returns the inference scale of every channel followed by the inference shift of every channel, computing
+     * them first if gamma, beta or the running statistics may have changed since they were last computed.
+     */
+    private double[] inferenceCoefficients() {
+        double[] cached = coefficients;
+        if (cached == null) {
+            int depth = gamma.length;
+            cached = new double[2 * depth];
+            for (int d = 0; d < depth; d++) {
+                cached[d] = gamma[d] / Math.sqrt(runningVariance[d] + epsilon);
+                cached[depth + d] = beta[d] - runningMean[d] * cached[d];
+            }
+            coefficients = cached;
+        }
+        return cached;
+    }
+
+    private void requireBatchStatistics() {
+        if (statistics != Statistics.BATCH) {
+            throw new IllegalStateException("A layer normalizing every sample with its own statistics has no fixed scale and shift");
+        }
+    }
+
+    /**
+     * Drops the cached inference coefficients. Called wherever gamma, beta or the running statistics change
+     * or are handed out as writable views.
+     */
+    private void invalidate() {
+        coefficients = null;
+    }
+
+    /**
+     * Returns the constant added to the variance before taking its square root.
+     *
+     * @return epsilon
+     */
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * Restores a serialized layer. Layers saved before running statistics were kept were trained on the statistics
+     * of every sample, which they go on normalizing with.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (runningMean == null) {
+            statistics = Statistics.SAMPLE;
+            runningMean = new double[gamma.length];
+            runningVariance = new double[gamma.length];
+            Arrays.fill(runningVariance, 1.0);
+            momentum = 0.1;
+        } else if (statistics == null) {
+            statistics = Statistics.BATCH;
+        }
+        if (mean.length != gamma.length) {
+            mean = new double[gamma.length];
+            variance = new double[gamma.length];
         }
     }
 
+    /**
+     * Returns the gradients accumulated for gamma and beta.
+     *
+     * @return a [depth] gamma gradient tensor and a [depth] beta gradient tensor
+     */
+    @Override
+    public List<Tensor> getGradients() {
+        return Arrays.asList(new Tensor(gammaGradient, gammaGradient.length), new Tensor(betaGradient, betaGradient.length));
+    }
+
     /**
      * Resets the accumulated gradients for gamma and beta to zero.
      */
     @Override
     public void resetGradients() {
+        // The optimizer has just written gamma and beta through the views of getParameters
+        invalidate();
         for (int i = 0; i < gamma.length; i++) {
             gammaGradient[i] = 0.0;
             betaGradient[i] = 0.0;
         }
     }
 
+    /**
+     * Adds the gamma and beta gradients accumulated by a replica to the gradients of this layer.
+     *
+     * @param replica a layer created by {@link #replicate()} on this layer
+     * @throws IllegalArgumentException if the layer is not a batch normalization layer
+     */
+    @Override
+    public void addGradients(ParameterizedLayer replica) {
+        if (!(replica instanceof BatchNormalizationLayer)) {
+            throw new IllegalArgumentException("Expected a BatchNormalizationLayer replica");
+        }
+        BatchNormalizationLayer other = (BatchNormalizationLayer) replica;
+        for (int i = 0; i < gamma.length; i++) {
+            gammaGradient[i] += other.gammaGradient[i];
+            betaGradient[i] += other.betaGradient[i];
+        }
+    }
+
+    /**
+     * Attaches the workspace that receives the outputs and input gradients of this layer.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    @Override
+    public void setWorkspace(Workspace workspace, int position) {
+        this.workspace = workspace;
+        this.position = position;
+    }
+
+    /**
+     * Creates a replica that shares gamma, beta and the running statistics with this layer but has its own
+     * batch statistics and accumulated gradients. Replicas do not update the running statistics.
+     *
+     * @return a new batch normalization layer sharing the parameters of this layer
+     */
+    @Override
+    public BatchNormalizationLayer replicate() {
+        BatchNormalizationLayer replica = new BatchNormalizationLayer(gamma.length);
+        replica.gamma = gamma;
+        replica.beta = beta;
+        replica.runningMean = runningMean;
+        replica.runningVariance = runningVariance;
+        replica.epsilon = epsilon;
+        replica.momentum = momentum;
+        replica.training = training;
+        replica.statistics = statistics;
+        replica.precision = precision;
+        replica.replica = true;
+        return replica;
+    }
+
+    /**
+     * Sets the precision of the tensors produced by the layer. Gamma and beta stay in double precision.
+     *
+     * @param precision the element type of the outputs and input gradients
+     */
+    @Override
+    public void setPrecision(Tensor.Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Returns the precision of the tensors produced by the layer.
+     *
+     * @return the precision of the layer
+     */
+    @Override
+    public Tensor.Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Returns views over the per-channel scale (gamma) and shift (beta), which are always in double precision.
+     *
+     * @return the parameter tensors
+     */
+    @Override
+    public List<Tensor> getParameters() {
+        invalidate();
+        return Arrays.asList(new Tensor(gamma, gamma.length), new Tensor(beta, beta.length));
+    }
+
+    /**
+     * Copies the per-channel scale (gamma) and shift (beta) from the given tensors into the layer.
+     *
+     * @param parameters a [depth] gamma tensor and a [depth] beta tensor
+     * @throws IllegalArgumentException if the tensors do not have these shapes
+     */
+    @Override
+    public void setParameters(List<Tensor> parameters) {
+        int[] shape = {gamma.length};
+        if (parameters.size() != 2 || !Arrays.equals(parameters.get(0).getShape(), shape) || !Arrays.equals(parameters.get(1).getShape(), shape)) {
+            throw new IllegalArgumentException("Expected gamma and beta of shape [" + gamma.length + "]");
+        }
+        new Tensor(gamma, gamma.length).copyFrom(parameters.get(0));
+        new Tensor(beta, beta.length).copyFrom(parameters.get(1));
+        invalidate();
+    }
+
+    /**
+     * Returns the number of channels normalized by the layer.
+     *
+     * @return the depth of the input
+     */
+    public int getDepth() {
+        return gamma.length;
+    }
+
     /**
      * Computes the output shape of the layer given the input shape.
      *
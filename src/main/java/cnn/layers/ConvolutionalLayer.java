@@ -1,9 +1,17 @@
 package cnn.layers;
 
+import cnn.utils.Gemm;
+import cnn.utils.MatrixKernels;
 import cnn.utils.MatrixUtils;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
 import cnn.utils.activationFunctions.ReLU;
+import cnn.utils.optimizers.Regularization;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import cnn.interfaces.ActivationFunction;
@@ -13,20 +21,45 @@ import cnn.interfaces.ParameterizedLayer;
 /**
  * A convolutional layer in a neural network that applies a set of learnable filters to the input tensor,
  * followed by an activation function. This layer supports L1 and L2 regularization for the filters.
+ * Filters are stored as a single [numFilters, depth * filterSize * filterSize] row-major matrix in the
+ * precision of the layer; the direct algorithm is only available in double precision.
  */
 public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Serializable {
+
+    /**
+     * Enumeration for the algorithm used to compute the convolution.
+     */
+    public enum ConvolutionMode {
+        /** Evaluates every filter tap directly on the input. */
+        DIRECT,
+        /** Unrolls input patches into columns and computes each pass as a matrix multiplication. */
+        IM2COL
+    }
+
+    private static final long serialVersionUID = 5599446130617320836L;
     private int filterSize;
     private int numFilters;
     private int stride;
-    private double[][][][] filters;
-    private double[] biases;
+    private int inputDepth;
+    private Tensor filters;
+    private Tensor biases;
     private double lambdaL1;
     private double lambdaL2;
-    private double[][][] input;
-    private double[][][] activatedOutput;
+    private Regularization.Mode regularizationMode = Regularization.Mode.COUPLED;
+    private Tensor input;
+    private Tensor activatedOutput;
     private ActivationFunction activationFunction;
-    private double[][][][] accumulatedFilterGradients;
-    private double[] accumulatedBiasGradients;
+    private Tensor accumulatedFilterGradients;
+    private Tensor accumulatedBiasGradients;
+    private ConvolutionMode convolutionMode = ConvolutionMode.IM2COL;
+    private Tensor.Precision precision = Tensor.Precision.DOUBLE;
+    private transient Tensor columns;
+    private transient Tensor columnGradients;
+    private transient Tensor preActivations;
+    private transient Tensor deltas;
+    private transient Tensor inputGradients;
+    private transient Workspace workspace;
+    private transient int position;
 
     /**
      * Constructs a ConvolutionalLayer with the specified filter size, number of filters, stride,
@@ -108,16 +141,11 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
      * @param inputDepth the depth of the input tensor (e.g., number of channels)
      */
     private void initializeFilters(int inputDepth) {
-        filters = new double[numFilters][inputDepth][filterSize][filterSize];
+        this.inputDepth = inputDepth;
+        filters = Tensor.zeros(precision, numFilters, inputDepth * filterSize * filterSize);
         Random rand = new Random();
-        for (int f = 0; f < numFilters; f++) {
-            for (int d = 0; d < inputDepth; d++) {
-                for (int i = 0; i < filterSize; i++) {
-                    for (int j = 0; j < filterSize; j++) {
-                        filters[f][d][i][j] = rand.nextGaussian() * Math.sqrt(2.0 / (inputDepth * filterSize * filterSize));
-                    }
-                }
-            }
+        for (int k = 0; k < filters.size(); k++) {
+            filters.setFlat(k, rand.nextGaussian() * Math.sqrt(2.0 / (inputDepth * filterSize * filterSize)));
         }
     }
 
@@ -125,9 +153,9 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
      * Initializes the biases for each filter with random values between 0 and 1.
      */
     private void initializeBiases() {
-        biases = new double[numFilters];
+        biases = Tensor.zeros(precision, numFilters);
         for (int i = 0; i < numFilters; i++) {
-            biases[i] = Math.random();
+            biases.setFlat(i, Math.random());
         }
     }
 
@@ -136,16 +164,14 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
      * This method is used to prepare for the gradient accumulation during backpropagation.
      */
     private void initializeAccumulatedGradients() {
-        accumulatedFilterGradients = new double[numFilters][][][];
-        for (int f = 0; f < numFilters; f++) {
-            accumulatedFilterGradients[f] = new double[filters[f].length][filterSize][filterSize];
-        }
-        accumulatedBiasGradients = new double[numFilters];
+        accumulatedFilterGradients = Tensor.zeros(precision, filters.getShape());
+        accumulatedBiasGradients = Tensor.zeros(precision, numFilters);
     }
 
     /**
      * Initializes the layer with the given input shape. This involves initializing the filters, biases,
-     * and accumulated gradients based on the input depth.
+     * and accumulated gradients based on the input depth. Filters that already fit the input depth, such as
+     * those assigned with {@link #setParameters(List)}, are kept.
      *
      * @param inputShape an array of integers representing the dimensions of the input tensor
      *                   (e.g., [depth, height, width])
@@ -153,39 +179,54 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
     @Override
     public void initialize(int... inputShape) {
         int inputDepth = inputShape[0];
+        if (filters != null && filters.shape(1) == inputDepth * filterSize * filterSize) {
+            this.inputDepth = inputDepth;
+            return;
+        }
         initializeFilters(inputDepth);
         initializeBiases();
         initializeAccumulatedGradients();
     }
 
     /**
-     * Performs the forward pass through the convolutional layer.
-     * Applies the convolution operation followed by the activation function.
+     * Performs the forward pass through the convolutional layer for a mini-batch.
+     * Applies the convolution operation followed by the activation function to every sample.
      *
-     * @param input a 3D array representing the input tensor [depth, height, width]
-     * @return a 3D array representing the output tensor after convolution and activation [numFilters, height, width]
+     * @param input a tensor of shape [batchSize, depth, height, width]
+     * @return a tensor of shape [batchSize, numFilters, outputHeight, outputWidth] after convolution and activation
+     * @throws IllegalStateException if the direct algorithm is selected in single precision
      */
     @Override
-    public double[][][] forward(double[][][] input) {
-        this.input = input;
-        int inputDepth = input.length;
-        int inputSize = input[0].length;
-        int outputSize = (inputSize - filterSize) / stride + 1;
+    public Tensor forwardBatch(Tensor input) {
+        if (convolutionMode == ConvolutionMode.DIRECT && precision != Tensor.Precision.DOUBLE) {
+            throw new IllegalStateException("Direct convolution requires double precision");
+        }
+        if (input.getPrecision() != precision) {
+            input = input.toPrecision(precision);
+        }
+        this.input = input.isContiguous() ? input : input.copy();
+        int batchSize = input.shape(0);
+        int outputHeight = (input.shape(2) - filterSize) / stride + 1;
+        int outputWidth = (input.shape(3) - filterSize) / stride + 1;
 
-        double[][][] output = new double[numFilters][outputSize][outputSize];
-        this.activatedOutput = new double[numFilters][outputSize][outputSize];
+        // Keep the pre-activations for the backward pass
+        preActivations = ensureSize(preActivations, batchSize * numFilters * outputHeight * outputWidth);
+        if (convolutionMode == ConvolutionMode.IM2COL) {
+            forwardIm2col(this.input, preActivations, outputHeight * outputWidth);
+        } else {
+            forwardDirect(this.input, preActivations.getData(), outputHeight, outputWidth);
+        }
 
-        for (int f = 0; f < numFilters; f++) {
-            for (int i = 0; i < outputSize; i++) {
-                for (int j = 0; j < outputSize; j++) {
-                    int x = i * stride;
-                    int y = j * stride;
-                    double sum = 0;
-                    for (int d = 0; d < inputDepth; d++) {
-                        sum += MatrixUtils.applyFilter(input[d], filters[f][d], x, y);
-                    }
-                    output[f][i][j] = sum + biases[f];
-                    activatedOutput[f][i][j] = activationFunction.activate(output[f][i][j]);
+        this.activatedOutput = workspace != null ? workspace.activation(position + 1, batchSize)
+                : Tensor.zeros(precision, batchSize, numFilters, outputHeight, outputWidth);
+        int outputArea = outputHeight * outputWidth;
+        for (int n = 0, o = 0; n < batchSize; n++) {
+            for (int f = 0; f < numFilters; f++) {
+                double bias = biases.getFlat(f);
+                for (int k = 0; k < outputArea; k++, o++) {
+                    double value = preActivations.getFlat(o) + bias;
+                    preActivations.setFlat(o, value);
+                    activatedOutput.setFlat(o, activationFunction.activate(value));
                 }
             }
         }
@@ -194,89 +235,210 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
     }
 
     /**
-     * Performs the backward pass through the convolutional layer.
-     * Computes the gradients of the loss with respect to the input tensor, filters, and biases.
+     * Writes the convolution of every sample, without biases, by evaluating each filter tap directly.
+     */
+    private void forwardDirect(Tensor input, double[] out, int outputHeight, int outputWidth) {
+        int batchSize = input.shape(0);
+        int inputHeight = input.shape(2);
+        int inputWidth = input.shape(3);
+        double[] in = input.getData();
+        int inOffset = input.getOffset();
+        double[] filterData = filters.getData();
+        int patch = filterSize * filterSize;
+        MatrixKernels kernels = MatrixUtils.kernels();
+
+        int o = 0;
+        for (int n = 0; n < batchSize; n++) {
+            int sample = inOffset + n * inputDepth * inputHeight * inputWidth;
+            for (int f = 0; f < numFilters; f++) {
+                for (int i = 0; i < outputHeight; i++) {
+                    for (int j = 0; j < outputWidth; j++) {
+                        double sum = 0;
+                        for (int d = 0; d < inputDepth; d++) {
+                            int corner = sample + (d * inputHeight + i * stride) * inputWidth + j * stride;
+                            int filter = (f * inputDepth + d) * patch;
+                            for (int k = 0; k < filterSize; k++) {
+                                sum += kernels.dot(in, corner + k * inputWidth, filterData, filter + k * filterSize, filterSize);
+                            }
+                        }
+                        out[o++] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the convolution of every sample, without biases, as the product of the filter matrix and the unrolled patches.
+     */
+    private void forwardIm2col(Tensor input, Tensor output, int outputArea) {
+        int batchSize = input.shape(0);
+        int inputHeight = input.shape(2);
+        int inputWidth = input.shape(3);
+        int patchSize = inputDepth * filterSize * filterSize;
+        Tensor cols = columnBuffer(patchSize * outputArea);
+
+        for (int n = 0; n < batchSize; n++) {
+            MatrixUtils.im2col(input, n * inputDepth * inputHeight * inputWidth,
+                    inputDepth, inputHeight, inputWidth, filterSize, stride, cols);
+            Gemm.multiply(filters, 0, false, cols, 0, false, output, n * numFilters * outputArea,
+                    numFilters, outputArea, patchSize, false);
+        }
+    }
+
+    /**
+     * Performs the backward pass through the convolutional layer for the last mini-batch.
+     * Computes the gradients of the loss with respect to the input tensor, filters, and biases,
+     * accumulating the parameter gradients over all samples.
+     * The returned tensor is owned by the layer and is overwritten by the next backward pass.
      *
-     * @param gradient a 3D array representing the gradient of the loss with respect to the output [numFilters, height, width]
-     * @return a 3D array representing the gradient of the loss with respect to the input [depth, height, width]
+     * @param gradient a tensor of shape [batchSize, numFilters, outputHeight, outputWidth] holding the gradient of the loss with respect to the output
+     * @return a tensor of shape [batchSize, depth, height, width] holding the gradient of the loss with respect to the input
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
-        int inputDepth = input.length;
-        int inputSize = input[0].length;
-        int outputSize = activatedOutput[0].length;
-        double[][][] inputGradient = new double[inputDepth][inputSize][inputSize];
+    public Tensor backwardBatch(Tensor gradient) {
+        int batchSize = input.shape(0);
+        Tensor source = gradient.getPrecision() != precision ? gradient.toPrecision(precision)
+                : gradient.isContiguous() ? gradient : gradient.copy();
+        if (accumulatedFilterGradients == null) {
+            initializeAccumulatedGradients();
+        }
+        Tensor inputGradient;
+        if (workspace != null) {
+            inputGradient = workspace.gradient(position, batchSize);
+        } else {
+            inputGradients = ensureSize(inputGradients, input.size());
+            inputGradient = inputGradients.reshape(input.getShape());
+        }
+        inputGradient.fill(0.0);
 
-        // Backpropagation through activation function
-        for (int f = 0; f < numFilters; f++) {
-            for (int i = 0; i < outputSize; i++) {
-                for (int j = 0; j < outputSize; j++) {
-                    gradient[f][i][j] *= activationFunction.derivative(activatedOutput[f][i][j]);
+        // Backpropagation through activation function, evaluated at the pre-activations
+        deltas = ensureSize(deltas, preActivations.size());
+        Tensor delta = deltas;
+        for (int o = 0; o < delta.size(); o++) {
+            delta.setFlat(o, source.getFlat(o) * activationFunction.derivative(preActivations.getFlat(o)));
+        }
+
+        if (convolutionMode == ConvolutionMode.IM2COL) {
+            backwardIm2col(delta, inputGradient);
+        } else {
+            backwardDirect(delta.getData(), inputGradient);
+        }
+
+        // Calculate gradient for biases
+        int outputArea = activatedOutput.shape(2) * activatedOutput.shape(3);
+        for (int n = 0, o = 0; n < batchSize; n++) {
+            for (int f = 0; f < numFilters; f++) {
+                double sum = 0;
+                for (int k = 0; k < outputArea; k++, o++) {
+                    sum += delta.getFlat(o);
                 }
+                accumulatedBiasGradients.addFlat(f, sum);
             }
         }
 
-        // Calculate gradients for filters and inputs
-        for (int f = 0; f < numFilters; f++) {
-            for (int d = 0; d < inputDepth; d++) {
-                // Calculate gradient for filters
-                double[][] filterGrad = MatrixUtils.convolve(input[d], gradient[f], stride);
-                for (int i = 0; i < filterSize; i++) {
-                    for (int j = 0; j < filterSize; j++) {
-                        accumulatedFilterGradients[f][d][i][j] += filterGrad[i][j];
-                        // L1 Regularization
-                        if (lambdaL1 != 0) {
-                            accumulatedFilterGradients[f][d][i][j] += lambdaL1 * Math.signum(filters[f][d][i][j]);
+        return inputGradient;
+    }
+
+    /**
+     * Accumulates the filter gradients and the input gradients by scattering every output delta back over
+     * the patch it was computed from. The input gradient is the full convolution of the deltas with the
+     * rotated filter, which the scatter computes by indexing the filter in reverse relative to the input,
+     * so no rotated copy is needed; strided patches are addressed exactly as in the forward pass.
+     */
+    private void backwardDirect(double[] delta, Tensor inputGradient) {
+        int batchSize = input.shape(0);
+        int inputHeight = input.shape(2);
+        int inputWidth = input.shape(3);
+        int outputHeight = activatedOutput.shape(2);
+        int outputWidth = activatedOutput.shape(3);
+        int inputArea = inputHeight * inputWidth;
+        int patch = filterSize * filterSize;
+        double[] inputData = input.getData();
+        int inputOffset = input.getOffset();
+        double[] inGrad = inputGradient.getData();
+        int gradientOffset = inputGradient.getOffset();
+        double[] filterData = filters.getData();
+        double[] filterGradients = accumulatedFilterGradients.getData();
+        MatrixKernels kernels = MatrixUtils.kernels();
+
+        int o = 0;
+        for (int n = 0; n < batchSize; n++) {
+            int sampleInput = inputOffset + n * inputDepth * inputArea;
+            int sampleGradient = gradientOffset + n * inputDepth * inputArea;
+            for (int f = 0; f < numFilters; f++) {
+                for (int a = 0; a < outputHeight; a++) {
+                    for (int b = 0; b < outputWidth; b++, o++) {
+                        double value = delta[o];
+                        if (value == 0.0) {
+                            continue;
                         }
-                        // L2 Regularization
-                        if (lambdaL2 != 0) {
-                            accumulatedFilterGradients[f][d][i][j] += lambdaL2 * filters[f][d][i][j];
+                        int corner = a * stride * inputWidth + b * stride;
+                        for (int d = 0; d < inputDepth; d++) {
+                            int filter = (f * inputDepth + d) * patch;
+                            int channel = d * inputArea + corner;
+                            for (int i = 0; i < filterSize; i++) {
+                                int row = channel + i * inputWidth;
+                                int tap = filter + i * filterSize;
+                                kernels.axpy(value, inputData, sampleInput + row, filterGradients, tap, filterSize);
+                                kernels.axpy(value, filterData, tap, inGrad, sampleGradient + row, filterSize);
+                            }
                         }
                     }
                 }
-
-                // Calculate gradient for input
-                double[][] rotatedFilter = MatrixUtils.rotate180(filters[f][d]);
-                double[][] inputGrad = MatrixUtils.fullConvolve(rotatedFilter, gradient[f]);
-                for (int i = 0; i < inputSize; i++) {
-                    for (int j = 0; j < inputSize; j++) {
-                        inputGradient[d][i][j] += inputGrad[i][j];
-                    }
-                }
             }
+        }
+    }
 
-            // Calculate gradient for biases
-            for (int i = 0; i < outputSize; i++) {
-                for (int j = 0; j < outputSize; j++) {
-                    accumulatedBiasGradients[f] += gradient[f][i][j];
-                }
-            }
+    /**
+     * Accumulates the filter gradients and writes the input gradients as matrix multiplications over the unrolled patches:
+     * dFilters += delta * columns^T and dColumns = filters^T * delta, folded back with col2im.
+     */
+    private void backwardIm2col(Tensor delta, Tensor inputGradient) {
+        int batchSize = input.shape(0);
+        int inputHeight = input.shape(2);
+        int inputWidth = input.shape(3);
+        int inputVolume = inputDepth * inputHeight * inputWidth;
+        int outputArea = activatedOutput.shape(2) * activatedOutput.shape(3);
+        int patchSize = inputDepth * filterSize * filterSize;
+        Tensor cols = columnBuffer(patchSize * outputArea);
+        columnGradients = ensureSize(columnGradients, cols.size());
+
+        for (int n = 0; n < batchSize; n++) {
+            int deltaBase = n * numFilters * outputArea;
+            MatrixUtils.im2col(input, n * inputVolume, inputDepth, inputHeight, inputWidth, filterSize, stride, cols);
+            Gemm.multiply(delta, deltaBase, false, cols, 0, true, accumulatedFilterGradients, 0,
+                    numFilters, patchSize, outputArea, true);
+            Gemm.multiply(filters, 0, true, delta, deltaBase, false, columnGradients, 0,
+                    patchSize, outputArea, numFilters, false);
+            MatrixUtils.col2im(columnGradients, inputDepth, inputHeight, inputWidth, filterSize, stride,
+                    inputGradient, n * inputVolume);
         }
+    }
 
-        return inputGradient;
+    /**
+     * Returns the reusable buffer for unrolled patches, replacing it when a different size is needed.
+     */
+    private Tensor columnBuffer(int size) {
+        columns = ensureSize(columns, size);
+        return columns;
     }
 
     /**
-     * Updates the parameters (filters and biases) of the layer using the accumulated gradients.
-     * The parameters are updated using the specified learning rate and mini-batch size.
+     * Returns the given buffer if it has exactly the requested length and the precision of the layer, otherwise a new one.
+     */
+    private Tensor ensureSize(Tensor buffer, int size) {
+        return buffer != null && buffer.size() == size && buffer.getPrecision() == precision ? buffer : Tensor.zeros(precision, size);
+    }
+
+    /**
+     * Returns the gradients accumulated for the filters and biases.
      *
-     * @param learningRate  the learning rate to use for updating the parameters
-     * @param miniBatchSize the size of the mini-batch used for averaging the gradients
+     * @return the filter and bias gradients, or an empty list before the first backward pass
      */
     @Override
-    public void updateParameters(double learningRate, int miniBatchSize) {
-        for (int f = 0; f < numFilters; f++) {
-            for (int d = 0; d < filters[f].length; d++) {
-                for (int i = 0; i < filterSize; i++) {
-                    for (int j = 0; j < filterSize; j++) {
-                        filters[f][d][i][j] -= learningRate * accumulatedFilterGradients[f][d][i][j] / miniBatchSize;
-                        accumulatedFilterGradients[f][d][i][j] = 0;
-                    }
-                }
-            }
-            biases[f] -= learningRate * accumulatedBiasGradients[f] / miniBatchSize;
-            accumulatedBiasGradients[f] = 0;
-        }
+    public List<Tensor> getGradients() {
+        return accumulatedFilterGradients == null ? Collections.<Tensor>emptyList() : Arrays.asList(accumulatedFilterGradients, accumulatedBiasGradients);
     }
 
     /**
@@ -285,21 +447,238 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
      */
     @Override
     public void resetGradients() {
-        if (filters[0] == null) {
+        if (accumulatedFilterGradients == null) {
+            return;
+        }
+        accumulatedFilterGradients.fill(0.0);
+        accumulatedBiasGradients.fill(0.0);
+    }
+
+    /**
+     * Adds the filter and bias gradients accumulated by a replica to the gradients of this layer.
+     *
+     * @param replica a layer created by {@link #replicate()} on this layer
+     * @throws IllegalArgumentException if the layer is not a convolutional layer
+     */
+    @Override
+    public void addGradients(ParameterizedLayer replica) {
+        if (!(replica instanceof ConvolutionalLayer)) {
+            throw new IllegalArgumentException("Expected a ConvolutionalLayer replica");
+        }
+        ConvolutionalLayer other = (ConvolutionalLayer) replica;
+        if (other.accumulatedFilterGradients == null) {
             return;
         }
+        if (accumulatedFilterGradients == null) {
+            initializeAccumulatedGradients();
+        }
+        for (int k = 0; k < filters.size(); k++) {
+            accumulatedFilterGradients.addFlat(k, other.accumulatedFilterGradients.getFlat(k));
+        }
         for (int f = 0; f < numFilters; f++) {
-            for (int d = 0; d < filters[f].length; d++) {
-                for (int i = 0; i < filterSize; i++) {
-                    for (int j = 0; j < filterSize; j++) {
-                        accumulatedFilterGradients[f][d][i][j] = 0;
-                    }
-                }
-            }
-            accumulatedBiasGradients[f] = 0;
+            accumulatedBiasGradients.addFlat(f, other.accumulatedBiasGradients.getFlat(f));
         }
     }
 
+    /**
+     * Attaches the workspace that receives the outputs and input gradients of this layer.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    @Override
+    public void setWorkspace(Workspace workspace, int position) {
+        this.workspace = workspace;
+        this.position = position;
+    }
+
+    /**
+     * Creates a replica that shares the filters and biases of this layer but has its own
+     * cached activations, patch buffers and accumulated gradients.
+     *
+     * @return a new convolutional layer sharing the parameters of this layer
+     */
+    @Override
+    public ConvolutionalLayer replicate() {
+        ConvolutionalLayer replica = new ConvolutionalLayer(filterSize, numFilters, stride, activationFunction, lambdaL1, lambdaL2);
+        replica.regularizationMode = regularizationMode;
+        replica.inputDepth = inputDepth;
+        replica.filters = filters;
+        replica.biases = biases;
+        replica.convolutionMode = convolutionMode;
+        replica.precision = precision;
+        replica.initializeAccumulatedGradients();
+        return replica;
+    }
+
+    /**
+     * Converts the filters, biases and accumulated gradients to the given precision. Replicas created before
+     * the conversion keep sharing the old parameters, so the layer should be replicated again afterwards.
+     *
+     * @param precision the element type of the parameters and of the tensors produced by the layer
+     */
+    @Override
+    public void setPrecision(Tensor.Precision precision) {
+        this.precision = precision;
+        if (filters != null) {
+            filters = filters.toPrecision(precision);
+            biases = biases.toPrecision(precision);
+        }
+        if (accumulatedFilterGradients != null) {
+            accumulatedFilterGradients = accumulatedFilterGradients.toPrecision(precision);
+            accumulatedBiasGradients = accumulatedBiasGradients.toPrecision(precision);
+        }
+    }
+
+    /**
+     * Returns the element type of the parameters and of the tensors produced by the layer.
+     *
+     * @return the precision of the layer
+     */
+    @Override
+    public Tensor.Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Returns the filters, as a [numFilters, depth * filterSize * filterSize] tensor, and the biases.
+     *
+     * @return the parameter tensors, or an empty list before the layer is initialized
+     */
+    @Override
+    public List<Tensor> getParameters() {
+        return filters == null ? Collections.<Tensor>emptyList() : Arrays.asList(filters, biases);
+    }
+
+    /**
+     * Replaces the filters and biases, converting them to the precision of the layer if needed.
+     * Gradients are accumulated in new tensors once the layer is trained.
+     *
+     * @param parameters a [numFilters, depth * filterSize * filterSize] filter tensor and a [numFilters] bias tensor
+     * @throws IllegalArgumentException if the tensors do not have these shapes
+     */
+    @Override
+    public void setParameters(List<Tensor> parameters) {
+        int patch = filterSize * filterSize;
+        if (parameters.size() != 2 || parameters.get(0).rank() != 2 || parameters.get(0).shape(0) != numFilters
+                || parameters.get(0).shape(1) % patch != 0
+                || (filters != null && parameters.get(0).shape(1) != inputDepth * patch)
+                || !Arrays.equals(parameters.get(1).getShape(), new int[]{numFilters})) {
+            throw new IllegalArgumentException("Expected filters of shape [" + numFilters + ", depth * " + patch + "] and biases of shape [" + numFilters + "]");
+        }
+        filters = parameters.get(0).toPrecision(precision);
+        biases = parameters.get(1).toPrecision(precision);
+        inputDepth = filters.shape(1) / patch;
+        accumulatedFilterGradients = null;
+        accumulatedBiasGradients = null;
+    }
+
+    /**
+     * Returns the size of the square filters.
+     *
+     * @return the filter size
+     */
+    public int getFilterSize() {
+        return filterSize;
+    }
+
+    /**
+     * Returns the number of filters, which is the depth of the output.
+     *
+     * @return the number of filters
+     */
+    public int getNumFilters() {
+        return numFilters;
+    }
+
+    /**
+     * Returns the stride of the convolution.
+     *
+     * @return the stride
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns the activation function applied after the convolution.
+     *
+     * @return the activation function
+     */
+    public ActivationFunction getActivationFunction() {
+        return activationFunction;
+    }
+
+    /**
+     * Returns the L1 regularization parameter.
+     *
+     * @return the L1 regularization parameter
+     */
+    public double getLambdaL1() {
+        return lambdaL1;
+    }
+
+    /**
+     * Returns the L2 regularization parameter.
+     *
+     * @return the L2 regularization parameter
+     */
+    public double getLambdaL2() {
+        return lambdaL2;
+    }
+
+    /**
+     * Sets how the optimizer applies the L1 and L2 penalties of the filters: added to the gradient
+     * ({@link Regularization.Mode#COUPLED}, the default) or as weight decay and proximal L1 shrinkage
+     * ({@link Regularization.Mode#DECOUPLED}). Either way they are applied once per step, not per sample.
+     *
+     * @param regularizationMode how the penalties are applied
+     */
+    public void setRegularizationMode(Regularization.Mode regularizationMode) {
+        if (regularizationMode == null) {
+            throw new IllegalArgumentException("Regularization mode must not be null");
+        }
+        this.regularizationMode = regularizationMode;
+    }
+
+    /**
+     * Returns how the optimizer applies the L1 and L2 penalties of the filters.
+     *
+     * @return the regularization mode
+     */
+    public Regularization.Mode getRegularizationMode() {
+        // Layers serialized before the mode existed deserialize with null
+        return regularizationMode == null ? Regularization.Mode.COUPLED : regularizationMode;
+    }
+
+    /**
+     * Returns the penalties of the filters; the biases are not regularized.
+     *
+     * @return the regularization of the filters and null for the biases
+     */
+    @Override
+    public List<Regularization> getRegularization() {
+        return Arrays.asList(new Regularization(lambdaL1, lambdaL2, getRegularizationMode()), null);
+    }
+
+    /**
+     * Sets the algorithm used to compute the forward and backward passes.
+     *
+     * @param convolutionMode the convolution algorithm
+     */
+    public void setConvolutionMode(ConvolutionMode convolutionMode) {
+        this.convolutionMode = convolutionMode;
+    }
+
+    /**
+     * Returns the algorithm used to compute the forward and backward passes.
+     *
+     * @return the convolution algorithm
+     */
+    public ConvolutionMode getConvolutionMode() {
+        return convolutionMode;
+    }
+
     /**
      * Computes the output shape of the layer given the input shape.
      *
@@ -308,8 +687,8 @@ public class ConvolutionalLayer implements AdaptiveLayer, ParameterizedLayer, Se
      */
     @Override
     public int[] getOutputShape(int... inputShape) {
-        int inputSize = inputShape[1];
-        int outputSize = (inputSize - filterSize) / stride + 1;
-        return new int[]{numFilters, outputSize, outputSize};
+        int outputHeight = (inputShape[1] - filterSize) / stride + 1;
+        int outputWidth = (inputShape[2] - filterSize) / stride + 1;
+        return new int[]{numFilters, outputHeight, outputWidth};
     }
 }
\ No newline at end of file
@@ -1,91 +1,90 @@
 package cnn.layers;
 
 import cnn.interfaces.Layer;
+import cnn.utils.MatrixUtils;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
 
 import java.io.Serializable;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * A dropout layer in a neural network, which randomly sets a fraction of input units to zero during training.
  * This layer helps prevent overfitting by introducing noise during training.
+ * It starts in inference mode, where it passes its input through; the {@link cnn.CNN} switches it to training
+ * mode for the passes of a training step only.
  */
 public class DropoutLayer implements Layer, Serializable {
+    private static final long serialVersionUID = -5853668098764574796L;
     private double rate;
-    private double[][][] mask;
+    private Tensor mask;
     private boolean isTraining;
+    private transient Workspace workspace;
+    private transient int position;
+    private transient SplittableRandom random;
 
     /**
-     * Constructs a DropoutLayer with the specified dropout rate.
+     * Constructs a DropoutLayer with the specified dropout rate, in inference mode.
      *
      * @param rate the probability of dropping out a unit, between 0.0 and 1.0
      */
     public DropoutLayer(double rate) {
         this.rate = rate;
-        this.isTraining = true;
+        this.isTraining = false;
     }
 
     /**
-     * Performs the forward pass through the dropout layer. During training, randomly sets a fraction of input units to zero.
+     * Performs the forward pass through the dropout layer for a mini-batch. During training, randomly sets a fraction of input units to zero.
      *
-     * @param input a 3D array representing the input tensor
-     * @return a 3D array representing the output tensor after applying dropout
+     * @param input a tensor of shape [batchSize, ...] representing the input
+     * @return a tensor of the same shape representing the output after applying dropout
      */
     @Override
-    public double[][][] forward(double[][][] input) {
+    public Tensor forwardBatch(Tensor input) {
         if (!isTraining) {
             return input;
         }
 
-        int depth = input.length;
-        int height = input[0].length;
-        int width = input[0][0].length;
-        mask = new double[depth][height][width];
-        Random random = new Random();
-
-        double[][][] output = new double[depth][height][width];
-
-        for (int d = 0; d < depth; d++) {
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    mask[d][i][j] = random.nextDouble() > rate ? 1.0 : 0.0;
-                    output[d][i][j] = input[d][i][j] * mask[d][i][j];
-                }
-            }
+        Tensor source = input.isContiguous() ? input : input.copy();
+        int size = source.size();
+        if (mask == null || mask.size() != size || mask.getPrecision() != source.getPrecision()) {
+            mask = Tensor.zeros(source.getPrecision(), source.getShape());
         }
+        if (random == null) {
+            random = new SplittableRandom();
+        }
+
+        Tensor output = workspace != null ? workspace.activation(position + 1, source.shape(0)) : Tensor.zeros(source.getPrecision(), source.getShape());
+
+        for (int k = 0; k < size; k++) {
+            mask.setFlat(k, random.nextDouble() > rate ? 1.0 : 0.0);
+        }
+        MatrixUtils.multiply(source.toPrecision(output.getPrecision()), mask.toPrecision(output.getPrecision()), output);
 
         return output;
     }
 
     /**
-     * Performs the backward pass through the dropout layer, scaling the gradient by the dropout mask.
+     * Performs the backward pass through the dropout layer for the last mini-batch, scaling the gradient by the dropout mask.
      *
-     * @param gradient a 3D array representing the gradient of the loss with respect to the output
-     * @return a 3D array representing the gradient of the loss with respect to the input
+     * @param gradient a tensor of shape [batchSize, ...] representing the gradient of the loss with respect to the output
+     * @return a tensor representing the gradient of the loss with respect to the input
      * @throws IllegalStateException if the dropout mask dimensions do not match the gradient dimensions
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
+    public Tensor backwardBatch(Tensor gradient) {
         if (!isTraining) {
             return gradient;
         }
 
-        int depth = gradient.length;
-        int height = gradient[0].length;
-        int width = gradient[0][0].length;
-        
-        if (mask == null || mask.length != depth || mask[0].length != height || mask[0][0].length != width) {
+        if (mask == null || mask.size() != gradient.size()) {
             throw new IllegalStateException("Dropout mask dimensions do not match gradient dimensions");
         }
 
-        double[][][] outputGradient = new double[depth][height][width];
+        Tensor source = gradient.isContiguous() ? gradient : gradient.copy();
+        Tensor outputGradient = workspace != null ? workspace.gradient(position, source.shape(0)) : Tensor.zeros(source.getPrecision(), source.getShape());
 
-        for (int d = 0; d < depth; d++) {
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    outputGradient[d][i][j] = gradient[d][i][j] * mask[d][i][j];
-                }
-            }
-        }
+        MatrixUtils.multiply(source.toPrecision(outputGradient.getPrecision()), mask.toPrecision(outputGradient.getPrecision()), outputGradient);
 
         return outputGradient;
     }
@@ -95,10 +94,44 @@ public class DropoutLayer implements Layer, Serializable {
      *
      * @param isTraining true if the layer is in training mode, false if in inference mode
      */
+    @Override
     public void setTraining(boolean isTraining) {
         this.isTraining = isTraining;
     }
 
+    /**
+     * Draws the following dropout masks from a generator with the given seed, so that they are reproducible.
+     *
+     * @param seed the seed of the masks
+     */
+    public void setSeed(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Attaches the workspace that receives the outputs and input gradients of this layer.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    @Override
+    public void setWorkspace(Workspace workspace, int position) {
+        this.workspace = workspace;
+        this.position = position;
+    }
+
+    /**
+     * Creates a replica with the same rate and training mode and its own dropout mask.
+     *
+     * @return a new dropout layer with the same configuration
+     */
+    @Override
+    public DropoutLayer replicate() {
+        DropoutLayer replica = new DropoutLayer(rate);
+        replica.isTraining = isTraining;
+        return replica;
+    }
+
     /**
      * Computes the output shape of the layer given the input shape.
      *
@@ -109,4 +142,22 @@ public class DropoutLayer implements Layer, Serializable {
     public int[] getOutputShape(int... inputShape) {
         return inputShape; // Dropout does not change the dimensions
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the probability of dropping out a unit.
+     *
+     * @return the dropout rate
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns whether units are dropped out, which is the case during training only.
+     *
+     * @return true if the layer is in training mode
+     */
+    public boolean isTraining() {
+        return isTraining;
+    }
+}
@@ -3,12 +3,14 @@ package cnn.layers;
 import java.io.Serializable;
 
 import cnn.interfaces.AdaptiveLayer;
+import cnn.utils.Tensor;
 
 /**
  * A layer that flattens a 3D input tensor (depth, height, width) into a 1D output tensor.
  * This layer is commonly used in the transition from convolutional to fully connected layers in a neural network.
  */
 public class FlattenLayer implements AdaptiveLayer, Serializable {
+    private static final long serialVersionUID = 577660753581304090L;
 
     private int depth;
     private int height;
@@ -31,55 +33,47 @@ public class FlattenLayer implements AdaptiveLayer, Serializable {
     }
 
     /**
-     * Performs the forward pass by flattening the input 3D tensor into a 1D tensor.
+     * Performs the forward pass by flattening every 3D sample of a mini-batch into a 1D vector.
+     * The result is a view that shares storage with the input whenever the input is contiguous.
      *
-     * @param input a 3D array representing the input tensor.
-     * @return a 3D array with shape [1][1][depth * height * width] representing the flattened output tensor.
+     * @param input a tensor of shape [batchSize, depth, height, width].
+     * @return a tensor of shape [batchSize, depth * height * width] representing the flattened output.
      * @throws IllegalArgumentException if the input dimensions do not match the initialized shape.
      */
     @Override
-    public double[][][] forward(double[][][] input) {
-        if (input.length != depth || input[0].length != height || input[0][0].length != width) {
+    public Tensor forwardBatch(Tensor input) {
+        if (input.rank() != 4 || input.shape(1) != depth || input.shape(2) != height || input.shape(3) != width) {
             throw new IllegalArgumentException("Input dimensions do not match the initialized shape.");
         }
-
-        double[][][] output = new double[1][1][depth * height * width];
-
-        for (int d = 0; d < depth; d++) {
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    output[0][0][d * height * width + i * width + j] = input[d][i][j];
-                }
-            }
-        }
-
-        return output;
+        return input.reshape(input.shape(0), depth * height * width);
     }
 
     /**
-     * Performs the backward pass by reshaping the gradient from a 1D tensor back to the original 3D tensor shape.
+     * Performs the backward pass by reshaping the gradient of every sample back to the original 3D shape.
      *
-     * @param gradient a 3D array with shape [1][1][depth * height * width] representing the gradient.
-     * @return a 3D array with the original input shape [depth][height][width] representing the reshaped gradient.
+     * @param gradient a tensor of shape [batchSize, ...] holding depth * height * width elements per sample.
+     * @return a tensor of shape [batchSize, depth, height, width] representing the reshaped gradient.
      * @throws IllegalArgumentException if the gradient dimensions do not match the expected flattened shape.
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
-        if (gradient[0][0].length != depth * height * width) {
+    public Tensor backwardBatch(Tensor gradient) {
+        int batchSize = gradient.shape(0);
+        if (gradient.size() != batchSize * depth * height * width) {
             throw new IllegalArgumentException("Gradient dimensions do not match the expected shape.");
         }
+        return gradient.reshape(batchSize, depth, height, width);
+    }
 
-        double[][][] reshapedGradient = new double[depth][height][width];
-
-        for (int d = 0; d < depth; d++) {
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    reshapedGradient[d][i][j] = gradient[0][0][d * height * width + i * width + j];
-                }
-            }
-        }
-
-        return reshapedGradient;
+    /**
+     * Creates a replica flattening the same input shape.
+     *
+     * @return a new flatten layer with the same configuration
+     */
+    @Override
+    public FlattenLayer replicate() {
+        FlattenLayer replica = new FlattenLayer();
+        replica.initialize(depth, height, width);
+        return replica;
     }
 
     /**
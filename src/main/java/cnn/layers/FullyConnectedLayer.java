@@ -1,29 +1,44 @@
 package cnn.layers;
 
-import cnn.utils.MatrixUtils;
+import cnn.utils.Gemm;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
+import cnn.utils.optimizers.Regularization;
 import cnn.interfaces.ActivationFunction;
 import cnn.interfaces.AdaptiveLayer;
 import cnn.interfaces.ParameterizedLayer;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 /**
  * A fully connected layer in a neural network, also known as a dense layer.
  * This layer connects every input neuron to every output neuron.
  * It supports L1 and L2 regularization.
+ * Weights are stored as a single [inputSize, outputSize] row-major matrix in the precision of the layer.
  */
 public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, Serializable {
+    private static final long serialVersionUID = 6957971916618692259L;
     private int inputSize;
     private int outputSize;
-    private double[][] weights;
-    private double[] biases;
+    private Tensor weights;
+    private Tensor biases;
     private double lambdaL1;
     private double lambdaL2;
-    private double[][][] input;
+    private Regularization.Mode regularizationMode = Regularization.Mode.COUPLED;
+    private Tensor input;
     private ActivationFunction activationFunction;
-    private double[][] accumulatedWeightGradients;
-    private double[] accumulatedBiasGradients;
+    private Tensor accumulatedWeightGradients;
+    private Tensor accumulatedBiasGradients;
+    private Tensor.Precision precision = Tensor.Precision.DOUBLE;
+    private transient Tensor preActivations;
+    private transient Tensor deltas;
+    private transient Tensor inputGradients;
+    private transient Workspace workspace;
+    private transient int position;
 
     /**
      * Constructs a FullyConnectedLayer with the specified output size, activation function, 
@@ -54,6 +69,7 @@ public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, S
 
     /**
      * Initializes the layer with the shape of the input tensor.
+     * Weights that already fit the input, such as those assigned with {@link #setParameters(List)}, are kept.
      * 
      * @param inputShape an array where the first element is the size of the input
      * @throws IllegalArgumentException if the input shape does not have exactly one dimension
@@ -64,8 +80,11 @@ public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, S
             throw new IllegalArgumentException("Input shape must have exactly one dimension");
         }
         this.inputSize = inputShape[0];
-        this.weights = new double[inputSize][outputSize];
-        this.biases = new double[outputSize];
+        if (weights != null && weights.shape(0) == inputSize) {
+            return;
+        }
+        this.weights = Tensor.zeros(precision, inputSize, outputSize);
+        this.biases = Tensor.zeros(precision, outputSize);
         initializeWeights();
         initializeAccumulatedGradients();
     }
@@ -76,14 +95,10 @@ public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, S
      */
     private void initializeWeights() {
         Random rand = new Random();
-        for (int i = 0; i < inputSize; i++) {
-            for (int j = 0; j < outputSize; j++) {
-                weights[i][j] = rand.nextGaussian() * Math.sqrt(2.0 / inputSize);
-            }
-        }
-        for (int j = 0; j < outputSize; j++) {
-            biases[j] = 0.0;
+        for (int k = 0; k < weights.size(); k++) {
+            weights.setFlat(k, rand.nextGaussian() * Math.sqrt(2.0 / inputSize));
         }
+        biases.fill(0.0);
     }
 
     /**
@@ -91,111 +106,99 @@ public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, S
      * This method is used to prepare for gradient accumulation during training.
      */
     private void initializeAccumulatedGradients() {
-        accumulatedWeightGradients = new double[inputSize][outputSize];
-        accumulatedBiasGradients = new double[outputSize];
+        accumulatedWeightGradients = Tensor.zeros(precision, inputSize, outputSize);
+        accumulatedBiasGradients = Tensor.zeros(precision, outputSize);
     }
 
     /**
-     * Performs the forward pass by computing the weighted sum of the inputs 
+     * Performs the forward pass for a mini-batch by computing the weighted sum of the inputs 
      * and applying the activation function.
      *
-     * @param input a 3D array representing the input tensor, expected to be [1][1][inputSize]
-     * @return a 3D array representing the output tensor, [1][1][outputSize]
-     * @throws IllegalArgumentException if the input dimensions do not match the expected shape
+     * @param input a tensor of shape [batchSize, ...] holding inputSize elements per sample
+     * @return a tensor of shape [batchSize, outputSize]
+     * @throws IllegalArgumentException if the input size does not match the expected size
      */
     @Override
-    public double[][][] forward(double[][][] input) {
-        if (input.length != 1 || input[0].length != 1 || input[0][0].length != inputSize) {
+    public Tensor forwardBatch(Tensor input) {
+        int batchSize = input.shape(0);
+        if (input.size() != batchSize * inputSize) {
             throw new IllegalArgumentException("Input dimensions do not match the expected shape");
         }
-        this.input = input;
-        double[] flattenedInput = input[0][0];
+        this.input = input.getPrecision() != precision ? input.toPrecision(precision)
+                : input.isContiguous() ? input : input.copy();
 
-        double[] preActivation = MatrixUtils.multiply(flattenedInput, weights, biases);
-        double[] postActivation = new double[outputSize];
-        for (int i = 0; i < outputSize; i++) {
-            postActivation[i] = activationFunction.activate(preActivation[i]);
+        // Keep the pre-activations for the backward pass
+        preActivations = ensureSize(preActivations, batchSize * outputSize);
+        Gemm.multiply(this.input, 0, false, weights, 0, false, preActivations, 0, batchSize, outputSize, inputSize, false);
+        Tensor output = workspace != null ? workspace.activation(position + 1, batchSize) : Tensor.zeros(precision, batchSize, outputSize);
+        for (int k = 0; k < preActivations.size(); k++) {
+            double value = preActivations.getFlat(k) + biases.getFlat(k % outputSize);
+            preActivations.setFlat(k, value);
+            output.setFlat(k, activationFunction.activate(value));
         }
-        return new double[][][]{{postActivation}};
+        return output;
     }
 
     /**
-     * Performs the backward pass by computing the gradients of the loss 
-     * with respect to the inputs and parameters.
+     * Performs the backward pass for the last mini-batch by computing the gradients of the loss 
+     * with respect to the inputs and parameters. Weight gradients are accumulated as the product of the
+     * transposed inputs and the deltas directly into the accumulator, and the input gradient is the product
+     * of the deltas and the transposed weights.
+     * The returned tensor is owned by the layer and is overwritten by the next backward pass.
      *
-     * @param gradient a 3D array representing the gradient of the loss with respect to the output, [1][1][outputSize]
-     * @return a 3D array representing the gradient of the loss with respect to the input, [1][1][inputSize]
-     * @throws IllegalArgumentException if the gradient dimensions do not match the expected shape
+     * @param gradient a tensor of shape [batchSize, ...] holding outputSize elements per sample
+     * @return a tensor of shape [batchSize, inputSize] with the gradient of the loss with respect to the input
+     * @throws IllegalArgumentException if the gradient size does not match the expected size
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
-        if (gradient.length != 1 || gradient[0].length != 1 || gradient[0][0].length != outputSize) {
+    public Tensor backwardBatch(Tensor gradient) {
+        int batchSize = input.shape(0);
+        if (gradient.size() != batchSize * outputSize) {
             throw new IllegalArgumentException("Gradient dimensions do not match the expected shape");
         }
-        double[] postActivationGradient = gradient[0][0];
-        double[] preActivationGradient = new double[outputSize];
-
-        double[] flattenedInput = input[0][0];
-        double[] preActivation = MatrixUtils.multiply(flattenedInput, weights, biases);
-
-        for (int i = 0; i < outputSize; i++) {
-            preActivationGradient[i] = postActivationGradient[i] * activationFunction.derivative(preActivation[i]);
+        Tensor postActivationGradient = gradient.getPrecision() != precision ? gradient.toPrecision(precision)
+                : gradient.isContiguous() ? gradient : gradient.copy();
+        if (accumulatedWeightGradients == null) {
+            initializeAccumulatedGradients();
         }
-
-        double[] inputGradient = new double[flattenedInput.length];
-        double[][] weightGradient = new double[inputSize][outputSize];
-        double[] biasGradient = new double[outputSize];
-
-        for (int j = 0; j < outputSize; j++) {
-            for (int i = 0; i < inputSize; i++) {
-                inputGradient[i] += preActivationGradient[j] * weights[i][j];
-                weightGradient[i][j] += preActivationGradient[j] * flattenedInput[i];
-            }
-            biasGradient[j] += preActivationGradient[j];
-        }
-
-        for (int i = 0; i < inputSize; i++) {
-            for (int j = 0; j < outputSize; j++) {
-                accumulatedWeightGradients[i][j] += weightGradient[i][j];
-                
-                // L1 regularization
-                if (lambdaL1 != 0) {
-                    accumulatedWeightGradients[i][j] += lambdaL1 * Math.signum(weights[i][j]);
-                }
-                
-                // L2 regularization
-                if (lambdaL2 != 0) {
-                    accumulatedWeightGradients[i][j] += lambdaL2 * weights[i][j];
-                }
-            }
+        int outputs = batchSize * outputSize;
+        deltas = ensureSize(deltas, outputs);
+        Tensor inputGradient;
+        if (workspace != null) {
+            inputGradient = workspace.gradient(position, batchSize);
+        } else {
+            inputGradients = ensureSize(inputGradients, batchSize * inputSize);
+            inputGradient = inputGradients.reshape(batchSize, inputSize);
         }
 
-        for (int j = 0; j < outputSize; j++) {
-            accumulatedBiasGradients[j] += biasGradient[j];
+        for (int k = 0; k < outputs; k++) {
+            double delta = postActivationGradient.getFlat(k) * activationFunction.derivative(preActivations.getFlat(k));
+            deltas.setFlat(k, delta);
+            accumulatedBiasGradients.addFlat(k % outputSize, delta);
         }
 
-        return new double[][][]{{inputGradient}};
+        // dW += X^T * delta and dX = delta * W^T
+        Gemm.multiply(input, 0, true, deltas, 0, false, accumulatedWeightGradients, 0, inputSize, outputSize, batchSize, true);
+        Gemm.multiply(deltas, 0, false, weights, 0, true, inputGradient, 0, batchSize, inputSize, outputSize, false);
+
+        return inputGradient;
     }
 
     /**
-     * Updates the parameters of the layer using the accumulated gradients 
-     * and a given learning rate.
+     * Returns the given buffer if it has exactly the requested length and the precision of the layer, otherwise a new one.
+     */
+    private Tensor ensureSize(Tensor buffer, int size) {
+        return buffer != null && buffer.size() == size && buffer.getPrecision() == precision ? buffer : Tensor.zeros(precision, size);
+    }
+
+    /**
+     * Returns the gradients accumulated for the weights and biases.
      *
-     * @param learningRate the learning rate for the update
-     * @param miniBatchSize the size of the mini-batch for averaging the gradients
+     * @return the weight and bias gradients, or an empty list before the first backward pass
      */
     @Override
-    public void updateParameters(double learningRate, int miniBatchSize) {
-        for (int i = 0; i < inputSize; i++) {
-            for (int j = 0; j < outputSize; j++) {
-                weights[i][j] -= learningRate * accumulatedWeightGradients[i][j] / miniBatchSize;
-                accumulatedWeightGradients[i][j] = 0;
-            }
-        }
-        for (int j = 0; j < outputSize; j++) {
-            biases[j] -= learningRate * accumulatedBiasGradients[j] / miniBatchSize;
-            accumulatedBiasGradients[j] = 0;
-        }
+    public List<Tensor> getGradients() {
+        return accumulatedWeightGradients == null ? Collections.<Tensor>emptyList() : Arrays.asList(accumulatedWeightGradients, accumulatedBiasGradients);
     }
 
     /**
@@ -204,14 +207,96 @@ public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, S
      */
     @Override
     public void resetGradients() {
-        for (int i = 0; i < inputSize; i++) {
-            for (int j = 0; j < outputSize; j++) {
-                accumulatedWeightGradients[i][j] = 0;
-            }
+        if (accumulatedWeightGradients == null) {
+            return;
+        }
+        accumulatedWeightGradients.fill(0.0);
+        accumulatedBiasGradients.fill(0.0);
+    }
+
+    /**
+     * Adds the weight and bias gradients accumulated by a replica to the gradients of this layer.
+     *
+     * @param replica a layer created by {@link #replicate()} on this layer
+     * @throws IllegalArgumentException if the layer is not a fully connected layer
+     */
+    @Override
+    public void addGradients(ParameterizedLayer replica) {
+        if (!(replica instanceof FullyConnectedLayer)) {
+            throw new IllegalArgumentException("Expected a FullyConnectedLayer replica");
+        }
+        FullyConnectedLayer other = (FullyConnectedLayer) replica;
+        if (other.accumulatedWeightGradients == null) {
+            return;
+        }
+        if (accumulatedWeightGradients == null) {
+            initializeAccumulatedGradients();
+        }
+        for (int k = 0; k < weights.size(); k++) {
+            accumulatedWeightGradients.addFlat(k, other.accumulatedWeightGradients.getFlat(k));
         }
         for (int j = 0; j < outputSize; j++) {
-            accumulatedBiasGradients[j] = 0;
+            accumulatedBiasGradients.addFlat(j, other.accumulatedBiasGradients.getFlat(j));
+        }
+    }
+
+    /**
+     * Attaches the workspace that receives the outputs and input gradients of this layer.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    @Override
+    public void setWorkspace(Workspace workspace, int position) {
+        this.workspace = workspace;
+        this.position = position;
+    }
+
+    /**
+     * Creates a replica that shares the weights and biases of this layer but has its own
+     * cached input and accumulated gradients.
+     *
+     * @return a new fully connected layer sharing the parameters of this layer
+     */
+    @Override
+    public FullyConnectedLayer replicate() {
+        FullyConnectedLayer replica = new FullyConnectedLayer(outputSize, activationFunction, lambdaL1, lambdaL2);
+        replica.regularizationMode = regularizationMode;
+        replica.inputSize = inputSize;
+        replica.weights = weights;
+        replica.biases = biases;
+        replica.precision = precision;
+        replica.initializeAccumulatedGradients();
+        return replica;
+    }
+
+    /**
+     * Converts the weights, biases and accumulated gradients to the given precision. Replicas created before
+     * the conversion keep sharing the old parameters, so the layer should be replicated again afterwards.
+     *
+     * @param precision the element type of the parameters and of the tensors produced by the layer
+     */
+    @Override
+    public void setPrecision(Tensor.Precision precision) {
+        this.precision = precision;
+        if (weights != null) {
+            weights = weights.toPrecision(precision);
+            biases = biases.toPrecision(precision);
         }
+        if (accumulatedWeightGradients != null) {
+            accumulatedWeightGradients = accumulatedWeightGradients.toPrecision(precision);
+            accumulatedBiasGradients = accumulatedBiasGradients.toPrecision(precision);
+        }
+    }
+
+    /**
+     * Returns the element type of the parameters and of the tensors produced by the layer.
+     *
+     * @return the precision of the layer
+     */
+    @Override
+    public Tensor.Precision getPrecision() {
+        return precision;
     }
 
     /**
@@ -234,4 +319,96 @@ public class FullyConnectedLayer implements AdaptiveLayer, ParameterizedLayer, S
     public int getOutputSize() {
         return outputSize;
     }
+
+    /**
+     * Returns the weights, as an [inputSize, outputSize] tensor, and the biases.
+     *
+     * @return the parameter tensors, or an empty list before the layer is initialized
+     */
+    @Override
+    public List<Tensor> getParameters() {
+        return weights == null ? Collections.<Tensor>emptyList() : Arrays.asList(weights, biases);
+    }
+
+    /**
+     * Replaces the weights and biases, converting them to the precision of the layer if needed.
+     * Gradients are accumulated in new tensors once the layer is trained.
+     *
+     * @param parameters an [inputSize, outputSize] weight tensor and an [outputSize] bias tensor
+     * @throws IllegalArgumentException if the tensors do not have these shapes
+     */
+    @Override
+    public void setParameters(List<Tensor> parameters) {
+        if (parameters.size() != 2 || parameters.get(0).rank() != 2 || parameters.get(0).shape(1) != outputSize
+                || (weights != null && parameters.get(0).shape(0) != inputSize)
+                || !Arrays.equals(parameters.get(1).getShape(), new int[]{outputSize})) {
+            throw new IllegalArgumentException("Expected weights of shape [" + (weights != null ? inputSize : "inputSize") + ", " + outputSize + "] and biases of shape [" + outputSize + "]");
+        }
+        weights = parameters.get(0).toPrecision(precision);
+        biases = parameters.get(1).toPrecision(precision);
+        inputSize = weights.shape(0);
+        accumulatedWeightGradients = null;
+        accumulatedBiasGradients = null;
+    }
+
+    /**
+     * Returns the activation function applied to the weighted sums.
+     *
+     * @return the activation function
+     */
+    public ActivationFunction getActivationFunction() {
+        return activationFunction;
+    }
+
+    /**
+     * Returns the L1 regularization coefficient.
+     *
+     * @return the L1 regularization coefficient
+     */
+    public double getLambdaL1() {
+        return lambdaL1;
+    }
+
+    /**
+     * Returns the L2 regularization coefficient.
+     *
+     * @return the L2 regularization coefficient
+     */
+    public double getLambdaL2() {
+        return lambdaL2;
+    }
+
+    /**
+     * Sets how the optimizer applies the L1 and L2 penalties of the weights: added to the gradient
+     * ({@link Regularization.Mode#COUPLED}, the default) or as weight decay and proximal L1 shrinkage
+     * ({@link Regularization.Mode#DECOUPLED}). Either way they are applied once per step, not per sample.
+     *
+     * @param regularizationMode how the penalties are applied
+     */
+    public void setRegularizationMode(Regularization.Mode regularizationMode) {
+        if (regularizationMode == null) {
+            throw new IllegalArgumentException("Regularization mode must not be null");
+        }
+        this.regularizationMode = regularizationMode;
+    }
+
+    /**
+     * Returns how the optimizer applies the L1 and L2 penalties of the weights.
+     *
+     * @return the regularization mode
+     */
+    public Regularization.Mode getRegularizationMode() {
+        // Layers serialized before the mode existed deserialize with null
+        return regularizationMode == null ? Regularization.Mode.COUPLED : regularizationMode;
+    }
+
+    /**
+     * Returns the penalties of the weights; the biases are not regularized.
+     *
+     * @return the regularization of the weights and null for the biases
+     */
+    @Override
+    public List<Regularization> getRegularization() {
+        return Arrays.asList(new Regularization(lambdaL1, lambdaL2, getRegularizationMode()), null);
+    }
 }
\ No newline at end of file
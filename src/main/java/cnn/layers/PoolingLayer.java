@@ -4,6 +4,8 @@ import java.io.Serializable;
 
 import cnn.interfaces.Layer;
 import cnn.utils.MatrixUtils;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
 
 /**
  * A pooling layer in a neural network, which reduces the spatial dimensions of the input tensor.
@@ -19,9 +21,12 @@ public class PoolingLayer implements Layer, Serializable{
         AVERAGE
     }
 
+    private static final long serialVersionUID = -799498082887203583L;
     private int poolSize;
-    private double[][][] input;
+    private Tensor input;
     private PoolingType poolingType;
+    private transient Workspace workspace;
+    private transient int position;
 
     /**
      * Constructs a PoolingLayer with the specified pool size and pooling type.
@@ -35,68 +40,70 @@ public class PoolingLayer implements Layer, Serializable{
     }
 
     /**
-     * Performs the forward pass by applying the pooling operation to the input tensor.
+     * Performs the forward pass by applying the pooling operation to every sample of a mini-batch.
      *
-     * @param input a 3D array representing the input tensor
-     * @return a 3D array representing the output tensor after pooling
+     * @param input a tensor of shape [batchSize, depth, height, width]
+     * @return a tensor of shape [batchSize, depth, height / poolSize, width / poolSize] representing the output after pooling
      */
     @Override
-    public double[][][] forward(double[][][] input) {
-        this.input = input;
-        int inputDepth = input.length;
-        int inputSize = input[0].length;
-        int outputSize = inputSize / poolSize;
-
-        double[][][] output = new double[inputDepth][outputSize][outputSize];
-
-        for (int d = 0; d < inputDepth; d++) {
-            if (poolingType == PoolingType.MAX) {
-                output[d] = MatrixUtils.maxPooling(input[d], poolSize);
-            } else if (poolingType == PoolingType.AVERAGE) {
-                output[d] = MatrixUtils.averagePooling(input[d], poolSize);
-            }
+    public Tensor forwardBatch(Tensor input) {
+        this.input = input.isContiguous() ? input : input.copy();
+        if (workspace == null) {
+            return poolingType == PoolingType.MAX ? MatrixUtils.maxPooling(this.input, poolSize) : MatrixUtils.averagePooling(this.input, poolSize);
+        }
+        Tensor output = workspace.activation(position + 1, input.shape(0));
+        if (poolingType == PoolingType.MAX) {
+            MatrixUtils.maxPooling(this.input, poolSize, output);
+        } else {
+            MatrixUtils.averagePooling(this.input, poolSize, output);
         }
-
         return output;
     }
 
     /**
-     * Performs the backward pass by computing the gradient of the loss with respect to the input.
+     * Performs the backward pass for the last mini-batch by computing the gradient of the loss with respect to the input.
      *
-     * @param gradient a 3D array representing the gradient of the loss with respect to the output
-     * @return a 3D array representing the gradient of the loss with respect to the input
+     * @param gradient a tensor of shape [batchSize, depth, outputHeight, outputWidth] representing the gradient of the loss with respect to the output
+     * @return a tensor of shape [batchSize, depth, height, width] representing the gradient of the loss with respect to the input
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
-        int inputDepth = input.length;
-        int inputSize = input[0].length;
-        int outputSize = gradient[0].length;
-        double[][][] inputGradient = new double[inputDepth][inputSize][inputSize];
+    public Tensor backwardBatch(Tensor gradient) {
+        int planes = input.shape(0) * input.shape(1);
+        int inputHeight = input.shape(2);
+        int inputWidth = input.shape(3);
+        int outputHeight = inputHeight / poolSize;
+        int outputWidth = inputWidth / poolSize;
+        Tensor source = gradient.isContiguous() ? gradient : gradient.copy();
+        Tensor inputGradient = workspace != null ? workspace.gradient(position, input.shape(0)) : Tensor.zeros(input.getPrecision(), input.getShape());
+        inputGradient.fill(0.0);
 
-        for (int d = 0; d < inputDepth; d++) {
-            for (int i = 0; i < outputSize; i++) {
-                for (int j = 0; j < outputSize; j++) {
-                    int x = i * poolSize;
-                    int y = j * poolSize;
+        int o = 0;
+        for (int d = 0; d < planes; d++) {
+            int channel = d * inputHeight * inputWidth;
+            for (int i = 0; i < outputHeight; i++) {
+                for (int j = 0; j < outputWidth; j++) {
+                    int corner = channel + i * poolSize * inputWidth + j * poolSize;
+                    double g = source.getFlat(o++);
 
                     if (poolingType == PoolingType.MAX) {
-                        double maxVal = input[d][x][y];
-                        int maxI = x, maxJ = y;
+                        double maxVal = input.getFlat(corner);
+                        int maxIndex = corner;
                         for (int k = 0; k < poolSize; k++) {
                             for (int l = 0; l < poolSize; l++) {
-                                if (input[d][x + k][y + l] > maxVal) {
-                                    maxVal = input[d][x + k][y + l];
-                                    maxI = x + k;
-                                    maxJ = y + l;
+                                int index = corner + k * inputWidth + l;
+                                double value = input.getFlat(index);
+                                if (value > maxVal) {
+                                    maxVal = value;
+                                    maxIndex = index;
                                 }
                             }
                         }
-                        inputGradient[d][maxI][maxJ] = gradient[d][i][j];
+                        inputGradient.setFlat(maxIndex, g);
                     } else if (poolingType == PoolingType.AVERAGE) {
-                        double gradientValue = gradient[d][i][j] / (poolSize * poolSize);
+                        double gradientValue = g / (poolSize * poolSize);
                         for (int k = 0; k < poolSize; k++) {
                             for (int l = 0; l < poolSize; l++) {
-                                inputGradient[d][x + k][y + l] = gradientValue;
+                                inputGradient.setFlat(corner + k * inputWidth + l, gradientValue);
                             }
                         }
                     }
@@ -106,6 +113,28 @@ public class PoolingLayer implements Layer, Serializable{
         return inputGradient;
     }
 
+    /**
+     * Attaches the workspace that receives the outputs and input gradients of this layer.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    @Override
+    public void setWorkspace(Workspace workspace, int position) {
+        this.workspace = workspace;
+        this.position = position;
+    }
+
+    /**
+     * Creates a replica with the same pool size and pooling type and its own cached input.
+     *
+     * @return a new pooling layer with the same configuration
+     */
+    @Override
+    public PoolingLayer replicate() {
+        return new PoolingLayer(poolSize, poolingType);
+    }
+
     /**
      * Computes the output shape of the layer given the input shape.
      *
@@ -114,8 +143,24 @@ public class PoolingLayer implements Layer, Serializable{
      */
     @Override
     public int[] getOutputShape(int... inputShape) {
-        int inputSize = inputShape[1];
-        int outputSize = inputSize / poolSize;
-        return new int[]{inputShape[0], outputSize, outputSize};
+        return new int[]{inputShape[0], inputShape[1] / poolSize, inputShape[2] / poolSize};
+    }
+
+    /**
+     * Returns the size of the pooling window.
+     *
+     * @return the pool size
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Returns the type of pooling operation.
+     *
+     * @return the pooling type
+     */
+    public PoolingType getPoolingType() {
+        return poolingType;
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,8 @@ package cnn.layers;
 import java.io.Serializable;
 
 import cnn.interfaces.Layer;
+import cnn.utils.Tensor;
+import cnn.utils.Workspace;
 
 /**
  * A softmax layer in a neural network.
@@ -11,64 +13,98 @@ import cnn.interfaces.Layer;
 public class SoftmaxLayer implements Layer, Serializable{
 
     @SuppressWarnings("unused")
-    private double[][][] input;
+    private static final long serialVersionUID = -2674521273975425701L;
+    private Tensor input;
+    private transient Workspace workspace;
+    private transient int position;
 
     /**
-     * Performs the forward pass through the softmax layer.
-     * Applies the softmax function to the input tensor.
+     * Performs the forward pass through the softmax layer for a mini-batch.
+     * Applies the softmax function to every sample, each read as a flat vector.
      *
-     * @param input a 3D array representing the input tensor
-     * @return a 3D array representing the output tensor after applying the softmax function
+     * @param input a tensor of shape [batchSize, ...] representing the input
+     * @return a tensor of shape [batchSize, size] representing the output after applying the softmax function
      */
     @Override
-    public double[][][] forward(double[][][] input) {
+    public Tensor forwardBatch(Tensor input) {
         this.input = input;
-        double[] flattenedInput = input[0][0];
-        double[] softmaxOutput = softmax(flattenedInput);
-        return new double[][][]{{softmaxOutput}};
+        int batchSize = input.shape(0);
+        int size = input.size() / batchSize;
+        Tensor output;
+        if (workspace != null) {
+            output = workspace.activation(position + 1, batchSize);
+            output.copyFrom(input);
+        } else {
+            output = input.copy().reshape(batchSize, size);
+        }
+        for (int n = 0; n < batchSize; n++) {
+            softmax(output, n * size, size);
+        }
+        return output;
     }
 
     /**
-     * Applies the softmax function to the input array.
+     * Applies the softmax function in place to a range of an array.
      *
-     * @param input a 1D array representing the input values
-     * @return a 1D array representing the softmax probabilities
+     * @param values the array holding the input values, overwritten with the softmax probabilities
+     * @param offset the position of the first value
+     * @param length the number of values
      */
-    private double[] softmax(double[] input) {
-        double[] output = new double[input.length];
+    private void softmax(Tensor values, int offset, int length) {
         double max = Double.NEGATIVE_INFINITY;
 
-        for (double v : input) {
-            if (v > max) {
-                max = v;
+        for (int i = offset; i < offset + length; i++) {
+            if (values.getFlat(i) > max) {
+                max = values.getFlat(i);
             }
         }
 
         double sum = 0.0;
-        for (int i = 0; i < input.length; i++) {
-            output[i] = Math.exp(input[i] - max);
-            sum += output[i];
+        for (int i = offset; i < offset + length; i++) {
+            double value = Math.exp(values.getFlat(i) - max);
+            values.setFlat(i, value);
+            sum += value;
         }
 
-        for (int i = 0; i < input.length; i++) {
-            output[i] /= sum;
+        for (int i = offset; i < offset + length; i++) {
+            values.setFlat(i, values.getFlat(i) / sum);
         }
-
-        return output;
     }
 
     /**
-     * Performs the backward pass through the softmax layer.
+     * Performs the backward pass through the softmax layer for a mini-batch.
      * For the softmax layer, the backward pass typically returns the gradient unchanged.
      *
-     * @param gradient a 3D array representing the gradient of the loss with respect to the output
-     * @return a 3D array representing the gradient of the loss with respect to the input
+     * @param gradient a tensor of shape [batchSize, size] representing the gradient of the loss with respect to the output
+     * @return a tensor representing the gradient of the loss with respect to the input
      */
     @Override
-    public double[][][] backward(double[][][] gradient) {
+    public Tensor backwardBatch(Tensor gradient) {
         return gradient;
     }
 
+    /**
+     * Attaches the workspace that receives the outputs and input gradients of this layer.
+     *
+     * @param workspace the workspace to write into, or null to allocate new tensors
+     * @param position the index of this layer in the network
+     */
+    @Override
+    public void setWorkspace(Workspace workspace, int position) {
+        this.workspace = workspace;
+        this.position = position;
+    }
+
+    /**
+     * Creates a replica with its own cached input.
+     *
+     * @return a new softmax layer
+     */
+    @Override
+    public SoftmaxLayer replicate() {
+        return new SoftmaxLayer();
+    }
+
     /**
      * Computes the output shape of the layer given the input shape.
      *
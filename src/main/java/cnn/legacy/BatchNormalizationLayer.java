@@ -0,0 +1,12 @@
+package cnn.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a batch normalization layer. Only the learned scale and shift are migrated.
+ */
+class BatchNormalizationLayer implements Serializable {
+    private static final long serialVersionUID = -1528924651576484186L;
+    double[] gamma;
+    double[] beta;
+}
@@ -0,0 +1,14 @@
+package cnn.legacy;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The serialized form of a CNN saved before the binary model format, used only to migrate old model files.
+ */
+class CNN implements Serializable {
+    private static final long serialVersionUID = 1L;
+    List<Object> layers;
+    int[] inputShape;
+    List<int[]> layerShapes;
+}
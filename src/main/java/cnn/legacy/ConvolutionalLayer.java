@@ -0,0 +1,20 @@
+package cnn.legacy;
+
+import cnn.interfaces.ActivationFunction;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a convolutional layer holding its filters as [numFilters][depth][filterSize][filterSize] arrays.
+ */
+class ConvolutionalLayer implements Serializable {
+    private static final long serialVersionUID = 4043843665891172076L;
+    int filterSize;
+    int numFilters;
+    int stride;
+    double[][][][] filters;
+    double[] biases;
+    double lambdaL1;
+    double lambdaL2;
+    ActivationFunction activationFunction;
+}
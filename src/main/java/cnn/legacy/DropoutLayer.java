@@ -0,0 +1,12 @@
+package cnn.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a dropout layer.
+ */
+class DropoutLayer implements Serializable {
+    private static final long serialVersionUID = -8057025946177923607L;
+    double rate;
+    boolean isTraining;
+}
@@ -0,0 +1,10 @@
+package cnn.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a flatten layer, which has no state worth migrating.
+ */
+class FlattenLayer implements Serializable {
+    private static final long serialVersionUID = 2532733136734740508L;
+}
@@ -0,0 +1,19 @@
+package cnn.legacy;
+
+import cnn.interfaces.ActivationFunction;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a fully connected layer holding its weights as [inputSize][outputSize] arrays.
+ */
+class FullyConnectedLayer implements Serializable {
+    private static final long serialVersionUID = -379500152498580162L;
+    int inputSize;
+    int outputSize;
+    double[][] weights;
+    double[] biases;
+    double lambdaL1;
+    double lambdaL2;
+    ActivationFunction activationFunction;
+}
@@ -0,0 +1,146 @@
+package cnn.legacy;
+
+import cnn.interfaces.Layer;
+import cnn.interfaces.ParameterizedLayer;
+import cnn.utils.Tensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.List;
+
+/**
+ * Reads CNNs that were saved with Java serialization by earlier versions of the layers, whose fields no
+ * longer match the current classes. The serialized layers are resolved to the classes of this package,
+ * which mirror the original fields, and then rebuilt as current layers with the same parameters.
+ */
+public class LegacyModelReader extends ObjectInputStream {
+    private static final String LAYERS = "cnn.layers.";
+
+    /**
+     * Constructs a reader over a serialized model.
+     *
+     * @param in the stream holding the serialized model
+     * @throws IOException if the stream header cannot be read
+     */
+    public LegacyModelReader(InputStream in) throws IOException {
+        super(in);
+    }
+
+    /**
+     * Reads a serialized model and converts it into a current CNN.
+     *
+     * @param in the stream holding the serialized model
+     * @return the network with the saved parameters
+     * @throws IOException if the stream does not hold a model of a known earlier version
+     */
+    public static cnn.CNN read(InputStream in) throws IOException {
+        try (LegacyModelReader reader = new LegacyModelReader(in)) {
+            return convert((CNN) reader.readObject());
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Not a serialized CNN of a known earlier version", e);
+        }
+    }
+
+    /**
+     * Resolves the network and its layers to the classes of this package and everything else, such as the
+     * activation functions, to the current classes.
+     */
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        String name = desc.getName();
+        if (name.equals("cnn.CNN")) {
+            return CNN.class;
+        }
+        if (name.startsWith(LAYERS)) {
+            return Class.forName(getClass().getPackage().getName() + "." + name.substring(LAYERS.length()), false, getClass().getClassLoader());
+        }
+        return super.resolveClass(desc);
+    }
+
+    private static cnn.CNN convert(CNN legacy) throws IOException {
+        cnn.CNN network = new cnn.CNN(legacy.layerShapes.isEmpty() ? legacy.inputShape : legacy.layerShapes.get(0));
+        for (Object layer : legacy.layers) {
+            Layer converted = convert(layer);
+            network.addLayer(converted);
+            if (converted instanceof ParameterizedLayer) {
+                copyParameters(layer, ((ParameterizedLayer) converted).getParameters());
+            }
+        }
+        return network;
+    }
+
+    /**
+     * Builds the current layer with the configuration of a serialized one.
+     */
+    private static Layer convert(Object layer) throws IOException {
+        if (layer instanceof ConvolutionalLayer) {
+            ConvolutionalLayer legacy = (ConvolutionalLayer) layer;
+            return new cnn.layers.ConvolutionalLayer(legacy.filterSize, legacy.numFilters, legacy.stride, legacy.activationFunction, legacy.lambdaL1, legacy.lambdaL2);
+        } else if (layer instanceof FullyConnectedLayer) {
+            FullyConnectedLayer legacy = (FullyConnectedLayer) layer;
+            return new cnn.layers.FullyConnectedLayer(legacy.outputSize, legacy.activationFunction, legacy.lambdaL1, legacy.lambdaL2);
+        } else if (layer instanceof BatchNormalizationLayer) {
+            // Serialized layers were trained on the statistics of every sample
+            cnn.layers.BatchNormalizationLayer normalization = new cnn.layers.BatchNormalizationLayer(((BatchNormalizationLayer) layer).gamma.length);
+            normalization.setStatistics(cnn.layers.BatchNormalizationLayer.Statistics.SAMPLE);
+            return normalization;
+        } else if (layer instanceof PoolingLayer) {
+            PoolingLayer legacy = (PoolingLayer) layer;
+            return new cnn.layers.PoolingLayer(legacy.poolSize, cnn.layers.PoolingLayer.PoolingType.valueOf(legacy.poolingType.name()));
+        } else if (layer instanceof FlattenLayer) {
+            return new cnn.layers.FlattenLayer();
+        } else if (layer instanceof SoftmaxLayer) {
+            return new cnn.layers.SoftmaxLayer();
+        } else if (layer instanceof DropoutLayer) {
+            DropoutLayer legacy = (DropoutLayer) layer;
+            return new cnn.layers.DropoutLayer(legacy.rate);
+        }
+        throw new IOException("Cannot migrate a serialized layer of type " + (layer == null ? "null" : layer.getClass().getSimpleName()));
+    }
+
+    /**
+     * Copies the arrays of a serialized layer, in row-major order, into the parameter tensors of the current layer.
+     */
+    private static void copyParameters(Object layer, List<Tensor> parameters) throws IOException {
+        double[][] values;
+        if (layer instanceof ConvolutionalLayer) {
+            ConvolutionalLayer legacy = (ConvolutionalLayer) layer;
+            values = new double[][]{flatten(legacy.filters), legacy.biases};
+        } else if (layer instanceof FullyConnectedLayer) {
+            FullyConnectedLayer legacy = (FullyConnectedLayer) layer;
+            values = new double[][]{flatten(legacy.weights), legacy.biases};
+        } else {
+            BatchNormalizationLayer legacy = (BatchNormalizationLayer) layer;
+            values = new double[][]{legacy.gamma, legacy.beta};
+        }
+        for (int i = 0; i < values.length; i++) {
+            Tensor parameter = parameters.get(i);
+            if (values[i].length != parameter.size()) {
+                throw new IOException("Serialized " + layer.getClass().getSimpleName() + " holds " + values[i].length + " values where " + parameter.size() + " are expected");
+            }
+            parameter.copyFrom(new Tensor(values[i], values[i].length));
+        }
+    }
+
+    private static double[] flatten(Object array) {
+        if (array instanceof double[]) {
+            return (double[]) array;
+        }
+        Object[] rows = (Object[]) array;
+        double[][] flattened = new double[rows.length][];
+        int size = 0;
+        for (int i = 0; i < rows.length; i++) {
+            flattened[i] = flatten(rows[i]);
+            size += flattened[i].length;
+        }
+        double[] values = new double[size];
+        int position = 0;
+        for (double[] row : flattened) {
+            System.arraycopy(row, 0, values, position, row.length);
+            position += row.length;
+        }
+        return values;
+    }
+}
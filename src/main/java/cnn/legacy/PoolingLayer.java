@@ -0,0 +1,19 @@
+package cnn.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a pooling layer.
+ */
+class PoolingLayer implements Serializable {
+    private static final long serialVersionUID = -4451775763663780156L;
+    int poolSize;
+    PoolingType poolingType;
+
+    /**
+     * The pooling types, matched to the current ones by name.
+     */
+    enum PoolingType {
+        MAX, AVERAGE
+    }
+}
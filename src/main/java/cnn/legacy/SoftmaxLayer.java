@@ -0,0 +1,10 @@
+package cnn.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of a softmax layer, which has no state worth migrating.
+ */
+class SoftmaxLayer implements Serializable {
+    private static final long serialVersionUID = 2480547913122534322L;
+}
@@ -0,0 +1,98 @@
+package cnn.utils;
+
+/**
+ * Sums arrays across a fixed group of threads, such as the training workers that share one mini-batch.
+ * Every party contributes an array of the same length and waits until all parties have contributed; each then
+ * receives the element-wise total, summed in the order of the ranks so the result does not depend on the order
+ * in which the threads arrive. The group can be used for any number of consecutive reductions, which all parties
+ * must perform in the same order.
+ */
+public final class AllReduce {
+    private final int parties;
+    private final double[][] contributions;
+    private double[] total;
+    private int arrived;
+    private long generation;
+    private boolean broken;
+
+    /**
+     * Constructs a group of threads that reduce together.
+     *
+     * @param parties the number of threads taking part in every reduction
+     * @throws IllegalArgumentException if parties is smaller than one
+     */
+    public AllReduce(int parties) {
+        if (parties < 1) {
+            throw new IllegalArgumentException("Number of parties must be at least 1");
+        }
+        this.parties = parties;
+        this.contributions = new double[parties][];
+    }
+
+    /**
+     * Contributes an array to the current reduction, waits for the other parties and replaces the values with the totals.
+     *
+     * @param rank the index of the calling party, from 0 to the number of parties - 1
+     * @param values the contribution, overwritten with the element-wise sum over all parties
+     * @throws IllegalArgumentException if the rank is out of range or the length differs from the other contributions
+     * @throws IllegalStateException if the group was aborted or the calling thread is interrupted while waiting
+     */
+    public synchronized void sum(int rank, double[] values) {
+        if (rank < 0 || rank >= parties) {
+            throw new IllegalArgumentException("Rank " + rank + " out of range for " + parties + " parties");
+        }
+        if (broken) {
+            throw new IllegalStateException("Reduction was aborted by another party");
+        }
+        long current = generation;
+        contributions[rank] = values;
+        if (++arrived == parties) {
+            double[] sum = new double[values.length];
+            for (double[] contribution : contributions) {
+                if (contribution.length != sum.length) {
+                    abort();
+                    throw new IllegalArgumentException("Parties contributed arrays of different lengths");
+                }
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += contribution[i];
+                }
+            }
+            total = sum;
+            arrived = 0;
+            generation++;
+            notifyAll();
+        } else {
+            while (generation == current && !broken) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    abort();
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the other parties", e);
+                }
+            }
+            if (generation == current) {
+                throw new IllegalStateException("Reduction was aborted by another party");
+            }
+        }
+        // The next reduction cannot complete before this party contributes to it, so the total is still current
+        System.arraycopy(total, 0, values, 0, values.length);
+    }
+
+    /**
+     * Breaks the group, so that waiting and later reductions fail instead of waiting for a party that has failed.
+     */
+    public synchronized void abort() {
+        broken = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of threads taking part in every reduction.
+     *
+     * @return the number of parties
+     */
+    public int getParties() {
+        return parties;
+    }
+}
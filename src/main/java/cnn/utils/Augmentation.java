@@ -0,0 +1,289 @@
+package cnn.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The random shifts, rotations, scaling and elastic distortion applied to the images of one dataset split.
+ * Augmentation is a lazy stage:
+ * {@link #apply(List)} wraps every sample in a view that draws a fresh random variant each time its image is
+ * copied into a batch, so every epoch sees new variants while the dataset holds only the original samples.
+ */
+public class Augmentation {
+    /** Leaves every image unchanged, as used for evaluation splits. */
+    public static final Augmentation NONE = new Augmentation(0, 0, 0.0);
+
+    private static final ThreadLocal<double[][]> SCRATCH = ThreadLocal.withInitial(() -> new double[][]{new double[0], new double[0], new double[0]});
+
+    private final int maxShift;
+    private final int maxRotation;
+    private final double maxScale;
+    private final double elasticAlpha;
+    private final double elasticSigma;
+    private final double probability;
+
+    /**
+     * Constructs an augmentation that transforms every image it is applied to.
+     *
+     * @param maxShift the maximum number of pixels by which an image can be shifted in each direction
+     * @param maxRotation the maximum rotation angle in degrees, in both directions
+     * @throws IllegalArgumentException if a bound is negative
+     */
+    public Augmentation(int maxShift, int maxRotation) {
+        this(maxShift, maxRotation, 1.0);
+    }
+
+    /**
+     * Constructs an augmentation that transforms an image with the given probability each time it is drawn
+     * and passes it through unchanged otherwise.
+     *
+     * @param maxShift the maximum number of pixels by which an image can be shifted in each direction
+     * @param maxRotation the maximum rotation angle in degrees, in both directions
+     * @param probability the probability of transforming an image when it is drawn, between 0.0 and 1.0
+     * @throws IllegalArgumentException if a bound is negative or the probability is outside [0, 1]
+     */
+    public Augmentation(int maxShift, int maxRotation, double probability) {
+        this(maxShift, maxRotation, 0.0, 0.0, 1.0, probability);
+    }
+
+    /**
+     * Constructs an augmentation that also scales images and distorts them elastically.
+     *
+     * @param maxShift the maximum number of pixels by which an image can be shifted in each direction
+     * @param maxRotation the maximum rotation angle in degrees, in both directions
+     * @param maxScale the maximum relative change of size, so images are scaled by a factor in [1 - maxScale, 1 + maxScale]
+     * @param elasticAlpha the strength of the elastic distortion in pixels, 0 for none
+     * @param elasticSigma the smoothness of the elastic distortion, the standard deviation of its Gaussian filter in pixels
+     * @param probability the probability of transforming an image when it is drawn, between 0.0 and 1.0
+     * @throws IllegalArgumentException if a bound is negative, maxScale is not below one, elasticSigma is not positive
+     *                                  or the probability is outside [0, 1]
+     */
+    public Augmentation(int maxShift, int maxRotation, double maxScale, double elasticAlpha, double elasticSigma, double probability) {
+        if (maxShift < 0 || maxRotation < 0 || !(maxScale >= 0.0) || !(elasticAlpha >= 0.0)) {
+            throw new IllegalArgumentException("Augmentation bounds must not be negative");
+        }
+        if (maxScale >= 1.0) {
+            throw new IllegalArgumentException("Maximum scale change must be below 1");
+        }
+        if (!(elasticSigma > 0.0)) {
+            throw new IllegalArgumentException("Elastic sigma must be positive");
+        }
+        if (!(probability >= 0.0 && probability <= 1.0)) {
+            throw new IllegalArgumentException("Augmentation probability must be between 0 and 1");
+        }
+        this.maxShift = maxShift;
+        this.maxRotation = maxRotation;
+        this.maxScale = maxScale;
+        this.elasticAlpha = elasticAlpha;
+        this.elasticSigma = elasticSigma;
+        this.probability = probability;
+    }
+
+    /**
+     * Returns whether this augmentation can change an image at all.
+     *
+     * @return true if images are transformed with a positive probability and a non-zero bound
+     */
+    public boolean isEnabled() {
+        return probability > 0.0 && (maxShift > 0 || maxRotation > 0 || maxScale > 0.0 || elasticAlpha > 0.0);
+    }
+
+    /**
+     * Returns the maximum shift in pixels.
+     *
+     * @return the maximum shift in each direction
+     */
+    public int getMaxShift() {
+        return maxShift;
+    }
+
+    /**
+     * Returns the maximum rotation angle in degrees.
+     *
+     * @return the maximum rotation in each direction
+     */
+    public int getMaxRotation() {
+        return maxRotation;
+    }
+
+    /**
+     * Returns the maximum relative change of size.
+     *
+     * @return the maximum scale change
+     */
+    public double getMaxScale() {
+        return maxScale;
+    }
+
+    /**
+     * Returns the strength of the elastic distortion.
+     *
+     * @return the elastic alpha in pixels
+     */
+    public double getElasticAlpha() {
+        return elasticAlpha;
+    }
+
+    /**
+     * Returns the smoothness of the elastic distortion.
+     *
+     * @return the elastic sigma in pixels
+     */
+    public double getElasticSigma() {
+        return elasticSigma;
+    }
+
+    /**
+     * Returns the probability of transforming an image when it is drawn.
+     *
+     * @return the probability between 0.0 and 1.0
+     */
+    public double getProbability() {
+        return probability;
+    }
+
+    /**
+     * Wraps every sample of a split in a lazily augmented view. Returns a copy of the list holding the samples
+     * themselves if the augmentation is disabled.
+     *
+     * @param samples the samples of the split
+     * @return a new mutable list with one entry per sample
+     */
+    public List<ImageData> apply(List<ImageData> samples) {
+        List<ImageData> augmented = new ArrayList<>(samples.size());
+        for (ImageData sample : samples) {
+            augmented.add(apply(sample));
+        }
+        return augmented;
+    }
+
+    /**
+     * Wraps a sample in a view whose image is a fresh random variant of the original every time it is read.
+     *
+     * @param sample the original sample
+     * @return the augmented view, or the sample itself if the augmentation is disabled
+     */
+    public ImageData apply(ImageData sample) {
+        return isEnabled() ? new AugmentedImageData(sample, this) : sample;
+    }
+
+    /**
+     * Transforms an image with a random transform within the bounds, the same for every channel.
+     *
+     * @param image a tensor of shape [depth, height, width]
+     * @return a new tensor of the same shape and precision holding the variant
+     */
+    public Tensor augment(Tensor image) {
+        Tensor source = image.isContiguous() ? image : image.copy();
+        Tensor variant = Tensor.zeros(image.getPrecision(), image.getShape());
+        augment(source, variant, 0);
+        return variant;
+    }
+
+    /**
+     * Draws a random transform within the bounds and warps a contiguous image with it into a range of a tensor.
+     * The elastic displacement fields live in per-thread scratch buffers.
+     */
+    private void augment(Tensor image, Tensor target, int position) {
+        int rows = image.shape(image.rank() - 2);
+        int cols = image.shape(image.rank() - 1);
+        SplittableRandom random = ImageAugmentation.random();
+        int maxShiftX = Math.min(maxShift, cols / 2);
+        int maxShiftY = Math.min(maxShift, rows / 2);
+        double shiftX = (random.nextDouble() * 2 - 1) * maxShiftX;
+        double shiftY = (random.nextDouble() * 2 - 1) * maxShiftY;
+        double rotation = (random.nextDouble() * 2 - 1) * Math.toRadians(maxRotation);
+        double scale = 1.0 + (random.nextDouble() * 2 - 1) * maxScale;
+
+        double[] displacementX = null;
+        double[] displacementY = null;
+        if (elasticAlpha > 0.0) {
+            double[][] scratch = scratch(rows * cols);
+            displacementX = scratch[0];
+            displacementY = scratch[1];
+            ImageAugmentation.elasticField(rows, cols, elasticAlpha, elasticSigma, random, displacementX, displacementY);
+        }
+        ImageAugmentation.warp(image, target, position, shiftX, shiftY, rotation, scale, displacementX, displacementY);
+    }
+
+    /**
+     * Returns the scratch buffers of the calling thread: two displacement fields and one image, each at least the given size.
+     */
+    private static double[][] scratch(int size) {
+        double[][] scratch = SCRATCH.get();
+        for (int i = 0; i < scratch.length; i++) {
+            if (scratch[i].length < size) {
+                scratch[i] = new double[size];
+            }
+        }
+        return scratch;
+    }
+
+    /**
+     * Decides whether the next draw of an image is transformed.
+     */
+    private boolean draw() {
+        return isEnabled() && ImageAugmentation.random().nextDouble() < probability;
+    }
+
+    @Override
+    public String toString() {
+        return "Augmentation[maxShift=" + maxShift + ", maxRotation=" + maxRotation + ", maxScale=" + maxScale
+                + ", elasticAlpha=" + elasticAlpha + ", elasticSigma=" + elasticSigma + ", probability=" + probability + "]";
+    }
+
+    /**
+     * A sample that augments the image of another sample whenever it is read.
+     */
+    private static class AugmentedImageData extends ImageData {
+        private final ImageData source;
+        private final Augmentation augmentation;
+
+        AugmentedImageData(ImageData source, Augmentation augmentation) {
+            super(source.getLabel());
+            this.source = source;
+            this.augmentation = augmentation;
+        }
+
+        @Override
+        public Tensor getImageTensor() {
+            return augmentation.draw() ? augmentation.augment(source.getImageTensor()) : source.getImageTensor();
+        }
+
+        @Override
+        public int[] getImageShape() {
+            return source.getImageShape();
+        }
+
+        @Override
+        public int getImageSize() {
+            return source.getImageSize();
+        }
+
+        @Override
+        public void copyImageTo(Tensor destination, int position) {
+            if (augmentation.draw()) {
+                // Stage the original in the scratch image of this thread so the warp reads it without allocating
+                int size = source.getImageSize();
+                Tensor image = Tensor.wrap(scratch(size)[2], 0, source.getImageShape());
+                source.copyImageTo(image, 0);
+                augmentation.augment(image, destination, position);
+            } else {
+                source.copyImageTo(destination, position);
+            }
+        }
+
+        @Override
+        public ImageData toPrecision(Tensor.Precision precision) {
+            return this;
+        }
+
+        /**
+         * Replaces the view by its original sample when it is serialized.
+         */
+        private Object writeReplace() {
+            return source;
+        }
+    }
+}
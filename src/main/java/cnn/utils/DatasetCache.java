@@ -0,0 +1,382 @@
+package cnn.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A versioned binary cache of a dataset after preprocessing, written once and memory-mapped on later runs.
+ * A cache file starts with a big-endian header: the magic number "CNND", the format version, a CRC-32 of
+ * the source files, the preprocessing parameters as UTF-8, the encoding, the number of samples, the image
+ * shape, the number of classes and the offset of the pixels. One class byte per sample follows, and the
+ * pixels start at the next multiple of eight bytes, either as raw unsigned bytes or as normalized
+ * little-endian floats.
+ * A cache is only used when its version, checksum, parameters and encoding all match; otherwise it is
+ * rebuilt from the sources and replaced atomically, so an interrupted write never leaves a broken cache.
+ */
+public final class DatasetCache {
+    private static final int MAGIC = 0x434E4E44;
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 8;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The representation of the pixels in a cache file.
+     */
+    public enum Encoding {
+        /**
+         * Raw pixels as unsigned bytes, loaded into an {@link ImageStore} and scaled to [0, 1] when batched.
+         */
+        UINT8,
+        /**
+         * Normalized pixels as floats, read from the mapping when batched.
+         */
+        FLOAT
+    }
+
+    /**
+     * Produces the preprocessed dataset when the cache is missing or stale.
+     */
+    @FunctionalInterface
+    public interface Source {
+        /**
+         * Loads and preprocesses the dataset.
+         *
+         * @return the samples to cache
+         * @throws IOException if the sources cannot be read
+         */
+        List<ImageData> load() throws IOException;
+    }
+
+    private DatasetCache() {
+    }
+
+    /**
+     * Returns the dataset held by a cache file, rebuilding the file first if it is missing or does not match
+     * the current source files, parameters or encoding.
+     *
+     * @param cachePath the path of the cache file; missing parent directories are created
+     * @param parameters a description of the preprocessing, so that changing it invalidates the cache
+     * @param encoding the representation of the pixels in the cache
+     * @param source the loader of the preprocessed dataset, called only when the cache is rebuilt
+     * @param sourceFiles the files the dataset is derived from, whose contents are checksummed
+     * @return the cached samples with their labels
+     * @throws IOException if the sources or the cache cannot be read or written
+     */
+    public static List<ImageData> load(String cachePath, String parameters, Encoding encoding, Source source, String... sourceFiles) throws IOException {
+        long checksum = checksum(sourceFiles);
+        List<ImageData> cached = read(cachePath, checksum, parameters, encoding);
+        if (cached == null) {
+            write(cachePath, checksum, parameters, encoding, source.load());
+            cached = read(cachePath, checksum, parameters, encoding);
+            if (cached == null) {
+                throw new IOException("Cache " + cachePath + " could not be read back after writing it");
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Computes the CRC-32 of the concatenated contents of a list of files.
+     *
+     * @param files the paths of the files
+     * @return the checksum
+     * @throws IOException if a file cannot be read
+     */
+    public static long checksum(String... files) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        for (String file : files) {
+            try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                while (channel.read(chunk) >= 0) {
+                    chunk.flip();
+                    crc.update(chunk);
+                    chunk.clear();
+                }
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes a dataset to a cache file, replacing any previous file atomically.
+     * Every sample must have the image shape of the first one and a one-hot label of at most 256 classes;
+     * in the UINT8 encoding, normalized images are quantized back to bytes.
+     *
+     * @param path the path of the cache file; missing parent directories are created
+     * @param checksum the checksum of the source files
+     * @param parameters a description of the preprocessing
+     * @param encoding the representation of the pixels
+     * @param dataset the samples to write
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the dataset is empty or its samples do not share one shape
+     */
+    public static void write(String path, long checksum, String parameters, Encoding encoding, List<ImageData> dataset) throws IOException {
+        if (dataset.isEmpty()) {
+            throw new IllegalArgumentException("Cannot cache an empty dataset");
+        }
+        int[] shape = dataset.get(0).getImageShape();
+        int imageSize = Tensor.sizeOf(shape);
+        int numClasses = dataset.get(0).getLabel().length;
+        byte[] parameterBytes = parameters.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 4 + 4 + 8 + 4 + parameterBytes.length + 4 + 4 + 4 + 4 * shape.length + 4 + 4;
+        int dataOffset = align(headerSize + dataset.size());
+
+        Path target = Paths.get(path).toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary.toFile()), CHUNK_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(checksum);
+                out.writeInt(parameterBytes.length);
+                out.write(parameterBytes);
+                out.writeInt(encoding.ordinal());
+                out.writeInt(dataset.size());
+                out.writeInt(shape.length);
+                for (int dimension : shape) {
+                    out.writeInt(dimension);
+                }
+                out.writeInt(numClasses);
+                out.writeInt(dataOffset);
+                for (ImageData sample : dataset) {
+                    out.writeByte(classOf(sample, imageSize, numClasses));
+                }
+                for (int k = headerSize + dataset.size(); k < dataOffset; k++) {
+                    out.writeByte(0);
+                }
+                writePixels(out, encoding, dataset, imageSize);
+            }
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Maps a cache file and returns its dataset if the file matches the expected checksum, parameters and encoding.
+     * UINT8 caches are copied into an {@link ImageStore}; FLOAT caches are returned as views over the mapping.
+     *
+     * @param path the path of the cache file
+     * @param checksum the expected checksum of the source files
+     * @param parameters the expected description of the preprocessing
+     * @param encoding the expected representation of the pixels
+     * @return the cached samples, or null if the file is missing, stale, of another version or truncated
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static List<ImageData> read(String path, long checksum, String parameters, Encoding encoding) throws IOException {
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != checksum) {
+                return null;
+            }
+            int parameterLength = buffer.getInt();
+            if (parameterLength < 0 || parameterLength > buffer.remaining()) {
+                return null;
+            }
+            byte[] parameterBytes = new byte[parameterLength];
+            buffer.get(parameterBytes);
+            if (!parameters.equals(new String(parameterBytes, StandardCharsets.UTF_8)) || buffer.getInt() != encoding.ordinal()) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int rank = buffer.getInt();
+            if (rank < 0 || rank > buffer.remaining() / 4) {
+                return null;
+            }
+            int[] shape = new int[rank];
+            for (int d = 0; d < shape.length; d++) {
+                shape[d] = buffer.getInt();
+            }
+            int numClasses = buffer.getInt();
+            int dataOffset = buffer.getInt();
+            int imageSize = Tensor.sizeOf(shape);
+            long length = (long) dataOffset + (long) count * imageSize * (encoding == Encoding.FLOAT ? 4 : 1);
+            if (buffer.capacity() < length) {
+                return null;
+            }
+            int labelOffset = buffer.position();
+            return encoding == Encoding.FLOAT
+                    ? readFloat(buffer, labelOffset, dataOffset, count, shape, numClasses)
+                    : readUint8(buffer, labelOffset, dataOffset, count, shape, numClasses);
+        } catch (RuntimeException e) {
+            // A header that runs past the end of the file or holds impossible sizes marks a broken cache
+            return null;
+        }
+    }
+
+    /**
+     * Copies the class bytes and raw pixels of a UINT8 cache into a store.
+     */
+    private static ImageStore readUint8(MappedByteBuffer buffer, int labelOffset, int dataOffset, int count, int[] shape, int numClasses) {
+        ImageStore store = new ImageStore(count, shape, numClasses);
+        for (int i = 0; i < count; i++) {
+            store.setLabel(i, buffer.get(labelOffset + i) & 0xff);
+        }
+        buffer.position(dataOffset);
+        buffer.get(store.getPixels());
+        return store;
+    }
+
+    /**
+     * Creates views over the normalized pixels of a FLOAT cache.
+     */
+    private static List<ImageData> readFloat(MappedByteBuffer buffer, int labelOffset, int dataOffset, int count, int[] shape, int numClasses) {
+        double[][] oneHot = new double[numClasses][numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            oneHot[c][c] = 1.0;
+        }
+        buffer.position(dataOffset);
+        FloatBuffer pixels = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        List<ImageData> dataset = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int label = buffer.get(labelOffset + i) & 0xff;
+            if (label >= numClasses) {
+                throw new IllegalStateException("Label " + label + " of sample " + i + " is not one of " + numClasses + " classes");
+            }
+            dataset.add(new MappedFloatImageData(pixels, i, shape, oneHot[label]));
+        }
+        return dataset;
+    }
+
+    /**
+     * Writes the pixels of all samples in the given encoding.
+     */
+    private static void writePixels(DataOutputStream out, Encoding encoding, List<ImageData> dataset, int imageSize) throws IOException {
+        if (encoding == Encoding.UINT8 && dataset instanceof ImageStore) {
+            out.write(((ImageStore) dataset).getPixels());
+            return;
+        }
+        Tensor image = Tensor.zeros(encoding == Encoding.FLOAT ? Tensor.Precision.FLOAT : Tensor.Precision.DOUBLE, imageSize);
+        ByteBuffer bytes = ByteBuffer.allocate(imageSize * (encoding == Encoding.FLOAT ? 4 : 1)).order(ByteOrder.LITTLE_ENDIAN);
+        for (ImageData sample : dataset) {
+            sample.copyImageTo(image, 0);
+            bytes.clear();
+            if (encoding == Encoding.FLOAT) {
+                bytes.asFloatBuffer().put(image.getFloatData(), 0, imageSize);
+            } else {
+                double[] values = image.getData();
+                for (int k = 0; k < imageSize; k++) {
+                    bytes.put((byte) Math.round(Math.max(0.0, Math.min(1.0, values[k])) * 255.0));
+                }
+            }
+            out.write(bytes.array(), 0, bytes.capacity());
+        }
+    }
+
+    /**
+     * Returns the class of a one-hot labeled sample, checking that it matches the shape of the dataset.
+     */
+    private static int classOf(ImageData sample, int imageSize, int numClasses) {
+        double[] label = sample.getLabel();
+        if (sample.getImageSize() != imageSize || label.length != numClasses || numClasses > 256) {
+            throw new IllegalArgumentException("Sample of shape " + Arrays.toString(sample.getImageShape()) + " with " + label.length
+                    + " classes does not match a dataset of " + imageSize + " pixels and " + numClasses + " classes");
+        }
+        int best = 0;
+        for (int c = 1; c < numClasses; c++) {
+            if (label[c] > label[best]) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static int align(int position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * A sample whose normalized image is a view over the float pixels of a mapped cache file.
+     * Serializing a view writes a plain {@link ImageData} holding the image.
+     */
+    private static class MappedFloatImageData extends ImageData {
+        private final FloatBuffer pixels;
+        private final int index;
+        private final int[] shape;
+        private final int imageSize;
+
+        MappedFloatImageData(FloatBuffer pixels, int index, int[] shape, double[] label) {
+            super(label);
+            this.pixels = pixels;
+            this.index = index;
+            this.shape = shape;
+            this.imageSize = Tensor.sizeOf(shape);
+        }
+
+        @Override
+        public Tensor getImageTensor() {
+            Tensor image = Tensor.zeros(Tensor.Precision.FLOAT, shape);
+            copyImageTo(image, 0);
+            return image;
+        }
+
+        @Override
+        public int[] getImageShape() {
+            return shape.clone();
+        }
+
+        @Override
+        public int getImageSize() {
+            return imageSize;
+        }
+
+        @Override
+        public void copyImageTo(Tensor destination, int position) {
+            if (position < 0 || position + imageSize > destination.size()) {
+                throw new IllegalArgumentException("Cannot copy " + imageSize + " pixels to position " + position + " of a tensor of size " + destination.size());
+            }
+            int source = index * imageSize;
+            int start = destination.getOffset() + position;
+            if (destination.getPrecision() == Tensor.Precision.FLOAT) {
+                // A duplicate has its own position, so concurrent copies do not interfere
+                FloatBuffer view = pixels.duplicate();
+                view.position(source);
+                view.get(destination.getFloatData(), start, imageSize);
+            } else {
+                double[] data = destination.getData();
+                for (int k = 0; k < imageSize; k++) {
+                    data[start + k] = pixels.get(source + k);
+                }
+            }
+        }
+
+        @Override
+        public ImageData toPrecision(Tensor.Precision precision) {
+            return this;
+        }
+
+        private Object writeReplace() {
+            return new ImageData(getImageTensor(), getLabel());
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package cnn.utils;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A cache-blocked, multithreaded general matrix multiply (GEMM) on row-major arrays.
+ * The output is split into tiles that are computed independently; within a tile the shared dimension
+ * is processed in panels that are packed into contiguous buffers small enough to stay in cache.
+ * Because operands are only read while packing, A and B may also be tensors backed by read-only buffers,
+ * such as the parameters of a memory-mapped model.
+ */
+public class Gemm {
+    private static final int ROW_BLOCK = 64;
+    private static final int COLUMN_BLOCK = 256;
+    private static final int DEPTH_BLOCK = 128;
+    private static final long PARALLEL_THRESHOLD = 1L << 18;
+
+    private static final ThreadLocal<double[][]> PACKING_BUFFERS = ThreadLocal.withInitial(
+            () -> new double[][]{new double[ROW_BLOCK * DEPTH_BLOCK], new double[DEPTH_BLOCK * COLUMN_BLOCK]});
+    private static final ThreadLocal<float[][]> FLOAT_PACKING_BUFFERS = ThreadLocal.withInitial(
+            () -> new float[][]{new float[ROW_BLOCK * DEPTH_BLOCK], new float[DEPTH_BLOCK * COLUMN_BLOCK]});
+
+    private Gemm() {
+    }
+
+    /**
+     * Computes C = op(A) * op(B), or C += op(A) * op(B) when accumulating, on matrices held by tensors of the same precision.
+     * Offsets are counted from the first element of each tensor; the layout is the same as for
+     * {@link #multiply(double[], int, boolean, double[], int, boolean, double[], int, int, int, int, boolean)}.
+     *
+     * @param a the contiguous tensor holding matrix A
+     * @param aOffset the position of the first element of A within the tensor
+     * @param transA whether A is stored transposed
+     * @param b the contiguous tensor holding matrix B
+     * @param bOffset the position of the first element of B within the tensor
+     * @param transB whether B is stored transposed
+     * @param c the contiguous tensor receiving matrix C
+     * @param cOffset the position of the first element of C within the tensor
+     * @param m the number of rows of op(A) and C
+     * @param n the number of columns of op(B) and C
+     * @param k the number of columns of op(A) and rows of op(B)
+     * @param accumulate whether to add the product to the existing contents of C instead of overwriting them
+     * @throws IllegalArgumentException if the tensors do not share one precision
+     * @throws IllegalStateException if C is backed by a read-only buffer
+     */
+    public static void multiply(Tensor a, int aOffset, boolean transA,
+                                Tensor b, int bOffset, boolean transB,
+                                Tensor c, int cOffset,
+                                int m, int n, int k, boolean accumulate) {
+        Tensor.Precision precision = c.getPrecision();
+        if (a.getPrecision() != precision || b.getPrecision() != precision) {
+            throw new IllegalArgumentException("Cannot multiply tensors of different precisions");
+        }
+        if (precision == Tensor.Precision.FLOAT) {
+            float[] cData = c.getFloatData();
+            multiply(a.isBuffered() ? null : a.getFloatData(), a.getFloatDataBuffer(), a.getOffset() + aOffset, transA,
+                    b.isBuffered() ? null : b.getFloatData(), b.getFloatDataBuffer(), b.getOffset() + bOffset, transB,
+                    cData, c.getOffset() + cOffset, m, n, k, accumulate);
+        } else {
+            double[] cData = c.getData();
+            multiply(a.isBuffered() ? null : a.getData(), a.getDataBuffer(), a.getOffset() + aOffset, transA,
+                    b.isBuffered() ? null : b.getData(), b.getDataBuffer(), b.getOffset() + bOffset, transB,
+                    cData, c.getOffset() + cOffset, m, n, k, accumulate);
+        }
+    }
+
+    /**
+     * Computes C = op(A) * op(B), or C += op(A) * op(B) when accumulating, where op optionally transposes its argument.
+     * A is logically m x k and stored as k x m when transposed; B is logically k x n and stored as n x k when transposed;
+     * C is m x n. All matrices are dense row-major blocks starting at the given offsets.
+     *
+     * @param a the array holding matrix A
+     * @param aOffset the position of the first element of A
+     * @param transA whether A is stored transposed
+     * @param b the array holding matrix B
+     * @param bOffset the position of the first element of B
+     * @param transB whether B is stored transposed
+     * @param c the array receiving matrix C
+     * @param cOffset the position of the first element of C
+     * @param m the number of rows of op(A) and C
+     * @param n the number of columns of op(B) and C
+     * @param k the number of columns of op(A) and rows of op(B)
+     * @param accumulate whether to add the product to the existing contents of C instead of overwriting them
+     */
+    public static void multiply(double[] a, int aOffset, boolean transA,
+                                double[] b, int bOffset, boolean transB,
+                                double[] c, int cOffset,
+                                int m, int n, int k, boolean accumulate) {
+        multiply(a, null, aOffset, transA, b, null, bOffset, transB, c, cOffset, m, n, k, accumulate);
+    }
+
+    /**
+     * Computes the product with each of A and B read either from an array or, when the array is null, from a buffer.
+     */
+    private static void multiply(double[] a, DoubleBuffer aBuffer, int aOffset, boolean transA,
+                                 double[] b, DoubleBuffer bBuffer, int bOffset, boolean transB,
+                                 double[] c, int cOffset,
+                                 int m, int n, int k, boolean accumulate) {
+        if (!accumulate) {
+            for (int i = 0; i < m; i++) {
+                Arrays.fill(c, cOffset + i * n, cOffset + (i + 1) * n, 0.0);
+            }
+        }
+        if (m == 0 || n == 0 || k == 0) {
+            return;
+        }
+
+        int rowTiles = (m + ROW_BLOCK - 1) / ROW_BLOCK;
+        int columnTiles = (n + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        int tiles = rowTiles * columnTiles;
+        if (tiles > 1 && (long) m * n * k >= PARALLEL_THRESHOLD) {
+            IntStream.range(0, tiles).parallel().forEach(tile -> multiplyTile(a, aBuffer, aOffset, transA, b, bBuffer, bOffset, transB, c, cOffset,
+                    m, n, k, (tile / columnTiles) * ROW_BLOCK, (tile % columnTiles) * COLUMN_BLOCK));
+        } else {
+            for (int tile = 0; tile < tiles; tile++) {
+                multiplyTile(a, aBuffer, aOffset, transA, b, bBuffer, bOffset, transB, c, cOffset,
+                        m, n, k, (tile / columnTiles) * ROW_BLOCK, (tile % columnTiles) * COLUMN_BLOCK);
+            }
+        }
+    }
+
+    /**
+     * Accumulates one ROW_BLOCK x COLUMN_BLOCK tile of C, walking the shared dimension in packed panels.
+     */
+    private static void multiplyTile(double[] a, DoubleBuffer aBuffer, int aOffset, boolean transA,
+                                     double[] b, DoubleBuffer bBuffer, int bOffset, boolean transB,
+                                     double[] c, int cOffset,
+                                     int m, int n, int k, int row0, int column0) {
+        int rows = Math.min(ROW_BLOCK, m - row0);
+        int columns = Math.min(COLUMN_BLOCK, n - column0);
+        double[][] buffers = PACKING_BUFFERS.get();
+        double[] aPanel = buffers[0];
+        double[] bPanel = buffers[1];
+        MatrixKernels kernels = MatrixUtils.kernels();
+        // Buffers are read through private duplicates because tiles run concurrently
+        DoubleBuffer aSource = aBuffer == null ? null : aBuffer.duplicate();
+        DoubleBuffer bSource = bBuffer == null ? null : bBuffer.duplicate();
+
+        for (int depth0 = 0; depth0 < k; depth0 += DEPTH_BLOCK) {
+            int depth = Math.min(DEPTH_BLOCK, k - depth0);
+
+            // Pack the rows x depth panel of op(A) row-major
+            for (int i = 0; i < rows; i++) {
+                int packed = i * depth;
+                if (transA) {
+                    int source = aOffset + depth0 * m + row0 + i;
+                    if (a != null) {
+                        for (int p = 0; p < depth; p++) {
+                            aPanel[packed + p] = a[source + p * m];
+                        }
+                    } else {
+                        for (int p = 0; p < depth; p++) {
+                            aPanel[packed + p] = aSource.get(source + p * m);
+                        }
+                    }
+                } else if (a != null) {
+                    System.arraycopy(a, aOffset + (row0 + i) * k + depth0, aPanel, packed, depth);
+                } else {
+                    aSource.position(aOffset + (row0 + i) * k + depth0);
+                    aSource.get(aPanel, packed, depth);
+                }
+            }
+
+            // Pack the depth x columns panel of op(B) row-major
+            for (int p = 0; p < depth; p++) {
+                int packed = p * columns;
+                if (transB) {
+                    int source = bOffset + column0 * k + depth0 + p;
+                    if (b != null) {
+                        for (int j = 0; j < columns; j++) {
+                            bPanel[packed + j] = b[source + j * k];
+                        }
+                    } else {
+                        for (int j = 0; j < columns; j++) {
+                            bPanel[packed + j] = bSource.get(source + j * k);
+                        }
+                    }
+                } else if (b != null) {
+                    System.arraycopy(b, bOffset + (depth0 + p) * n + column0, bPanel, packed, columns);
+                } else {
+                    bSource.position(bOffset + (depth0 + p) * n + column0);
+                    bSource.get(bPanel, packed, columns);
+                }
+            }
+
+            for (int i = 0; i < rows; i++) {
+                int cRow = cOffset + (row0 + i) * n + column0;
+                int aRow = i * depth;
+                for (int p = 0; p < depth; p++) {
+                    double aValue = aPanel[aRow + p];
+                    if (aValue == 0.0) {
+                        continue;
+                    }
+                    kernels.axpy(aValue, bPanel, p * columns, c, cRow, columns);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes C = op(A) * op(B), or C += op(A) * op(B) when accumulating, on single-precision matrices.
+     * See {@link #multiply(double[], int, boolean, double[], int, boolean, double[], int, int, int, int, boolean)}.
+     *
+     * @param a the array holding matrix A
+     * @param aOffset the position of the first element of A
+     * @param transA whether A is stored transposed
+     * @param b the array holding matrix B
+     * @param bOffset the position of the first element of B
+     * @param transB whether B is stored transposed
+     * @param c the array receiving matrix C
+     * @param cOffset the position of the first element of C
+     * @param m the number of rows of op(A) and C
+     * @param n the number of columns of op(B) and C
+     * @param k the number of columns of op(A) and rows of op(B)
+     * @param accumulate whether to add the product to the existing contents of C instead of overwriting them
+     */
+    public static void multiply(float[] a, int aOffset, boolean transA,
+                                float[] b, int bOffset, boolean transB,
+                                float[] c, int cOffset,
+                                int m, int n, int k, boolean accumulate) {
+        multiply(a, null, aOffset, transA, b, null, bOffset, transB, c, cOffset, m, n, k, accumulate);
+    }
+
+    /**
+     * Computes the single-precision product with each of A and B read either from an array or, when the array is null, from a buffer.
+     */
+    private static void multiply(float[] a, FloatBuffer aBuffer, int aOffset, boolean transA,
+                                 float[] b, FloatBuffer bBuffer, int bOffset, boolean transB,
+                                 float[] c, int cOffset,
+                                 int m, int n, int k, boolean accumulate) {
+        if (!accumulate) {
+            for (int i = 0; i < m; i++) {
+                Arrays.fill(c, cOffset + i * n, cOffset + (i + 1) * n, 0f);
+            }
+        }
+        if (m == 0 || n == 0 || k == 0) {
+            return;
+        }
+
+        int rowTiles = (m + ROW_BLOCK - 1) / ROW_BLOCK;
+        int columnTiles = (n + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        int tiles = rowTiles * columnTiles;
+        if (tiles > 1 && (long) m * n * k >= PARALLEL_THRESHOLD) {
+            IntStream.range(0, tiles).parallel().forEach(tile -> multiplyTile(a, aBuffer, aOffset, transA, b, bBuffer, bOffset, transB, c, cOffset,
+                    m, n, k, (tile / columnTiles) * ROW_BLOCK, (tile % columnTiles) * COLUMN_BLOCK));
+        } else {
+            for (int tile = 0; tile < tiles; tile++) {
+                multiplyTile(a, aBuffer, aOffset, transA, b, bBuffer, bOffset, transB, c, cOffset,
+                        m, n, k, (tile / columnTiles) * ROW_BLOCK, (tile % columnTiles) * COLUMN_BLOCK);
+            }
+        }
+    }
+
+    /**
+     * Accumulates one ROW_BLOCK x COLUMN_BLOCK tile of single-precision C, walking the shared dimension in packed panels.
+     */
+    private static void multiplyTile(float[] a, FloatBuffer aBuffer, int aOffset, boolean transA,
+                                     float[] b, FloatBuffer bBuffer, int bOffset, boolean transB,
+                                     float[] c, int cOffset,
+                                     int m, int n, int k, int row0, int column0) {
+        int rows = Math.min(ROW_BLOCK, m - row0);
+        int columns = Math.min(COLUMN_BLOCK, n - column0);
+        float[][] buffers = FLOAT_PACKING_BUFFERS.get();
+        float[] aPanel = buffers[0];
+        float[] bPanel = buffers[1];
+        MatrixKernels kernels = MatrixUtils.kernels();
+        // Buffers are read through private duplicates because tiles run concurrently
+        FloatBuffer aSource = aBuffer == null ? null : aBuffer.duplicate();
+        FloatBuffer bSource = bBuffer == null ? null : bBuffer.duplicate();
+
+        for (int depth0 = 0; depth0 < k; depth0 += DEPTH_BLOCK) {
+            int depth = Math.min(DEPTH_BLOCK, k - depth0);
+
+            // Pack the rows x depth panel of op(A) row-major
+            for (int i = 0; i < rows; i++) {
+                int packed = i * depth;
+                if (transA) {
+                    int source = aOffset + depth0 * m + row0 + i;
+                    if (a != null) {
+                        for (int p = 0; p < depth; p++) {
+                            aPanel[packed + p] = a[source + p * m];
+                        }
+                    } else {
+                        for (int p = 0; p < depth; p++) {
+                            aPanel[packed + p] = aSource.get(source + p * m);
+                        }
+                    }
+                } else if (a != null) {
+                    System.arraycopy(a, aOffset + (row0 + i) * k + depth0, aPanel, packed, depth);
+                } else {
+                    aSource.position(aOffset + (row0 + i) * k + depth0);
+                    aSource.get(aPanel, packed, depth);
+                }
+            }
+
+            // Pack the depth x columns panel of op(B) row-major
+            for (int p = 0; p < depth; p++) {
+                int packed = p * columns;
+                if (transB) {
+                    int source = bOffset + column0 * k + depth0 + p;
+                    if (b != null) {
+                        for (int j = 0; j < columns; j++) {
+                            bPanel[packed + j] = b[source + j * k];
+                        }
+                    } else {
+                        for (int j = 0; j < columns; j++) {
+                            bPanel[packed + j] = bSource.get(source + j * k);
+                        }
+                    }
+                } else if (b != null) {
+                    System.arraycopy(b, bOffset + (depth0 + p) * n + column0, bPanel, packed, columns);
+                } else {
+                    bSource.position(bOffset + (depth0 + p) * n + column0);
+                    bSource.get(bPanel, packed, columns);
+                }
+            }
+
+            for (int i = 0; i < rows; i++) {
+                int cRow = cOffset + (row0 + i) * n + column0;
+                int aRow = i * depth;
+                for (int p = 0; p < depth; p++) {
+                    float aValue = aPanel[aRow + p];
+                    if (aValue == 0f) {
+                        continue;
+                    }
+                    kernels.axpy(aValue, bPanel, p * columns, c, cRow, columns);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package cnn.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only memory mapping of a file in the IDX format used by MNIST. The header holds two zero bytes,
+ * a type code, the number of dimensions and one big-endian 32-bit size per dimension, followed by the
+ * items as unsigned bytes in row-major order. Values are read straight from the mapping, so opening a file
+ * costs no parsing and the data lives in the page cache instead of the Java heap.
+ * Reads use absolute positions only, so a mapping can be shared by any number of threads.
+ */
+public class IdxFile {
+    private static final int UNSIGNED_BYTE = 0x08;
+
+    private final String path;
+    private final MappedByteBuffer buffer;
+    private final int[] dimensions;
+    private final int itemSize;
+    private final int dataOffset;
+
+    /**
+     * Constructs a view over a mapped IDX file whose header has already been validated.
+     */
+    private IdxFile(String path, MappedByteBuffer buffer, int[] dimensions, int dataOffset) {
+        this.path = path;
+        this.buffer = buffer;
+        this.dimensions = dimensions;
+        this.dataOffset = dataOffset;
+        int size = 1;
+        for (int d = 1; d < dimensions.length; d++) {
+            size *= dimensions[d];
+        }
+        this.itemSize = size;
+    }
+
+    /**
+     * Maps an IDX file of unsigned bytes into memory and validates its header.
+     *
+     * @param path the path to the IDX file
+     * @return the mapped file
+     * @throws IOException if the file cannot be read, is compressed, is not an unsigned byte IDX file or is shorter than its header declares
+     */
+    public static IdxFile map(String path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() >= 2 && buffer.get(0) == (byte) 0x1f && buffer.get(1) == (byte) 0x8b) {
+            throw new IOException("Compressed IDX file " + path + " cannot be mapped; read it with IdxInputStream");
+        }
+        if (buffer.capacity() < 4 || buffer.get(0) != 0 || buffer.get(1) != 0 || buffer.get(2) != UNSIGNED_BYTE) {
+            throw new IOException("Not an unsigned byte IDX file: " + path);
+        }
+        int rank = buffer.get(3) & 0xff;
+        int dataOffset = 4 + 4 * rank;
+        if (rank == 0 || buffer.capacity() < dataOffset) {
+            throw new IOException("Truncated IDX header in " + path);
+        }
+        int[] dimensions = new int[rank];
+        long length = 1;
+        for (int d = 0; d < rank; d++) {
+            dimensions[d] = buffer.getInt(4 + 4 * d);
+            length *= dimensions[d];
+        }
+        if (buffer.capacity() < dataOffset + length) {
+            throw new IOException("IDX file " + path + " is shorter than its dimensions " + Arrays.toString(dimensions));
+        }
+        return new IdxFile(path, buffer, dimensions, dataOffset);
+    }
+
+    /**
+     * Returns the path the file was mapped from.
+     *
+     * @return the path to the IDX file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns a copy of the dimensions declared in the header, starting with the number of items.
+     *
+     * @return the dimensions of the file
+     */
+    public int[] getDimensions() {
+        return dimensions.clone();
+    }
+
+    /**
+     * Returns the number of items, the size of the first dimension.
+     *
+     * @return the number of items in the file
+     */
+    public int getCount() {
+        return dimensions[0];
+    }
+
+    /**
+     * Returns the number of values in one item, the product of all dimensions but the first.
+     *
+     * @return the size of one item
+     */
+    public int getItemSize() {
+        return itemSize;
+    }
+
+    /**
+     * Returns one value of an item as an unsigned byte.
+     *
+     * @param item the index of the item
+     * @param k the row-major position of the value within the item
+     * @return the value between 0 and 255
+     */
+    public int get(int item, int k) {
+        return buffer.get(dataOffset + item * itemSize + k) & 0xff;
+    }
+
+    /**
+     * Copies the raw bytes of a range of consecutive items into an array.
+     *
+     * @param item the index of the first item
+     * @param count the number of items to copy
+     * @param destination the array receiving the bytes
+     * @param offset the position in the destination receiving the first byte
+     * @throws IndexOutOfBoundsException if the items are outside the file or do not fit into the destination
+     */
+    public void read(int item, int count, byte[] destination, int offset) {
+        if (item < 0 || count < 0 || item + count > getCount()) {
+            throw new IndexOutOfBoundsException("Items [" + item + ", " + (item + count) + ") out of bounds for " + getCount() + " items");
+        }
+        // A duplicate has its own position, so concurrent reads do not interfere
+        ByteBuffer view = buffer.duplicate();
+        view.position(dataOffset + item * itemSize);
+        view.get(destination, offset, count * itemSize);
+    }
+}
@@ -0,0 +1,154 @@
+package cnn.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A sequential reader of an unsigned byte IDX file, plain or gzip-compressed. The header is parsed when the
+ * stream is opened and the items are then read in order, a chunk at a time, straight into the caller's arrays,
+ * so a compressed file is never decompressed to disk or held in memory as a whole.
+ * Use {@link IdxFile} for random access to uncompressed files.
+ */
+public class IdxInputStream implements AutoCloseable {
+    private static final int UNSIGNED_BYTE = 0x08;
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String path;
+    private final DataInputStream in;
+    private final int[] dimensions;
+    private final int itemSize;
+    private int position;
+
+    private IdxInputStream(String path, DataInputStream in, int[] dimensions) {
+        this.path = path;
+        this.in = in;
+        this.dimensions = dimensions;
+        int size = 1;
+        for (int d = 1; d < dimensions.length; d++) {
+            size *= dimensions[d];
+        }
+        this.itemSize = size;
+    }
+
+    /**
+     * Opens an IDX file, decompressing it on the fly if it starts with the gzip magic number, and reads its header.
+     *
+     * @param path the path to the IDX file, compressed or not
+     * @return a stream positioned at the first item
+     * @throws IOException if the file cannot be read or is not an unsigned byte IDX file
+     */
+    public static IdxInputStream open(String path) throws IOException {
+        InputStream raw = new FileInputStream(path);
+        try {
+            InputStream source = isCompressed(path) ? new GZIPInputStream(raw, BUFFER_SIZE) : raw;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(source, BUFFER_SIZE));
+            try {
+                if (in.readUnsignedShort() != 0 || in.readUnsignedByte() != UNSIGNED_BYTE) {
+                    throw new IOException("Not an unsigned byte IDX file: " + path);
+                }
+                int[] dimensions = new int[in.readUnsignedByte()];
+                if (dimensions.length == 0) {
+                    throw new IOException("IDX file " + path + " declares no dimensions");
+                }
+                for (int d = 0; d < dimensions.length; d++) {
+                    dimensions[d] = in.readInt();
+                }
+                return new IdxInputStream(path, in, dimensions);
+            } catch (EOFException e) {
+                throw new IOException("Truncated IDX header in " + path, e);
+            }
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether a file starts with the gzip magic number.
+     *
+     * @param path the path to the file
+     * @return true if the file is gzip-compressed
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isCompressed(String path) throws IOException {
+        try (InputStream in = new FileInputStream(path)) {
+            int first = in.read();
+            int second = in.read();
+            return second >= 0 && (first | second << 8) == GZIP_MAGIC;
+        }
+    }
+
+    /**
+     * Returns the path the stream was opened from.
+     *
+     * @return the path to the IDX file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns a copy of the dimensions declared in the header, starting with the number of items.
+     *
+     * @return the dimensions of the file
+     */
+    public int[] getDimensions() {
+        return dimensions.clone();
+    }
+
+    /**
+     * Returns the number of items, the size of the first dimension.
+     *
+     * @return the number of items in the file
+     */
+    public int getCount() {
+        return dimensions[0];
+    }
+
+    /**
+     * Returns the number of values in one item, the product of all dimensions but the first.
+     *
+     * @return the size of one item
+     */
+    public int getItemSize() {
+        return itemSize;
+    }
+
+    /**
+     * Reads the raw bytes of the next items into an array.
+     *
+     * @param count the number of items to read
+     * @param destination the array receiving the bytes
+     * @param offset the position in the destination receiving the first byte
+     * @throws IOException if the file cannot be read or ends before its dimensions declare
+     * @throws IndexOutOfBoundsException if fewer items remain or they do not fit into the destination
+     */
+    public void read(int count, byte[] destination, int offset) throws IOException {
+        if (count < 0 || position + count > getCount()) {
+            throw new IndexOutOfBoundsException("Cannot read " + count + " items at item " + position + " of " + getCount());
+        }
+        try {
+            in.readFully(destination, offset, count * itemSize);
+        } catch (EOFException e) {
+            throw new IOException("IDX file " + path + " is shorter than its dimensions " + Arrays.toString(dimensions), e);
+        }
+        position += count;
+    }
+
+    /**
+     * Closes the underlying file.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,14 +1,46 @@
 package cnn.utils;
 
-import java.awt.image.BufferedImage;
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
+import java.util.SplittableRandom;
 
 /**
- * Utility class for performing image augmentation, including random shifts and rotations.
- * This class is primarily used for data augmentation in machine learning models.
+ * Utility class for performing image augmentation, including random shifts, rotations, scaling and elastic distortion.
+ * Images are warped directly on primitive arrays with bilinear sampling, treating pixels outside the image as black,
+ * so no windowing toolkit is needed. Randomness comes from a {@link SplittableRandom} owned by each thread, and all
+ * scratch space is kept per thread, so the methods can be called concurrently from any number of loader threads.
  */
 public class ImageAugmentation {
+    private static final SplittableRandom SEEDS = new SplittableRandom();
+    private static final ThreadLocal<SplittableRandom> RANDOM = ThreadLocal.withInitial(ImageAugmentation::split);
+    private static final ThreadLocal<double[][]> BLUR_BUFFER = ThreadLocal.withInitial(() -> new double[][]{new double[0]});
+
+    /**
+     * Splits a new generator off the shared seed generator, which is not thread-safe on its own.
+     */
+    private static SplittableRandom split() {
+        synchronized (SEEDS) {
+            return SEEDS.split();
+        }
+    }
+
+    /**
+     * Returns the random generator of the calling thread. It must not be shared with other threads.
+     *
+     * @return the generator owned by the calling thread
+     */
+    public static SplittableRandom random() {
+        return RANDOM.get();
+    }
+
+    /**
+     * Replaces the random generator of the calling thread with one determined by a seed, so that the draws
+     * that follow on this thread are reproducible.
+     *
+     * @param seed the seed of the generator
+     */
+    public static void seed(long seed) {
+        // Splitting gives unrelated generators for nearby seeds, which would otherwise yield shifted copies of one stream
+        RANDOM.set(new SplittableRandom(seed).split());
+    }
 
     /**
      * Augments an image by applying random shifts and rotations. The image data is assumed 
@@ -30,44 +62,169 @@ public class ImageAugmentation {
     public static double[][] augment(double[][] imageData, int maxShift, int maxRotation) {
         int rows = imageData.length;
         int cols = imageData[0].length;
-
-        // Convert to BufferedImage for manipulation
-        BufferedImage image = new BufferedImage(cols, rows, BufferedImage.TYPE_BYTE_GRAY);
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                int pixel = (int) (imageData[r][c] * 255);
-                image.setRGB(c, r, (pixel << 16) | (pixel << 8) | pixel);
-            }
-        }
-
-        // Apply transformations
-        BufferedImage augmentedImage = new BufferedImage(cols, rows, BufferedImage.TYPE_BYTE_GRAY);
-        Graphics2D g2d = augmentedImage.createGraphics();
-        AffineTransform transform = new AffineTransform();
+        SplittableRandom random = random();
 
         // Calculate random shift within bounds
         int maxShiftX = Math.min(maxShift, cols / 2);
         int maxShiftY = Math.min(maxShift, rows / 2);
-        double shiftX = (Math.random() * 2 * maxShiftX) - maxShiftX;
-        double shiftY = (Math.random() * 2 * maxShiftY) - maxShiftY;
-        transform.translate(shiftX, shiftY);
+        double shiftX = (random.nextDouble() * 2 * maxShiftX) - maxShiftX;
+        double shiftY = (random.nextDouble() * 2 * maxShiftY) - maxShiftY;
 
         // Random rotation
-        double rotation = (Math.random() - 0.5) * 2 * Math.toRadians(maxRotation);
-        transform.rotate(rotation, cols / 2.0, rows / 2.0);
+        double rotation = (random.nextDouble() - 0.5) * 2 * Math.toRadians(maxRotation);
 
-        g2d.drawImage(image, transform, null);
-        g2d.dispose();
+        Tensor source = Tensor.fromArray(new double[][][]{imageData});
+        Tensor target = new Tensor(1, rows, cols);
+        warp(source, target, 0, shiftX, shiftY, rotation, 1.0, null, null);
 
-        // Convert back to double array
         double[][] augmentedData = new double[rows][cols];
         for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                int pixel = (augmentedImage.getRGB(c, r) & 0xff);
-                augmentedData[r][c] = pixel / 255.0;
+            System.arraycopy(target.getData(), r * cols, augmentedData[r], 0, cols);
+        }
+        return augmentedData;
+    }
+
+    /**
+     * Warps every channel of an image with the same transform and writes the result into a contiguous range of a tensor.
+     * Output pixel (x, y) is sampled bilinearly at the point that the transform moves onto it: the image is scaled and
+     * rotated about its center, then shifted, and finally displaced by the optional elastic field.
+     *
+     * @param image a contiguous tensor of shape [depth, rows, cols] holding the original image
+     * @param target the contiguous tensor receiving the warped image, of any precision
+     * @param position the row-major position in the target receiving the first pixel
+     * @param shiftX the horizontal shift in pixels
+     * @param shiftY the vertical shift in pixels
+     * @param rotation the rotation angle in radians
+     * @param scale the magnification factor, 1 for none
+     * @param displacementX the horizontal elastic displacement of every output pixel, or null for none
+     * @param displacementY the vertical elastic displacement of every output pixel, or null for none
+     * @throws IllegalArgumentException if the image is not contiguous or the scale is not positive
+     */
+    public static void warp(Tensor image, Tensor target, int position, double shiftX, double shiftY,
+                            double rotation, double scale, double[] displacementX, double[] displacementY) {
+        if (!image.isContiguous()) {
+            throw new IllegalArgumentException("Image tensor must be contiguous");
+        }
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("Scale must be positive");
+        }
+        int rows = image.shape(image.rank() - 2);
+        int cols = image.shape(image.rank() - 1);
+        int area = rows * cols;
+        int depth = image.size() / area;
+        double centerX = (cols - 1) / 2.0;
+        double centerY = (rows - 1) / 2.0;
+        double cos = Math.cos(rotation) / scale;
+        double sin = Math.sin(rotation) / scale;
+
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                int k = y * cols + x;
+                double u = x - shiftX - centerX;
+                double v = y - shiftY - centerY;
+                double sourceX = cos * u + sin * v + centerX;
+                double sourceY = -sin * u + cos * v + centerY;
+                if (displacementX != null) {
+                    sourceX += displacementX[k];
+                    sourceY += displacementY[k];
+                }
+                for (int d = 0; d < depth; d++) {
+                    target.setFlat(position + d * area + k, sample(image, d * area, rows, cols, sourceX, sourceY));
+                }
             }
         }
+    }
 
-        return augmentedData;
+    /**
+     * Interpolates one channel bilinearly at a point, reading zero outside the image.
+     */
+    private static double sample(Tensor image, int channel, int rows, int cols, double x, double y) {
+        if (x <= -1 || y <= -1 || x >= cols || y >= rows) {
+            return 0.0;
+        }
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        double fx = x - x0;
+        double fy = y - y0;
+        double top = (1 - fx) * pixel(image, channel, rows, cols, x0, y0) + fx * pixel(image, channel, rows, cols, x0 + 1, y0);
+        double bottom = (1 - fx) * pixel(image, channel, rows, cols, x0, y0 + 1) + fx * pixel(image, channel, rows, cols, x0 + 1, y0 + 1);
+        return (1 - fy) * top + fy * bottom;
+    }
+
+    /**
+     * Returns one pixel of a channel, or zero outside the image.
+     */
+    private static double pixel(Tensor image, int channel, int rows, int cols, int x, int y) {
+        return x < 0 || y < 0 || x >= cols || y >= rows ? 0.0 : image.getFlat(channel + y * cols + x);
+    }
+
+    /**
+     * Draws a random elastic displacement field: independent uniform displacements in [-1, 1] for every pixel,
+     * smoothed by a Gaussian filter and scaled by alpha, as proposed by Simard et al. for handwritten digits.
+     *
+     * @param rows the height of the image
+     * @param cols the width of the image
+     * @param alpha the strength of the distortion in pixels
+     * @param sigma the standard deviation of the smoothing filter in pixels
+     * @param random the generator of the calling thread
+     * @param displacementX the array receiving rows * cols horizontal displacements
+     * @param displacementY the array receiving rows * cols vertical displacements
+     * @throws IllegalArgumentException if sigma is not positive
+     */
+    public static void elasticField(int rows, int cols, double alpha, double sigma, SplittableRandom random,
+                                    double[] displacementX, double[] displacementY) {
+        if (!(sigma > 0)) {
+            throw new IllegalArgumentException("Elastic sigma must be positive");
+        }
+        int radius = (int) Math.ceil(3 * sigma);
+        double[] kernel = new double[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+
+        for (double[] field : new double[][]{displacementX, displacementY}) {
+            for (int k = 0; k < rows * cols; k++) {
+                field[k] = random.nextDouble() * 2 - 1;
+            }
+            blur(field, rows, cols, kernel, radius);
+            for (int k = 0; k < rows * cols; k++) {
+                field[k] *= alpha;
+            }
+        }
+    }
+
+    /**
+     * Convolves a field with a separable kernel along both axes in place, treating values outside the field as zero.
+     */
+    private static void blur(double[] field, int rows, int cols, double[] kernel, int radius) {
+        double[][] buffer = BLUR_BUFFER.get();
+        if (buffer[0].length < rows * cols) {
+            buffer[0] = new double[rows * cols];
+        }
+        double[] horizontal = buffer[0];
+
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                double acc = 0;
+                for (int i = Math.max(-radius, -x); i <= Math.min(radius, cols - 1 - x); i++) {
+                    acc += kernel[i + radius] * field[y * cols + x + i];
+                }
+                horizontal[y * cols + x] = acc;
+            }
+        }
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                double acc = 0;
+                for (int i = Math.max(-radius, -y); i <= Math.min(radius, rows - 1 - y); i++) {
+                    acc += kernel[i + radius] * horizontal[(y + i) * cols + x];
+                }
+                field[y * cols + x] = acc;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -7,7 +7,7 @@ import java.io.Serializable;
  * This class is used to store and retrieve the input data and labels for training and evaluating a neural network.
  */
 public class ImageData implements Serializable{
-    private double[][][] imageData;
+    private Tensor image;
     private double[] label;
 
     /**
@@ -17,17 +17,87 @@ public class ImageData implements Serializable{
      * @param label a 1D array representing the label
      */
     public ImageData(double[][][] imageData, double[] label) {
-        this.imageData = imageData;
+        this(Tensor.fromArray(imageData), label);
+    }
+
+    /**
+     * Constructs an ImageData object with the specified image tensor and label.
+     *
+     * @param image a tensor of shape [depth, height, width] representing the image data
+     * @param label a 1D array representing the label
+     */
+    public ImageData(Tensor image, double[] label) {
+        this.image = image;
         this.label = label;
     }
 
     /**
-     * Returns the image data.
+     * Constructs an ImageData object for a subclass that provides the image itself.
+     *
+     * @param label a 1D array representing the label
+     */
+    protected ImageData(double[] label) {
+        this.label = label;
+    }
+
+    /**
+     * Returns a copy of the image data as a 3D array.
      *
      * @return a 3D array representing the image data
      */
     public double[][][] getImageData() {
-        return imageData;
+        return getImageTensor().toArray3D();
+    }
+
+    /**
+     * Returns the image data as a tensor without copying.
+     *
+     * @return a tensor of shape [depth, height, width] representing the image data
+     */
+    public Tensor getImageTensor() {
+        return image;
+    }
+
+    /**
+     * Returns the shape of the image.
+     *
+     * @return the dimensions [depth, height, width] of the image
+     */
+    public int[] getImageShape() {
+        return image.getShape();
+    }
+
+    /**
+     * Returns the number of elements of the image.
+     *
+     * @return the number of elements of the image
+     */
+    public int getImageSize() {
+        return image.size();
+    }
+
+    /**
+     * Copies the image in row-major order into a contiguous range of a tensor, converting it to the precision of the tensor.
+     * This is how networks assemble mini-batches, so subclasses can produce the image without materializing it.
+     *
+     * @param destination the contiguous tensor receiving the image
+     * @param position the row-major position in the destination receiving the first element
+     * @throws IllegalArgumentException if the image does not fit into the destination
+     */
+    public void copyImageTo(Tensor destination, int position) {
+        image.copyInto(destination, position);
+    }
+
+    /**
+     * Returns this sample if its image already has the given precision, otherwise a sample holding a converted copy
+     * of the image and the same label. Storing a dataset in single precision halves its memory footprint.
+     *
+     * @param precision the element type of the image
+     * @return a sample whose image has the given precision
+     */
+    public ImageData toPrecision(Tensor.Precision precision) {
+        Tensor image = getImageTensor();
+        return image.getPrecision() == precision ? this : new ImageData(image.toPrecision(precision), label);
     }
 
     /**
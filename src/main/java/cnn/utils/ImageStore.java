@@ -0,0 +1,244 @@
+package cnn.utils;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A columnar in-memory dataset of 8-bit images with class labels. All pixels live in one contiguous
+ * byte array and all labels in another, so a 28x28 sample takes 785 bytes of heap instead of a tensor of
+ * doubles, a one-hot array and the objects around them. Pixels are scaled to [0, 1] only when an image is
+ * copied into a batch.
+ * The store is a read-only list of samples: {@link #get(int)} returns a lightweight view that is created
+ * on demand. It cannot be shuffled in place; a {@link cnn.DataLoader} shuffles a permutation of indices
+ * instead and reads images and labels straight from the columns.
+ */
+public class ImageStore extends AbstractList<ImageData> implements RandomAccess {
+    private static final double[] NORMALIZED = new double[256];
+
+    static {
+        for (int v = 0; v < NORMALIZED.length; v++) {
+            NORMALIZED[v] = v / 255.0;
+        }
+    }
+
+    private final int[] shape;
+    private final int imageSize;
+    private final int count;
+    private final byte[] pixels;
+    private final byte[] labels;
+    private final double[][] oneHot;
+
+    /**
+     * Constructs an empty store for a fixed number of images, to be filled with {@link #put(int, byte[], int, int)}.
+     *
+     * @param count the number of images
+     * @param shape the shape [depth, height, width] of one image
+     * @param numClasses the number of classes, at most 256
+     * @throws IllegalArgumentException if the store would exceed the size of an array or there are too many classes
+     */
+    public ImageStore(int count, int[] shape, int numClasses) {
+        if (numClasses < 1 || numClasses > 256) {
+            throw new IllegalArgumentException("Number of classes must be between 1 and 256 but was " + numClasses);
+        }
+        long size = (long) count * Tensor.sizeOf(shape);
+        if (count < 0 || size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Cannot store " + count + " images of shape " + Arrays.toString(shape));
+        }
+        this.shape = shape.clone();
+        this.imageSize = Tensor.sizeOf(shape);
+        this.count = count;
+        this.pixels = new byte[(int) size];
+        this.labels = new byte[count];
+        this.oneHot = new double[numClasses][numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            oneHot[c][c] = 1.0;
+        }
+    }
+
+    /**
+     * Stores one image and its label.
+     *
+     * @param index the index of the image
+     * @param source the array holding the raw pixels of the image
+     * @param offset the position in the source of the first pixel
+     * @param label the class of the image
+     * @throws IndexOutOfBoundsException if the index is outside the store
+     * @throws IllegalArgumentException if the label is not a class of the store
+     */
+    public void put(int index, byte[] source, int offset, int label) {
+        setLabel(index, label);
+        System.arraycopy(source, offset, pixels, index * imageSize, imageSize);
+    }
+
+    /**
+     * Stores the label of one image.
+     *
+     * @param index the index of the image
+     * @param label the class of the image
+     * @throws IndexOutOfBoundsException if the index is outside the store
+     * @throws IllegalArgumentException if the label is not a class of the store
+     */
+    public void setLabel(int index, int label) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Image " + index + " out of bounds for " + count + " images");
+        }
+        if (label < 0 || label >= oneHot.length) {
+            throw new IllegalArgumentException("Label " + label + " of image " + index + " is not one of " + oneHot.length + " classes");
+        }
+        labels[index] = (byte) label;
+    }
+
+    /**
+     * Returns the array holding the raw pixels of all images, image after image, so that readers can fill
+     * the store in bulk. Writes to it are visible to every view.
+     *
+     * @return the pixel column of the store
+     */
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Returns the number of images.
+     *
+     * @return the number of images in the store
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns a view over one image and its label.
+     *
+     * @param index the index of the image
+     * @return a sample reading its pixels from the store
+     * @throws IndexOutOfBoundsException if the index is outside the store
+     */
+    @Override
+    public ImageData get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Image " + index + " out of bounds for " + count + " images");
+        }
+        return new StoredImageData(index);
+    }
+
+    /**
+     * Returns the shape shared by all images.
+     *
+     * @return the dimensions [depth, height, width] of one image
+     */
+    public int[] getImageShape() {
+        return shape.clone();
+    }
+
+    /**
+     * Returns the number of pixels of one image.
+     *
+     * @return the size of one image
+     */
+    public int getImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Returns the number of classes of the labels.
+     *
+     * @return the length of the one-hot labels
+     */
+    public int getNumClasses() {
+        return oneHot.length;
+    }
+
+    /**
+     * Returns the class of one image.
+     *
+     * @param index the index of the image
+     * @return the class index
+     */
+    public int getLabelIndex(int index) {
+        return labels[index] & 0xff;
+    }
+
+    /**
+     * Returns the one-hot label of one image. The array is shared by all images of the class and must not be modified.
+     *
+     * @param index the index of the image
+     * @return the one-hot label
+     */
+    public double[] getLabel(int index) {
+        return oneHot[labels[index] & 0xff];
+    }
+
+    /**
+     * Scales the pixels of one image to [0, 1] while writing them into a contiguous range of a tensor.
+     *
+     * @param index the index of the image
+     * @param destination the contiguous tensor receiving the image
+     * @param position the row-major position in the destination receiving the first pixel
+     * @throws IllegalArgumentException if the image does not fit into the destination
+     */
+    public void copyImageTo(int index, Tensor destination, int position) {
+        if (position < 0 || position + imageSize > destination.size()) {
+            throw new IllegalArgumentException("Cannot copy " + imageSize + " pixels to position " + position + " of a tensor of size " + destination.size());
+        }
+        int source = index * imageSize;
+        int start = destination.getOffset() + position;
+        if (destination.getPrecision() == Tensor.Precision.FLOAT) {
+            float[] data = destination.getFloatData();
+            for (int k = 0; k < imageSize; k++) {
+                data[start + k] = (float) NORMALIZED[pixels[source + k] & 0xff];
+            }
+        } else {
+            double[] data = destination.getData();
+            for (int k = 0; k < imageSize; k++) {
+                data[start + k] = NORMALIZED[pixels[source + k] & 0xff];
+            }
+        }
+    }
+
+    /**
+     * A sample whose image and label are read from the columns of the store.
+     * Serializing a view writes a plain {@link ImageData} holding the normalized image.
+     */
+    private class StoredImageData extends ImageData {
+        private final int index;
+
+        StoredImageData(int index) {
+            super(oneHot[labels[index] & 0xff]);
+            this.index = index;
+        }
+
+        @Override
+        public Tensor getImageTensor() {
+            Tensor image = new Tensor(shape);
+            copyImageTo(image, 0);
+            return image;
+        }
+
+        @Override
+        public int[] getImageShape() {
+            return shape.clone();
+        }
+
+        @Override
+        public int getImageSize() {
+            return imageSize;
+        }
+
+        @Override
+        public void copyImageTo(Tensor destination, int position) {
+            ImageStore.this.copyImageTo(index, destination, position);
+        }
+
+        @Override
+        public ImageData toPrecision(Tensor.Precision precision) {
+            return this;
+        }
+
+        private Object writeReplace() {
+            return new ImageData(getImageTensor(), getLabel());
+        }
+    }
+}
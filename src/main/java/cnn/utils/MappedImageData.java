@@ -0,0 +1,111 @@
+package cnn.utils;
+
+/**
+ * A sample whose image is a view over one item of a memory-mapped IDX file. The pixels stay in the mapping
+ * as unsigned bytes and are scaled to [0, 1] only when the image is copied into a batch, so a dataset of views
+ * takes a few bytes of heap per sample instead of one double per pixel.
+ * Serializing a view writes a plain {@link ImageData} holding the normalized image.
+ */
+public class MappedImageData extends ImageData {
+    private static final double MAX_PIXEL = 255.0;
+
+    private final IdxFile images;
+    private final int index;
+    private final int[] shape;
+
+    /**
+     * Constructs a view over one image of a mapped IDX file.
+     *
+     * @param images the mapped IDX file holding the images
+     * @param index the index of the image within the file
+     * @param shape the shape [depth, height, width] of one image, shared by all views over the file
+     * @param label a 1D array representing the label
+     * @throws IndexOutOfBoundsException if the index is outside the file
+     */
+    public MappedImageData(IdxFile images, int index, int[] shape, double[] label) {
+        super(label);
+        if (index < 0 || index >= images.getCount()) {
+            throw new IndexOutOfBoundsException("Image " + index + " out of bounds for " + images.getCount() + " images");
+        }
+        this.images = images;
+        this.index = index;
+        this.shape = shape;
+    }
+
+    /**
+     * Returns a new tensor holding the normalized image; the view itself keeps no copy.
+     *
+     * @return a tensor of shape [depth, height, width] representing the image data
+     */
+    @Override
+    public Tensor getImageTensor() {
+        Tensor image = new Tensor(shape);
+        copyImageTo(image, 0);
+        return image;
+    }
+
+    /**
+     * Returns the shape of the image.
+     *
+     * @return the dimensions [depth, height, width] of the image
+     */
+    @Override
+    public int[] getImageShape() {
+        return shape.clone();
+    }
+
+    /**
+     * Returns the number of pixels of the image.
+     *
+     * @return the number of elements of the image
+     */
+    @Override
+    public int getImageSize() {
+        return images.getItemSize();
+    }
+
+    /**
+     * Scales the pixels of the image to [0, 1] while writing them into a contiguous range of a tensor.
+     *
+     * @param destination the contiguous tensor receiving the image
+     * @param position the row-major position in the destination receiving the first pixel
+     * @throws IllegalArgumentException if the image does not fit into the destination
+     */
+    @Override
+    public void copyImageTo(Tensor destination, int position) {
+        int size = images.getItemSize();
+        if (position < 0 || position + size > destination.size()) {
+            throw new IllegalArgumentException("Cannot copy " + size + " pixels to position " + position + " of a tensor of size " + destination.size());
+        }
+        int start = destination.getOffset() + position;
+        if (destination.getPrecision() == Tensor.Precision.FLOAT) {
+            float[] data = destination.getFloatData();
+            for (int k = 0; k < size; k++) {
+                data[start + k] = (float) (images.get(index, k) / MAX_PIXEL);
+            }
+        } else {
+            double[] data = destination.getData();
+            for (int k = 0; k < size; k++) {
+                data[start + k] = images.get(index, k) / MAX_PIXEL;
+            }
+        }
+    }
+
+    /**
+     * Returns this view, since the precision of the image is chosen when it is copied into a batch.
+     *
+     * @param precision the element type of the image
+     * @return this sample
+     */
+    @Override
+    public ImageData toPrecision(Tensor.Precision precision) {
+        return this;
+    }
+
+    /**
+     * Replaces the view by a plain sample holding the normalized image when it is serialized.
+     */
+    private Object writeReplace() {
+        return new ImageData(getImageTensor(), getLabel());
+    }
+}
@@ -0,0 +1,155 @@
+package cnn.utils;
+
+/**
+ * The innermost loops shared by the matrix operations and layers, operating on ranges of primitive arrays.
+ * {@link MatrixUtils#kernels()} returns the implementation in use: a SIMD implementation built on the
+ * JDK Vector API when the {@code jdk.incubator.vector} module is available, otherwise {@link ScalarKernels}.
+ */
+public interface MatrixKernels {
+
+    /**
+     * Computes the dot product of two ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param length the number of elements in each range
+     * @return the sum of the element-wise products
+     */
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * Adds a scaled range to another range: y += alpha * x.
+     *
+     * @param alpha the scale factor
+     * @param x the array holding the range to scale
+     * @param xOffset the position of the first element of x
+     * @param y the array holding the range to update
+     * @param yOffset the position of the first element of y
+     * @param length the number of elements
+     */
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * Writes the element-wise product of two ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param out the array receiving the products
+     * @param outOffset the position of the first product
+     * @param length the number of elements
+     */
+    void multiply(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int length);
+
+    /**
+     * Writes the element-wise maximum of two ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param out the array receiving the maxima
+     * @param outOffset the position of the first maximum
+     * @param length the number of elements
+     */
+    void max(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int length);
+
+    /**
+     * Writes the element-wise sum of two ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param out the array receiving the sums
+     * @param outOffset the position of the first sum
+     * @param length the number of elements
+     */
+    void add(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int length);
+
+    /**
+     * Computes the sum of a range.
+     *
+     * @param a the array
+     * @param offset the position of the first element
+     * @param length the number of elements
+     * @return the sum of the elements
+     */
+    double sum(double[] a, int offset, int length);
+
+    /**
+     * Computes the dot product of two single-precision ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param length the number of elements in each range
+     * @return the sum of the element-wise products
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Adds a scaled single-precision range to another range: y += alpha * x.
+     *
+     * @param alpha the scale factor
+     * @param x the array holding the range to scale
+     * @param xOffset the position of the first element of x
+     * @param y the array holding the range to update
+     * @param yOffset the position of the first element of y
+     * @param length the number of elements
+     */
+    void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Writes the element-wise product of two single-precision ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param out the array receiving the products
+     * @param outOffset the position of the first product
+     * @param length the number of elements
+     */
+    void multiply(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset, int length);
+
+    /**
+     * Writes the element-wise maximum of two single-precision ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param out the array receiving the maxima
+     * @param outOffset the position of the first maximum
+     * @param length the number of elements
+     */
+    void max(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset, int length);
+
+    /**
+     * Writes the element-wise sum of two single-precision ranges.
+     *
+     * @param a the first array
+     * @param aOffset the position of the first element of the first range
+     * @param b the second array
+     * @param bOffset the position of the first element of the second range
+     * @param out the array receiving the sums
+     * @param outOffset the position of the first sum
+     * @param length the number of elements
+     */
+    void add(float[] a, int aOffset, float[] b, int bOffset, float[] out, int outOffset, int length);
+
+    /**
+     * Computes the sum of a single-precision range.
+     *
+     * @param a the array
+     * @param offset the position of the first element
+     * @param length the number of elements
+     * @return the sum of the elements
+     */
+    float sum(float[] a, int offset, int length);
+}
@@ -6,6 +6,31 @@ import java.util.Arrays;
  * A utility class for various matrix operations used in convolutional neural networks.
  */
 public class MatrixUtils {
+    private static final MatrixKernels KERNELS = loadKernels();
+    private static final ThreadLocal<double[][]> POOLING_ROW = ThreadLocal.withInitial(() -> new double[1][0]);
+    private static final ThreadLocal<float[][]> FLOAT_POOLING_ROW = ThreadLocal.withInitial(() -> new float[1][0]);
+
+    /**
+     * Returns the kernels used for the inner loops of the matrix operations. The SIMD kernels are used when
+     * they were compiled and the JVM was started with {@code --add-modules jdk.incubator.vector};
+     * setting the system property {@code cnn.kernels} to {@code scalar} forces the scalar kernels.
+     *
+     * @return the kernels in use
+     */
+    public static MatrixKernels kernels() {
+        return KERNELS;
+    }
+
+    private static MatrixKernels loadKernels() {
+        if (!"scalar".equalsIgnoreCase(System.getProperty("cnn.kernels"))) {
+            try {
+                return (MatrixKernels) Class.forName("cnn.utils.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // The Vector API is not available on this JVM, fall back to the scalar kernels
+            }
+        }
+        return new ScalarKernels();
+    }
 
     /**
      * Pads the input tensor with zeros around the border.
@@ -94,6 +119,235 @@ public class MatrixUtils {
         return sum;
     }
 
+    /**
+     * Applies a filter to a region of one channel of a [depth, height, width] tensor starting at (startX, startY).
+     * Taps that fall outside the channel are treated as zeros.
+     *
+     * @param input the input tensor
+     * @param channel the channel of the input tensor to read
+     * @param filter the filter matrix
+     * @param startX the starting X-coordinate
+     * @param startY the starting Y-coordinate
+     * @return the sum of element-wise multiplication of the filter and the specified region of the channel
+     */
+    public static double applyFilter(Tensor input, int channel, double[][] filter, int startX, int startY) {
+        int filterSize = filter.length;
+        int height = input.shape(1);
+        int width = input.shape(2);
+        double[] data = input.getData();
+        int base = input.index(channel, 0, 0);
+        boolean inside = startY >= 0 && startY + filterSize <= width;
+        double sum = 0;
+
+        for (int i = 0; i < filterSize; i++) {
+            int x = startX + i;
+            if (x < 0 || x >= height) {
+                continue;
+            }
+            int row = base + x * width;
+            if (inside) {
+                sum += KERNELS.dot(data, row + startY, filter[i], 0, filterSize);
+                continue;
+            }
+            for (int j = 0; j < filterSize; j++) {
+                int y = startY + j;
+                if (y >= 0 && y < width) {
+                    sum += data[row + y] * filter[i][j];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Unrolls the convolution patches of one [depth, height, width] block of a tensor into the columns held by
+     * a tensor of the same precision; see {@link #im2col(double[], int, int, int, int, int, int, double[])}.
+     *
+     * @param input the contiguous tensor holding the input block
+     * @param offset the position of the first element of the input block within the tensor
+     * @param depth the number of input channels
+     * @param height the height of the input
+     * @param width the width of the input
+     * @param filterSize the size of the square filter
+     * @param stride the stride of the convolution
+     * @param columns the contiguous tensor receiving the [depth * filterSize * filterSize, outputHeight * outputWidth] matrix
+     */
+    public static void im2col(Tensor input, int offset, int depth, int height, int width,
+                              int filterSize, int stride, Tensor columns) {
+        if (columns.getPrecision() == Tensor.Precision.FLOAT) {
+            im2col(input.getFloatData(), input.getOffset() + offset, depth, height, width, filterSize, stride, columns.getFloatData());
+        } else {
+            im2col(input.getData(), input.getOffset() + offset, depth, height, width, filterSize, stride, columns.getData());
+        }
+    }
+
+    /**
+     * Folds the column matrix held by a tensor back into one [depth, height, width] block of a tensor of the same
+     * precision, adding every entry to the input position it was read from; see
+     * {@link #col2im(double[], int, int, int, int, int, double[], int)}.
+     *
+     * @param columns the contiguous tensor holding the [depth * filterSize * filterSize, outputHeight * outputWidth] matrix
+     * @param depth the number of input channels
+     * @param height the height of the input
+     * @param width the width of the input
+     * @param filterSize the size of the square filter
+     * @param stride the stride of the convolution
+     * @param output the contiguous tensor receiving the accumulated block
+     * @param offset the position of the first element of the output block within the tensor
+     */
+    public static void col2im(Tensor columns, int depth, int height, int width,
+                              int filterSize, int stride, Tensor output, int offset) {
+        if (columns.getPrecision() == Tensor.Precision.FLOAT) {
+            col2im(columns.getFloatData(), depth, height, width, filterSize, stride, output.getFloatData(), output.getOffset() + offset);
+        } else {
+            col2im(columns.getData(), depth, height, width, filterSize, stride, output.getData(), output.getOffset() + offset);
+        }
+    }
+
+    /**
+     * Unrolls the convolution patches of a [depth, height, width] block into columns, so that a valid
+     * convolution becomes a matrix multiplication. Row (d * filterSize + i) * filterSize + j of the result
+     * holds input[d][y * stride + i][x * stride + j] in column y * outputWidth + x.
+     *
+     * @param input the array holding the input block
+     * @param offset the position of the first element of the input block
+     * @param depth the number of input channels
+     * @param height the height of the input
+     * @param width the width of the input
+     * @param filterSize the size of the square filter
+     * @param stride the stride of the convolution
+     * @param columns the array receiving the [depth * filterSize * filterSize, outputHeight * outputWidth] matrix
+     */
+    public static void im2col(double[] input, int offset, int depth, int height, int width,
+                              int filterSize, int stride, double[] columns) {
+        int outputHeight = (height - filterSize) / stride + 1;
+        int outputWidth = (width - filterSize) / stride + 1;
+        int c = 0;
+        for (int d = 0; d < depth; d++) {
+            int channel = offset + d * height * width;
+            for (int i = 0; i < filterSize; i++) {
+                for (int j = 0; j < filterSize; j++) {
+                    for (int y = 0; y < outputHeight; y++) {
+                        int row = channel + (y * stride + i) * width + j;
+                        if (stride == 1) {
+                            System.arraycopy(input, row, columns, c, outputWidth);
+                            c += outputWidth;
+                        } else {
+                            for (int x = 0; x < outputWidth; x++) {
+                                columns[c++] = input[row + x * stride];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds a column matrix produced by {@link #im2col} back into a [depth, height, width] block,
+     * adding every entry to the input position it was read from.
+     *
+     * @param columns the [depth * filterSize * filterSize, outputHeight * outputWidth] matrix
+     * @param depth the number of input channels
+     * @param height the height of the input
+     * @param width the width of the input
+     * @param filterSize the size of the square filter
+     * @param stride the stride of the convolution
+     * @param output the array receiving the accumulated block
+     * @param offset the position of the first element of the output block
+     */
+    public static void col2im(double[] columns, int depth, int height, int width,
+                              int filterSize, int stride, double[] output, int offset) {
+        int outputHeight = (height - filterSize) / stride + 1;
+        int outputWidth = (width - filterSize) / stride + 1;
+        int c = 0;
+        for (int d = 0; d < depth; d++) {
+            int channel = offset + d * height * width;
+            for (int i = 0; i < filterSize; i++) {
+                for (int j = 0; j < filterSize; j++) {
+                    for (int y = 0; y < outputHeight; y++) {
+                        int row = channel + (y * stride + i) * width + j;
+                        for (int x = 0; x < outputWidth; x++) {
+                            output[row + x * stride] += columns[c++];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Unrolls the convolution patches of a single-precision [depth, height, width] block into columns, so that a valid
+     * convolution becomes a matrix multiplication. Row (d * filterSize + i) * filterSize + j of the result
+     * holds input[d][y * stride + i][x * stride + j] in column y * outputWidth + x.
+     *
+     * @param input the array holding the input block
+     * @param offset the position of the first element of the input block
+     * @param depth the number of input channels
+     * @param height the height of the input
+     * @param width the width of the input
+     * @param filterSize the size of the square filter
+     * @param stride the stride of the convolution
+     * @param columns the array receiving the [depth * filterSize * filterSize, outputHeight * outputWidth] matrix
+     */
+    public static void im2col(float[] input, int offset, int depth, int height, int width,
+                              int filterSize, int stride, float[] columns) {
+        int outputHeight = (height - filterSize) / stride + 1;
+        int outputWidth = (width - filterSize) / stride + 1;
+        int c = 0;
+        for (int d = 0; d < depth; d++) {
+            int channel = offset + d * height * width;
+            for (int i = 0; i < filterSize; i++) {
+                for (int j = 0; j < filterSize; j++) {
+                    for (int y = 0; y < outputHeight; y++) {
+                        int row = channel + (y * stride + i) * width + j;
+                        if (stride == 1) {
+                            System.arraycopy(input, row, columns, c, outputWidth);
+                            c += outputWidth;
+                        } else {
+                            for (int x = 0; x < outputWidth; x++) {
+                                columns[c++] = input[row + x * stride];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds a single-precision column matrix produced by {@link #im2col} back into a [depth, height, width] block,
+     * adding every entry to the input position it was read from.
+     *
+     * @param columns the [depth * filterSize * filterSize, outputHeight * outputWidth] matrix
+     * @param depth the number of input channels
+     * @param height the height of the input
+     * @param width the width of the input
+     * @param filterSize the size of the square filter
+     * @param stride the stride of the convolution
+     * @param output the array receiving the accumulated block
+     * @param offset the position of the first element of the output block
+     */
+    public static void col2im(float[] columns, int depth, int height, int width,
+                              int filterSize, int stride, float[] output, int offset) {
+        int outputHeight = (height - filterSize) / stride + 1;
+        int outputWidth = (width - filterSize) / stride + 1;
+        int c = 0;
+        for (int d = 0; d < depth; d++) {
+            int channel = offset + d * height * width;
+            for (int i = 0; i < filterSize; i++) {
+                for (int j = 0; j < filterSize; j++) {
+                    for (int y = 0; y < outputHeight; y++) {
+                        int row = channel + (y * stride + i) * width + j;
+                        for (int x = 0; x < outputWidth; x++) {
+                            output[row + x * stride] += columns[c++];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Rotates a square matrix by 180 degrees.
      *
@@ -208,6 +462,188 @@ public class MatrixUtils {
         return output;
     }
 
+    /**
+     * Applies max pooling to every plane of a tensor whose last two dimensions are height and width,
+     * such as a [depth, height, width] sample or a [batchSize, depth, height, width] mini-batch.
+     *
+     * @param input the input tensor
+     * @param poolSize the size of the pooling window
+     * @return a new tensor with the same precision and leading dimensions and spatial dimensions divided by poolSize
+     */
+    public static Tensor maxPooling(Tensor input, int poolSize) {
+        Tensor output = Tensor.zeros(input.getPrecision(), pooledShape(input, poolSize));
+        pool(input, poolSize, true, output);
+        return output;
+    }
+
+    /**
+     * Applies max pooling to every plane of a tensor whose last two dimensions are height and width,
+     * writing the results into an existing contiguous tensor.
+     *
+     * @param input the input tensor
+     * @param poolSize the size of the pooling window
+     * @param output the tensor receiving the pooled planes, with spatial dimensions divided by poolSize
+     */
+    public static void maxPooling(Tensor input, int poolSize, Tensor output) {
+        pool(input, poolSize, true, output);
+    }
+
+    /**
+     * Applies average pooling to every plane of a tensor whose last two dimensions are height and width,
+     * such as a [depth, height, width] sample or a [batchSize, depth, height, width] mini-batch.
+     *
+     * @param input the input tensor
+     * @param poolSize the size of the pooling window
+     * @return a new tensor with the same precision and leading dimensions and spatial dimensions divided by poolSize
+     */
+    public static Tensor averagePooling(Tensor input, int poolSize) {
+        Tensor output = Tensor.zeros(input.getPrecision(), pooledShape(input, poolSize));
+        pool(input, poolSize, false, output);
+        return output;
+    }
+
+    /**
+     * Applies average pooling to every plane of a tensor whose last two dimensions are height and width,
+     * writing the results into an existing contiguous tensor.
+     *
+     * @param input the input tensor
+     * @param poolSize the size of the pooling window
+     * @param output the tensor receiving the pooled planes, with spatial dimensions divided by poolSize
+     */
+    public static void averagePooling(Tensor input, int poolSize, Tensor output) {
+        pool(input, poolSize, false, output);
+    }
+
+    private static int[] pooledShape(Tensor input, int poolSize) {
+        int[] shape = input.getShape();
+        shape[shape.length - 2] /= poolSize;
+        shape[shape.length - 1] /= poolSize;
+        return shape;
+    }
+
+    private static void pool(Tensor input, int poolSize, boolean max, Tensor output) {
+        Tensor source = input.isContiguous() ? input : input.copy();
+        int rank = source.rank();
+        int height = source.shape(rank - 2);
+        int width = source.shape(rank - 1);
+        int planes = source.size() / (height * width);
+        if (output.getPrecision() == Tensor.Precision.FLOAT) {
+            Tensor floatSource = source.toPrecision(Tensor.Precision.FLOAT);
+            pool(floatSource.getFloatData(), floatSource.getOffset(), planes, height, width, poolSize, max,
+                    output.getFloatData(), output.getOffset());
+        } else {
+            Tensor doubleSource = source.toPrecision(Tensor.Precision.DOUBLE);
+            pool(doubleSource.getData(), doubleSource.getOffset(), planes, height, width, poolSize, max,
+                    output.getData(), output.getOffset());
+        }
+    }
+
+    private static void pool(double[] in, int inOffset, int planes, int height, int width, int poolSize, boolean max,
+                             double[] out, int outOffset) {
+        int outputHeight = height / poolSize;
+        int outputWidth = width / poolSize;
+
+        // Reduce the rows of each window element-wise first, then reduce horizontally within the combined row
+        double[][] rowHolder = POOLING_ROW.get();
+        if (rowHolder[0].length < width) {
+            rowHolder[0] = new double[width];
+        }
+        double[] combined = rowHolder[0];
+        int o = outOffset;
+        for (int d = 0; d < planes; d++) {
+            int channel = inOffset + d * height * width;
+            for (int i = 0; i < outputHeight; i++) {
+                int top = channel + i * poolSize * width;
+                System.arraycopy(in, top, combined, 0, width);
+                for (int k = 1; k < poolSize; k++) {
+                    if (max) {
+                        KERNELS.max(combined, 0, in, top + k * width, combined, 0, width);
+                    } else {
+                        KERNELS.add(combined, 0, in, top + k * width, combined, 0, width);
+                    }
+                }
+                for (int j = 0; j < outputWidth; j++) {
+                    int corner = j * poolSize;
+                    double acc = combined[corner];
+                    for (int l = 1; l < poolSize; l++) {
+                        double v = combined[corner + l];
+                        if (max) {
+                            if (v > acc) {
+                                acc = v;
+                            }
+                        } else {
+                            acc += v;
+                        }
+                    }
+                    out[o++] = max ? acc : acc / (poolSize * poolSize);
+                }
+            }
+        }
+    }
+
+    private static void pool(float[] in, int inOffset, int planes, int height, int width, int poolSize, boolean max,
+                             float[] out, int outOffset) {
+        int outputHeight = height / poolSize;
+        int outputWidth = width / poolSize;
+
+        // Reduce the rows of each window element-wise first, then reduce horizontally within the combined row
+        float[][] rowHolder = FLOAT_POOLING_ROW.get();
+        if (rowHolder[0].length < width) {
+            rowHolder[0] = new float[width];
+        }
+        float[] combined = rowHolder[0];
+        int o = outOffset;
+        for (int d = 0; d < planes; d++) {
+            int channel = inOffset + d * height * width;
+            for (int i = 0; i < outputHeight; i++) {
+                int top = channel + i * poolSize * width;
+                System.arraycopy(in, top, combined, 0, width);
+                for (int k = 1; k < poolSize; k++) {
+                    if (max) {
+                        KERNELS.max(combined, 0, in, top + k * width, combined, 0, width);
+                    } else {
+                        KERNELS.add(combined, 0, in, top + k * width, combined, 0, width);
+                    }
+                }
+                for (int j = 0; j < outputWidth; j++) {
+                    int corner = j * poolSize;
+                    float acc = combined[corner];
+                    for (int l = 1; l < poolSize; l++) {
+                        float v = combined[corner + l];
+                        if (max) {
+                            if (v > acc) {
+                                acc = v;
+                            }
+                        } else {
+                            acc += v;
+                        }
+                    }
+                    out[o++] = max ? acc : acc / (poolSize * poolSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies two contiguous tensors of the same precision and size element by element.
+     *
+     * @param a the first factor
+     * @param b the second factor
+     * @param output the contiguous tensor receiving the products, which may be one of the factors
+     * @throws IllegalArgumentException if the tensors do not share one precision
+     */
+    public static void multiply(Tensor a, Tensor b, Tensor output) {
+        Tensor.Precision precision = output.getPrecision();
+        if (a.getPrecision() != precision || b.getPrecision() != precision) {
+            throw new IllegalArgumentException("Cannot multiply tensors of different precisions");
+        }
+        if (precision == Tensor.Precision.FLOAT) {
+            KERNELS.multiply(a.getFloatData(), a.getOffset(), b.getFloatData(), b.getOffset(), output.getFloatData(), output.getOffset(), output.size());
+        } else {
+            KERNELS.multiply(a.getData(), a.getOffset(), b.getData(), b.getOffset(), output.getData(), output.getOffset(), output.size());
+        }
+    }
+
     /**
      * Multiplies a vector by a matrix and adds a bias vector.
      *
@@ -230,6 +666,52 @@ public class MatrixUtils {
         return output;
     }
 
+    /**
+     * Multiplies every row of a batch by a matrix and adds a bias vector. The tensor is read as
+     * consecutive input vectors whose length equals the number of rows of the weight matrix.
+     *
+     * @param input the input tensor holding one or more input vectors
+     * @param weights the weight matrix
+     * @param biases the bias vector
+     * @return the resulting output vectors after the multiplication and bias addition, stored one after another
+     */
+    public static double[] multiply(Tensor input, double[][] weights, double[] biases) {
+        double[] output = new double[input.size() / weights.length * biases.length];
+        multiply(input, weights, biases, output);
+        return output;
+    }
+
+    /**
+     * Multiplies every row of a batch by a matrix and adds a bias vector, writing the results into an existing array.
+     * The tensor is read as consecutive input vectors whose length equals the number of rows of the weight matrix.
+     *
+     * @param input the input tensor holding one or more input vectors
+     * @param weights the weight matrix
+     * @param biases the bias vector
+     * @param output the array receiving the output vectors one after another, at least batchSize * biases.length long
+     */
+    public static void multiply(Tensor input, double[][] weights, double[] biases, double[] output) {
+        Tensor source = input.isContiguous() ? input : input.copy();
+        double[] in = source.getData();
+        int inOffset = source.getOffset();
+        int inputSize = weights.length;
+        int outputSize = biases.length;
+        int batchSize = source.size() / inputSize;
+
+        for (int n = 0; n < batchSize; n++) {
+            int inBase = inOffset + n * inputSize;
+            int outBase = n * outputSize;
+            System.arraycopy(biases, 0, output, outBase, outputSize);
+            for (int i = 0; i < inputSize; i++) {
+                double x = in[inBase + i];
+                if (x == 0.0) {
+                    continue;
+                }
+                KERNELS.axpy(x, weights[i], 0, output, outBase, outputSize);
+            }
+        }
+    }
+
     /**
      * Unflattens a 1D array into a 3D matrix with the specified dimensions.
      *
@@ -0,0 +1,743 @@
+package cnn.utils;
+
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A dense multi-dimensional array backed by a single contiguous primitive array.
+ * Elements are addressed through a shape, per-dimension strides and an offset into the backing array,
+ * so views such as reshapes and slices can share storage without copying.
+ * The backing array is either a {@code double[]} or a {@code float[]}, as given by {@link #getPrecision()}.
+ * A tensor can also read its elements from a buffer instead, such as a memory-mapped model file; such
+ * tensors are read-only and have no backing array.
+ */
+public class Tensor implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Enumeration for the element type of the backing array.
+     */
+    public enum Precision {
+        /** 64-bit elements stored in a {@code double[]}. */
+        DOUBLE,
+        /** 32-bit elements stored in a {@code float[]}. */
+        FLOAT
+    }
+
+    private final double[] data;
+    private final float[] floatData;
+    private final transient DoubleBuffer dataBuffer;
+    private final transient FloatBuffer floatDataBuffer;
+    private final int offset;
+    private final int[] shape;
+    private final int[] strides;
+    private final boolean contiguous;
+
+    /**
+     * Constructs a zero-filled tensor of double precision with the specified shape.
+     *
+     * @param shape the dimensions of the tensor
+     */
+    public Tensor(int... shape) {
+        this(new double[sizeOf(shape)], shape);
+    }
+
+    /**
+     * Constructs a tensor that wraps the given array using row-major strides.
+     *
+     * @param data the backing array, which is used without copying
+     * @param shape the dimensions of the tensor
+     * @throws IllegalArgumentException if the array length does not match the shape
+     */
+    public Tensor(double[] data, int... shape) {
+        this(data, null, null, null, 0, shape.clone(), contiguousStrides(shape));
+        if (data.length != sizeOf(shape)) {
+            throw new IllegalArgumentException("Data length " + data.length + " does not match shape " + Arrays.toString(shape));
+        }
+    }
+
+    /**
+     * Constructs a single-precision tensor that wraps the given array using row-major strides.
+     *
+     * @param data the backing array, which is used without copying
+     * @param shape the dimensions of the tensor
+     * @throws IllegalArgumentException if the array length does not match the shape
+     */
+    public Tensor(float[] data, int... shape) {
+        this(null, data, null, null, 0, shape.clone(), contiguousStrides(shape));
+        if (data.length != sizeOf(shape)) {
+            throw new IllegalArgumentException("Data length " + data.length + " does not match shape " + Arrays.toString(shape));
+        }
+    }
+
+    private Tensor(double[] data, float[] floatData, DoubleBuffer dataBuffer, FloatBuffer floatDataBuffer, int offset, int[] shape, int[] strides) {
+        this.data = data;
+        this.floatData = floatData;
+        this.dataBuffer = dataBuffer;
+        this.floatDataBuffer = floatDataBuffer;
+        this.offset = offset;
+        this.shape = shape;
+        this.strides = strides;
+        this.contiguous = Arrays.equals(strides, contiguousStrides(shape));
+    }
+
+    /**
+     * Creates a zero-filled tensor with the specified precision and shape.
+     *
+     * @param precision the element type of the backing array
+     * @param shape the dimensions of the tensor
+     * @return a new contiguous tensor
+     */
+    public static Tensor zeros(Precision precision, int... shape) {
+        return precision == Precision.FLOAT ? new Tensor(new float[sizeOf(shape)], shape) : new Tensor(shape);
+    }
+
+    /**
+     * Creates a contiguous tensor over a range of an array that may be longer than the tensor.
+     *
+     * @param data the backing array, which is used without copying
+     * @param offset the position of the first element in the backing array
+     * @param shape the dimensions of the tensor
+     * @return a tensor viewing data[offset, offset + sizeOf(shape))
+     * @throws IllegalArgumentException if the range does not fit into the array
+     */
+    public static Tensor wrap(double[] data, int offset, int... shape) {
+        checkRange(data.length, offset, shape);
+        return new Tensor(data, null, null, null, offset, shape.clone(), contiguousStrides(shape));
+    }
+
+    /**
+     * Creates a contiguous single-precision tensor over a range of an array that may be longer than the tensor.
+     *
+     * @param data the backing array, which is used without copying
+     * @param offset the position of the first element in the backing array
+     * @param shape the dimensions of the tensor
+     * @return a tensor viewing data[offset, offset + sizeOf(shape))
+     * @throws IllegalArgumentException if the range does not fit into the array
+     */
+    public static Tensor wrap(float[] data, int offset, int... shape) {
+        checkRange(data.length, offset, shape);
+        return new Tensor(null, data, null, null, offset, shape.clone(), contiguousStrides(shape));
+    }
+
+    /**
+     * Creates a read-only contiguous tensor over a range of a buffer, such as a view of a memory-mapped file.
+     * Elements are read with absolute indices, so the position of the buffer is ignored.
+     *
+     * @param buffer the buffer holding the elements, which is used without copying
+     * @param offset the index of the first element in the buffer
+     * @param shape the dimensions of the tensor
+     * @return a tensor viewing buffer[offset, offset + sizeOf(shape))
+     * @throws IllegalArgumentException if the range does not fit into the buffer
+     */
+    public static Tensor wrap(DoubleBuffer buffer, int offset, int... shape) {
+        checkRange(buffer.limit(), offset, shape);
+        return new Tensor(null, null, buffer, null, offset, shape.clone(), contiguousStrides(shape));
+    }
+
+    /**
+     * Creates a read-only contiguous single-precision tensor over a range of a buffer, such as a view of a memory-mapped file.
+     * Elements are read with absolute indices, so the position of the buffer is ignored.
+     *
+     * @param buffer the buffer holding the elements, which is used without copying
+     * @param offset the index of the first element in the buffer
+     * @param shape the dimensions of the tensor
+     * @return a tensor viewing buffer[offset, offset + sizeOf(shape))
+     * @throws IllegalArgumentException if the range does not fit into the buffer
+     */
+    public static Tensor wrap(FloatBuffer buffer, int offset, int... shape) {
+        checkRange(buffer.limit(), offset, shape);
+        return new Tensor(null, null, null, buffer, offset, shape.clone(), contiguousStrides(shape));
+    }
+
+    private static void checkRange(int length, int offset, int... shape) {
+        if (offset < 0 || offset + sizeOf(shape) > length) {
+            throw new IllegalArgumentException("Shape " + Arrays.toString(shape) + " at offset " + offset + " does not fit into a length of " + length);
+        }
+    }
+
+    /**
+     * Creates a tensor of shape [depth, height, width] holding a copy of a 3D array.
+     *
+     * @param array the 3D array to copy
+     * @return a new contiguous tensor with the same values
+     */
+    public static Tensor fromArray(double[][][] array) {
+        int depth = array.length;
+        int height = array[0].length;
+        int width = array[0][0].length;
+        double[] data = new double[depth * height * width];
+        int index = 0;
+        for (int d = 0; d < depth; d++) {
+            for (int i = 0; i < height; i++) {
+                System.arraycopy(array[d][i], 0, data, index, width);
+                index += width;
+            }
+        }
+        return new Tensor(data, depth, height, width);
+    }
+
+    /**
+     * Stacks tensors of identical shape into a new tensor with an extra leading dimension.
+     * The result has the precision of the first tensor.
+     *
+     * @param tensors the tensors to stack, all of the same shape
+     * @return a new contiguous tensor of shape [tensors.size(), ...shape]
+     * @throws IllegalArgumentException if the list is empty or the shapes differ
+     */
+    public static Tensor stack(List<Tensor> tensors) {
+        if (tensors.isEmpty()) {
+            throw new IllegalArgumentException("Cannot stack an empty list of tensors");
+        }
+        int[] itemShape = tensors.get(0).shape;
+        int[] batchShape = new int[itemShape.length + 1];
+        batchShape[0] = tensors.size();
+        System.arraycopy(itemShape, 0, batchShape, 1, itemShape.length);
+        Tensor batch = zeros(tensors.get(0).getPrecision(), batchShape);
+        for (int n = 0; n < tensors.size(); n++) {
+            Tensor item = tensors.get(n);
+            if (!Arrays.equals(item.shape, itemShape)) {
+                throw new IllegalArgumentException("Cannot stack tensors of shapes " + Arrays.toString(itemShape) + " and " + Arrays.toString(item.shape));
+            }
+            batch.slice(n).copyFrom(item);
+        }
+        return batch;
+    }
+
+    /**
+     * Copies the tensor into a 3D array. Tensors of rank lower than three are padded with
+     * leading dimensions of size one, so a vector of length n becomes [1][1][n].
+     *
+     * @return a 3D array holding the values of the tensor
+     * @throws IllegalStateException if the tensor has a rank greater than three
+     */
+    public double[][][] toArray3D() {
+        if (shape.length > 3) {
+            throw new IllegalStateException("Cannot convert a tensor of rank " + shape.length + " to a 3D array");
+        }
+        int depth = shape.length == 3 ? shape[0] : 1;
+        int height = shape.length >= 2 ? shape[shape.length - 2] : 1;
+        int width = shape.length >= 1 ? shape[shape.length - 1] : 1;
+        Tensor source = reshape(depth, height, width);
+        double[][][] array = new double[depth][height][width];
+        for (int d = 0; d < depth; d++) {
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    array[d][i][j] = source.get(d, i, j);
+                }
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns the number of elements for a given shape.
+     *
+     * @param shape the dimensions of a tensor
+     * @return the product of all dimensions
+     */
+    public static int sizeOf(int... shape) {
+        int size = 1;
+        for (int dim : shape) {
+            size *= dim;
+        }
+        return size;
+    }
+
+    private static int[] contiguousStrides(int... shape) {
+        int[] strides = new int[shape.length];
+        int stride = 1;
+        for (int i = shape.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= shape[i];
+        }
+        return strides;
+    }
+
+    /**
+     * Returns the element type of the backing array.
+     *
+     * @return {@link Precision#FLOAT} for a {@code float[]} or {@link FloatBuffer}, otherwise {@link Precision#DOUBLE}
+     */
+    public Precision getPrecision() {
+        return floatData != null || floatDataBuffer != null ? Precision.FLOAT : Precision.DOUBLE;
+    }
+
+    /**
+     * Returns the backing array of a double-precision tensor. Elements start at {@link #getOffset()} and are laid out
+     * according to {@link #getStrides()}.
+     *
+     * @return the backing array
+     * @throws IllegalStateException if the tensor has single precision or is backed by a buffer
+     */
+    public double[] getData() {
+        if (data == null) {
+            throw new IllegalStateException(isBuffered() ? "Tensor is backed by a read-only buffer" : "Tensor holds single-precision data");
+        }
+        return data;
+    }
+
+    /**
+     * Returns the backing array of a single-precision tensor. Elements start at {@link #getOffset()} and are laid out
+     * according to {@link #getStrides()}.
+     *
+     * @return the backing array
+     * @throws IllegalStateException if the tensor has double precision or is backed by a buffer
+     */
+    public float[] getFloatData() {
+        if (floatData == null) {
+            throw new IllegalStateException(isBuffered() ? "Tensor is backed by a read-only buffer" : "Tensor holds double-precision data");
+        }
+        return floatData;
+    }
+
+    /**
+     * Checks whether the elements of this tensor are read from a buffer instead of a backing array.
+     * Such tensors cannot be modified.
+     *
+     * @return true if the tensor is backed by a read-only buffer
+     */
+    public boolean isBuffered() {
+        return dataBuffer != null || floatDataBuffer != null;
+    }
+
+    /**
+     * Returns the buffer of a double-precision tensor that is not backed by an array, or null.
+     */
+    DoubleBuffer getDataBuffer() {
+        return dataBuffer;
+    }
+
+    /**
+     * Returns the buffer of a single-precision tensor that is not backed by an array, or null.
+     */
+    FloatBuffer getFloatDataBuffer() {
+        return floatDataBuffer;
+    }
+
+    /**
+     * Returns the position of the first element of this tensor in the backing array.
+     *
+     * @return the offset into the backing array
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns a copy of the dimensions of this tensor.
+     *
+     * @return the shape of the tensor
+     */
+    public int[] getShape() {
+        return shape.clone();
+    }
+
+    /**
+     * Returns the size of a single dimension.
+     *
+     * @param dim the index of the dimension
+     * @return the size of the dimension
+     */
+    public int shape(int dim) {
+        return shape[dim];
+    }
+
+    /**
+     * Returns a copy of the strides of this tensor.
+     *
+     * @return the distance in the backing array between consecutive elements of each dimension
+     */
+    public int[] getStrides() {
+        return strides.clone();
+    }
+
+    /**
+     * Returns the number of dimensions of this tensor.
+     *
+     * @return the rank of the tensor
+     */
+    public int rank() {
+        return shape.length;
+    }
+
+    /**
+     * Returns the total number of elements in this tensor.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return sizeOf(shape);
+    }
+
+    /**
+     * Checks whether the elements of this tensor occupy a dense row-major block of the backing array.
+     *
+     * @return true if the tensor is contiguous
+     */
+    public boolean isContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Computes the position of an element in the backing array.
+     *
+     * @param indices the index along each dimension
+     * @return the position of the element in the backing array
+     */
+    public int index(int... indices) {
+        int position = offset;
+        for (int i = 0; i < indices.length; i++) {
+            position += indices[i] * strides[i];
+        }
+        return position;
+    }
+
+    private double read(int position) {
+        if (data != null) {
+            return data[position];
+        }
+        return floatData != null ? floatData[position] : readBuffer(position);
+    }
+
+    private double readBuffer(int position) {
+        return dataBuffer != null ? dataBuffer.get(position) : floatDataBuffer.get(position);
+    }
+
+    private void write(int position, double value) {
+        if (data != null) {
+            data[position] = value;
+        } else if (floatData != null) {
+            floatData[position] = (float) value;
+        } else {
+            throw readOnly();
+        }
+    }
+
+    private IllegalStateException readOnly() {
+        return new IllegalStateException("Cannot modify a tensor backed by a read-only buffer");
+    }
+
+    /**
+     * Returns the element at the given indices.
+     *
+     * @param indices the index along each dimension
+     * @return the element value
+     */
+    public double get(int... indices) {
+        return read(index(indices));
+    }
+
+    /**
+     * Returns the element at the given position of a rank-3 tensor without allocating an index array.
+     *
+     * @param d the index along the first dimension
+     * @param i the index along the second dimension
+     * @param j the index along the third dimension
+     * @return the element value
+     */
+    public double get(int d, int i, int j) {
+        return read(offset + d * strides[0] + i * strides[1] + j * strides[2]);
+    }
+
+    /**
+     * Sets the element at the given indices.
+     *
+     * @param value the new element value, rounded to single precision for float tensors
+     * @param indices the index along each dimension
+     */
+    public void set(double value, int... indices) {
+        write(index(indices), value);
+    }
+
+    /**
+     * Returns an element of a contiguous tensor by its position in row-major order.
+     *
+     * @param k the row-major position of the element
+     * @return the element value
+     */
+    public double getFlat(int k) {
+        if (data != null) {
+            return data[offset + k];
+        }
+        return floatData != null ? floatData[offset + k] : readBuffer(offset + k);
+    }
+
+    /**
+     * Sets an element of a contiguous tensor by its position in row-major order.
+     *
+     * @param k the row-major position of the element
+     * @param value the new element value, rounded to single precision for float tensors
+     * @throws IllegalStateException if the tensor is backed by a read-only buffer
+     */
+    public void setFlat(int k, double value) {
+        if (data != null) {
+            data[offset + k] = value;
+        } else if (floatData != null) {
+            floatData[offset + k] = (float) value;
+        } else {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Adds a value to an element of a contiguous tensor by its position in row-major order.
+     *
+     * @param k the row-major position of the element
+     * @param value the value to add
+     * @throws IllegalStateException if the tensor is backed by a read-only buffer
+     */
+    public void addFlat(int k, double value) {
+        if (data != null) {
+            data[offset + k] += value;
+        } else if (floatData != null) {
+            floatData[offset + k] += (float) value;
+        } else {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Fills every element of this tensor with a value.
+     *
+     * @param value the value to assign
+     * @throws IllegalStateException if the tensor is backed by a read-only buffer
+     */
+    public void fill(double value) {
+        if (isContiguous()) {
+            if (data != null) {
+                Arrays.fill(data, offset, offset + size(), value);
+            } else if (floatData != null) {
+                Arrays.fill(floatData, offset, offset + size(), (float) value);
+            } else {
+                throw readOnly();
+            }
+            return;
+        }
+        Tensor copy = copy();
+        copy.fill(value);
+        copyFrom(copy);
+    }
+
+    /**
+     * Copies the values of another tensor with the same number of elements into this tensor,
+     * converting them if the precisions differ.
+     *
+     * @param source the tensor to copy from
+     * @throws IllegalArgumentException if the tensors have different sizes
+     * @throws IllegalStateException if this tensor is backed by a read-only buffer
+     */
+    public void copyFrom(Tensor source) {
+        int size = size();
+        if (source.size() != size) {
+            throw new IllegalArgumentException("Cannot copy a tensor of size " + source.size() + " into a tensor of size " + size);
+        }
+        if (isContiguous() && source.isContiguous()) {
+            if (data != null && source.data != null) {
+                System.arraycopy(source.data, source.offset, data, offset, size);
+            } else if (floatData != null && source.floatData != null) {
+                System.arraycopy(source.floatData, source.offset, floatData, offset, size);
+            } else if (data != null && source.dataBuffer != null) {
+                DoubleBuffer view = source.dataBuffer.duplicate();
+                view.position(source.offset);
+                view.get(data, offset, size);
+            } else if (floatData != null && source.floatDataBuffer != null) {
+                FloatBuffer view = source.floatDataBuffer.duplicate();
+                view.position(source.offset);
+                view.get(floatData, offset, size);
+            } else {
+                for (int k = 0; k < size; k++) {
+                    setFlat(k, source.getFlat(k));
+                }
+            }
+            return;
+        }
+        int[] position = new int[shape.length];
+        Tensor flatSource = source.isContiguous() ? source : source.copy();
+        for (int k = 0; k < size; k++) {
+            write(index(position), flatSource.getFlat(k));
+            for (int dim = shape.length - 1; dim >= 0 && ++position[dim] == shape[dim]; dim--) {
+                position[dim] = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the elements of a double-precision tensor in row-major order into a buffer at its position, in bulk
+     * from the backing array or the read-only buffer, and advances the position past them.
+     *
+     * @param destination the buffer to write into
+     * @throws IllegalStateException if the tensor holds single-precision data
+     * @throws java.nio.BufferOverflowException if the buffer has too little space remaining
+     */
+    public void copyInto(DoubleBuffer destination) {
+        Tensor source = isContiguous() ? this : copy();
+        if (source.data != null) {
+            destination.put(source.data, source.offset, source.size());
+        } else if (source.dataBuffer != null) {
+            DoubleBuffer view = source.dataBuffer.duplicate();
+            view.limit(source.offset + source.size());
+            view.position(source.offset);
+            destination.put(view);
+        } else {
+            throw new IllegalStateException("Tensor holds single-precision data");
+        }
+    }
+
+    /**
+     * Writes the elements of a single-precision tensor in row-major order into a buffer at its position, in bulk
+     * from the backing array or the read-only buffer, and advances the position past them.
+     *
+     * @param destination the buffer to write into
+     * @throws IllegalStateException if the tensor holds double-precision data
+     * @throws java.nio.BufferOverflowException if the buffer has too little space remaining
+     */
+    public void copyInto(FloatBuffer destination) {
+        Tensor source = isContiguous() ? this : copy();
+        if (source.floatData != null) {
+            destination.put(source.floatData, source.offset, source.size());
+        } else if (source.floatDataBuffer != null) {
+            FloatBuffer view = source.floatDataBuffer.duplicate();
+            view.limit(source.offset + source.size());
+            view.position(source.offset);
+            destination.put(view);
+        } else {
+            throw new IllegalStateException("Tensor holds double-precision data");
+        }
+    }
+
+    /**
+     * Copies the elements of this tensor in row-major order into a contiguous range of another tensor,
+     * converting them if the precisions differ.
+     *
+     * @param destination the contiguous tensor to copy into
+     * @param position the row-major position in the destination receiving the first element
+     * @throws IllegalArgumentException if the range does not fit into the destination
+     */
+    public void copyInto(Tensor destination, int position) {
+        int size = size();
+        if (position < 0 || position + size > destination.size()) {
+            throw new IllegalArgumentException("Cannot copy " + size + " elements to position " + position + " of a tensor of size " + destination.size());
+        }
+        Tensor source = isContiguous() ? this : copy();
+        if (source.data != null && destination.data != null) {
+            System.arraycopy(source.data, source.offset, destination.data, destination.offset + position, size);
+        } else if (source.floatData != null && destination.floatData != null) {
+            System.arraycopy(source.floatData, source.offset, destination.floatData, destination.offset + position, size);
+        } else if (source.dataBuffer != null && destination.data != null) {
+            DoubleBuffer view = source.dataBuffer.duplicate();
+            view.position(source.offset);
+            view.get(destination.data, destination.offset + position, size);
+        } else if (source.floatDataBuffer != null && destination.floatData != null) {
+            FloatBuffer view = source.floatDataBuffer.duplicate();
+            view.position(source.offset);
+            view.get(destination.floatData, destination.offset + position, size);
+        } else {
+            for (int k = 0; k < size; k++) {
+                destination.setFlat(position + k, source.getFlat(k));
+            }
+        }
+    }
+
+    /**
+     * Creates a contiguous copy of this tensor that does not share storage with it.
+     *
+     * @return a new tensor with the same precision, shape and values
+     */
+    public Tensor copy() {
+        Tensor copied = zeros(getPrecision(), shape);
+        copied.copyFrom(this);
+        return copied;
+    }
+
+    /**
+     * Returns this tensor if it already has the given precision, otherwise a contiguous copy converted to it.
+     *
+     * @param precision the precision of the result
+     * @return a tensor with the same shape and values in the given precision
+     */
+    public Tensor toPrecision(Precision precision) {
+        if (precision == getPrecision()) {
+            return this;
+        }
+        Tensor converted = zeros(precision, shape);
+        converted.copyFrom(this);
+        return converted;
+    }
+
+    /**
+     * Returns a view of this tensor with a different shape but the same elements.
+     * Non-contiguous tensors are copied before being reshaped.
+     *
+     * @param newShape the new dimensions, whose product must equal {@link #size()}
+     * @return a tensor sharing storage with this one whenever possible
+     * @throws IllegalArgumentException if the number of elements differs
+     */
+    public Tensor reshape(int... newShape) {
+        if (sizeOf(newShape) != size()) {
+            throw new IllegalArgumentException("Cannot reshape " + Arrays.toString(shape) + " to " + Arrays.toString(newShape));
+        }
+        if (!isContiguous()) {
+            return copy().reshape(newShape);
+        }
+        return new Tensor(data, floatData, dataBuffer, floatDataBuffer, offset, newShape.clone(), contiguousStrides(newShape));
+    }
+
+    /**
+     * Returns a view of one entry along the first dimension, dropping that dimension.
+     *
+     * @param index the index along the first dimension
+     * @return a tensor sharing storage with this one
+     */
+    public Tensor slice(int index) {
+        if (index < 0 || index >= shape[0]) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for dimension of size " + shape[0]);
+        }
+        return new Tensor(data, floatData, dataBuffer, floatDataBuffer, offset + index * strides[0],
+                Arrays.copyOfRange(shape, 1, shape.length), Arrays.copyOfRange(strides, 1, strides.length));
+    }
+
+    /**
+     * Returns a view of a range of entries along the first dimension, keeping that dimension.
+     *
+     * @param start the first index along the first dimension, inclusive
+     * @param end the last index along the first dimension, exclusive
+     * @return a tensor of shape [end - start, ...] sharing storage with this one
+     */
+    public Tensor range(int start, int end) {
+        if (start < 0 || end > shape[0] || start > end) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") out of bounds for dimension of size " + shape[0]);
+        }
+        int[] rangeShape = shape.clone();
+        rangeShape[0] = end - start;
+        return new Tensor(data, floatData, dataBuffer, floatDataBuffer, offset + start * strides[0], rangeShape, strides.clone());
+    }
+
+    /**
+     * Returns a view of this tensor with an extra leading dimension of size one,
+     * turning a single sample into a batch that holds only that sample.
+     *
+     * @return a tensor of shape [1, ...shape] sharing storage with this one whenever possible
+     */
+    public Tensor asBatch() {
+        int[] batchShape = new int[shape.length + 1];
+        batchShape[0] = 1;
+        System.arraycopy(shape, 0, batchShape, 1, shape.length);
+        return reshape(batchShape);
+    }
+
+    /**
+     * Serializes a tensor backed by a buffer as a copy backed by an array.
+     */
+    private Object writeReplace() {
+        return isBuffered() ? copy() : this;
+    }
+
+    @Override
+    public String toString() {
+        return "Tensor" + Arrays.toString(shape) + (getPrecision() == Precision.FLOAT ? " float" : "") + (isBuffered() ? " buffered" : "");
+    }
+}
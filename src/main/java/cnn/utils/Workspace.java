@@ -0,0 +1,139 @@
+package cnn.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Preallocated activation and gradient buffers for one worker of a network, planned from the shapes
+ * recorded for every position of the network. Position 0 is the network input and position i + 1 is the
+ * output of layer i, so layer i reads activation i, writes activation i + 1 and, in the backward pass,
+ * reads gradient i + 1 and writes gradient i.
+ * Every buffer holds a full batch of {@link #getCapacity()} samples in the precision of the workspace and is
+ * allocated the first time it is requested; the tensors handed out are views over these buffers and are reused
+ * as long as the batch size stays the same, so the steady state of a training loop allocates nothing.
+ */
+public class Workspace {
+    private final int capacity;
+    private final Tensor.Precision precision;
+    private final int[][] shapes;
+    private final Tensor[] activations;
+    private final Tensor[] gradients;
+    private final Tensor[] activationViews;
+    private final Tensor[] gradientViews;
+
+    /**
+     * Plans double-precision buffers for a network.
+     *
+     * @param shapes the sample shape at every position of the network, starting with the input shape
+     * @param capacity the largest batch size the buffers must hold
+     * @throws IllegalArgumentException if the capacity is smaller than one
+     */
+    public Workspace(List<int[]> shapes, int capacity) {
+        this(shapes, capacity, Tensor.Precision.DOUBLE);
+    }
+
+    /**
+     * Plans the buffers for a network.
+     *
+     * @param shapes the sample shape at every position of the network, starting with the input shape
+     * @param capacity the largest batch size the buffers must hold
+     * @param precision the element type of the buffers
+     * @throws IllegalArgumentException if the capacity is smaller than one
+     */
+    public Workspace(List<int[]> shapes, int capacity, Tensor.Precision precision) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Workspace capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.precision = precision;
+        this.shapes = new int[shapes.size()][];
+        for (int i = 0; i < this.shapes.length; i++) {
+            this.shapes[i] = shapes.get(i).clone();
+        }
+        this.activations = new Tensor[this.shapes.length];
+        this.gradients = new Tensor[this.shapes.length];
+        this.activationViews = new Tensor[this.shapes.length];
+        this.gradientViews = new Tensor[this.shapes.length];
+    }
+
+    /**
+     * Returns the largest batch size the buffers can hold.
+     *
+     * @return the capacity in samples
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the element type of the buffers.
+     *
+     * @return the precision of the workspace
+     */
+    public Tensor.Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Returns the number of positions the workspace was planned for.
+     *
+     * @return the number of layers plus one
+     */
+    public int getPositions() {
+        return shapes.length;
+    }
+
+    /**
+     * Returns the buffer for the activations at a position. Its contents are left over from the previous use.
+     *
+     * @param position the position in the network, 0 for the input
+     * @param batchSize the number of samples in the batch
+     * @return a tensor of shape [batchSize, ...shape] backed by the workspace
+     * @throws IllegalArgumentException if the batch size exceeds the capacity
+     */
+    public Tensor activation(int position, int batchSize) {
+        if (activations[position] == null) {
+            activations[position] = Tensor.zeros(precision, capacity * Tensor.sizeOf(shapes[position]));
+        }
+        activationViews[position] = view(activations[position], activationViews[position], position, batchSize);
+        return activationViews[position];
+    }
+
+    /**
+     * Returns the buffer for the gradients of the loss with respect to the activations at a position.
+     * Its contents are left over from the previous use.
+     *
+     * @param position the position in the network, 0 for the input
+     * @param batchSize the number of samples in the batch
+     * @return a tensor of shape [batchSize, ...shape] backed by the workspace
+     * @throws IllegalArgumentException if the batch size exceeds the capacity
+     */
+    public Tensor gradient(int position, int batchSize) {
+        if (gradients[position] == null) {
+            gradients[position] = Tensor.zeros(precision, capacity * Tensor.sizeOf(shapes[position]));
+        }
+        gradientViews[position] = view(gradients[position], gradientViews[position], position, batchSize);
+        return gradientViews[position];
+    }
+
+    /**
+     * Returns the cached view if it already covers the requested batch size, otherwise a new view.
+     */
+    private Tensor view(Tensor buffer, Tensor cached, int position, int batchSize) {
+        if (batchSize > capacity) {
+            throw new IllegalArgumentException("Batch size " + batchSize + " exceeds workspace capacity " + capacity);
+        }
+        if (cached != null && cached.shape(0) == batchSize) {
+            return cached;
+        }
+        int[] shape = new int[shapes[position].length + 1];
+        shape[0] = batchSize;
+        System.arraycopy(shapes[position], 0, shape, 1, shapes[position].length);
+        return precision == Tensor.Precision.FLOAT ? Tensor.wrap(buffer.getFloatData(), 0, shape) : Tensor.wrap(buffer.getData(), 0, shape);
+    }
+
+    @Override
+    public String toString() {
+        return "Workspace[capacity=" + capacity + ", precision=" + precision + ", shapes=" + Arrays.deepToString(shapes) + "]";
+    }
+}
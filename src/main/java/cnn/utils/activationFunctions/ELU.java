@@ -11,6 +11,7 @@ import cnn.interfaces.ActivationFunction;
  * This activation function is used to introduce non-linearity in the network.
  */
 public class ELU implements ActivationFunction, Serializable{
+    private static final long serialVersionUID = -4298341427354354240L;
     private double alpha;
 
     /**
@@ -43,4 +44,13 @@ public class ELU implements ActivationFunction, Serializable{
     public double derivative(double x) {
         return x > 0 ? 1 : alpha * Math.exp(x);
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the alpha parameter.
+     *
+     * @return the alpha parameter
+     */
+    public double getAlpha() {
+        return alpha;
+    }
+}
@@ -44,4 +44,13 @@ public class LeakyReLU implements ActivationFunction, Serializable {
     public double derivative(double x) {
         return x > 0 ? 1 : alpha;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the alpha parameter.
+     *
+     * @return the alpha parameter
+     */
+    public double getAlpha() {
+        return alpha;
+    }
+}
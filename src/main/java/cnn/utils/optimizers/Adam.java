@@ -0,0 +1,106 @@
+package cnn.utils.optimizers;
+
+/**
+ * Adam, which moves every parameter by a bias-corrected running mean of its gradient divided by a
+ * bias-corrected running root mean square: m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2
+ * and p = p - learningRate * (m / (1 - beta1^t)) / (sqrt(v / (1 - beta2^t)) + epsilon) at step t.
+ * The bias corrections are computed once per step, so the pass over the parameters stays fused.
+ */
+public class Adam extends FlatOptimizer {
+    private static final long serialVersionUID = 1L;
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+    private transient double meanCorrection;
+    private transient double squareCorrection;
+
+    /**
+     * Constructs an Adam optimizer with the usual coefficients: beta1 0.9, beta2 0.999 and epsilon 1e-8.
+     */
+    public Adam() {
+        this(0.9, 0.999, 1e-8);
+    }
+
+    /**
+     * Constructs an Adam optimizer.
+     *
+     * @param beta1 the decay of the mean, in [0, 1)
+     * @param beta2 the decay of the mean square, in [0, 1)
+     * @param epsilon the term added to the root mean square to avoid division by zero
+     * @throws IllegalArgumentException if a decay is not in [0, 1) or epsilon is not positive
+     */
+    public Adam(double beta1, double beta2, double epsilon) {
+        super(2);
+        if (!(beta1 >= 0 && beta1 < 1) || !(beta2 >= 0 && beta2 < 1) || !(epsilon > 0)) {
+            throw new IllegalArgumentException("Decays must be in [0, 1) and epsilon positive");
+        }
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    void beginStep(long step) {
+        meanCorrection = 1 / (1 - Math.pow(beta1, step));
+        squareCorrection = 1 / Math.sqrt(1 - Math.pow(beta2, step));
+    }
+
+    @Override
+    void update(double[] parameter, int parameterOffset, double[] gradient, int gradientOffset,
+                double[][] buffers, int size, double learningRate, double gradientScale) {
+        double[] mean = buffers[0];
+        double[] meanSquare = buffers[1];
+        double step = learningRate * meanCorrection;
+        for (int i = 0; i < size; i++) {
+            double g = gradientScale * gradient[gradientOffset + i];
+            double m = beta1 * mean[i] + (1 - beta1) * g;
+            double v = beta2 * meanSquare[i] + (1 - beta2) * g * g;
+            mean[i] = m;
+            meanSquare[i] = v;
+            parameter[parameterOffset + i] -= step * m / (Math.sqrt(v) * squareCorrection + epsilon);
+        }
+    }
+
+    @Override
+    void update(float[] parameter, int parameterOffset, float[] gradient, int gradientOffset,
+                float[][] buffers, int size, double learningRate, double gradientScale) {
+        float[] mean = buffers[0];
+        float[] meanSquare = buffers[1];
+        double step = learningRate * meanCorrection;
+        for (int i = 0; i < size; i++) {
+            double g = gradientScale * gradient[gradientOffset + i];
+            double m = beta1 * mean[i] + (1 - beta1) * g;
+            double v = beta2 * meanSquare[i] + (1 - beta2) * g * g;
+            mean[i] = (float) m;
+            meanSquare[i] = (float) v;
+            parameter[parameterOffset + i] = (float) (parameter[parameterOffset + i] - step * m / (Math.sqrt(v) * squareCorrection + epsilon));
+        }
+    }
+
+    /**
+     * Returns the decay of the mean.
+     *
+     * @return beta1
+     */
+    public double getBeta1() {
+        return beta1;
+    }
+
+    /**
+     * Returns the decay of the mean square.
+     *
+     * @return beta2
+     */
+    public double getBeta2() {
+        return beta2;
+    }
+
+    /**
+     * Returns the term added to the root mean square.
+     *
+     * @return epsilon
+     */
+    public double getEpsilon() {
+        return epsilon;
+    }
+}
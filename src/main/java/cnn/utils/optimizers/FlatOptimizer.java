@@ -0,0 +1,169 @@
+package cnn.utils.optimizers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import cnn.interfaces.Optimizer;
+import cnn.utils.Tensor;
+
+/**
+ * Base class of the optimizers, which keeps a fixed number of state buffers per parameter, each a flat tensor
+ * of the size and precision of the parameter, and runs one fused pass over every parameter, its gradient and
+ * its buffers. The state starts with a one-element tensor counting the steps taken, followed by the buffers
+ * of each parameter in turn.
+ */
+abstract class FlatOptimizer implements Optimizer, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int buffersPerParameter;
+    private List<Tensor> state = new ArrayList<>();
+
+    /**
+     * Constructs an optimizer keeping the given number of buffers per parameter.
+     *
+     * @param buffersPerParameter the number of state buffers of each parameter
+     */
+    FlatOptimizer(int buffersPerParameter) {
+        this.buffersPerParameter = buffersPerParameter;
+    }
+
+    /**
+     * Updates every parameter that has a gradient in one pass over its elements, with the regularization of the
+     * parameter applied around the pass. The state is allocated on the first step and converted if the precision
+     * of a parameter has changed since.
+     */
+    @Override
+    public void update(List<Tensor> parameters, List<Tensor> gradients, List<Regularization> regularization, double learningRate, double gradientScale) {
+        if (parameters.size() != gradients.size() || parameters.size() != regularization.size()) {
+            throw new IllegalArgumentException("Got " + gradients.size() + " gradients and " + regularization.size() + " penalties for " + parameters.size() + " parameters");
+        }
+        if (state.isEmpty()) {
+            state.add(Tensor.zeros(Tensor.Precision.DOUBLE, 1));
+            for (Tensor parameter : parameters) {
+                for (int b = 0; b < buffersPerParameter; b++) {
+                    state.add(Tensor.zeros(parameter.getPrecision(), parameter.size()));
+                }
+            }
+        } else if (state.size() != 1 + parameters.size() * buffersPerParameter) {
+            throw new IllegalArgumentException("Optimizer state holds " + (state.size() - 1) / Math.max(1, buffersPerParameter) + " parameters but got " + parameters.size());
+        }
+        Tensor steps = state.get(0);
+        steps.setFlat(0, steps.getFlat(0) + 1);
+        beginStep((long) steps.getFlat(0));
+
+        double[][] doubleBuffers = new double[buffersPerParameter][];
+        float[][] floatBuffers = new float[buffersPerParameter][];
+        for (int i = 0; i < parameters.size(); i++) {
+            Tensor parameter = parameters.get(i);
+            Tensor gradient = gradients.get(i);
+            if (gradient == null) {
+                continue;
+            }
+            if (!parameter.isContiguous() || !gradient.isContiguous() || gradient.size() != parameter.size()) {
+                throw new IllegalArgumentException("Parameter " + i + " and its gradient must be contiguous tensors of the same size");
+            }
+            if (gradient.getPrecision() != parameter.getPrecision()) {
+                gradient = gradient.toPrecision(parameter.getPrecision());
+            }
+            for (int b = 0; b < buffersPerParameter; b++) {
+                int index = 1 + i * buffersPerParameter + b;
+                Tensor buffer = state.get(index);
+                if (buffer.size() != parameter.size()) {
+                    throw new IllegalArgumentException("Optimizer state of parameter " + i + " holds " + buffer.size() + " values but the parameter has " + parameter.size());
+                }
+                if (buffer.getPrecision() != parameter.getPrecision()) {
+                    buffer = buffer.toPrecision(parameter.getPrecision());
+                    state.set(index, buffer);
+                }
+                if (parameter.getPrecision() == Tensor.Precision.FLOAT) {
+                    floatBuffers[b] = buffer.getFloatData();
+                } else {
+                    doubleBuffers[b] = buffer.getData();
+                }
+            }
+            Regularization penalty = regularization.get(i);
+            if (penalty != null && penalty.isActive()) {
+                penalty.beforeUpdate(parameter, gradient, learningRate, gradientScale);
+            }
+            if (parameter.getPrecision() == Tensor.Precision.FLOAT) {
+                update(parameter.getFloatData(), parameter.getOffset(), gradient.getFloatData(), gradient.getOffset(),
+                        floatBuffers, parameter.size(), learningRate, gradientScale);
+            } else {
+                update(parameter.getData(), parameter.getOffset(), gradient.getData(), gradient.getOffset(),
+                        doubleBuffers, parameter.size(), learningRate, gradientScale);
+            }
+            if (penalty != null && penalty.isActive()) {
+                penalty.afterUpdate(parameter, learningRate);
+            }
+        }
+    }
+
+    /**
+     * Prepares the coefficients of a step, before any parameter is updated.
+     *
+     * @param step the number of the step, counted from one
+     */
+    void beginStep(long step) {
+    }
+
+    /**
+     * Updates a double-precision parameter in place.
+     *
+     * @param parameter the parameter values
+     * @param parameterOffset the index of the first parameter value
+     * @param gradient the gradient values
+     * @param gradientOffset the index of the first gradient value
+     * @param buffers the state buffers of the parameter, each starting at index 0
+     * @param size the number of values
+     * @param learningRate the learning rate of the step
+     * @param gradientScale the factor applied to the gradients
+     */
+    abstract void update(double[] parameter, int parameterOffset, double[] gradient, int gradientOffset,
+                         double[][] buffers, int size, double learningRate, double gradientScale);
+
+    /**
+     * Updates a single-precision parameter in place; arithmetic is carried out in double precision.
+     *
+     * @param parameter the parameter values
+     * @param parameterOffset the index of the first parameter value
+     * @param gradient the gradient values
+     * @param gradientOffset the index of the first gradient value
+     * @param buffers the state buffers of the parameter, each starting at index 0
+     * @param size the number of values
+     * @param learningRate the learning rate of the step
+     * @param gradientScale the factor applied to the gradients
+     */
+    abstract void update(float[] parameter, int parameterOffset, float[] gradient, int gradientOffset,
+                         float[][] buffers, int size, double learningRate, double gradientScale);
+
+    /**
+     * Returns the step counter followed by the buffers of every parameter.
+     *
+     * @return the state tensors, or an empty list before the first step
+     */
+    @Override
+    public List<Tensor> getState() {
+        return Collections.unmodifiableList(state);
+    }
+
+    /**
+     * Replaces the step counter and the buffers with copies of the given tensors.
+     *
+     * @param state the state tensors
+     * @throws IllegalArgumentException if the tensors are not a step counter followed by whole sets of buffers
+     */
+    @Override
+    public void setState(List<Tensor> state) {
+        if (!state.isEmpty() && (state.get(0).size() != 1 || (state.size() - 1) % Math.max(1, buffersPerParameter) != 0
+                || buffersPerParameter == 0 && state.size() != 1)) {
+            throw new IllegalArgumentException("Not the state of a " + getClass().getSimpleName() + " optimizer");
+        }
+        List<Tensor> copies = new ArrayList<>(state.size());
+        for (Tensor tensor : state) {
+            copies.add(tensor.copy().reshape(tensor.size()));
+        }
+        this.state = copies;
+    }
+}
@@ -0,0 +1,79 @@
+package cnn.utils.optimizers;
+
+/**
+ * Gradient descent with momentum, which accumulates a velocity per parameter:
+ * v = momentum * v + g and p = p - learningRate * v. With Nesterov momentum the parameter moves by the
+ * velocity one step ahead instead: p = p - learningRate * (g + momentum * v).
+ */
+public class Momentum extends FlatOptimizer {
+    private static final long serialVersionUID = 1L;
+    private final double momentum;
+    private final boolean nesterov;
+
+    /**
+     * Constructs a momentum optimizer.
+     *
+     * @param momentum the decay of the velocity, usually 0.9
+     */
+    public Momentum(double momentum) {
+        this(momentum, false);
+    }
+
+    /**
+     * Constructs a momentum optimizer, optionally with Nesterov momentum.
+     *
+     * @param momentum the decay of the velocity, usually 0.9
+     * @param nesterov whether to use Nesterov momentum
+     * @throws IllegalArgumentException if momentum is not in [0, 1)
+     */
+    public Momentum(double momentum, boolean nesterov) {
+        super(1);
+        if (!(momentum >= 0 && momentum < 1)) {
+            throw new IllegalArgumentException("Momentum must be in [0, 1)");
+        }
+        this.momentum = momentum;
+        this.nesterov = nesterov;
+    }
+
+    @Override
+    void update(double[] parameter, int parameterOffset, double[] gradient, int gradientOffset,
+                double[][] buffers, int size, double learningRate, double gradientScale) {
+        double[] velocity = buffers[0];
+        for (int i = 0; i < size; i++) {
+            double g = gradientScale * gradient[gradientOffset + i];
+            double v = momentum * velocity[i] + g;
+            velocity[i] = v;
+            parameter[parameterOffset + i] -= learningRate * (nesterov ? g + momentum * v : v);
+        }
+    }
+
+    @Override
+    void update(float[] parameter, int parameterOffset, float[] gradient, int gradientOffset,
+                float[][] buffers, int size, double learningRate, double gradientScale) {
+        float[] velocity = buffers[0];
+        for (int i = 0; i < size; i++) {
+            double g = gradientScale * gradient[gradientOffset + i];
+            double v = momentum * velocity[i] + g;
+            velocity[i] = (float) v;
+            parameter[parameterOffset + i] = (float) (parameter[parameterOffset + i] - learningRate * (nesterov ? g + momentum * v : v));
+        }
+    }
+
+    /**
+     * Returns the decay of the velocity.
+     *
+     * @return the momentum
+     */
+    public double getMomentum() {
+        return momentum;
+    }
+
+    /**
+     * Returns whether Nesterov momentum is used.
+     *
+     * @return true for Nesterov momentum
+     */
+    public boolean isNesterov() {
+        return nesterov;
+    }
+}
@@ -0,0 +1,76 @@
+package cnn.utils.optimizers;
+
+/**
+ * RMSProp, which divides every gradient by a running root mean square of its recent values:
+ * s = decay * s + (1 - decay) * g^2 and p = p - learningRate * g / (sqrt(s) + epsilon).
+ */
+public class RMSProp extends FlatOptimizer {
+    private static final long serialVersionUID = 1L;
+    private final double decay;
+    private final double epsilon;
+
+    /**
+     * Constructs an RMSProp optimizer with a decay of 0.9 and an epsilon of 1e-8.
+     */
+    public RMSProp() {
+        this(0.9, 1e-8);
+    }
+
+    /**
+     * Constructs an RMSProp optimizer.
+     *
+     * @param decay the decay of the mean square, in [0, 1)
+     * @param epsilon the term added to the root mean square to avoid division by zero
+     * @throws IllegalArgumentException if decay is not in [0, 1) or epsilon is not positive
+     */
+    public RMSProp(double decay, double epsilon) {
+        super(1);
+        if (!(decay >= 0 && decay < 1) || !(epsilon > 0)) {
+            throw new IllegalArgumentException("Decay must be in [0, 1) and epsilon positive");
+        }
+        this.decay = decay;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    void update(double[] parameter, int parameterOffset, double[] gradient, int gradientOffset,
+                double[][] buffers, int size, double learningRate, double gradientScale) {
+        double[] meanSquare = buffers[0];
+        for (int i = 0; i < size; i++) {
+            double g = gradientScale * gradient[gradientOffset + i];
+            double s = decay * meanSquare[i] + (1 - decay) * g * g;
+            meanSquare[i] = s;
+            parameter[parameterOffset + i] -= learningRate * g / (Math.sqrt(s) + epsilon);
+        }
+    }
+
+    @Override
+    void update(float[] parameter, int parameterOffset, float[] gradient, int gradientOffset,
+                float[][] buffers, int size, double learningRate, double gradientScale) {
+        float[] meanSquare = buffers[0];
+        for (int i = 0; i < size; i++) {
+            double g = gradientScale * gradient[gradientOffset + i];
+            double s = decay * meanSquare[i] + (1 - decay) * g * g;
+            meanSquare[i] = (float) s;
+            parameter[parameterOffset + i] = (float) (parameter[parameterOffset + i] - learningRate * g / (Math.sqrt(s) + epsilon));
+        }
+    }
+
+    /**
+     * Returns the decay of the mean square.
+     *
+     * @return the decay
+     */
+    public double getDecay() {
+        return decay;
+    }
+
+    /**
+     * Returns the term added to the root mean square.
+     *
+     * @return epsilon
+     */
+    public double getEpsilon() {
+        return epsilon;
+    }
+}
@@ -0,0 +1,161 @@
+package cnn.utils.optimizers;
+
+import java.io.Serializable;
+
+import cnn.utils.Tensor;
+
+/**
+ * The L1 and L2 penalties of a parameter and how an optimizer applies them, once per step.
+ * {@link Mode#COUPLED} adds lambdaL1 * sign(w) + lambdaL2 * w to the averaged gradient before the update rule
+ * sees it, which is the gradient of the penalty lambdaL1 * |w| + lambdaL2 / 2 * w^2 added to the loss.
+ * {@link Mode#DECOUPLED} leaves the gradient alone: the parameter decays by w = w * (1 - learningRate * lambdaL2)
+ * and is then shrunk towards zero by the proximal step of the L1 penalty,
+ * w = sign(w) * max(|w| - learningRate * lambdaL1, 0), which sets small weights exactly to zero.
+ * For plain gradient descent both modes give the same L2 update; with adaptive optimizers such as Adam
+ * decoupled decay is not rescaled by the gradient statistics.
+ */
+public final class Regularization implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How the penalties enter the update.
+     */
+    public enum Mode {
+        /** The penalty gradients are added to the loss gradient. */
+        COUPLED,
+        /** Weight decay and proximal L1 shrinkage are applied to the parameter directly. */
+        DECOUPLED
+    }
+
+    private final double lambdaL1;
+    private final double lambdaL2;
+    private final Mode mode;
+
+    /**
+     * Constructs the regularization of a parameter.
+     *
+     * @param lambdaL1 the L1 coefficient, or 0 for none
+     * @param lambdaL2 the L2 coefficient, or 0 for none
+     * @param mode how the penalties are applied
+     * @throws IllegalArgumentException if a coefficient is negative or the mode is null
+     */
+    public Regularization(double lambdaL1, double lambdaL2, Mode mode) {
+        if (!(lambdaL1 >= 0) || !(lambdaL2 >= 0) || mode == null) {
+            throw new IllegalArgumentException("Regularization coefficients must not be negative and the mode must be set");
+        }
+        this.lambdaL1 = lambdaL1;
+        this.lambdaL2 = lambdaL2;
+        this.mode = mode;
+    }
+
+    /**
+     * Returns whether any penalty is applied.
+     *
+     * @return true if a coefficient is not zero
+     */
+    public boolean isActive() {
+        return lambdaL1 != 0 || lambdaL2 != 0;
+    }
+
+    /**
+     * Applies the part of the regularization that precedes the update rule: the penalty gradient in the coupled
+     * mode, which is added to the gradient in place, or the weight decay in the decoupled mode.
+     *
+     * @param parameter the parameter
+     * @param gradient the accumulated gradient of the parameter, in its precision
+     * @param learningRate the learning rate of the step
+     * @param gradientScale the factor the update rule applies to the gradient
+     */
+    void beforeUpdate(Tensor parameter, Tensor gradient, double learningRate, double gradientScale) {
+        int size = parameter.size();
+        int p = parameter.getOffset();
+        if (mode == Mode.COUPLED) {
+            // The update rule scales the gradient, so the penalty is divided by the same factor first
+            double l1 = lambdaL1 / gradientScale;
+            double l2 = lambdaL2 / gradientScale;
+            int g = gradient.getOffset();
+            if (parameter.getPrecision() == Tensor.Precision.FLOAT) {
+                float[] w = parameter.getFloatData();
+                float[] d = gradient.getFloatData();
+                for (int i = 0; i < size; i++) {
+                    d[g + i] += (float) (l1 * Math.signum(w[p + i]) + l2 * w[p + i]);
+                }
+            } else {
+                double[] w = parameter.getData();
+                double[] d = gradient.getData();
+                for (int i = 0; i < size; i++) {
+                    d[g + i] += l1 * Math.signum(w[p + i]) + l2 * w[p + i];
+                }
+            }
+        } else if (lambdaL2 != 0) {
+            double decay = 1 - learningRate * lambdaL2;
+            if (parameter.getPrecision() == Tensor.Precision.FLOAT) {
+                float[] w = parameter.getFloatData();
+                for (int i = 0; i < size; i++) {
+                    w[p + i] = (float) (w[p + i] * decay);
+                }
+            } else {
+                double[] w = parameter.getData();
+                for (int i = 0; i < size; i++) {
+                    w[p + i] *= decay;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the part of the regularization that follows the update rule: the proximal L1 step in the
+     * decoupled mode.
+     *
+     * @param parameter the updated parameter
+     * @param learningRate the learning rate of the step
+     */
+    void afterUpdate(Tensor parameter, double learningRate) {
+        if (mode != Mode.DECOUPLED || lambdaL1 == 0) {
+            return;
+        }
+        double threshold = learningRate * lambdaL1;
+        int size = parameter.size();
+        int p = parameter.getOffset();
+        if (parameter.getPrecision() == Tensor.Precision.FLOAT) {
+            float[] w = parameter.getFloatData();
+            for (int i = 0; i < size; i++) {
+                double value = w[p + i];
+                w[p + i] = (float) (Math.signum(value) * Math.max(Math.abs(value) - threshold, 0));
+            }
+        } else {
+            double[] w = parameter.getData();
+            for (int i = 0; i < size; i++) {
+                double value = w[p + i];
+                w[p + i] = Math.signum(value) * Math.max(Math.abs(value) - threshold, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the L1 coefficient.
+     *
+     * @return lambdaL1
+     */
+    public double getLambdaL1() {
+        return lambdaL1;
+    }
+
+    /**
+     * Returns the L2 coefficient.
+     *
+     * @return lambdaL2
+     */
+    public double getLambdaL2() {
+        return lambdaL2;
+    }
+
+    /**
+     * Returns how the penalties are applied.
+     *
+     * @return the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+}
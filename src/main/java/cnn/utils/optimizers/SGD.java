@@ -0,0 +1,34 @@
+package cnn.utils.optimizers;
+
+/**
+ * Plain stochastic gradient descent, which moves every parameter against its gradient:
+ * p = p - learningRate * g. It keeps no state besides the step counter.
+ */
+public class SGD extends FlatOptimizer {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a plain gradient descent optimizer.
+     */
+    public SGD() {
+        super(0);
+    }
+
+    @Override
+    void update(double[] parameter, int parameterOffset, double[] gradient, int gradientOffset,
+                double[][] buffers, int size, double learningRate, double gradientScale) {
+        double step = learningRate * gradientScale;
+        for (int i = 0; i < size; i++) {
+            parameter[parameterOffset + i] -= step * gradient[gradientOffset + i];
+        }
+    }
+
+    @Override
+    void update(float[] parameter, int parameterOffset, float[] gradient, int gradientOffset,
+                float[][] buffers, int size, double learningRate, double gradientScale) {
+        double step = learningRate * gradientScale;
+        for (int i = 0; i < size; i++) {
+            parameter[parameterOffset + i] = (float) (parameter[parameterOffset + i] - step * gradient[gradientOffset + i]);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cnn.utils.schedules;
+
+import java.io.Serializable;
+
+import cnn.interfaces.LearningRateSchedule;
+
+/**
+ * A learning rate that stays the same for the whole run.
+ */
+public class ConstantSchedule implements LearningRateSchedule, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final double learningRate;
+
+    /**
+     * Constructs a constant schedule.
+     *
+     * @param learningRate the learning rate of every step
+     */
+    public ConstantSchedule(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    public double learningRate(long step, long totalSteps) {
+        return learningRate;
+    }
+}
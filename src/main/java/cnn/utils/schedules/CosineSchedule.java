@@ -0,0 +1,41 @@
+package cnn.utils.schedules;
+
+import java.io.Serializable;
+
+import cnn.interfaces.LearningRateSchedule;
+
+/**
+ * A learning rate that follows half a cosine from a maximum at the first step to a minimum at the last:
+ * minRate + (maxRate - minRate) * (1 + cos(pi * step / totalSteps)) / 2.
+ */
+public class CosineSchedule implements LearningRateSchedule, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final double maxRate;
+    private final double minRate;
+
+    /**
+     * Constructs a cosine annealing schedule that decays to zero.
+     *
+     * @param maxRate the learning rate of the first step
+     */
+    public CosineSchedule(double maxRate) {
+        this(maxRate, 0.0);
+    }
+
+    /**
+     * Constructs a cosine annealing schedule.
+     *
+     * @param maxRate the learning rate of the first step
+     * @param minRate the learning rate reached at the end of the run
+     */
+    public CosineSchedule(double maxRate, double minRate) {
+        this.maxRate = maxRate;
+        this.minRate = minRate;
+    }
+
+    @Override
+    public double learningRate(long step, long totalSteps) {
+        double progress = totalSteps <= 0 ? 1.0 : Math.min(1.0, (double) step / totalSteps);
+        return minRate + (maxRate - minRate) * (1 + Math.cos(Math.PI * progress)) / 2;
+    }
+}
@@ -0,0 +1,65 @@
+package cnn.utils.schedules;
+
+import java.io.Serializable;
+
+import cnn.interfaces.LearningRateSchedule;
+
+/**
+ * The one-cycle policy: the learning rate rises along a cosine from maxRate / divFactor to maxRate over the
+ * first part of the run, then falls along a cosine to maxRate / (divFactor * finalDivFactor) at the end.
+ */
+public class OneCycleSchedule implements LearningRateSchedule, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final double maxRate;
+    private final double warmupFraction;
+    private final double divFactor;
+    private final double finalDivFactor;
+
+    /**
+     * Constructs a one-cycle schedule that rises over the first 30% of the run, starting at maxRate / 25 and
+     * ending at maxRate / 25 / 10000.
+     *
+     * @param maxRate the peak learning rate
+     */
+    public OneCycleSchedule(double maxRate) {
+        this(maxRate, 0.3, 25, 1e4);
+    }
+
+    /**
+     * Constructs a one-cycle schedule.
+     *
+     * @param maxRate the peak learning rate
+     * @param warmupFraction the fraction of the run spent rising to the peak, in (0, 1)
+     * @param divFactor the ratio of the peak to the initial learning rate
+     * @param finalDivFactor the ratio of the initial to the final learning rate
+     * @throws IllegalArgumentException if warmupFraction is not in (0, 1) or a factor is not positive
+     */
+    public OneCycleSchedule(double maxRate, double warmupFraction, double divFactor, double finalDivFactor) {
+        if (!(warmupFraction > 0 && warmupFraction < 1) || !(divFactor > 0) || !(finalDivFactor > 0)) {
+            throw new IllegalArgumentException("Warmup fraction must be in (0, 1) and the factors positive");
+        }
+        this.maxRate = maxRate;
+        this.warmupFraction = warmupFraction;
+        this.divFactor = divFactor;
+        this.finalDivFactor = finalDivFactor;
+    }
+
+    @Override
+    public double learningRate(long step, long totalSteps) {
+        double initialRate = maxRate / divFactor;
+        double finalRate = initialRate / finalDivFactor;
+        double peak = warmupFraction * totalSteps;
+        if (step < peak) {
+            return anneal(initialRate, maxRate, step / peak);
+        }
+        double remaining = totalSteps - peak;
+        return anneal(maxRate, finalRate, remaining <= 0 ? 1.0 : Math.min(1.0, (step - peak) / remaining));
+    }
+
+    /**
+     * Moves from one rate to another along half a cosine.
+     */
+    private static double anneal(double from, double to, double progress) {
+        return to + (from - to) * (1 + Math.cos(Math.PI * progress)) / 2;
+    }
+}
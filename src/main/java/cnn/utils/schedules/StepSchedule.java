@@ -0,0 +1,38 @@
+package cnn.utils.schedules;
+
+import java.io.Serializable;
+
+import cnn.interfaces.LearningRateSchedule;
+
+/**
+ * A learning rate that is multiplied by a fixed factor every given number of steps:
+ * initialRate * gamma^floor(step / stepSize).
+ */
+public class StepSchedule implements LearningRateSchedule, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final double initialRate;
+    private final long stepSize;
+    private final double gamma;
+
+    /**
+     * Constructs a step decay schedule.
+     *
+     * @param initialRate the learning rate of the first steps
+     * @param stepSize the number of steps between decays, such as a few epochs worth of mini-batches
+     * @param gamma the factor applied at every decay, usually 0.1 to 0.5
+     * @throws IllegalArgumentException if stepSize is not positive
+     */
+    public StepSchedule(double initialRate, long stepSize, double gamma) {
+        if (stepSize < 1) {
+            throw new IllegalArgumentException("Step size must be at least 1");
+        }
+        this.initialRate = initialRate;
+        this.stepSize = stepSize;
+        this.gamma = gamma;
+    }
+
+    @Override
+    public double learningRate(long step, long totalSteps) {
+        return initialRate * Math.pow(gamma, step / stepSize);
+    }
+}
@@ -0,0 +1,40 @@
+package cnn.utils.schedules;
+
+import java.io.Serializable;
+
+import cnn.interfaces.LearningRateSchedule;
+
+/**
+ * Linear warmup in front of another schedule: over the first warmupSteps steps the learning rate rises
+ * linearly from zero to the rate the schedule gives at the end of the warmup, after which the schedule
+ * continues as if the warmup steps were not part of the run.
+ */
+public class WarmupSchedule implements LearningRateSchedule, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final LearningRateSchedule schedule;
+    private final long warmupSteps;
+
+    /**
+     * Constructs a warmup in front of a schedule.
+     *
+     * @param schedule the schedule that follows the warmup
+     * @param warmupSteps the number of warmup steps
+     * @throws IllegalArgumentException if warmupSteps is negative
+     */
+    public WarmupSchedule(LearningRateSchedule schedule, long warmupSteps) {
+        if (warmupSteps < 0) {
+            throw new IllegalArgumentException("Warmup steps must not be negative");
+        }
+        this.schedule = schedule;
+        this.warmupSteps = warmupSteps;
+    }
+
+    @Override
+    public double learningRate(long step, long totalSteps) {
+        long remaining = Math.max(0, totalSteps - warmupSteps);
+        if (step < warmupSteps) {
+            return schedule.learningRate(0, remaining) * (step + 1) / warmupSteps;
+        }
+        return schedule.learningRate(step - warmupSteps, remaining);
+    }
+}
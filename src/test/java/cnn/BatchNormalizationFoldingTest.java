@@ -0,0 +1,139 @@
+package cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import cnn.interfaces.Layer;
+import cnn.layers.BatchNormalizationLayer;
+import cnn.layers.ConvolutionalLayer;
+import cnn.layers.FlattenLayer;
+import cnn.layers.FullyConnectedLayer;
+import cnn.layers.PoolingLayer;
+import cnn.layers.SoftmaxLayer;
+import cnn.utils.Tensor;
+import cnn.utils.activationFunctions.ELU;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that folding batch normalization into the following layers removes the layers that can be folded
+ * and keeps the outputs of the network.
+ */
+public class BatchNormalizationFoldingTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public BatchNormalizationFoldingTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( BatchNormalizationFoldingTest.class );
+    }
+
+    /**
+     * Builds the architecture of Main in miniature, with statistics and scales that differ per channel.
+     */
+    private static CNN createNetwork(Tensor.Precision precision, double firstScaleSign)
+    {
+        CNN network = new CNN(1, 9, 9);
+        network.setPrecision(precision);
+        network.addLayer(new ConvolutionalLayer(3, 4, 1, new ELU(1)));
+        network.addLayer(new BatchNormalizationLayer(4));
+        network.addLayer(new ConvolutionalLayer(2, 3, 1, new ELU(1)));
+        network.addLayer(new BatchNormalizationLayer(3));
+        network.addLayer(new PoolingLayer(2, PoolingLayer.PoolingType.MAX));
+        network.addLayer(new FlattenLayer());
+        network.addLayer(new FullyConnectedLayer(6, new ELU(1)));
+        network.addLayer(new BatchNormalizationLayer(6));
+        network.addLayer(new FullyConnectedLayer(3, new ELU(1)));
+        network.addLayer(new SoftmaxLayer());
+        for (Layer layer : network.getLayers()) {
+            if (layer instanceof BatchNormalizationLayer) {
+                BatchNormalizationLayer normalization = (BatchNormalizationLayer) layer;
+                List<Tensor> parameters = normalization.getParameters();
+                for (int d = 0; d < normalization.getDepth(); d++) {
+                    parameters.get(0).setFlat(d, (d == 0 ? firstScaleSign : 1.0) * (0.5 + 0.3 * d));
+                    parameters.get(1).setFlat(d, 0.2 * d - 0.1);
+                    normalization.getRunningMean().setFlat(d, 0.4 - 0.15 * d);
+                    normalization.getRunningVariance().setFlat(d, 0.6 + 0.25 * d);
+                }
+            }
+        }
+        return network;
+    }
+
+    private static int countNormalizations(CNN network)
+    {
+        int count = 0;
+        for (Layer layer : network.getLayers()) {
+            if (layer instanceof BatchNormalizationLayer) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testFoldsEveryNormalizationAndKeepsOutputs()
+    {
+        for (Tensor.Precision precision : Tensor.Precision.values()) {
+            CNN network = createNetwork(precision, 1.0);
+            CNN folded = network.foldBatchNormalization();
+            assertEquals(0, countNormalizations(folded));
+            assertEquals(network.getLayers().size() - 3, folded.getLayers().size());
+            assertEquals(3, countNormalizations(network));
+
+            Tensor input = Tensor.zeros(precision, 5, 1, 9, 9);
+            for (int k = 0; k < input.size(); k++) {
+                input.setFlat(k, (k * 29 % 81) / 81.0 - 0.3);
+            }
+            Tensor expected = network.forwardBatch(input).copy();
+            Tensor actual = folded.forwardBatch(input);
+            for (int k = 0; k < expected.size(); k++) {
+                assertEquals(expected.getFlat(k), actual.getFlat(k), precision == Tensor.Precision.FLOAT ? 1e-5 : 1e-12);
+            }
+        }
+    }
+
+    public void testKeepsNormalizationWithNegativeScaleBeforeMaxPooling()
+    {
+        CNN network = createNetwork(Tensor.Precision.DOUBLE, -1.0);
+        CNN folded = network.foldBatchNormalization();
+        // The first layer still folds into the convolution after it, the second cannot pass the max pooling
+        assertEquals(1, countNormalizations(folded));
+        assertTrue(folded.getLayers().get(2) instanceof BatchNormalizationLayer);
+    }
+
+    public void testFoldsMappedModel() throws IOException
+    {
+        File file = File.createTempFile("model", ".cnnm");
+        try {
+            CNN network = createNetwork(Tensor.Precision.FLOAT, 1.0);
+            network.saveNetwork(file.getPath());
+            CNN mapped = CNN.mapNetwork(file.getPath());
+            assertTrue(((ConvolutionalLayer) mapped.getLayers().get(0)).getParameters().get(0).isBuffered());
+
+            CNN folded = mapped.foldBatchNormalization();
+            assertEquals(0, countNormalizations(folded));
+            // The mapped parameters are left as they were
+            Tensor filters = ((ConvolutionalLayer) mapped.getLayers().get(2)).getParameters().get(0);
+            Tensor original = ((ConvolutionalLayer) network.getLayers().get(2)).getParameters().get(0);
+            for (int k = 0; k < filters.size(); k++) {
+                assertEquals(original.getFlat(k), filters.getFlat(k), 0.0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
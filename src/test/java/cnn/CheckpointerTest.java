@@ -0,0 +1,80 @@
+package cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import cnn.layers.FullyConnectedLayer;
+import cnn.utils.activationFunctions.ReLU;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that checkpoints written in the background replace the model atomically and keep the older ones.
+ */
+public class CheckpointerTest
+    extends TestCase
+{
+    private Path directory;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CheckpointerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CheckpointerTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("checkpoints");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        directory.toFile().delete();
+    }
+
+    public void testKeepsRollingCheckpoints() throws IOException
+    {
+        CNN network = new CNN(3);
+        network.addLayer(new FullyConnectedLayer(2, new ReLU()));
+        String path = directory.resolve("model.cnnm").toString();
+
+        for (int version = 1; version <= 4; version++) {
+            ((FullyConnectedLayer) network.getLayers().get(0)).getParameters().get(1).setFlat(0, version);
+            try (Checkpointer checkpointer = new Checkpointer(path, 3)) {
+                checkpointer.save(network);
+                // The snapshot is taken by save, so later changes must not reach the file
+                ((FullyConnectedLayer) network.getLayers().get(0)).getParameters().get(1).setFlat(0, -1);
+            }
+        }
+
+        Checkpointer checkpointer = new Checkpointer(path, 3);
+        checkpointer.close();
+        for (int age = 0; age < 3; age++) {
+            CNN saved = ModelFormat.read(checkpointer.getPath(age).toString());
+            double bias = ((FullyConnectedLayer) saved.getLayers().get(0)).getParameters().get(1).getFlat(0);
+            assertEquals(4.0 - age, bias, 0.0);
+        }
+        assertFalse(Files.exists(checkpointer.getPath(3)));
+        assertEquals(3, directory.toFile().list().length);
+    }
+}
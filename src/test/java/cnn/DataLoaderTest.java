@@ -0,0 +1,119 @@
+package cnn;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import cnn.utils.ImageData;
+import cnn.utils.Tensor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the batches assembled by {@link DataLoader} cover the data set exactly once per epoch,
+ * that seeded epochs can be resumed at any batch and that failures of the producer threads reach the consumer.
+ */
+public class DataLoaderTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public DataLoaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DataLoaderTest.class );
+    }
+
+    public void testEveryEpochVisitsEverySampleOnce()
+    {
+        List<ImageData> samples = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            double[] label = new double[3];
+            label[i % 3] = 1.0;
+            samples.add(new ImageData(new Tensor(new double[]{i, i, i, i}, 1, 2, 2), label));
+        }
+
+        try (DataLoader loader = new DataLoader(samples, 5, true, Tensor.Precision.FLOAT, 3, 2, DataLoader.virtualThreadFactory())) {
+            assertEquals(5, loader.getNumBatches());
+            for (int epoch = 0; epoch < 3; epoch++) {
+                int[] seen = new int[samples.size()];
+                int total = 0;
+                for (DataLoader.Batch batch : loader) {
+                    assertEquals(Tensor.Precision.FLOAT, batch.getInputs().getPrecision());
+                    for (int n = 0; n < batch.size(); n++) {
+                        int index = (int) batch.getInputs().getFlat(n * 4 + 3);
+                        seen[index]++;
+                        assertEquals(1.0, batch.getLabels().getFlat(n * 3 + index % 3), 0.0);
+                    }
+                    total += batch.size();
+                }
+                assertEquals(samples.size(), total);
+                for (int count : seen) {
+                    assertEquals(1, count);
+                }
+            }
+        }
+    }
+
+    public void testSeededEpochResumesAtAnyBatch()
+    {
+        List<ImageData> samples = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            samples.add(new ImageData(new Tensor(new double[]{i}, 1, 1, 1), new double[]{1.0}));
+        }
+
+        try (DataLoader loader = new DataLoader(samples, 4, true, Tensor.Precision.DOUBLE, 3, 2, DataLoader.virtualThreadFactory())) {
+            loader.setSeed(42);
+            List<Double> full = new ArrayList<>();
+            Iterator<DataLoader.Batch> batches = loader.iterator(1, 0);
+            for (int index = 0; batches.hasNext(); index++) {
+                DataLoader.Batch batch = batches.next();
+                assertEquals(index, batch.getIndex());
+                for (int n = 0; n < batch.size(); n++) {
+                    full.add(batch.getInputs().getFlat(n));
+                }
+            }
+
+            // Another epoch in between must not change the order of epoch 1
+            for (DataLoader.Batch batch : loader) {
+                assertTrue(batch.size() > 0);
+            }
+            List<Double> resumed = new ArrayList<>();
+            for (batches = loader.iterator(1, 2); batches.hasNext(); ) {
+                DataLoader.Batch batch = batches.next();
+                for (int n = 0; n < batch.size(); n++) {
+                    resumed.add(batch.getInputs().getFlat(n));
+                }
+            }
+            assertEquals(full.subList(8, full.size()), resumed);
+            assertFalse(loader.iterator(1, loader.getNumBatches()).hasNext());
+        }
+    }
+
+    public void testProducerFailureReachesConsumer()
+    {
+        List<ImageData> samples = new ArrayList<>();
+        samples.add(new ImageData(new Tensor(1, 2, 2), new double[]{1.0}));
+        samples.add(new ImageData(new Tensor(1, 3, 3), new double[]{1.0}));
+
+        try (DataLoader loader = new DataLoader(samples, 1, false)) {
+            for (DataLoader.Batch batch : loader) {
+                assertEquals(1, batch.size());
+            }
+            fail("Expected the mismatched image to fail the epoch");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+    }
+}
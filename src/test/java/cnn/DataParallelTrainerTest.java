@@ -0,0 +1,120 @@
+package cnn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import cnn.interfaces.Layer;
+import cnn.interfaces.ParameterizedLayer;
+import cnn.layers.BatchNormalizationLayer;
+import cnn.layers.ConvolutionalLayer;
+import cnn.layers.FlattenLayer;
+import cnn.layers.FullyConnectedLayer;
+import cnn.layers.SoftmaxLayer;
+import cnn.utils.ImageData;
+import cnn.utils.Tensor;
+import cnn.utils.activationFunctions.ELU;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that training with several workers follows the same trajectory as training with one.
+ */
+public class DataParallelTrainerTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public DataParallelTrainerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( DataParallelTrainerTest.class );
+    }
+
+    private static CNN createNetwork()
+    {
+        CNN network = new CNN(1, 4, 4);
+        network.addLayer(new ConvolutionalLayer(2, 3, 1, new ELU(1)));
+        network.addLayer(new BatchNormalizationLayer(3));
+        network.addLayer(new FlattenLayer());
+        network.addLayer(new FullyConnectedLayer(5, new ELU(1)));
+        network.addLayer(new BatchNormalizationLayer(5));
+        network.addLayer(new FullyConnectedLayer(3, new ELU(1)));
+        network.addLayer(new SoftmaxLayer());
+        return network;
+    }
+
+    private static List<ImageData> createBatch(int step, int size)
+    {
+        List<ImageData> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            double[] image = new double[16];
+            for (int k = 0; k < image.length; k++) {
+                image[k] = Math.sin(step * 31 + i * 7 + k * 0.37);
+            }
+            double[] label = new double[3];
+            label[(step + i) % 3] = 1.0;
+            batch.add(new ImageData(new Tensor(image, 1, 4, 4), label));
+        }
+        return batch;
+    }
+
+    private static CNN train(CNN initial, int numWorkers) throws IOException
+    {
+        CNN network = ModelFormat.read(ByteBuffer.wrap(ModelFormat.toBytes(initial)), "copy");
+        try (DataParallelTrainer trainer = new DataParallelTrainer(network, numWorkers)) {
+            for (int step = 0; step < 3; step++) {
+                trainer.trainMiniBatch(createBatch(step, 8), 8, 0.1);
+            }
+        }
+        return network;
+    }
+
+    private static void assertSameTensors(Tensor expected, Tensor actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); k++) {
+            assertEquals(expected.getFlat(k), actual.getFlat(k), 1e-9);
+        }
+    }
+
+    /**
+     * Batch normalization must use the statistics of the whole mini-batch even when every worker sees only a
+     * shard of it, down to a single sample per worker.
+     */
+    public void testBatchNormalizationMatchesSingleWorker() throws IOException
+    {
+        CNN initial = createNetwork();
+        CNN expected = train(initial, 1);
+        for (int numWorkers : new int[]{3, 8}) {
+            CNN actual = train(initial, numWorkers);
+            for (int i = 0; i < expected.getLayers().size(); i++) {
+                Layer layer = expected.getLayers().get(i);
+                Layer other = actual.getLayers().get(i);
+                if (layer instanceof ParameterizedLayer) {
+                    List<Tensor> parameters = ((ParameterizedLayer) layer).getParameters();
+                    List<Tensor> otherParameters = ((ParameterizedLayer) other).getParameters();
+                    for (int p = 0; p < parameters.size(); p++) {
+                        assertSameTensors(parameters.get(p), otherParameters.get(p));
+                    }
+                }
+                if (layer instanceof BatchNormalizationLayer) {
+                    assertSameTensors(((BatchNormalizationLayer) layer).getRunningMean(), ((BatchNormalizationLayer) other).getRunningMean());
+                    assertSameTensors(((BatchNormalizationLayer) layer).getRunningVariance(), ((BatchNormalizationLayer) other).getRunningVariance());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package cnn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import cnn.layers.BatchNormalizationLayer;
+import cnn.layers.ConvolutionalLayer;
+import cnn.layers.DropoutLayer;
+import cnn.layers.FlattenLayer;
+import cnn.layers.FullyConnectedLayer;
+import cnn.layers.PoolingLayer;
+import cnn.layers.SoftmaxLayer;
+import cnn.utils.Tensor;
+import cnn.utils.activationFunctions.ELU;
+import cnn.utils.activationFunctions.LeakyReLU;
+import cnn.utils.activationFunctions.ReLU;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that networks written in the binary model format are read back with the same architecture and outputs.
+ */
+public class ModelFormatTest
+    extends TestCase
+{
+    private File file;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ModelFormatTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ModelFormatTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        file = File.createTempFile("model", ".cnnm");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testRoundTripReproducesOutputs() throws IOException
+    {
+        for (Tensor.Precision precision : Tensor.Precision.values()) {
+            CNN network = new CNN(1, 8, 8);
+            network.setPrecision(precision);
+            network.addLayer(new ConvolutionalLayer(3, 4, 1, new ELU(0.5), 0.0, 1e-4));
+            BatchNormalizationLayer normalization = new BatchNormalizationLayer(4);
+            for (int d = 0; d < 4; d++) {
+                normalization.getRunningMean().setFlat(d, 0.1 * d);
+                normalization.getRunningVariance().setFlat(d, 0.5 + d);
+            }
+            network.addLayer(normalization);
+            network.addLayer(new PoolingLayer(2, PoolingLayer.PoolingType.AVERAGE));
+            network.addLayer(new FlattenLayer());
+            network.addLayer(new DropoutLayer(0.25));
+            network.addLayer(new FullyConnectedLayer(6, new LeakyReLU(0.02)));
+            network.addLayer(new FullyConnectedLayer(3, new ReLU()));
+            network.addLayer(new SoftmaxLayer());
+
+            ModelFormat.write(network, file.getPath());
+            CNN loaded = ModelFormat.read(file.getPath());
+            assertEquals(precision, loaded.getPrecision());
+            assertEquals(network.getLayers().size(), loaded.getLayers().size());
+            assertFalse(((DropoutLayer) loaded.getLayers().get(4)).isTraining());
+
+            Tensor input = Tensor.zeros(precision, 2, 1, 8, 8);
+            for (int k = 0; k < input.size(); k++) {
+                input.setFlat(k, (k * 37 % 64) / 64.0);
+            }
+            Tensor expected = network.forwardBatch(input).copy();
+            Tensor actual = loaded.forwardBatch(input);
+            for (int k = 0; k < expected.size(); k++) {
+                assertEquals(expected.getFlat(k), actual.getFlat(k), 0.0);
+            }
+        }
+    }
+
+    public void testMappedModelRunsInPlace() throws IOException
+    {
+        CNN network = new CNN(1, 6, 6);
+        network.setPrecision(Tensor.Precision.FLOAT);
+        network.addLayer(new ConvolutionalLayer(3, 2, new ReLU()));
+        network.addLayer(new FlattenLayer());
+        network.addLayer(new FullyConnectedLayer(5, new ELU(1.0)));
+        ModelFormat.write(network, file.getPath());
+
+        CNN mapped = ModelFormat.map(file.getPath());
+        FullyConnectedLayer layer = (FullyConnectedLayer) mapped.getLayers().get(2);
+        assertTrue(layer.getParameters().get(0).isBuffered());
+
+        Tensor input = Tensor.zeros(Tensor.Precision.FLOAT, 3, 1, 6, 6);
+        for (int k = 0; k < input.size(); k++) {
+            input.setFlat(k, (k * 11 % 36) / 36.0);
+        }
+        Tensor expected = network.forwardBatch(input).copy();
+        Tensor actual = mapped.forwardBatch(input);
+        for (int k = 0; k < expected.size(); k++) {
+            assertEquals(expected.getFlat(k), actual.getFlat(k), 0.0);
+        }
+
+        mapped.backwardBatch(Tensor.zeros(Tensor.Precision.FLOAT, 3, 5));
+        try {
+            mapped.updateParameters(0.1, 3);
+            fail("Expected the mapped parameters to be read-only");
+        } catch (IllegalStateException readOnly) {
+        }
+    }
+
+    public void testMappedModelSavesAndReadsBack() throws IOException
+    {
+        for (Tensor.Precision precision : Tensor.Precision.values()) {
+            CNN network = new CNN(1, 6, 6);
+            network.setPrecision(precision);
+            network.addLayer(new ConvolutionalLayer(3, 2, new ReLU()));
+            network.addLayer(new BatchNormalizationLayer(2));
+            network.addLayer(new FlattenLayer());
+            network.addLayer(new FullyConnectedLayer(5, new ELU(1.0)));
+            ModelFormat.write(network, file.getPath());
+
+            CNN mapped = ModelFormat.map(file.getPath());
+            File copy = File.createTempFile("mapped", ".cnnm");
+            try {
+                ModelFormat.write(mapped, copy.getPath());
+                assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()), Files.readAllBytes(copy.toPath())));
+
+                CNN loaded = ModelFormat.read(copy.getPath());
+                Tensor input = Tensor.zeros(precision, 2, 1, 6, 6);
+                for (int k = 0; k < input.size(); k++) {
+                    input.setFlat(k, (k * 7 % 36) / 36.0);
+                }
+                Tensor expected = network.forwardBatch(input).copy();
+                Tensor actual = loaded.forwardBatch(input);
+                for (int k = 0; k < expected.size(); k++) {
+                    assertEquals(expected.getFlat(k), actual.getFlat(k), 0.0);
+                }
+            } finally {
+                copy.delete();
+            }
+        }
+    }
+
+    /**
+     * Draws a synthetic 0, 1 or 7 on a 28x28 canvas.
+     */
+    private static double[][][] syntheticDigit(int digit)
+    {
+        double[][] image = new double[28][28];
+        for (int r = 0; r < 28; r++) {
+            for (int c = 0; c < 28; c++) {
+                double value = 0.0;
+                if (digit == 0) {
+                    double distance = Math.hypot((r - 14) / 9.0, (c - 14) / 6.0);
+                    value = Math.max(0.0, 1 - Math.abs(distance - 1) * 5);
+                } else if (digit == 1) {
+                    value = r < 5 || r > 23 ? 0.0 : Math.max(0.0, 1 - Math.abs(c - 14 - (14 - r) * 0.1) / 1.5);
+                } else {
+                    if (r >= 5 && r <= 7 && c >= 8 && c <= 20) {
+                        value = 1.0;
+                    }
+                    if (r > 7 && r < 24) {
+                        value = Math.max(value, Math.max(0.0, 1 - Math.abs(c - (20 - (r - 7) * 0.45)) / 1.5));
+                    }
+                }
+                image[r][c] = Math.min(1.0, value);
+            }
+        }
+        return new double[][][]{image};
+    }
+
+    /**
+     * The shipped model predates running statistics and was trained on the statistics of every sample. Its
+     * outputs are pinned to those of the layers it was trained with, when loaded, mapped and saved again.
+     */
+    public void testShippedModelKeepsItsPredictions() throws IOException
+    {
+        int[] digits = {0, 1, 7};
+        double[][] expected = {
+            {0.9996000139216672, 1.8722494628567422E-7, 8.019768629337502E-6, 1.8653590362662205E-7, 1.8057637513130096E-7,
+             4.3679719401958926E-7, 1.056624121264738E-6, 3.803877157480828E-7, 1.8386776071113368E-7, 3.893542956868362E-4},
+            {7.211423864254167E-6, 0.9999859152962353, 8.65769224168188E-8, 8.104355064553714E-8, 2.45197712030452E-7,
+             7.096046646133254E-7, 4.830051535816089E-6, 1.3375243610961542E-7, 6.802651363695387E-7, 1.067879427047326E-7},
+            {1.4366567253123195E-8, 4.7550382929450807E-7, 4.290661174545233E-5, 1.891799458766091E-5, 1.2664395079605123E-8,
+             1.3325636929395562E-8, 1.266413919786193E-8, 0.9999333992415607, 1.519069945770836E-8, 4.232436838986073E-6}
+        };
+        CNN loaded = ModelFormat.read("savedNetwork/my_cnn.dat");
+        CNN mapped = ModelFormat.map("savedNetwork/my_cnn.dat");
+        ModelFormat.write(loaded, file.getPath());
+        CNN resaved = ModelFormat.read(file.getPath());
+        for (CNN network : new CNN[]{loaded, mapped, resaved}) {
+            for (int i = 0; i < digits.length; i++) {
+                double[] output = network.forward(syntheticDigit(digits[i]))[0][0];
+                for (int k = 0; k < output.length; k++) {
+                    assertEquals(expected[i][k], output[k], 1e-12);
+                }
+            }
+        }
+    }
+
+    public void testRejectsUnknownAndTruncatedFiles() throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{'N', 'O', 'P', 'E', 0, 0, 0, 0});
+        }
+        try {
+            ModelFormat.read(file.getPath());
+            fail("Expected a file without the model magic to be rejected");
+        } catch (IOException expected) {
+        }
+
+        CNN network = new CNN(4);
+        network.addLayer(new FullyConnectedLayer(2, new ReLU()));
+        ModelFormat.write(network, file.getPath());
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getChannel().truncate(file.length() - 8);
+        }
+        try {
+            ModelFormat.read(file.getPath());
+            fail("Expected a truncated model file to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cnn.layers.DropoutLayer;
+import cnn.layers.FlattenLayer;
+import cnn.layers.FullyConnectedLayer;
+import cnn.layers.SoftmaxLayer;
+import cnn.utils.Augmentation;
+import cnn.utils.ImageData;
+import cnn.utils.Tensor;
+import cnn.utils.activationFunctions.Sigmoid;
+import cnn.utils.optimizers.Adam;
+import cnn.utils.schedules.ConstantSchedule;
+import cnn.utils.schedules.CosineSchedule;
+import cnn.utils.schedules.WarmupSchedule;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that a training session continued from its checkpoint, including the state of its optimizer,
+ * its position in the learning rate schedule and the draws of augmentation and dropout, ends in the same
+ * state as an uninterrupted one, and that
+ * early stopping holds across continuations.
+ */
+public class TrainingSessionTest
+    extends TestCase
+{
+    private Path directory;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TrainingSessionTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( TrainingSessionTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("session");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        directory.toFile().delete();
+    }
+
+    private static CNN createNetwork()
+    {
+        CNN network = new CNN(1, 2, 2);
+        network.setNumWorkers(1);
+        network.setNumLoaderThreads(1);
+        network.setOptimizer(new Adam());
+        network.addLayer(new FlattenLayer());
+        network.addLayer(new DropoutLayer(0.25));
+        network.addLayer(new FullyConnectedLayer(3, new Sigmoid()));
+        network.addLayer(new SoftmaxLayer());
+        List<Tensor> parameters = ((FullyConnectedLayer) network.getLayers().get(2)).getParameters();
+        for (int k = 0; k < parameters.get(0).size(); k++) {
+            parameters.get(0).setFlat(k, (k % 5 - 2) * 0.1);
+        }
+        return network;
+    }
+
+    public void testResumedRunMatchesUninterruptedRun() throws IOException
+    {
+        List<ImageData> originals = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            double[] label = new double[3];
+            label[i % 3] = 1.0;
+            originals.add(new ImageData(new Tensor(new double[]{i % 3, i % 2, (i % 7) / 7.0, 1.0}, 1, 2, 2), label));
+        }
+        // Augmentation and dropout draw from generators seeded by the session, so they are replayed as well
+        final List<ImageData> samples = new Augmentation(1, 20).apply(originals);
+        List<ImageData> noTest = Collections.emptyList();
+        TrainingConfig config = new TrainingConfig(3, 4, new WarmupSchedule(new CosineSchedule(0.05), 4));
+
+        CNN uninterrupted = createNetwork();
+        uninterrupted.train(samples, noTest, config, new TrainingSession(uninterrupted, null, 7));
+
+        // Fails the run at batch 5 of the second epoch, after step 3 has been checkpointed; with a single
+        // loader thread the samples are read in the order of the batches
+        final AtomicInteger reads = new AtomicInteger();
+        List<ImageData> failing = new AbstractList<ImageData>() {
+            @Override
+            public ImageData get(int index) {
+                if (reads.incrementAndGet() > samples.size() + 22) {
+                    throw new IllegalStateException("Simulated crash");
+                }
+                return samples.get(index);
+            }
+
+            @Override
+            public int size() {
+                return samples.size();
+            }
+        };
+        String path = directory.resolve("run.cnns").toString();
+        CNN interrupted = createNetwork();
+        TrainingSession session = TrainingSession.open(interrupted, path, 7);
+        session.setCheckpointInterval(3);
+        try {
+            interrupted.train(failing, noTest, config, session);
+            fail("Expected the simulated crash to stop training");
+        } catch (IllegalStateException expected) {
+        }
+
+        CNN resumed = createNetwork();
+        TrainingSession continued = TrainingSession.open(resumed, path, 0);
+        assertEquals(7, continued.getSeed());
+        assertEquals(1, continued.getEpoch());
+        assertEquals(3, continued.getStep());
+        resumed.train(samples, noTest, config, continued);
+        assertEquals(24, continued.getIteration());
+
+        List<Tensor> expected = ((FullyConnectedLayer) uninterrupted.getLayers().get(2)).getParameters();
+        List<Tensor> actual = ((FullyConnectedLayer) resumed.getLayers().get(2)).getParameters();
+        for (int p = 0; p < expected.size(); p++) {
+            for (int k = 0; k < expected.get(p).size(); k++) {
+                assertEquals(expected.get(p).getFlat(k), actual.get(p).getFlat(k), 0.0);
+            }
+        }
+    }
+
+    public void testRejectsDifferentBatchSize() throws IOException
+    {
+        String path = directory.resolve("run.cnns").toString();
+        CNN network = createNetwork();
+        TrainingSession session = new TrainingSession(network, path, 1);
+        List<ImageData> samples = Collections.singletonList(new ImageData(new Tensor(1, 2, 2), new double[]{1.0, 0.0, 0.0}));
+        network.SGD(samples, 1, 4, Collections.<ImageData>emptyList(), 0.1, null, session);
+
+        CNN resumed = createNetwork();
+        try {
+            resumed.SGD(samples, 2, 8, Collections.<ImageData>emptyList(), 0.1, null, TrainingSession.open(resumed, path, 1));
+            fail("Expected a different mini-batch size to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testStopsAfterPatienceRunsOut() throws IOException
+    {
+        List<ImageData> samples = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            double[] label = new double[3];
+            label[i % 3] = 1.0;
+            samples.add(new ImageData(new Tensor(new double[]{i % 3, i % 2, 0.5, 1.0}, 1, 2, 2), label));
+        }
+        // Without a learning rate the accuracy never improves after the first epoch
+        TrainingConfig config = new TrainingConfig(10, 3, new ConstantSchedule(0.0));
+        config.setPatience(2);
+        String path = directory.resolve("run.cnns").toString();
+        CNN network = createNetwork();
+        TrainingSession session = new TrainingSession(network, path, 3);
+        network.train(samples, samples, config, session);
+        assertEquals(3, session.getEpoch());
+        assertEquals(1, session.getBestEpoch());
+
+        CNN resumed = createNetwork();
+        TrainingSession continued = TrainingSession.open(resumed, path, 0);
+        assertEquals(1, continued.getBestEpoch());
+        resumed.train(samples, samples, config, continued);
+        assertEquals(3, continued.getEpoch());
+        assertEquals(6, continued.getIteration());
+    }
+}
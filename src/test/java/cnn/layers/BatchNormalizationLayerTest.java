@@ -0,0 +1,240 @@
+package cnn.layers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import cnn.utils.Tensor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks batch normalization against finite differences of its batch-statistics forward pass, and that the
+ * inference pass applies the running statistics.
+ */
+public class BatchNormalizationLayerTest
+    extends TestCase
+{
+    private static final int BATCH = 3;
+    private static final int DEPTH = 2;
+    private static final int AREA = 4;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public BatchNormalizationLayerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( BatchNormalizationLayerTest.class );
+    }
+
+    private static Tensor input()
+    {
+        Tensor input = new Tensor(BATCH, DEPTH, 2, 2);
+        for (int k = 0; k < input.size(); k++) {
+            input.setFlat(k, Math.sin(k * 1.7) + (k / AREA % DEPTH) * 2.0);
+        }
+        return input;
+    }
+
+    /**
+     * A loss that weighs every output differently, so that no gradient vanishes by symmetry.
+     */
+    private static double loss(Tensor output)
+    {
+        double loss = 0.0;
+        for (int k = 0; k < output.size(); k++) {
+            loss += Math.cos(k * 0.9) * output.getFlat(k);
+        }
+        return loss;
+    }
+
+    public void testBackwardMatchesFiniteDifferences()
+    {
+        BatchNormalizationLayer layer = new BatchNormalizationLayer(DEPTH);
+        layer.getParameters().get(0).setFlat(1, 1.5);
+        layer.getParameters().get(1).setFlat(0, -0.25);
+        layer.setTraining(true);
+        Tensor input = input();
+        layer.forwardBatch(input);
+        Tensor upstream = new Tensor(BATCH, DEPTH, 2, 2);
+        for (int k = 0; k < upstream.size(); k++) {
+            upstream.setFlat(k, Math.cos(k * 0.9));
+        }
+        Tensor gradient = layer.backwardBatch(upstream).copy();
+
+        double h = 1e-6;
+        for (int k = 0; k < input.size(); k++) {
+            double value = input.getFlat(k);
+            input.setFlat(k, value + h);
+            double plus = loss(layer.forwardBatch(input));
+            input.setFlat(k, value - h);
+            double minus = loss(layer.forwardBatch(input));
+            input.setFlat(k, value);
+            assertEquals((plus - minus) / (2 * h), gradient.getFlat(k), 1e-6);
+        }
+
+        // The batch of every channel has zero mean and unit variance before gamma and beta are applied
+        Tensor output = layer.forwardBatch(input);
+        for (int d = 0; d < DEPTH; d++) {
+            double sum = 0.0;
+            double squares = 0.0;
+            for (int n = 0; n < BATCH; n++) {
+                for (int k = 0; k < AREA; k++) {
+                    double normalized = (output.getFlat((n * DEPTH + d) * AREA + k) - (d == 0 ? -0.25 : 0.0)) / (d == 0 ? 1.0 : 1.5);
+                    sum += normalized;
+                    squares += normalized * normalized;
+                }
+            }
+            assertEquals(0.0, sum / (BATCH * AREA), 1e-9);
+            assertEquals(1.0, squares / (BATCH * AREA), 1e-4);
+        }
+    }
+
+    /**
+     * Layers of models saved before running statistics were kept normalize every sample with its own statistics,
+     * in inference as in training, and backpropagate through them.
+     */
+    public void testSampleStatisticsMatchFiniteDifferences()
+    {
+        BatchNormalizationLayer layer = new BatchNormalizationLayer(DEPTH);
+        layer.setStatistics(BatchNormalizationLayer.Statistics.SAMPLE);
+        layer.getParameters().get(0).setFlat(1, 1.5);
+        layer.getParameters().get(1).setFlat(0, -0.25);
+        Tensor input = input();
+        Tensor output = layer.forwardBatch(input).copy();
+        Tensor upstream = new Tensor(BATCH, DEPTH, 2, 2);
+        for (int k = 0; k < upstream.size(); k++) {
+            upstream.setFlat(k, Math.cos(k * 0.9));
+        }
+        Tensor gradient = layer.backwardBatch(upstream).copy();
+
+        // Every sample alone gives the same output as within the batch
+        for (int n = 0; n < BATCH; n++) {
+            Tensor single = layer.forwardBatch(input.range(n, n + 1));
+            for (int k = 0; k < single.size(); k++) {
+                assertEquals(output.getFlat(n * DEPTH * AREA + k), single.getFlat(k), 1e-12);
+            }
+        }
+
+        double h = 1e-6;
+        for (int k = 0; k < input.size(); k++) {
+            double value = input.getFlat(k);
+            input.setFlat(k, value + h);
+            double plus = loss(layer.forwardBatch(input));
+            input.setFlat(k, value - h);
+            double minus = loss(layer.forwardBatch(input));
+            input.setFlat(k, value);
+            assertEquals((plus - minus) / (2 * h), gradient.getFlat(k), 1e-6);
+        }
+    }
+
+    public void testInferenceUsesRunningStatistics()
+    {
+        BatchNormalizationLayer layer = new BatchNormalizationLayer(DEPTH);
+        layer.setMomentum(1.0);
+        layer.setTraining(true);
+        Tensor input = input();
+        layer.forwardBatch(input);
+
+        // With a momentum of one the running statistics are those of the last batch, with the unbiased variance
+        int count = BATCH * AREA;
+        for (int d = 0; d < DEPTH; d++) {
+            double sum = 0.0;
+            for (int n = 0; n < BATCH; n++) {
+                for (int k = 0; k < AREA; k++) {
+                    sum += input.getFlat((n * DEPTH + d) * AREA + k);
+                }
+            }
+            double mean = sum / count;
+            double squares = 0.0;
+            for (int n = 0; n < BATCH; n++) {
+                for (int k = 0; k < AREA; k++) {
+                    squares += Math.pow(input.getFlat((n * DEPTH + d) * AREA + k) - mean, 2);
+                }
+            }
+            assertEquals(mean, layer.getRunningMean().getFlat(d), 1e-12);
+            assertEquals(squares / (count - 1), layer.getRunningVariance().getFlat(d), 1e-12);
+        }
+
+        layer.setTraining(false);
+        layer.getParameters().get(0).setFlat(0, 2.0);
+        layer.getParameters().get(1).setFlat(1, 0.5);
+        assertInference(layer, input.range(1, 2));
+    }
+
+    private static void assertInference(BatchNormalizationLayer layer, Tensor input)
+    {
+        Tensor output = layer.forwardBatch(input);
+        for (int k = 0; k < input.size(); k++) {
+            int d = k / AREA % DEPTH;
+            double expected = layer.getParameters().get(0).getFlat(d) * (input.getFlat(k) - layer.getRunningMean().getFlat(d))
+                    / Math.sqrt(layer.getRunningVariance().getFlat(d) + layer.getEpsilon()) + layer.getParameters().get(1).getFlat(d);
+            assertEquals(expected, output.getFlat(k), 1e-12);
+        }
+    }
+
+    /**
+     * Checks an inference pass against that of a serialized copy, which computes its scale and shift afresh
+     * without the accessors of the layer dropping its cached ones.
+     */
+    private static void assertSameInference(BatchNormalizationLayer layer, Tensor input) throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(layer);
+        }
+        BatchNormalizationLayer copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (BatchNormalizationLayer) in.readObject();
+        }
+        Tensor expected = copy.forwardBatch(input);
+        Tensor output = layer.forwardBatch(input);
+        for (int k = 0; k < input.size(); k++) {
+            assertEquals(expected.getFlat(k), output.getFlat(k), 1e-12);
+        }
+    }
+
+    /**
+     * The inference scale and shift are cached between batches, so every way of changing the parameters or the
+     * running statistics must reach the next inference pass.
+     */
+    public void testInferenceFollowsChangedParameters() throws IOException, ClassNotFoundException
+    {
+        BatchNormalizationLayer layer = new BatchNormalizationLayer(DEPTH);
+        Tensor input = input();
+        assertSameInference(layer, input);
+
+        Tensor gamma = layer.getParameters().get(0);
+        assertSameInference(layer, input);
+        gamma.setFlat(1, 1.5);
+        layer.resetGradients();
+        assertSameInference(layer, input);
+
+        layer.setParameters(Arrays.asList(new Tensor(new double[]{0.5, -2.0}, DEPTH), new Tensor(new double[]{0.25, 1.0}, DEPTH)));
+        assertSameInference(layer, input);
+
+        Tensor runningVariance = layer.getRunningVariance();
+        runningVariance.setFlat(0, 4.0);
+        assertSameInference(layer, input);
+
+        layer.setTraining(true);
+        layer.forwardBatch(input);
+        layer.setTraining(false);
+        assertSameInference(layer, input);
+        assertInference(layer, input);
+    }
+}
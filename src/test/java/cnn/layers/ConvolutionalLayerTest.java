@@ -0,0 +1,174 @@
+package cnn.layers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cnn.interfaces.ActivationFunction;
+import cnn.utils.Tensor;
+import cnn.utils.activationFunctions.ELU;
+import cnn.utils.activationFunctions.Tanh;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the im2col and direct convolution engines compute the same outputs and gradients, and that the
+ * gradients match finite differences of the forward pass.
+ */
+public class ConvolutionalLayerTest
+    extends TestCase
+{
+    private static final int BATCH = 2;
+    private static final int DEPTH = 2;
+    private static final int SIZE = 7;
+    private static final int FILTER_SIZE = 3;
+    private static final int NUM_FILTERS = 3;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ConvolutionalLayerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ConvolutionalLayerTest.class );
+    }
+
+    /**
+     * Builds a layer with fixed filters and biases that differ per tap, channel and filter.
+     */
+    private static ConvolutionalLayer createLayer(ConvolutionalLayer.ConvolutionMode mode, int stride, ActivationFunction activation)
+    {
+        ConvolutionalLayer layer = new ConvolutionalLayer(FILTER_SIZE, NUM_FILTERS, stride, activation);
+        Tensor filters = new Tensor(NUM_FILTERS, DEPTH * FILTER_SIZE * FILTER_SIZE);
+        for (int k = 0; k < filters.size(); k++) {
+            filters.setFlat(k, 0.3 * Math.sin(k * 0.7 + 0.2));
+        }
+        Tensor biases = new Tensor(new double[]{0.1, -0.2, 0.05}, NUM_FILTERS);
+        layer.setParameters(Arrays.asList(filters, biases));
+        layer.initialize(DEPTH, SIZE, SIZE);
+        layer.setConvolutionMode(mode);
+        return layer;
+    }
+
+    private static Tensor input()
+    {
+        Tensor input = new Tensor(BATCH, DEPTH, SIZE, SIZE);
+        for (int k = 0; k < input.size(); k++) {
+            input.setFlat(k, Math.sin(k * 1.3) * 0.8 + 0.1);
+        }
+        return input;
+    }
+
+    /**
+     * A loss that weighs every output differently, so that no gradient vanishes by symmetry.
+     */
+    private static double loss(Tensor output)
+    {
+        double loss = 0.0;
+        for (int k = 0; k < output.size(); k++) {
+            loss += Math.cos(k * 0.9) * output.getFlat(k);
+        }
+        return loss;
+    }
+
+    private static Tensor upstream(Tensor output)
+    {
+        Tensor upstream = new Tensor(output.getShape());
+        for (int k = 0; k < upstream.size(); k++) {
+            upstream.setFlat(k, Math.cos(k * 0.9));
+        }
+        return upstream;
+    }
+
+    private static void assertSameTensors(Tensor expected, Tensor actual, double tolerance)
+    {
+        assertTrue(Arrays.equals(expected.getShape(), actual.getShape()));
+        for (int k = 0; k < expected.size(); k++) {
+            assertEquals(expected.getFlat(k), actual.getFlat(k), tolerance);
+        }
+    }
+
+    /**
+     * Checks the input, filter and bias gradients of one backward pass against central differences of the loss.
+     */
+    private static void assertMatchesFiniteDifferences(ConvolutionalLayer layer)
+    {
+        Tensor input = input();
+        Tensor output = layer.forwardBatch(input);
+        Tensor inputGradient = layer.backwardBatch(upstream(output)).copy();
+        List<Tensor> gradients = layer.getGradients();
+        Tensor filterGradient = gradients.get(0).copy();
+        Tensor biasGradient = gradients.get(1).copy();
+
+        double h = 1e-6;
+        for (int k = 0; k < input.size(); k++) {
+            assertEquals(centralDifference(layer, input, input, k, h), inputGradient.getFlat(k), 1e-6);
+        }
+        List<Tensor> parameters = layer.getParameters();
+        for (int k = 0; k < filterGradient.size(); k++) {
+            assertEquals(centralDifference(layer, input, parameters.get(0), k, h), filterGradient.getFlat(k), 1e-6);
+        }
+        for (int k = 0; k < biasGradient.size(); k++) {
+            assertEquals(centralDifference(layer, input, parameters.get(1), k, h), biasGradient.getFlat(k), 1e-6);
+        }
+    }
+
+    private static double centralDifference(ConvolutionalLayer layer, Tensor input, Tensor perturbed, int k, double h)
+    {
+        double value = perturbed.getFlat(k);
+        perturbed.setFlat(k, value + h);
+        double plus = loss(layer.forwardBatch(input));
+        perturbed.setFlat(k, value - h);
+        double minus = loss(layer.forwardBatch(input));
+        perturbed.setFlat(k, value);
+        return (plus - minus) / (2 * h);
+    }
+
+    public void testEnginesAgree()
+    {
+        for (int stride : new int[]{1, 2}) {
+            ConvolutionalLayer direct = createLayer(ConvolutionalLayer.ConvolutionMode.DIRECT, stride, new Tanh());
+            ConvolutionalLayer im2col = createLayer(ConvolutionalLayer.ConvolutionMode.IM2COL, stride, new Tanh());
+            Tensor expected = direct.forwardBatch(input()).copy();
+            Tensor actual = im2col.forwardBatch(input()).copy();
+            assertSameTensors(expected, actual, 1e-12);
+
+            assertSameTensors(direct.backwardBatch(upstream(expected)).copy(), im2col.backwardBatch(upstream(actual)).copy(), 1e-12);
+            for (int p = 0; p < 2; p++) {
+                assertSameTensors(direct.getGradients().get(p), im2col.getGradients().get(p), 1e-12);
+            }
+        }
+    }
+
+    public void testIm2colMatchesFiniteDifferences()
+    {
+        for (int stride : new int[]{1, 2}) {
+            assertMatchesFiniteDifferences(createLayer(ConvolutionalLayer.ConvolutionMode.IM2COL, stride, new Tanh()));
+        }
+    }
+
+    /**
+     * The direct backward pass scatters every output delta over its patch, and both engines evaluate the
+     * activation derivative at the pre-activations. ELU, whose derivative for negative inputs cannot be read
+     * off its output unless alpha is one, takes both branches here.
+     */
+    public void testDirectScatterMatchesFiniteDifferences()
+    {
+        for (int stride : new int[]{1, 2}) {
+            for (double alpha : new double[]{1.0, 0.5}) {
+                assertMatchesFiniteDifferences(createLayer(ConvolutionalLayer.ConvolutionMode.DIRECT, stride, new ELU(alpha)));
+                assertMatchesFiniteDifferences(createLayer(ConvolutionalLayer.ConvolutionMode.IM2COL, stride, new ELU(alpha)));
+            }
+            assertMatchesFiniteDifferences(createLayer(ConvolutionalLayer.ConvolutionMode.DIRECT, stride, new Tanh()));
+        }
+    }
+}
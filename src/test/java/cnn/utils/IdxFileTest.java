@@ -0,0 +1,216 @@
+package cnn.utils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that mapped IDX files and the image views over them reproduce the values written to the file.
+ */
+public class IdxFileTest
+    extends TestCase
+{
+    private File file;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public IdxFileTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( IdxFileTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        file = File.createTempFile("images", ".idx3-ubyte");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testMappedImagesMatchWrittenBytes() throws IOException
+    {
+        writeImages(0x0803, 3, 2, 4);
+        IdxFile images = IdxFile.map(file.getPath());
+        assertEquals(3, images.getCount());
+        assertEquals(8, images.getItemSize());
+
+        Tensor batch = Tensor.zeros(Tensor.Precision.FLOAT, 2, 1, 2, 4);
+        for (int i = 0; i < 3; i++) {
+            MappedImageData image = new MappedImageData(images, i, new int[]{1, 2, 4}, new double[]{1.0});
+            Tensor tensor = image.getImageTensor();
+            image.copyImageTo(batch, 8);
+            for (int k = 0; k < 8; k++) {
+                assertEquals(pixel(i, k), images.get(i, k));
+                assertEquals(pixel(i, k) / 255.0, tensor.getFlat(k), 0.0);
+                assertEquals((float) (pixel(i, k) / 255.0), batch.getFlat(8 + k), 0.0);
+            }
+        }
+    }
+
+    public void testImageStoreMatchesMappedImages() throws IOException
+    {
+        writeImages(0x0803, 5, 3, 3);
+        IdxFile images = IdxFile.map(file.getPath());
+        ImageStore store = new ImageStore(5, new int[]{1, 3, 3}, 4);
+        images.read(0, 5, store.getPixels(), 0);
+        for (int i = 0; i < 5; i++) {
+            store.setLabel(i, i % 4);
+        }
+
+        Tensor batch = new Tensor(2, 1, 3, 3);
+        for (int i = 0; i < 5; i++) {
+            ImageData sample = store.get(i);
+            sample.copyImageTo(batch, 9);
+            assertEquals(1.0, sample.getLabel()[i % 4], 0.0);
+            for (int k = 0; k < 9; k++) {
+                assertEquals(images.get(i, k) / 255.0, batch.getFlat(9 + k), 0.0);
+            }
+        }
+        try {
+            store.setLabel(0, 4);
+            fail("Expected a label outside the classes to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testDatasetCacheRoundTripsAndInvalidates() throws IOException
+    {
+        writeImages(0x0803, 4, 2, 3);
+        File cache = new File(file.getPath() + ".cnnd");
+        try {
+            int[] builds = new int[1];
+            DatasetCache.Source source = () -> {
+                builds[0]++;
+                IdxFile images = IdxFile.map(file.getPath());
+                ImageStore store = new ImageStore(4, new int[]{1, 2, 3}, 3);
+                images.read(0, 4, store.getPixels(), 0);
+                for (int i = 0; i < 4; i++) {
+                    store.setLabel(i, i % 3);
+                }
+                return store;
+            };
+
+            for (DatasetCache.Encoding encoding : DatasetCache.Encoding.values()) {
+                DatasetCache.load(cache.getPath(), "test", encoding, source, file.getPath());
+                List<ImageData> cached = DatasetCache.load(cache.getPath(), "test", encoding, source, file.getPath());
+                Tensor image = new Tensor(1, 2, 3);
+                for (int i = 0; i < 4; i++) {
+                    cached.get(i).copyImageTo(image, 0);
+                    assertEquals(1.0, cached.get(i).getLabel()[i % 3], 0.0);
+                    for (int k = 0; k < 6; k++) {
+                        assertEquals(pixel(i, k) / 255.0, image.getFlat(k), 1e-7);
+                    }
+                }
+            }
+            assertEquals(2, builds[0]);
+
+            DatasetCache.load(cache.getPath(), "other parameters", DatasetCache.Encoding.FLOAT, source, file.getPath());
+            assertEquals(3, builds[0]);
+            writeImages(0x0803, 4, 3, 2);
+            DatasetCache.load(cache.getPath(), "other parameters", DatasetCache.Encoding.FLOAT, source, file.getPath());
+            assertEquals(4, builds[0]);
+        } finally {
+            cache.delete();
+        }
+    }
+
+    public void testCompressedFilesStreamTheSameItems() throws IOException
+    {
+        writeImages(0x0803, 6, 2, 2);
+        File compressed = new File(file.getPath() + ".gz");
+        try {
+            try (FileInputStream in = new FileInputStream(file);
+                 GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(compressed))) {
+                byte[] buffer = new byte[7];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            assertTrue(IdxInputStream.isCompressed(compressed.getPath()));
+            assertFalse(IdxInputStream.isCompressed(file.getPath()));
+
+            byte[] items = new byte[24];
+            try (IdxInputStream stream = IdxInputStream.open(compressed.getPath())) {
+                assertEquals(6, stream.getCount());
+                assertEquals(4, stream.getItemSize());
+                stream.read(2, items, 0);
+                stream.read(4, items, 8);
+            }
+            for (int i = 0; i < 6; i++) {
+                for (int k = 0; k < 4; k++) {
+                    assertEquals(pixel(i, k), items[i * 4 + k] & 0xff);
+                }
+            }
+            try {
+                IdxFile.map(compressed.getPath());
+                fail("Expected a compressed IDX file to be rejected by the mapping");
+            } catch (IOException expected) {
+            }
+        } finally {
+            compressed.delete();
+        }
+    }
+
+    public void testRejectsOtherTypesAndTruncatedFiles() throws IOException
+    {
+        writeImages(0x0D03, 1, 2, 2);
+        try {
+            IdxFile.map(file.getPath());
+            fail("Expected a float IDX file to be rejected");
+        } catch (IOException expected) {
+        }
+
+        writeImages(0x0803, 1, 2, 2);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getChannel().truncate(file.length() - 1);
+        }
+        try {
+            IdxFile.map(file.getPath());
+            fail("Expected a truncated IDX file to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void writeImages(int magic, int count, int rows, int columns) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(magic);
+            out.writeInt(count);
+            out.writeInt(rows);
+            out.writeInt(columns);
+            for (int i = 0; i < count; i++) {
+                for (int k = 0; k < rows * columns; k++) {
+                    out.writeByte(pixel(i, k));
+                }
+            }
+        }
+    }
+
+    private static int pixel(int image, int k)
+    {
+        return (image * 97 + k * 31) % 256;
+    }
+}
@@ -0,0 +1,73 @@
+package cnn.utils;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the array-based image warp against transforms whose result is known exactly.
+ */
+public class ImageAugmentationTest
+    extends TestCase
+{
+    private static final int SIZE = 12;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageAugmentationTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ImageAugmentationTest.class );
+    }
+
+    public void testIntegerShiftsAndQuarterTurnsMovePixelsExactly()
+    {
+        Tensor image = randomImage();
+        Tensor warped = Tensor.zeros(Tensor.Precision.FLOAT, 2, 1, SIZE, SIZE);
+
+        ImageAugmentation.warp(image, warped, 0, 3, -2, 0.0, 1.0, null, null);
+        ImageAugmentation.warp(image, warped, SIZE * SIZE, 0, 0, Math.PI / 2, 1.0, null, null);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                double shifted = x - 3 >= 0 && y + 2 < SIZE ? image.get(0, y + 2, x - 3) : 0.0;
+                assertEquals(shifted, warped.getFlat(y * SIZE + x), 1e-6);
+                assertEquals(image.get(0, SIZE - 1 - x, y), warped.getFlat(SIZE * SIZE + y * SIZE + x), 1e-6);
+            }
+        }
+    }
+
+    public void testDisabledAugmentationKeepsSamples()
+    {
+        ImageData sample = new ImageData(randomImage(), new double[]{1.0});
+        assertSame(sample, Augmentation.NONE.apply(sample));
+        assertSame(sample, new Augmentation(2, 5, 0.0).apply(sample));
+
+        ImageData augmented = new Augmentation(0, 0, 0.1, 2.0, 1.0, 1.0).apply(sample);
+        Tensor batch = new Tensor(1, 1, SIZE, SIZE);
+        augmented.copyImageTo(batch, 0);
+        assertEquals(sample.getImageSize(), augmented.getImageSize());
+        assertSame(sample.getLabel(), augmented.getLabel());
+    }
+
+    private static Tensor randomImage()
+    {
+        Random random = new Random(7);
+        Tensor image = new Tensor(1, SIZE, SIZE);
+        for (int k = 0; k < image.size(); k++) {
+            image.setFlat(k, random.nextDouble());
+        }
+        return image;
+    }
+}
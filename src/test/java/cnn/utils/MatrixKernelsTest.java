@@ -0,0 +1,236 @@
+package cnn.utils;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the kernels selected by {@link MatrixUtils#kernels()} and the operations built on them
+ * against the scalar kernels and straightforward reference loops.
+ */
+public class MatrixKernelsTest
+    extends TestCase
+{
+    private static final double TOLERANCE = 1e-9;
+    private static final double FLOAT_TOLERANCE = 1e-4;
+    private static final int[] LENGTHS = {0, 1, 3, 7, 8, 17, 64, 101};
+
+    private final MatrixKernels kernels = MatrixUtils.kernels();
+    private final MatrixKernels scalar = new ScalarKernels();
+    private final Random random = new Random(42);
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MatrixKernelsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( MatrixKernelsTest.class );
+    }
+
+    public void testDotMatchesScalar()
+    {
+        for (int length : LENGTHS) {
+            double[] a = randomArray(length + 3);
+            double[] b = randomArray(length + 5);
+            assertEquals(scalar.dot(a, 3, b, 5, length), kernels.dot(a, 3, b, 5, length), TOLERANCE);
+        }
+    }
+
+    public void testAxpyMatchesScalar()
+    {
+        for (int length : LENGTHS) {
+            double[] x = randomArray(length + 2);
+            double[] expected = randomArray(length + 1);
+            double[] actual = expected.clone();
+            scalar.axpy(0.75, x, 2, expected, 1, length);
+            kernels.axpy(0.75, x, 2, actual, 1, length);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    public void testElementWiseMatchScalar()
+    {
+        for (int length : LENGTHS) {
+            double[] a = randomArray(length + 1);
+            double[] b = randomArray(length + 2);
+            double[] expected = new double[length + 3];
+            double[] actual = new double[length + 3];
+
+            scalar.multiply(a, 1, b, 2, expected, 3, length);
+            kernels.multiply(a, 1, b, 2, actual, 3, length);
+            assertArrayEquals(expected, actual);
+
+            scalar.max(a, 1, b, 2, expected, 3, length);
+            kernels.max(a, 1, b, 2, actual, 3, length);
+            assertArrayEquals(expected, actual);
+
+            scalar.add(a, 1, b, 2, expected, 3, length);
+            kernels.add(a, 1, b, 2, actual, 3, length);
+            assertArrayEquals(expected, actual);
+
+            assertEquals(scalar.sum(a, 1, length), kernels.sum(a, 1, length), TOLERANCE);
+        }
+    }
+
+    public void testBatchedMultiplyMatchesVectorMultiply()
+    {
+        int inputSize = 37;
+        int outputSize = 19;
+        double[][] weights = new double[inputSize][];
+        for (int i = 0; i < inputSize; i++) {
+            weights[i] = randomArray(outputSize);
+        }
+        double[] biases = randomArray(outputSize);
+        Tensor batch = new Tensor(randomArray(3 * inputSize), 3, inputSize);
+
+        double[] actual = MatrixUtils.multiply(batch, weights, biases);
+        for (int n = 0; n < 3; n++) {
+            double[] input = new double[inputSize];
+            System.arraycopy(batch.getData(), n * inputSize, input, 0, inputSize);
+            double[] expected = MatrixUtils.multiply(input, weights, biases);
+            for (int j = 0; j < outputSize; j++) {
+                assertEquals(expected[j], actual[n * outputSize + j], TOLERANCE);
+            }
+        }
+    }
+
+    public void testTensorApplyFilterMatchesArrayApplyFilter()
+    {
+        double[][][] input = new double[2][9][11];
+        for (double[][] channel : input) {
+            for (int i = 0; i < channel.length; i++) {
+                channel[i] = randomArray(channel[i].length);
+            }
+        }
+        double[][] filter = new double[5][];
+        for (int i = 0; i < filter.length; i++) {
+            filter[i] = randomArray(5);
+        }
+        Tensor tensor = Tensor.fromArray(input);
+
+        for (int d = 0; d < input.length; d++) {
+            for (int x = -2; x < 9; x++) {
+                for (int y = -2; y < 11; y++) {
+                    assertEquals(MatrixUtils.applyFilter(input[d], filter, x, y),
+                            MatrixUtils.applyFilter(tensor, d, filter, x, y), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    public void testTensorPoolingMatchesArrayPooling()
+    {
+        double[][][] input = new double[3][12][12];
+        for (double[][] channel : input) {
+            for (int i = 0; i < channel.length; i++) {
+                channel[i] = randomArray(channel[i].length);
+            }
+        }
+        Tensor tensor = Tensor.fromArray(input);
+        Tensor max = MatrixUtils.maxPooling(tensor, 3);
+        Tensor average = MatrixUtils.averagePooling(tensor, 3);
+
+        for (int d = 0; d < input.length; d++) {
+            double[][] expectedMax = MatrixUtils.maxPooling(input[d], 3);
+            double[][] expectedAverage = MatrixUtils.averagePooling(input[d], 3);
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    assertEquals(expectedMax[i][j], max.get(d, i, j), TOLERANCE);
+                    assertEquals(expectedAverage[i][j], average.get(d, i, j), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    public void testGemmMatchesNaiveProduct()
+    {
+        int m = 70;
+        int n = 300;
+        int k = 130;
+        double[] a = randomArray(m * k);
+        double[] b = randomArray(k * n);
+        double[] c = new double[m * n];
+        Gemm.multiply(a, 0, false, b, 0, false, c, 0, m, n, k, false);
+
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                double expected = 0;
+                for (int p = 0; p < k; p++) {
+                    expected += a[i * k + p] * b[p * n + j];
+                }
+                assertEquals(expected, c[i * n + j], TOLERANCE);
+            }
+        }
+    }
+
+    public void testFloatKernelsMatchScalar()
+    {
+        for (int length : LENGTHS) {
+            float[] a = toFloat(randomArray(length + 3));
+            float[] b = toFloat(randomArray(length + 5));
+            assertEquals(scalar.dot(a, 3, b, 5, length), kernels.dot(a, 3, b, 5, length), FLOAT_TOLERANCE);
+            assertEquals(scalar.sum(a, 3, length), kernels.sum(a, 3, length), FLOAT_TOLERANCE);
+
+            float[] expected = b.clone();
+            float[] actual = b.clone();
+            scalar.axpy(0.75f, a, 3, expected, 5, length);
+            kernels.axpy(0.75f, a, 3, actual, 5, length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], FLOAT_TOLERANCE);
+            }
+        }
+    }
+
+    public void testFloatGemmMatchesDoubleGemm()
+    {
+        int m = 70;
+        int n = 300;
+        int k = 130;
+        Tensor a = new Tensor(randomArray(k * m), k, m);
+        Tensor b = new Tensor(randomArray(n * k), n, k);
+        Tensor expected = new Tensor(m, n);
+        Tensor actual = Tensor.zeros(Tensor.Precision.FLOAT, m, n);
+        Gemm.multiply(a, 0, true, b, 0, true, expected, 0, m, n, k, false);
+        Gemm.multiply(a.toPrecision(Tensor.Precision.FLOAT), 0, true, b.toPrecision(Tensor.Precision.FLOAT), 0, true,
+                actual, 0, m, n, k, false);
+
+        for (int i = 0; i < m * n; i++) {
+            assertEquals(expected.getFlat(i), actual.getFlat(i), 1e-3);
+        }
+    }
+
+    private static float[] toFloat(double[] array) {
+        float[] converted = new float[array.length];
+        for (int i = 0; i < array.length; i++) {
+            converted[i] = (float) array[i];
+        }
+        return converted;
+    }
+
+    private double[] randomArray(int length) {
+        double[] array = new double[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = random.nextGaussian();
+        }
+        return array;
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], TOLERANCE);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package cnn.utils.optimizers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import cnn.interfaces.Optimizer;
+import cnn.utils.Tensor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the fused updates of the optimizers against the textbook formulas, in both precisions,
+ * the coupled and decoupled regularization applied around them, and that an optimizer continues
+ * identically from a copy of its state.
+ */
+public class OptimizerTest
+    extends TestCase
+{
+    private static final double TOLERANCE = 1e-12;
+    private static final double FLOAT_TOLERANCE = 1e-5;
+    private static final int SIZE = 37;
+    private static final int STEPS = 4;
+    private static final double LEARNING_RATE = 0.05;
+    private static final double SCALE = 0.25;
+    private static final List<Regularization> NONE = Collections.singletonList(null);
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public OptimizerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( OptimizerTest.class );
+    }
+
+    /**
+     * Applies the updates of an optimizer to a parameter, with a different gradient in every step.
+     */
+    private static Tensor run(Optimizer optimizer, Tensor.Precision precision, int steps)
+    {
+        Random random = new Random(3);
+        Tensor parameter = Tensor.zeros(precision, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            parameter.setFlat(i, random.nextGaussian());
+        }
+        Tensor gradient = Tensor.zeros(precision, SIZE);
+        for (int t = 0; t < steps; t++) {
+            for (int i = 0; i < SIZE; i++) {
+                gradient.setFlat(i, random.nextGaussian());
+            }
+            optimizer.update(Collections.singletonList(parameter), Collections.singletonList(gradient), NONE, LEARNING_RATE, SCALE);
+        }
+        return parameter;
+    }
+
+    /**
+     * Computes the same trajectory with the formulas written out per element.
+     */
+    private static double[] reference(String rule, double coefficient, boolean nesterov)
+    {
+        Random random = new Random(3);
+        double[] p = new double[SIZE];
+        double[] first = new double[SIZE];
+        double[] second = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            p[i] = random.nextGaussian();
+        }
+        double[] g = new double[SIZE];
+        for (int t = 1; t <= STEPS; t++) {
+            for (int i = 0; i < SIZE; i++) {
+                g[i] = SCALE * random.nextGaussian();
+            }
+            for (int i = 0; i < SIZE; i++) {
+                if (rule.equals("momentum")) {
+                    first[i] = coefficient * first[i] + g[i];
+                    p[i] -= LEARNING_RATE * (nesterov ? g[i] + coefficient * first[i] : first[i]);
+                } else if (rule.equals("rmsprop")) {
+                    second[i] = coefficient * second[i] + (1 - coefficient) * g[i] * g[i];
+                    p[i] -= LEARNING_RATE * g[i] / (Math.sqrt(second[i]) + 1e-8);
+                } else {
+                    first[i] = 0.9 * first[i] + 0.1 * g[i];
+                    second[i] = 0.999 * second[i] + 0.001 * g[i] * g[i];
+                    double mHat = first[i] / (1 - Math.pow(0.9, t));
+                    double vHat = second[i] / (1 - Math.pow(0.999, t));
+                    p[i] -= LEARNING_RATE * mHat / (Math.sqrt(vHat) + 1e-8);
+                }
+            }
+        }
+        return p;
+    }
+
+    private static void assertClose(double[] expected, Tensor actual, double tolerance)
+    {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual.getFlat(i), tolerance * Math.max(1.0, Math.abs(expected[i])));
+        }
+    }
+
+    public void testUpdatesMatchFormulas()
+    {
+        Object[][] cases = {
+            {new Momentum(0.9), new Momentum(0.9), reference("momentum", 0.9, false)},
+            {new Momentum(0.8, true), new Momentum(0.8, true), reference("momentum", 0.8, true)},
+            {new RMSProp(0.95, 1e-8), new RMSProp(0.95, 1e-8), reference("rmsprop", 0.95, false)},
+            {new Adam(), new Adam(), reference("adam", 0.0, false)},
+        };
+        for (Object[] c : cases) {
+            assertClose((double[]) c[2], run((Optimizer) c[0], Tensor.Precision.DOUBLE, STEPS), TOLERANCE);
+            assertClose((double[]) c[2], run((Optimizer) c[1], Tensor.Precision.FLOAT, STEPS), FLOAT_TOLERANCE);
+        }
+    }
+
+    public void testContinuesFromCopiedState()
+    {
+        Tensor expected = run(new Adam(), Tensor.Precision.DOUBLE, STEPS);
+
+        Adam first = new Adam();
+        Tensor parameter = run(first, Tensor.Precision.DOUBLE, STEPS - 1);
+        Adam second = new Adam();
+        second.setState(first.getState());
+        assertEquals(3, second.getState().size());
+        assertEquals((double) (STEPS - 1), second.getState().get(0).getFlat(0), 0.0);
+
+        // Replays the gradient of the last step on the restored optimizer
+        Random random = new Random(3);
+        for (int i = 0; i < SIZE * STEPS; i++) {
+            random.nextGaussian();
+        }
+        Tensor gradient = Tensor.zeros(Tensor.Precision.DOUBLE, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            gradient.setFlat(i, random.nextGaussian());
+        }
+        second.update(Arrays.asList(parameter), Arrays.asList(gradient), NONE, LEARNING_RATE, SCALE);
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(expected.getFlat(i), parameter.getFlat(i), 0.0);
+        }
+
+        try {
+            second.update(Arrays.asList(parameter, parameter), Arrays.asList(gradient, gradient), Arrays.asList((Regularization) null, null), LEARNING_RATE, SCALE);
+            fail("Expected state for one parameter to be rejected for two");
+        } catch (IllegalArgumentException expectedFailure) {
+        }
+    }
+
+    /**
+     * Takes one plain gradient descent step on a parameter with the given regularization.
+     */
+    private static Tensor step(double[] weights, double[] gradient, Regularization regularization)
+    {
+        Tensor parameter = new Tensor(weights.clone(), weights.length);
+        new SGD().update(Collections.singletonList(parameter), Collections.singletonList(new Tensor(gradient.clone(), gradient.length)),
+                Collections.singletonList(regularization), LEARNING_RATE, SCALE);
+        return parameter;
+    }
+
+    public void testRegularizationIsAppliedOncePerStep()
+    {
+        double[] weights = {0.5, -0.3, 0.001, -0.002, 0.0};
+        double[] gradient = {0.4, 0.2, -0.1, -0.1, 0.6};
+        double l1 = 0.1;
+        double l2 = 0.01;
+
+        // Coupled: the penalty gradient is added to the averaged gradient
+        Tensor coupled = step(weights, gradient, new Regularization(l1, l2, Regularization.Mode.COUPLED));
+        for (int i = 0; i < weights.length; i++) {
+            double expected = weights[i] - LEARNING_RATE * (SCALE * gradient[i] + l1 * Math.signum(weights[i]) + l2 * weights[i]);
+            assertEquals(expected, coupled.getFlat(i), TOLERANCE);
+        }
+
+        // Decoupled weight decay is the same as coupled L2 for plain gradient descent
+        Tensor decayed = step(weights, gradient, new Regularization(0, l2, Regularization.Mode.DECOUPLED));
+        Tensor penalized = step(weights, gradient, new Regularization(0, l2, Regularization.Mode.COUPLED));
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals(penalized.getFlat(i), decayed.getFlat(i), TOLERANCE);
+        }
+
+        // Proximal L1 shrinks towards zero and stops there instead of oscillating around it
+        Tensor shrunk = step(weights, gradient, new Regularization(l1, 0, Regularization.Mode.DECOUPLED));
+        for (int i = 0; i < weights.length; i++) {
+            double updated = weights[i] - LEARNING_RATE * SCALE * gradient[i];
+            double expected = Math.signum(updated) * Math.max(Math.abs(updated) - LEARNING_RATE * l1, 0);
+            assertEquals(expected, shrunk.getFlat(i), TOLERANCE);
+        }
+        assertEquals(0.0, shrunk.getFlat(2), 0.0);
+        assertEquals(0.0, shrunk.getFlat(3), 0.0);
+    }
+}
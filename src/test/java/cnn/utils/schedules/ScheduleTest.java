@@ -0,0 +1,77 @@
+package cnn.utils.schedules;
+
+import cnn.interfaces.LearningRateSchedule;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the learning rate schedules at their characteristic steps.
+ */
+public class ScheduleTest
+    extends TestCase
+{
+    private static final double TOLERANCE = 1e-12;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ScheduleTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ScheduleTest.class );
+    }
+
+    public void testStepDecay()
+    {
+        LearningRateSchedule schedule = new StepSchedule(0.1, 10, 0.5);
+        assertEquals(0.1, schedule.learningRate(0, 100), TOLERANCE);
+        assertEquals(0.1, schedule.learningRate(9, 100), TOLERANCE);
+        assertEquals(0.05, schedule.learningRate(10, 100), TOLERANCE);
+        assertEquals(0.025, schedule.learningRate(25, 100), TOLERANCE);
+    }
+
+    public void testCosineAnnealing()
+    {
+        LearningRateSchedule schedule = new CosineSchedule(0.1, 0.01);
+        assertEquals(0.1, schedule.learningRate(0, 100), TOLERANCE);
+        assertEquals(0.055, schedule.learningRate(50, 100), TOLERANCE);
+        assertEquals(0.01, schedule.learningRate(100, 100), TOLERANCE);
+        assertEquals(0.01, schedule.learningRate(150, 100), TOLERANCE);
+    }
+
+    public void testOneCycle()
+    {
+        LearningRateSchedule schedule = new OneCycleSchedule(1.0, 0.25, 10, 100);
+        assertEquals(0.1, schedule.learningRate(0, 100), TOLERANCE);
+        assertEquals(0.55, schedule.learningRate(12, 96), TOLERANCE);
+        assertEquals(1.0, schedule.learningRate(25, 100), TOLERANCE);
+        assertEquals(0.001, schedule.learningRate(100, 100), TOLERANCE);
+        double previous = Double.MAX_VALUE;
+        for (int step = 25; step <= 100; step++) {
+            double rate = schedule.learningRate(step, 100);
+            assertTrue(rate <= previous);
+            previous = rate;
+        }
+    }
+
+    public void testWarmupRisesLinearlyThenFollowsSchedule()
+    {
+        LearningRateSchedule schedule = new WarmupSchedule(new CosineSchedule(0.2), 4);
+        assertEquals(0.05, schedule.learningRate(0, 14), TOLERANCE);
+        assertEquals(0.15, schedule.learningRate(2, 14), TOLERANCE);
+        assertEquals(0.2, schedule.learningRate(3, 14), TOLERANCE);
+        assertEquals(0.2, schedule.learningRate(4, 14), TOLERANCE);
+        assertEquals(0.1, schedule.learningRate(9, 14), TOLERANCE);
+        assertEquals(0.0, schedule.learningRate(14, 14), TOLERANCE);
+    }
+}